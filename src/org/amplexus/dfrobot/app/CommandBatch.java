@@ -0,0 +1,174 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * Several commands packed into the payload of one TX 16 frame (XBeeCommunicatorTask.CMD_BATCH).
+ *
+ * A lone two byte command pays for the whole API frame around it - start byte, length, frame id, address,
+ * options and checksum on the serial link, the MAC header and acknowledgement on the air, and a TX status on the
+ * way back. A batch pays for them once. The payload (version 1) is:
+ * - byte 1 = 18 (CMD_BATCH), byte 2 = VERSION, byte 3 = flags, byte 4 = count of entries
+ * - then count entries, each the command as it would be sent alone: command byte then data byte, or command byte
+ *   then left and right track speeds for CMD_MOTOR_VECTOR - preceded, if flags has FLAG_ADDRESSED, by the MY
+ *   address MSB and LSB. The robot knows each command's length from its command byte
+ * The robot acts on the entries in order. An addressed batch is meant for broadcasting commands to several
+ * robots in one frame: each robot acts only on the entries addressed to it (or to 0xFFFF).
+ *
+ * A batch is reused - build it, send it, then clear() it - so batching allocates nothing. Not thread safe.
+ *
+ * @author craig
+ */
+public class CommandBatch {
+
+	public static final int VERSION					= 1 ;
+	public static final int FLAG_ADDRESSED			= 0x01 ;	// Entries carry the MY address of the robot they are for
+	public static final int HEADER_BYTES			= 4 ;		// command, version, flags, count
+	public static final int MAX_COMMANDS			= (XBeeFrameEncoder.MAX_PAYLOAD - HEADER_BYTES) / 2 ;	// Of two bytes each
+	public static final int MAX_ADDRESSED_COMMANDS	= (XBeeFrameEncoder.MAX_PAYLOAD - HEADER_BYTES) / 4 ;
+
+	private final boolean addressed ;			// True if every entry carries a MY address
+	private final int capacity ;				// The most entries we hold
+	private final int[] payload = new int[XBeeFrameEncoder.MAX_PAYLOAD] ;	// The encoded payload
+	private final RobotCommand[] commands ;		// The commands in the batch, in order
+	private final int[] positions ;				// Where each command's entry starts in payload
+	private int count = 0 ;						// How many commands are in the batch
+	private int length = HEADER_BYTES ;			// How many bytes of payload are used
+
+	/**
+	 * Constructor, for a batch of commands all for the robot the frame is sent to.
+	 */
+	public CommandBatch() {
+		this(false) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param addressed true if each entry is for the robot named in it - see add(int, RobotCommand)
+	 */
+	public CommandBatch(boolean addressed) {
+		this.addressed = addressed ;
+		this.capacity = addressed ? MAX_ADDRESSED_COMMANDS : MAX_COMMANDS ;
+		this.commands = new RobotCommand[capacity] ;
+		this.positions = new int[capacity] ;
+		payload[0] = XBeeCommunicatorTask.CMD_BATCH ;
+		payload[1] = VERSION ;
+		payload[2] = addressed ? FLAG_ADDRESSED : 0 ;
+	}
+
+	/**
+	 * Add a command.
+	 *
+	 * @return false if the batch is full, or the command doesn't fit in what is left of the frame
+	 * @throws IllegalStateException if this is an addressed batch
+	 */
+	public boolean add(RobotCommand command) {
+		if(addressed)
+			throw new IllegalStateException("An addressed batch needs each command's robot") ;
+		int bytes = command.getPayloadLength() ;
+		if(count >= capacity || length + bytes > payload.length)
+			return false ;
+		positions[count] = length ;
+		command.writePayload(payload, length) ;
+		commands[count++] = command ;
+		length += bytes ;
+		return true ;
+	}
+
+	/**
+	 * Add a command for a specific robot, to an addressed batch.
+	 *
+	 * @param address the robot's 16 bit MY address, or 0xFFFF for every robot
+	 * @return false if the batch is full, or the command doesn't fit in what is left of the frame
+	 * @throws IllegalStateException if this isn't an addressed batch
+	 */
+	public boolean add(int address, RobotCommand command) {
+		if(!addressed)
+			throw new IllegalStateException("Only an addressed batch takes a robot per command") ;
+		int bytes = 2 + command.getPayloadLength() ;
+		if(count >= capacity || length + bytes > payload.length)
+			return false ;
+		positions[count] = length ;
+		payload[length] = (address >> 8) & 0xff ;
+		payload[length + 1] = address & 0xff ;
+		command.writePayload(payload, length + 2) ;
+		commands[count++] = command ;
+		length += bytes ;
+		return true ;
+	}
+
+	public boolean isAddressed() {
+		return addressed ;
+	}
+
+	/**
+	 * @return how many commands are in the batch
+	 */
+	public int size() {
+		return count ;
+	}
+
+	public boolean isEmpty() {
+		return count == 0 ;
+	}
+
+	/**
+	 * @return true if there is no room for even a two byte command
+	 */
+	public boolean isFull() {
+		return count >= capacity || length + (addressed ? 4 : 2) > payload.length ;
+	}
+
+	/**
+	 * @return the most two byte commands the batch holds - fewer if it holds longer ones
+	 */
+	public int getCapacity() {
+		return capacity ;
+	}
+
+	/**
+	 * @return the index'th command added
+	 */
+	public RobotCommand getCommand(int index) {
+		if(index < 0 || index >= count)
+			throw new IndexOutOfBoundsException(index + " of " + count) ;
+		return commands[index] ;
+	}
+
+	/**
+	 * @return the encoded payload, getLength() bytes from offset 0. Only valid until the batch is changed.
+	 */
+	public int[] getPayload() {
+		payload[3] = count ;
+		return payload ;
+	}
+
+	/**
+	 * @return the length of the encoded payload
+	 */
+	public int getLength() {
+		return length ;
+	}
+
+	/**
+	 * Empty the batch, ready to be reused.
+	 */
+	public void clear() {
+		for(int i = 0; i < count; i++)
+			commands[i] = null ;
+		count = 0 ;
+		length = HEADER_BYTES ;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("BATCH [") ;
+		for(int i = 0; i < count; i++) {
+			if(i > 0)
+				s.append(", ") ;
+			if(addressed)
+				s.append(String.format("0x%02x%02x ", payload[positions[i]], payload[positions[i] + 1])) ;
+			s.append(commands[i]) ;
+		}
+		return s.append("]").toString() ;
+	}
+}
@@ -0,0 +1,1137 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Sends commands to the robot one at a time, from a single dedicated thread - plus a priority lane for stops.
+ *
+ * The GUI submits commands into a bounded queue and returns immediately. The dispatcher thread takes them off
+ * the queue in order and hands them to its XBeeCommunicatorTask. A command that has been taken off the queue is
+ * always sent to completion - it is never interrupted half way through a frame.
+ *
+ * Frames are sent through an XBeeTransmitEngine, so the dispatcher doesn't wait for each TX status before
+ * sending the next command - it only waits when the engine's window of outstanding frames is full. The listener
+ * is told about each command when its TX status arrives.
+ *
+ * Motion commands are coalesced, latest wins: if a motion command is still waiting in the queue when a newer
+ * motion command is submitted, the older one is dropped, as it is already out of date. This keeps key mashing
+ * from building up a backlog of stale movements. Keepalives and infrared sampling start / stop are coalesced the
+ * same way (see RobotCommand.supersedes()).
+ *
+ * Stop and autonomous mode off take a priority lane with its own thread, so they never wait behind the queue:
+ * - a stop drops every queued motion command, as none of them should happen after it
+ * - priority frames use window slots reserved for them (see XBeeTransmitEngine.sendPriority())
+ * - a priority command is re-sent every PRIORITY_ACK_TIMEOUT_MILLIS until the robot acknowledges it (or the
+ *   PRIORITY_DEADLINE_MILLIS passes), rather than waiting out the engine's timeout; an acknowledgement of any
+ *   attempt will do, and a superseded attempt gives its reserved slot back
+ * - nothing from the ordinary queue is sent while a priority command is outstanding, so a command submitted
+ *   after a stop can't overtake it
+ * A stop can't beat the serial port open itself, but it is never queued behind motion commands or a full
+ * window. TestStopLatency checks the worst case against STOP_LATENCY_TARGET_MILLIS.
+ *
+ * Commands go to the destination set with setDestination() - the XBee shield on the robot unless changed.
+ *
+ * If the robot's sketch understands CMD_BATCH, setBatching() lets the dispatcher thread pack the ordinary
+ * commands waiting in the queue into one frame (see CommandBatch), saving most of the per frame cost on the
+ * serial link and the air. A batch is sent once it holds the maximum number of commands, or once its oldest
+ * command has waited the linger time - with no linger, whatever queued up while the window was full goes in one
+ * frame, and a lone command is sent on its own as before. Priority commands are never batched.
+ *
+ * An ordinary command (or batch) whose frame fails is sent again as the RetryPolicy says - after a randomized
+ * backoff if the channel was busy, after a short pause if the robot didn't acknowledge it, and never once its
+ * deadline has passed. A retry that has fallen due goes ahead of the queue, as it was submitted first. But a
+ * retry that a newer command has superseded since it was taken off the queue is dropped, like a coalesced
+ * command: a forward must not be repeated after the left - or the stop - that replaced it. getRetryCount(), getAbandonedCount(),
+ * getStaleRetryCount() and getTimeToSuccess() show how it is going.
+ *
+ * If an EventLog is set, every command's progress - submitted, sent, retried, delivered or given up on - is
+ * recorded in it, rather than logged line by line.
+ *
+ * Steady state sending allocates nothing: the queue is a pair of fixed size arrays, submit(int, int) uses the
+ * shared RobotCommand instances, each frame's Delivery is reused and every frame completes through the one
+ * CompletionCallback.
+ *
+ * @author craig
+ */
+public class CommandDispatcher implements Runnable {
+
+	public static final int DEFAULT_CAPACITY				= 16 ;
+	public static final int PRIORITY_CAPACITY				= 4 ;		// Distinct priority commands we will queue
+	public static final int PRIORITY_ACK_TIMEOUT_MILLIS		= 150 ;		// Re-send a priority command if not acked by then
+	public static final int PRIORITY_DEADLINE_MILLIS		= 3000 ;	// Give up on a priority command after this long
+	public static final int PRIORITY_RETRY_PAUSE_MILLIS		= 10 ;		// Pause before re-trying after an I/O error
+	public static final int STOP_LATENCY_TARGET_MILLIS		= 250 ;		// Worst case submit to ack at 9600 baud, see TestStopLatency
+	private static final int SUPERSEDING_KINDS				= 8 ;		// Room for each kind of command that supersedes others
+
+	private final CommandQueue queue ;				// Commands waiting to be sent
+	private final XBeeTransmitEngine engine ;		// Pipelines the frames and matches up their TX status
+	private final XBeeCommunicatorTask task ;		// Sends each command over the shared link
+	private final CommandListener listener ;		// Told about each command as it completes
+	private final CompletionCallback completion = new CompletionCallback() ;	// Completes every command we send
+	private final Thread thread ;					// The dispatcher thread
+	private final PriorityLane priority ;			// Sends stop and autonomous mode off
+
+	private volatile String commPort ;				// The USB port we communicate over
+	private volatile int baudRate ;					// The baud rate we communicate at
+	private volatile XBeeFrameEncoder.Destination destination = XBeeCommunicatorTask.XBEE_SHIELD ;	// The robot we command
+	private volatile int batchLimit = 1 ;			// Most commands packed into one frame, 1 for no batching
+	private volatile long batchLingerNanos = 0 ;	// How long a command may wait for others to batch with
+	private final CommandBatch[] batches = new CommandBatch[XBeeTransmitEngine.DEFAULT_WINDOW + 1] ;	// Batches not in flight
+	private int freeBatches = 0 ;					// How many of batches are free
+	private final Delivery[] deliveries = new Delivery[XBeeTransmitEngine.DEFAULT_WINDOW * 4] ;	// Deliveries not in use
+	private int freeDeliveries = 0 ;				// How many of deliveries are free
+	private volatile RetryPolicy retryPolicy = new RetryPolicy() ;	// When to send a failed command again
+	private volatile EventLog events = null ;		// Records each command's progress, if set
+	private final List<Delivery> retrying = new ArrayList<Delivery>() ;	// Failed deliveries waiting to be sent again
+	private final RobotCommand[] latest = new RobotCommand[SUPERSEDING_KINDS] ;	// The newest command of each kind that supersedes others
+	private final long[] latestNanos = new long[SUPERSEDING_KINDS] ;	// When each was submitted
+	private int latestKinds = 0 ;					// How many of latest are in use
+	private final RobotCommand[] survivors = new RobotCommand[CommandBatch.MAX_COMMANDS] ;	// Scratch, for dropping stale commands from a batch
+	private volatile boolean shutdown = false ;		// Set to stop the dispatcher thread
+	private boolean sending = false ;				// True while the dispatcher thread is sending a command
+
+	private long submitted = 0 ;					// Commands accepted into the queue
+	private long coalesced = 0 ;					// Queued commands replaced by a newer one before being sent
+	private long rejected = 0 ;						// Commands refused because the queue was full
+	private long sent = 0 ;							// Commands sent successfully
+	private long failed = 0 ;						// Commands that failed to send
+	private long priorityRetries = 0 ;				// Priority commands re-sent because they weren't acknowledged in time
+	private final long[] retries = new long[RetryPolicy.OUTCOMES] ;	// Ordinary deliveries re-sent, by why they failed
+	private long abandoned = 0 ;					// Deliveries that failed in a retryable way, but ran out of retries
+	private long staleRetries = 0 ;					// Commands waiting to be retried that a newer command superseded
+	private long batchFrames = 0 ;					// Batches sent
+	private long batchedCommands = 0 ;				// Commands sent in batches
+	private final LatencyHistogram dispatchDelay = new LatencyHistogram() ;	// From submit to the dispatcher thread picking the command up
+	private final LatencyHistogram priorityLatency = new LatencyHistogram() ;	// From submit to the robot acknowledging a priority command
+	private final LatencyHistogram timeToSuccess = new LatencyHistogram() ;	// From submit to the robot acknowledging an ordinary command, retries and all
+    private final static Logger log = Logger.getLogger(CommandDispatcher.class);
+
+	/**
+	 * Constructor, using a transmit engine with the default window. Starts the dispatcher thread.
+	 *
+	 * @param link the shared connection to the XBee explorer
+	 * @param commPort the USB port we communicate over
+	 * @param baudRate the baud rate we communicate at
+	 * @param capacity the most commands we will queue
+	 * @param listener told about each command as it completes, may be null
+	 */
+	public CommandDispatcher(XBeeLinkManager link, String commPort, int baudRate, int capacity, CommandListener listener) {
+		this(link, new XBeeTransmitEngine(), commPort, baudRate, capacity, listener) ;
+	}
+
+	/**
+	 * Constructor. Starts the dispatcher thread.
+	 *
+	 * @param link the shared connection to the XBee explorer
+	 * @param engine sends the frames - shut down along with the dispatcher
+	 * @param commPort the USB port we communicate over
+	 * @param baudRate the baud rate we communicate at
+	 * @param capacity the most commands we will queue
+	 * @param listener told about each command as it completes, may be null
+	 */
+	public CommandDispatcher(XBeeLinkManager link, XBeeTransmitEngine engine, String commPort, int baudRate, int capacity, CommandListener listener) {
+		this.engine = engine ;
+		this.task = new XBeeCommunicatorTask(link, engine) ;
+		this.commPort = commPort ;
+		this.baudRate = baudRate ;
+		this.queue = new CommandQueue(capacity) ;
+		this.listener = listener ;
+		this.priority = new PriorityLane(new XBeeCommunicatorTask(link, engine, true)) ;
+		this.thread = new Thread(this, "command-dispatcher") ;
+		this.thread.setDaemon(true) ;
+		this.thread.start() ;
+	}
+
+	/**
+	 * Change the USB port used by subsequent commands.
+	 */
+	public void setCommPort(String commPort) {
+		this.commPort = commPort ;
+	}
+
+	/**
+	 * Change the baud rate used by subsequent commands.
+	 */
+	public void setBaudRate(int baudRate) {
+		this.baudRate = baudRate ;
+	}
+
+	/**
+	 * Change the robot that subsequent commands go to.
+	 *
+	 * @param destination the robot's XBee
+	 */
+	public void setDestination(XBeeFrameEncoder.Destination destination) {
+		this.destination = destination ;
+	}
+
+	public XBeeFrameEncoder.Destination getDestination() {
+		return destination ;
+	}
+
+	/**
+	 * Pack queued ordinary commands into batches - only if the robot's sketch understands CMD_BATCH.
+	 *
+	 * @param maxCommands the most commands in one frame (up to CommandBatch.MAX_COMMANDS), 1 to stop batching
+	 * @param lingerMillis how long a command may wait for others to join its batch, 0 to batch only what is
+	 * already queued
+	 */
+	public void setBatching(int maxCommands, int lingerMillis) {
+		if(maxCommands < 1 || maxCommands > CommandBatch.MAX_COMMANDS)
+			throw new IllegalArgumentException("maxCommands must be 1-" + CommandBatch.MAX_COMMANDS + ": " + maxCommands) ;
+		this.batchLingerNanos = lingerMillis * 1000000L ;
+		this.batchLimit = maxCommands ;
+	}
+
+	/**
+	 * Change when failed ordinary commands are sent again.
+	 *
+	 * @param retryPolicy the policy, or RetryPolicy.NO_RETRIES to fail each command the first time its frame fails
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy ;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy ;
+	}
+
+	/**
+	 * @param events records each command's progress, or null for none
+	 */
+	public void setEventLog(EventLog events) {
+		this.events = events ;
+	}
+
+	/**
+	 * Queue a command for sending.
+	 *
+	 * @param command the command (CMD_*)
+	 * @param data the data byte for the command
+	 * @return false if the queue is full and the command was dropped
+	 */
+	public boolean submit(int command, int data) {
+		return submit(RobotCommand.valueOf(command, data)) ;
+	}
+
+	/**
+	 * Queue a command for sending. A queued motion command is replaced if this is also a motion command.
+	 * Priority commands (see RobotCommand.isPriority()) go to the priority lane instead.
+	 *
+	 * @param command the command
+	 * @return false if the queue is full and the command was dropped
+	 */
+	public synchronized boolean submit(RobotCommand command) {
+		if(shutdown)
+			return false ;
+		long now = System.nanoTime() ;
+		EventLog events = this.events ;
+		if(events != null)
+			events.record(EventLog.SUBMITTED, command.getCommand(), command.getData(), 0) ;
+		coalesced += queue.coalesce(command) ;
+		submitted(command, now) ;
+		if(command.isPriority())
+			return priority.submit(command) ;
+		if(!queue.offer(command, now)) {
+			rejected++ ;
+			if(events != null)
+				events.record(EventLog.REJECTED, command.getCommand(), command.getData(), 0) ;
+			log.warn("Command queue full, dropping " + command) ;
+			return false ;
+		}
+		submitted++ ;
+		notifyAll() ;
+		return true ;
+	}
+
+	/**
+	 * Throw away any commands that have not been sent yet, or are waiting to be retried. The command currently
+	 * being sent (if any) completes.
+	 *
+	 * @return how many commands were thrown away
+	 */
+	public synchronized int cancelPending() {
+		return queue.clear() + clearRetries() ;
+	}
+
+	/**
+	 * Stop the dispatcher thread once the command currently being sent (if any) completes. Queued commands are
+	 * discarded, and frames still waiting for their TX status are failed.
+	 */
+	public void shutdown() {
+		synchronized(this) {
+			shutdown = true ;
+			queue.clear() ;
+			clearRetries() ;
+			priority.clear() ;
+			notifyAll() ;
+		}
+		try {
+			thread.join(5000) ;
+			priority.thread.join(5000) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		}
+		engine.shutdown() ;
+	}
+
+	/**
+	 * @return how many commands are waiting to be sent
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size() ;
+	}
+
+	/**
+	 * @return how many queued commands have been replaced by a newer command before being sent
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalesced ;
+	}
+
+	public synchronized long getSubmittedCount() {
+		return submitted ;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejected ;
+	}
+
+	public synchronized long getSentCount() {
+		return sent ;
+	}
+
+	public synchronized long getFailedCount() {
+		return failed ;
+	}
+
+	/**
+	 * @return how many times a priority command has been re-sent because it wasn't acknowledged in time
+	 */
+	public synchronized long getPriorityRetryCount() {
+		return priorityRetries ;
+	}
+
+	/**
+	 * @return how many times ordinary commands (or batches) have been re-sent, whatever the reason
+	 */
+	public synchronized long getRetryCount() {
+		long total = 0 ;
+		for(int i = 0; i < retries.length; i++)
+			total += retries[i] ;
+		return total ;
+	}
+
+	/**
+	 * @param outcome why the frame failed - RetryPolicy.CHANNEL_BUSY, NO_ACK, NO_STATUS or LINK_ERROR
+	 * @return how many times ordinary commands (or batches) have been re-sent after failing that way
+	 */
+	public synchronized long getRetryCount(int outcome) {
+		return retries[outcome] ;
+	}
+
+	/**
+	 * @return how many ordinary commands (or batches) failed in a way worth retrying, but ran out of retries or
+	 * time - so the listener was told they failed
+	 */
+	public synchronized long getAbandonedCount() {
+		return abandoned ;
+	}
+
+	/**
+	 * @return how many commands waiting to be retried were dropped because a newer command superseded them
+	 */
+	public synchronized long getStaleRetryCount() {
+		return staleRetries ;
+	}
+
+	/**
+	 * @return how many deliveries are waiting to be retried
+	 */
+	public synchronized int getRetryDepth() {
+		return retrying.size() ;
+	}
+
+	/**
+	 * @return the time from each ordinary command being submitted to the robot acknowledging it, including any
+	 * retries - the oldest command's, for a batch
+	 */
+	public LatencyHistogram getTimeToSuccess() {
+		return timeToSuccess ;
+	}
+
+	/**
+	 * @return how many batches have been sent
+	 */
+	public synchronized long getBatchCount() {
+		return batchFrames ;
+	}
+
+	/**
+	 * @return how many commands have been sent in batches
+	 */
+	public synchronized long getBatchedCommandCount() {
+		return batchedCommands ;
+	}
+
+	/**
+	 * @return the time from each priority command being submitted to the robot acknowledging it
+	 */
+	public LatencyHistogram getPriorityLatency() {
+		return priorityLatency ;
+	}
+
+	/**
+	 * @return the time from each command being submitted (normally on the EventDispatch thread) to the dispatcher
+	 * thread picking it up - ie the hand off cost plus any queueing
+	 */
+	public LatencyHistogram getDispatchDelay() {
+		return dispatchDelay ;
+	}
+
+	/**
+	 * @return how many frames are waiting for their TX status
+	 */
+	public int getOutstanding() {
+		return engine.getOutstanding() ;
+	}
+
+	/**
+	 * Register our metrics as dispatcher.* - submitted is every command issued, sent every command the robot
+	 * acknowledged.
+	 */
+	public void registerMetrics(MetricsRegistry metrics) {
+		metrics.register("dispatcher.submitted", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getSubmittedCount() ;
+			}
+		});
+		metrics.register("dispatcher.coalesced", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getCoalescedCount() ;
+			}
+		});
+		metrics.register("dispatcher.rejected", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getRejectedCount() ;
+			}
+		});
+		metrics.register("dispatcher.sent", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getSentCount() ;
+			}
+		});
+		metrics.register("dispatcher.failed", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getFailedCount() ;
+			}
+		});
+		int[] outcomes = { RetryPolicy.CHANNEL_BUSY, RetryPolicy.NO_ACK, RetryPolicy.NO_STATUS, RetryPolicy.LINK_ERROR } ;
+		String[] names = { "retriedChannelBusy", "retriedNoAck", "retriedNoStatus", "retriedLinkError" } ;
+		for(int i = 0; i < outcomes.length; i++) {
+			final int outcome = outcomes[i] ;
+			metrics.register("dispatcher." + names[i], new MetricsRegistry.Gauge() {
+				public long getValue() {
+					return getRetryCount(outcome) ;
+				}
+			});
+		}
+		metrics.register("dispatcher.abandoned", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getAbandonedCount() ;
+			}
+		});
+		metrics.register("dispatcher.staleRetries", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getStaleRetryCount() ;
+			}
+		});
+		metrics.register("dispatcher.priorityRetries", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getPriorityRetryCount() ;
+			}
+		});
+		metrics.register("dispatcher.batches", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getBatchCount() ;
+			}
+		});
+		metrics.register("dispatcher.queueDepth", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getQueueDepth() ;
+			}
+		});
+		metrics.register("dispatcher.retryDepth", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getRetryDepth() ;
+			}
+		});
+		metrics.register("dispatcher.dispatchDelay", dispatchDelay) ;
+		metrics.register("dispatcher.timeToSuccess", timeToSuccess) ;
+		metrics.register("dispatcher.priorityLatency", priorityLatency) ;
+	}
+
+	/**
+	 * The dispatcher thread: send each queued command in turn, or in batches - and each retry as it falls due.
+	 *
+	 * We wait for room in the window before taking a command off the queue, so a stop submitted while we wait
+	 * still gets to drop the motion commands queued before it.
+	 */
+	public void run() {
+		while(true) {
+			Delivery delivery ;
+			synchronized(this) {
+				if(!awaitWork())
+					return ;
+			}
+			try {
+				engine.awaitWindow() ;
+			} catch (InterruptedException e) {
+				return ;
+			}
+			synchronized(this) {
+				if(priority.isBusy() || shutdown)
+					continue ;
+				delivery = dueRetry() ;
+				if(delivery == null) {
+					int limit = batchLimit ;
+					if(limit > 1)
+						linger(limit) ;
+					if(queue.isEmpty() || priority.isBusy() || shutdown)
+						continue ;
+					delivery = take(limit) ;
+				}
+				delivery.reported = false ;
+				sending = true ;
+			}
+			if(delivery.retries == 0)
+				dispatchDelay.recordNanos(delivery.takenNanos - delivery.submittedNanos) ;
+
+			/*
+			 * The frame's TX status may come back - and the callback complete the delivery and return it to the
+			 * pool - before execute() returns, so what the SENT event needs is read now.
+			 */
+			int sentCommand = delivery.getCommand() ;
+			int sentData = delivery.batch != null ? delivery.batch.size() : delivery.command.getData() ;
+			int sentRetries = delivery.retries ;
+			String error = null ;
+			int outcome = RetryPolicy.DELIVERED ;
+			try {
+				if(delivery.batch != null) {
+					if(!task.executeBatch(delivery.batch, destination, commPort, baudRate, completion, delivery))
+						error = task.getLastError() ;
+				} else if(!task.execute(delivery.command.getCommand(), delivery.command.getData(), destination, commPort, baudRate, completion, delivery))
+					error = task.getLastError() ;		// Invalid - no point retrying
+				EventLog events = this.events ;
+				if(events != null && error == null)
+					events.record(EventLog.SENT, sentCommand, sentData, sentRetries) ;
+			} catch (XBeeException e) {
+				if(!delivery.reported) {			// Otherwise the engine failed the frame, and the callback has dealt with it
+					error = task.getLastError() ;
+					outcome = RetryPolicy.LINK_ERROR ;
+				}
+			} catch (RuntimeException e) {
+				if(!delivery.reported) {			// As above
+					error = "Error executing: " + delivery + ": " + e ;
+					log.error(error, e) ;
+				} else {
+					log.error("Error executing: " + XBeeCommunicatorTask.stringifiedCommandName(sentCommand) + ": " + e, e) ;
+				}
+			}
+			synchronized(this) {
+				sending = false ;
+				notifyAll() ;
+			}
+			if(outcome != RetryPolicy.DELIVERED)
+				failed(delivery, outcome, error) ;
+			else if(error != null)
+				completed(delivery, error) ;
+		}
+	}
+
+	/**
+	 * Wait until there is something to send - a queued command, or a retry that is due - and no priority command
+	 * in the way. Caller must hold the lock.
+	 *
+	 * @return false if we are shutting down
+	 */
+	private boolean awaitWork() {
+		while(!shutdown) {
+			long waitNanos = 0 ;			// 0 to wait until notified
+			if(!priority.isBusy()) {
+				if(!queue.isEmpty())
+					return true ;
+				if(!retrying.isEmpty()) {
+					waitNanos = nextRetryNanos() - System.nanoTime() ;
+					if(waitNanos <= 0)
+						return true ;
+				}
+			}
+			try {
+				if(waitNanos > 0)
+					TimeUnit.NANOSECONDS.timedWait(this, waitNanos) ;
+				else
+					wait() ;
+			} catch (InterruptedException e) {
+				shutdown = true ;
+			}
+		}
+		return false ;
+	}
+
+	/**
+	 * Take the next command off the queue - or, if batching and more are queued, as many as fit in a batch.
+	 * Caller must hold the lock.
+	 */
+	private Delivery take(int limit) {
+		Delivery delivery = freeDeliveries > 0 ? deliveries[--freeDeliveries] : new Delivery() ;
+		delivery.submittedNanos = queue.peekNanos() ;
+		delivery.takenNanos = System.nanoTime() ;
+		delivery.retries = 0 ;
+		RobotCommand command = queue.poll() ;
+		if(limit > 1 && !queue.isEmpty()) {
+			CommandBatch batch = freeBatches > 0 ? batches[--freeBatches] : new CommandBatch() ;
+			batch.add(command) ;
+			while(batch.size() < limit && !queue.isEmpty() && batch.add(queue.peek()))
+				queue.poll() ;
+			delivery.batch = batch ;
+		} else
+			delivery.command = command ;
+		return delivery ;
+	}
+
+	/**
+	 * @return when the next retry falls due. Caller must hold the lock, and there must be a retry waiting.
+	 */
+	private long nextRetryNanos() {
+		long next = retrying.get(0).dueNanos ;
+		for(int i = 1; i < retrying.size(); i++) {
+			if(retrying.get(i).dueNanos - next < 0)
+				next = retrying.get(i).dueNanos ;
+		}
+		return next ;
+	}
+
+	/**
+	 * Take the retry that fell due first, dropping any a newer command has made pointless. Caller must hold the
+	 * lock.
+	 *
+	 * @return the retry, or null if none is due
+	 */
+	private Delivery dueRetry() {
+		long now = System.nanoTime() ;
+		while(true) {
+			int next = -1 ;
+			for(int i = 0; i < retrying.size(); i++) {
+				long due = retrying.get(i).dueNanos ;
+				if(due - now <= 0 && (next < 0 || due - retrying.get(next).dueNanos < 0))
+					next = i ;
+			}
+			if(next < 0)
+				return null ;
+			Delivery delivery = retrying.remove(next) ;
+			if(!dropStale(delivery))
+				return delivery ;
+		}
+	}
+
+	/**
+	 * A delivery's frame failed: queue it to be sent again if the retry policy says so, otherwise complete it
+	 * with the error.
+	 *
+	 * @param outcome why it failed - see RetryPolicy.classify()
+	 */
+	private void failed(Delivery delivery, int outcome, String error) {
+		synchronized(this) {
+			if(!shutdown && dropStale(delivery))
+				return ;
+			RetryPolicy policy = retryPolicy ;
+			long now = System.nanoTime() ;
+			long delayMicros = shutdown ? -1 : policy.retryDelayMicros(outcome, delivery.retries, now - delivery.submittedNanos) ;
+			if(delayMicros >= 0) {
+				retries[outcome]++ ;
+				delivery.retries++ ;
+				delivery.dueNanos = now + delayMicros * 1000L ;
+				retrying.add(delivery) ;
+				notifyAll() ;
+				EventLog events = this.events ;
+				if(events != null)
+					events.record(EventLog.RETRY, delivery.getCommand(), outcome, delayMicros) ;
+				if(log.isDebugEnabled())
+					log.debug("Retrying " + delivery + " in " + (delayMicros / 1000L) + " ms (" + RetryPolicy.outcomeName(outcome) + "): " + error) ;
+				return ;
+			}
+			if(RetryPolicy.isRetryable(outcome) && policy.getMaxRetries() > 0)
+				abandoned++ ;
+		}
+		EventLog events = this.events ;
+		if(events != null)
+			events.record(EventLog.FAILED, delivery.getCommand(), outcome, delivery.retries) ;
+		log.error(error + (delivery.retries > 0 ? " after " + delivery.retries + " retries: " : ": ") + delivery) ;
+		completed(delivery, error) ;
+	}
+
+	/**
+	 * Remember the newest command of each kind that supersedes others, so a retry can tell if it has been
+	 * superseded. Caller must hold the lock.
+	 */
+	private void submitted(RobotCommand command, long nanos) {
+		if(!command.supersedes(command))
+			return ;								// Supersedes nothing, eg a ping
+		for(int i = 0; i < latestKinds; i++) {
+			if(command.supersedes(latest[i])) {
+				latest[i] = command ;
+				latestNanos[i] = nanos ;
+				return ;
+			}
+		}
+		if(latestKinds < latest.length) {
+			latest[latestKinds] = command ;
+			latestNanos[latestKinds++] = nanos ;
+		}
+	}
+
+	/**
+	 * @return true if a command submitted after takenNanos supersedes command. Caller must hold the lock.
+	 */
+	private boolean isStale(RobotCommand command, long takenNanos) {
+		for(int i = 0; i < latestKinds; i++) {
+			if(latestNanos[i] - takenNanos > 0 && latest[i].supersedes(command))
+				return true ;
+		}
+		return false ;
+	}
+
+	/**
+	 * Drop the commands in a delivery that have been superseded since it was taken off the queue - anything
+	 * superseded before then was coalesced in the queue. Like a coalesced command, the listener isn't told.
+	 * Caller must hold the lock.
+	 *
+	 * @return true if there is nothing left, in which case the delivery has been freed
+	 */
+	private boolean dropStale(Delivery delivery) {
+		if(delivery.batch == null) {
+			if(!isStale(delivery.command, delivery.takenNanos))
+				return false ;
+			staleRetries++ ;
+			superseded(delivery.command) ;
+			log.debug("Not retrying " + delivery.command + ", a newer command superseded it") ;
+			free(delivery) ;
+			return true ;
+		}
+		CommandBatch batch = delivery.batch ;
+		int kept = 0 ;
+		for(int i = 0; i < batch.size(); i++) {
+			if(!isStale(batch.getCommand(i), delivery.takenNanos))
+				survivors[kept++] = batch.getCommand(i) ;
+			else
+				superseded(batch.getCommand(i)) ;
+		}
+		if(kept == batch.size())
+			return false ;
+		staleRetries += batch.size() - kept ;
+		log.debug("Not retrying " + (batch.size() - kept) + " of " + batch + ", newer commands superseded them") ;
+		batch.clear() ;
+		for(int i = 0; i < kept; i++) {
+			batch.add(survivors[i]) ;
+			survivors[i] = null ;
+		}
+		if(!batch.isEmpty())
+			return false ;
+		free(delivery) ;
+		return true ;
+	}
+
+	/**
+	 * Record a command dropped from a retry because a newer command superseded it.
+	 */
+	private void superseded(RobotCommand command) {
+		EventLog events = this.events ;
+		if(events != null)
+			events.record(EventLog.SUPERSEDED, command.getCommand(), command.getData(), 0) ;
+	}
+
+	/**
+	 * Throw away every retry. Caller must hold the lock.
+	 *
+	 * @return how many commands were thrown away
+	 */
+	private int clearRetries() {
+		int cleared = 0 ;
+		while(!retrying.isEmpty()) {
+			Delivery delivery = retrying.remove(retrying.size() - 1) ;
+			cleared += delivery.batch != null ? delivery.batch.size() : 1 ;
+			free(delivery) ;
+		}
+		return cleared ;
+	}
+
+	/**
+	 * Free a delivery, and its batch, for reuse. Caller must hold the lock.
+	 */
+	private void free(Delivery delivery) {
+		if(delivery.batch != null) {
+			delivery.batch.clear() ;
+			if(freeBatches < batches.length)
+				batches[freeBatches++] = delivery.batch ;
+		}
+		delivery.batch = null ;
+		delivery.command = null ;
+		if(freeDeliveries < deliveries.length)
+			deliveries[freeDeliveries++] = delivery ;
+	}
+
+	/**
+	 * Wait for the queue to fill a batch, until its oldest command has lingered long enough - or a priority
+	 * command or shutdown needs the thread. Caller must hold the lock.
+	 */
+	private void linger(int limit) {
+		long lingerNanos = batchLingerNanos ;
+		while(!queue.isEmpty() && queue.size() < limit && !priority.isBusy() && !shutdown) {
+			long remaining = queue.peekNanos() + lingerNanos - System.nanoTime() ;
+			if(remaining <= 0)
+				return ;
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining) ;
+			} catch (InterruptedException e) {
+				shutdown = true ;
+			}
+		}
+	}
+
+	/**
+	 * Complete every command in a delivery, and free it for reuse.
+	 */
+	private void completed(Delivery delivery, String error) {
+		if(error == null) {
+			long nanos = System.nanoTime() - delivery.submittedNanos ;
+			timeToSuccess.recordNanos(nanos) ;
+			EventLog events = this.events ;
+			if(events != null)
+				events.record(EventLog.DELIVERED, delivery.getCommand(), nanos / 1000L, delivery.retries) ;
+		}
+		CommandBatch batch = delivery.batch ;
+		if(batch == null)
+			completed(delivery.command, error) ;
+		else {
+			for(int i = 0; i < batch.size(); i++)
+				completed(batch.getCommand(i), error) ;
+		}
+		synchronized(this) {
+			if(batch != null) {
+				batchFrames++ ;
+				batchedCommands += batch.size() ;
+			}
+			free(delivery) ;
+		}
+	}
+
+	/**
+	 * Count a completed command and tell the listener.
+	 */
+	private void completed(RobotCommand command, String error) {
+		synchronized(this) {
+			if(error == null)
+				sent++ ;
+			else
+				failed++ ;
+		}
+		if(listener != null)
+			listener.commandCompleted(command, error) ;
+	}
+
+	/**
+	 * The priority lane: its own small queue and thread, sharing the dispatcher's lock.
+	 *
+	 * Each command is sent and then re-sent until the robot acknowledges it. Every attempt carries a new Attempt
+	 * as its attachment, so a failure reported late for an earlier attempt can't be mistaken for the current
+	 * one's - but an acknowledgement of any attempt completes the command. That allocates, but stops are rare.
+	 *
+	 * An attempt given up on keeps its frame outstanding in the engine, so a late acknowledgement still counts,
+	 * but gives its reserved slot back (see XBeeTransmitEngine.releaseSlot()): otherwise, with only PRIORITY_SLOTS
+	 * slots, the third attempt would wait for the first to time out - just when the link is losing frames.
+	 */
+	private class PriorityLane implements Runnable, TransmitCallback {
+		private final RobotCommand[] queue = new RobotCommand[PRIORITY_CAPACITY] ;	// Priority commands waiting, oldest first
+		private final long[] queuedNanos = new long[PRIORITY_CAPACITY] ;	// When each was submitted
+		private int size = 0 ;						// How many are waiting
+		private boolean busy = false ;				// True while a priority command is being sent
+		private int retries = 0 ;					// How many times the current command has been re-sent, lane thread only
+		private int outcome = RetryPolicy.DELIVERED ;	// How its last attempt went, lane thread only
+		private final XBeeCommunicatorTask task ;	// Sends through the reserved window slots
+		private final Thread thread ;				// The priority lane thread
+
+		PriorityLane(XBeeCommunicatorTask task) {
+			this.task = task ;
+			this.thread = new Thread(this, "command-priority") ;
+			this.thread.setDaemon(true) ;
+			this.thread.start() ;
+		}
+
+		/**
+		 * Queue a priority command. A command that is already waiting isn't queued twice. Caller must hold the
+		 * dispatcher's lock.
+		 */
+		boolean submit(RobotCommand command) {
+			for(int i = 0; i < size; i++) {
+				if(queue[i].getCommand() == command.getCommand()) {
+					coalesced++ ;
+					return true ;
+				}
+			}
+			if(size >= PRIORITY_CAPACITY) {
+				rejected++ ;
+				log.warn("Priority queue full, dropping " + command) ;
+				return false ;
+			}
+			queue[size] = command ;
+			queuedNanos[size++] = System.nanoTime() ;
+			submitted++ ;
+			CommandDispatcher.this.notifyAll() ;
+			return true ;
+		}
+
+		/**
+		 * @return true if a priority command is waiting or being sent. Caller must hold the dispatcher's lock.
+		 */
+		boolean isBusy() {
+			return busy || size > 0 ;
+		}
+
+		/**
+		 * Caller must hold the dispatcher's lock.
+		 */
+		void clear() {
+			for(int i = 0; i < size; i++)
+				queue[i] = null ;
+			size = 0 ;
+		}
+
+		public void run() {
+			while(true) {
+				RobotCommand command ;
+				long queuedAt ;
+				synchronized(CommandDispatcher.this) {
+					while(size == 0 && !shutdown) {
+						try {
+							CommandDispatcher.this.wait() ;
+						} catch (InterruptedException e) {
+							shutdown = true ;
+						}
+					}
+					if(shutdown)
+						return ;
+					command = queue[0] ;
+					queuedAt = queuedNanos[0] ;
+					System.arraycopy(queue, 1, queue, 0, size - 1) ;
+					System.arraycopy(queuedNanos, 1, queuedNanos, 0, size - 1) ;
+					queue[--size] = null ;
+					busy = true ;
+
+					/*
+					 * Let a command the dispatcher thread has already taken off the queue reach the port first -
+					 * it was submitted before this one, and must not arrive after it
+					 */
+					while(sending && !shutdown) {
+						try {
+							CommandDispatcher.this.wait() ;
+						} catch (InterruptedException e) {
+							shutdown = true ;
+						}
+					}
+				}
+
+				String error = send(command, queuedAt) ;
+				long nanos = System.nanoTime() - queuedAt ;
+				EventLog events = CommandDispatcher.this.events ;
+				if(error == null) {
+					priorityLatency.recordNanos(nanos) ;
+					if(events != null)
+						events.record(EventLog.DELIVERED, command.getCommand(), nanos / 1000L, retries) ;
+				} else {
+					if(events != null)
+						events.record(EventLog.FAILED, command.getCommand(), outcome, retries) ;
+					log.error(error) ;
+				}
+				completed(command, error) ;
+
+				synchronized(CommandDispatcher.this) {
+					busy = false ;
+					CommandDispatcher.this.notifyAll() ;
+				}
+			}
+		}
+
+		/**
+		 * Send a command until the robot acknowledges it, or the deadline passes.
+		 *
+		 * @return null if the robot acknowledged it, otherwise what went wrong with the last attempt
+		 */
+		private String send(RobotCommand command, long queuedAt) {
+			long deadline = queuedAt + PRIORITY_DEADLINE_MILLIS * 1000000L ;
+			String error ;
+			retries = 0 ;
+			Attempt first = null ;
+			while(true) {
+				Attempt attempt = new Attempt(command, first) ;
+				if(first == null)
+					first = attempt ;
+				outcome = RetryPolicy.LINK_ERROR ;
+				try {
+					if(!task.execute(command.getCommand(), command.getData(), destination, commPort, baudRate, this, attempt))
+						return task.getLastError() ;		// Invalid - no point retrying
+					EventLog events = CommandDispatcher.this.events ;
+					if(events != null)
+						events.record(EventLog.SENT, command.getCommand(), command.getData(), retries) ;
+					error = attempt.await(PRIORITY_ACK_TIMEOUT_MILLIS) ;
+					outcome = attempt.getOutcome() ;
+					if(error == null)
+						return null ;
+					if(outcome == RetryPolicy.NO_STATUS)
+						engine.releaseSlot(attempt) ;		// Still outstanding - don't let it hold up the next attempt
+				} catch (XBeeException e) {
+					error = task.getLastError() ;
+					pause() ;								// The port is broken, don't spin re-opening it
+				} catch (RuntimeException e) {
+					error = "Error executing: " + command + ": " + e ;
+					log.error(error, e) ;
+					pause() ;
+				}
+				if(shutdown || System.nanoTime() - deadline > 0)
+					return error ;
+				synchronized(CommandDispatcher.this) {
+					priorityRetries++ ;
+				}
+				retries++ ;
+				log.warn("Re-sending " + command + ": " + error) ;
+			}
+		}
+
+		private void pause() {
+			try {
+				Thread.sleep(PRIORITY_RETRY_PAUSE_MILLIS) ;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt() ;
+			}
+		}
+
+		/**
+		 * Completes an attempt when the transmit engine tells us its frame's TX status.
+		 */
+		public void transmitCompleted(TransmitFuture future) {
+			Attempt attempt = (Attempt) future.getAttachment() ;
+			attempt.complete(XBeeCommunicatorTask.describeFailure(attempt.command.getCommand(), future), RetryPolicy.classify(future)) ;
+		}
+	}
+
+	/**
+	 * One attempt at sending a priority command. A command's attempts all lock, wait and are acknowledged through
+	 * its first attempt, so an acknowledgement of any of them ends the wait for the current one.
+	 */
+	private static class Attempt {
+		private final RobotCommand command ;		// What we are sending
+		private final Attempt first ;				// The command's first attempt - this one, if it is
+		private boolean acknowledged = false ;		// First attempt only: set when any attempt is acknowledged, guarded by first
+		private boolean done = false ;				// Set when the TX status (or a failure) arrives, guarded by first
+		private String error = null ;				// What went wrong, null if acknowledged, guarded by first
+		private int outcome = RetryPolicy.NO_STATUS ;	// How it went - see RetryPolicy.classify(), guarded by first
+
+		/**
+		 * @param first the command's first attempt, null if this is it
+		 */
+		Attempt(RobotCommand command, Attempt first) {
+			this.command = command ;
+			this.first = first != null ? first : this ;
+		}
+
+		void complete(String error, int outcome) {
+			synchronized(first) {
+				this.error = error ;
+				this.outcome = outcome ;
+				this.done = true ;
+				if(error == null)
+					first.acknowledged = true ;
+				first.notifyAll() ;
+			}
+		}
+
+		/**
+		 * @return how the attempt went - DELIVERED if any attempt of the command was acknowledged, NO_STATUS until
+		 * the TX status arrives
+		 */
+		int getOutcome() {
+			synchronized(first) {
+				return first.acknowledged ? RetryPolicy.DELIVERED : outcome ;
+			}
+		}
+
+		/**
+		 * @return null if the robot acknowledged this or an earlier attempt, otherwise what went wrong
+		 */
+		String await(long timeoutMillis) {
+			synchronized(first) {
+				long deadline = System.nanoTime() + timeoutMillis * 1000000L ;
+				while(!done && !first.acknowledged) {
+					long remaining = deadline - System.nanoTime() ;
+					if(remaining <= 0)
+						return "No TX status within " + timeoutMillis + " ms" ;
+					try {
+						TimeUnit.NANOSECONDS.timedWait(first, remaining) ;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt() ;
+						return "Interrupted" ;
+					}
+				}
+				return first.acknowledged ? null : error ;
+			}
+		}
+	}
+
+	/**
+	 * An ordinary command, or a batch of them, on its way to the robot - the attachment its frame's TX status
+	 * comes back with. Reused, so sending allocates nothing.
+	 */
+	private static class Delivery {
+		RobotCommand command ;			// The command, or null if this is a batch
+		CommandBatch batch ;			// The batch, or null if this is a single command
+		long submittedNanos ;			// When the command (the oldest, for a batch) was submitted
+		long takenNanos ;				// When it was taken off the queue - a command submitted since may supersede it
+		int retries ;					// How many times it has been re-sent
+		long dueNanos ;					// When to re-send it, while waiting to
+		volatile boolean reported ;		// Set once the engine has reported how the current attempt went
+
+		/**
+		 * @return the command (CMD_*) the frame carries
+		 */
+		int getCommand() {
+			return batch != null ? XBeeCommunicatorTask.CMD_BATCH : command.getCommand() ;
+		}
+
+		@Override
+		public String toString() {
+			return batch != null ? batch.toString() : String.valueOf(command) ;
+		}
+	}
+
+	/**
+	 * Completes a delivery when the transmit engine tells us its frame's TX status - or sends it again, as the
+	 * retry policy says. The Delivery travels as the frame's attachment, so one callback serves every frame.
+	 */
+	private class CompletionCallback implements TransmitCallback {
+		public void transmitCompleted(TransmitFuture future) {
+			Delivery delivery = (Delivery) future.getAttachment() ;
+			delivery.reported = true ;
+			int outcome = RetryPolicy.classify(future) ;
+			if(outcome == RetryPolicy.DELIVERED)
+				completed(delivery, null) ;
+			else
+				failed(delivery, outcome, XBeeCommunicatorTask.describeFailure(delivery.getCommand(), future)) ;
+		}
+	}
+}
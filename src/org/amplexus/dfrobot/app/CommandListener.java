@@ -0,0 +1,22 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * Notified by the CommandDispatcher as each command finishes.
+ *
+ * Called on whichever thread finishes the command: usually the XBee api's input thread, as the TX status arrives,
+ * or the transmit engine's sweeper, when it times out - and a dispatcher thread if the command couldn't be sent.
+ * Calls may overlap, so implementations must be thread safe, and those that touch Swing widgets must hop onto
+ * the EventDispatch thread themselves.
+ *
+ * @author craig
+ */
+public interface CommandListener {
+
+	/**
+	 * A command has been sent (or failed to send).
+	 *
+	 * @param command the command
+	 * @param error null if the command succeeded, otherwise a description of what went wrong
+	 */
+	void commandCompleted(RobotCommand command, String error) ;
+}
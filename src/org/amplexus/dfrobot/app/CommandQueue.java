@@ -0,0 +1,129 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * A bounded FIFO of commands waiting to be sent, each with the time it was queued, that can drop the queued
+ * commands a newer one supersedes (see RobotCommand.supersedes()).
+ *
+ * A pair of fixed size circular arrays, so queueing and sending allocate nothing. Not thread safe - the owner
+ * guards it with its own lock.
+ *
+ * @author craig
+ */
+class CommandQueue {
+
+	private final RobotCommand[] commands ;		// Queued commands, a circular buffer
+	private final long[] queuedNanos ;			// When each queued command was queued
+	private final int capacity ;				// The most commands we will queue
+	private int head = 0 ;						// Index of the oldest queued command
+	private int size = 0 ;						// How many commands are queued
+
+	CommandQueue(int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity) ;
+		this.capacity = capacity ;
+		this.commands = new RobotCommand[capacity] ;
+		this.queuedNanos = new long[capacity] ;
+	}
+
+	int size() {
+		return size ;
+	}
+
+	boolean isEmpty() {
+		return size == 0 ;
+	}
+
+	boolean isFull() {
+		return size >= capacity ;
+	}
+
+	/**
+	 * Drop every queued command that command supersedes, keeping the rest in order.
+	 *
+	 * @return how many were dropped
+	 */
+	int coalesce(RobotCommand command) {
+		int kept = 0 ;
+		for(int i = 0; i < size; i++) {
+			int from = (head + i) % capacity ;
+			if(command.supersedes(commands[from]))
+				continue ;
+			int to = (head + kept++) % capacity ;
+			commands[to] = commands[from] ;
+			queuedNanos[to] = queuedNanos[from] ;
+		}
+		for(int i = kept; i < size; i++)
+			commands[(head + i) % capacity] = null ;
+		int dropped = size - kept ;
+		size = kept ;
+		return dropped ;
+	}
+
+	/**
+	 * @return true if the command (CMD_*) is queued, whatever its data
+	 */
+	boolean contains(int command) {
+		for(int i = 0; i < size; i++) {
+			if(commands[(head + i) % capacity].getCommand() == command)
+				return true ;
+		}
+		return false ;
+	}
+
+	/**
+	 * Add a command at the tail.
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean offer(RobotCommand command, long nanos) {
+		if(size >= capacity)
+			return false ;
+		int tail = (head + size++) % capacity ;
+		commands[tail] = command ;
+		queuedNanos[tail] = nanos ;
+		return true ;
+	}
+
+	/**
+	 * @return the oldest command, or null if the queue is empty
+	 */
+	RobotCommand peek() {
+		return size == 0 ? null : commands[head] ;
+	}
+
+	/**
+	 * @return when the oldest command was queued
+	 */
+	long peekNanos() {
+		return queuedNanos[head] ;
+	}
+
+	/**
+	 * Remove the oldest command.
+	 *
+	 * @return the oldest command, or null if the queue is empty
+	 */
+	RobotCommand poll() {
+		if(size == 0)
+			return null ;
+		RobotCommand command = commands[head] ;
+		commands[head] = null ;
+		head = (head + 1) % capacity ;
+		size-- ;
+		return command ;
+	}
+
+	/**
+	 * Empty the queue.
+	 *
+	 * @return how many commands were thrown away
+	 */
+	int clear() {
+		int cleared = size ;
+		for(int i = 0; i < size; i++)
+			commands[(head + i) % capacity] = null ;
+		head = 0 ;
+		size = 0 ;
+		return cleared ;
+	}
+}
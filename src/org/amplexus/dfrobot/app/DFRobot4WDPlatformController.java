@@ -7,7 +7,14 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
 
+import javax.management.JMException;
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
 import javax.swing.ImageIcon;
@@ -19,6 +26,8 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
 import javax.swing.JToggleButton;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -34,7 +43,7 @@ import org.apache.log4j.PropertyConfigurator;
  * @author craig
  * 
  */
-public class DFRobot4WDPlatformController implements KeyListener {
+public class DFRobot4WDPlatformController implements KeyListener, CommandListener {
 
 	/*
 	 * Defaults
@@ -42,13 +51,71 @@ public class DFRobot4WDPlatformController implements KeyListener {
 	public static final String	DEFAULT_USBPORT		= "/dev/ttyUSB0" ;
 	public static final int		DEFAULT_SPEED		= 200 ;
 	public static final int		DEFAULT_BAUD_RATE	= 9600 ;
+	public static final int		INFRARED_SAMPLE_INTERVAL	= 10 ;	// x 10 millis - the fastest the robot supports
+	public static final String	RECORDING_DIRECTORY	= "recordings" ;
+	public static final String	METRICS_DIRECTORY	= "metrics" ;
+	public static final String	EVENTS_DIRECTORY	= "events" ;
 
     private final static Logger log = Logger.getLogger(XBeeCommunicatorTask.class);
 
+	/*
+	 * The connection to the XBee explorer, shared by every command so we don't open the USB port per command
+	 */
+	XBeeLinkManager link = new XBeeLinkManager() ;
+
+	/*
+	 * Finds the port and baud rate the explorer answers on at startup, starting with the last good pair
+	 */
+	LinkNegotiator negotiator = new LinkNegotiator(link) ;
+	SerialPortScanner portScanner = new SerialPortScanner() ;
+	volatile boolean negotiating = false ;			// True while the negotiator has the link - commands would disturb it
+	boolean linkFound = false ;						// True once the explorer has answered, until its port is unplugged
+	final StartupTimer startup = new StartupTimer(StartupTimer.GUI) ;	// Times our startup, saved under METRICS_DIRECTORY
+
     /*
-     *  The SwingWorker thread that communicates with the robot wirelessly via XBee devices
+     *  The thread that communicates with the robot wirelessly via XBee devices, one command at a time
      */
-	XBeeCommunicatorTask task = null ;				
+	XBeeTransmitEngine engine = new XBeeTransmitEngine() ;
+	CommandDispatcher dispatcher = new CommandDispatcher(link, engine, DEFAULT_USBPORT, DEFAULT_BAUD_RATE, CommandDispatcher.DEFAULT_CAPACITY, this) ;
+
+	/*
+	 * The robots on the PAN (-Ddfrobot.robots=...), and the scheduler that shares the explorer between them for
+	 * broadcasts and all stop. The arrow keys drive the robot chosen in the robot combo box, through the dispatcher.
+	 */
+	RobotRegistry robots = RobotRegistry.fromSpec(System.getProperty(RobotRegistry.ROBOTS_PROPERTY)) ;
+	FleetDispatcher fleet = new FleetDispatcher(link, engine, robots, DEFAULT_USBPORT, DEFAULT_BAUD_RATE, null) ;
+
+	/*
+	 * Decodes everything the robot sends us, and hands it to the listeners on its own thread
+	 */
+	ReceivePipeline receivePipeline = new ReceivePipeline(link) ;
+
+	/*
+	 * Pings the robot on a schedule to measure the link latency
+	 */
+	LatencyProbe latencyProbe = new LatencyProbe(dispatcher, receivePipeline) ;
+
+	/*
+	 * The most recent infrared samples from each sensor, kept in fixed size rings
+	 */
+	InfraredSampleBuffer infraredSamples = new InfraredSampleBuffer() ;
+
+	/*
+	 * Records every frame to and from the explorer while the Rec button is down, null otherwise
+	 */
+	TelemetryRecorder recorder = null ;
+
+	/*
+	 * The command and radio path's metrics, published over JMX and snapshotted under METRICS_DIRECTORY
+	 */
+	MetricsRegistry metrics = new MetricsRegistry() ;
+	final LatencyHistogram edtDelay = new LatencyHistogram() ;	// From posting to the EventDispatch thread to it running, sampled per snapshot
+
+	/*
+	 * Every command's progress and every link event, written under EVENTS_DIRECTORY off the send path - null if
+	 * turned off (-Ddfrobot.events=false)
+	 */
+	EventLog events = null ;
 
 	/*
 	 * User interface widgets
@@ -58,15 +125,28 @@ public class DFRobot4WDPlatformController implements KeyListener {
 	protected JToggleButton upButton ;				// Up arrow - moves the robot forward
 	protected JToggleButton downButton ;			// Down arrow - moves the robot backwards
 	protected JToggleButton stopButton ;			// Stop button - puts the robot in a stationary position
+	protected JLabel[] spacerLabels ;				// Padding around the left and right arrows, so the arrows line up
 	protected JLabel messageLabel ;					// Message bar - displays status messages at the bottom of the window
+	protected JLabel latencyLabel ;					// Latency bar - displays the latency probe results under the message bar
+	protected JToggleButton probeButton ;			// Ping - starts / stops the latency probe
+	protected JToggleButton holdButton ;			// Hold - enabled means the robot only moves while an arrow key is held
+	protected JToggleButton infraredButton ;		// IR - starts / stops the robot streaming infrared samples
+	protected InfraredView infraredView ;			// Live trace of the infrared samples
+	protected JToggleButton recordButton ;			// Rec - starts / stops recording the session to RECORDING_DIRECTORY
+	protected HoldToDriveInput holdToDrive ;		// Turns arrow key presses and releases into commands in hold mode
+	protected Timer latencyTimer ;					// Refreshes the latency bar while the probe is running
 	protected JButton aboutButton ;					// About button - shows a dialog box
-	protected JButton cancelButton ;				// Cancel button - cancels the currently executing XbeeCommunicatorTask
+	protected JButton cancelButton ;				// Cancel button - discards the commands still queued in the dispatcher
 	protected JComboBox baudRateComboBox ;			// Baud rate - choose the speed at which we talk to the robot
 	protected JComboBox usbPortComboBox ;			// USB port - choose the USB port through which we talk to the robot
+	protected JButton findButton ;					// Find - probes the ports and baud rates for the explorer
+	protected JComboBox robotComboBox ;				// Robot - choose which robot the arrow keys drive
+	protected JButton allStopButton ;				// All stop - stops every robot on the PAN
 	protected JToggleButton autonomousModeButton ;	// Autonomous mode - disabled means we control manually
 													// Autonomous mode - enabled means it navigates its own way around
 	protected JLabel speedLabel ;					// Label for the speed slider
 	protected JSlider speedSlider ;					// Speed - choose the speed that the robot will move at
+	protected SpeedStreamer speedStreamer ;			// Throttles the live speed updates from the speed slider
 
 	/*
 	 * Current operating parameters
@@ -74,25 +154,48 @@ public class DFRobot4WDPlatformController implements KeyListener {
 	String usbPort = DEFAULT_USBPORT ;				// The current USB port we talk to the robot through
 	int speed = DEFAULT_SPEED ;						// The current speed that the robot should travel at when moving
 	int baudRate = DEFAULT_BAUD_RATE ;				// The current baud rate that we talk to the robot at
+	int arcKeys = 0 ;								// The arrow key chord the robot is driving an arc with, 0 if none
+	int arrowKeysDown = 0 ;							// The arrow keys down now (DriveVector.KEY_*)
+	boolean chordSent = false ;						// True once a chord has been acted on, until all its keys are up
 	
 	/**
 	 * The main method.
 	 * 
 	 * Initialises the logger and displays the user interface.
 	 * 
+	 * The icons start decoding in the background first thing (see IconAtlas), the GUI is built on the
+	 * EventDispatch thread and the explorer is looked for on a thread of its own, all at once.
+	 * 
 	 * @param args
 	 */
 	public static void main(String[] args) {
         PropertyConfigurator.configure("log4j.properties");
+		IconAtlas.prefetch() ;
+
+		final DFRobot4WDPlatformController demo = new DFRobot4WDPlatformController();
+		demo.startEvents() ;
+		String[] ports = demo.enumerateUsbPorts() ;
 
-		DFRobot4WDPlatformController demo = new DFRobot4WDPlatformController();
-		demo.displayGUI();
+		/*
+		 * Negotiating before the GUI is built, so the port watcher doesn't start a second negotiation, and the
+		 * negotiator started after it is queued, so the result reaches the EventDispatch thread after the GUI.
+		 */
+		demo.negotiating = true ;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				demo.displayGUI();
+			}
+		});
+		demo.startNegotiation(ports) ;
 	}
 
 	/**
 	 * Displays the GUI.
 	 * 
 	 * Initialises the various user interface components, prepares the layout and displays the user interface.
+	 * The buttons show blank placeholders until their icons have been decoded - see showIcons().
+	 * 
+	 * Must be called on the EventDispatch thread.
 	 */
 	private void displayGUI() {
 
@@ -101,6 +204,17 @@ public class DFRobot4WDPlatformController implements KeyListener {
 		 */
 		messageLabel = new JLabel("Use arrow keys to move, the period (.) key to stop") ;
 		
+		/*
+		 * Latency bar - refreshed once a second from the probe's histogram, rather than once per ping, so the
+		 * probe never floods the EventDispatch thread.
+		 */
+		latencyLabel = new JLabel(" ") ;
+		latencyTimer = new Timer(1000, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				latencyLabel.setText(latencyProbe.getSummary()) ;
+			}
+		});
+		
 		/*
 		 * Header
 		 */
@@ -115,8 +229,9 @@ public class DFRobot4WDPlatformController implements KeyListener {
 		cancelButton.setEnabled(false) ;
 		cancelButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				if(!task.isDone())
-					task.cancel(true) ;
+				int cancelled = dispatcher.cancelPending() ;
+				messageLabel.setText("Cancelled " + cancelled + " queued command(s)") ;
+				cancelButton.setEnabled(false) ;
 			}
 		});
 
@@ -126,54 +241,134 @@ public class DFRobot4WDPlatformController implements KeyListener {
 				toggleAutonomousMode() ;
 			}
 		});
-		Integer[] baudRates = {2400, 4800, 9600, 19200, 38400, 76800, 153600 } ;
+		holdButton = new JToggleButton("Hold", false) ;
+		holdButton.addKeyListener(this) ;			// Keeps the arrow keys working after Hold is clicked
+		holdButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				toggleHoldToDrive() ;
+			}
+		});
+		holdToDrive = new HoldToDriveInput(new HoldToDriveInput.Driver() {
+			public void drive(int keys) {
+				switch(DriveVector.cancelOpposites(keys)) {
+				case 0:
+					keyStop() ;
+					break ;
+				case DriveVector.KEY_UP:
+					keyUp() ;
+					break ;
+				case DriveVector.KEY_DOWN:
+					keyDown() ;
+					break ;
+				case DriveVector.KEY_LEFT:
+					keyLeft() ;
+					break ;
+				case DriveVector.KEY_RIGHT:
+					keyRight() ;
+					break ;
+				default:
+					keyChord(keys) ;
+				}
+			}
+			public void stop() {
+				keyStop() ;
+			}
+			public void keepalive(int watchdogTicks) {
+				sendCommand(XBeeCommunicatorTask.CMD_KEEPALIVE, watchdogTicks) ;
+			}
+		});
+		infraredButton = new JToggleButton("IR", false) ;
+		infraredButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				toggleInfraredSampling() ;
+			}
+		});
+		infraredView = new InfraredView(infraredSamples) ;
+		receivePipeline.addTelemetryListener(infraredSamples) ;
+
+		recordButton = new JToggleButton("Rec", false) ;
+		recordButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				toggleRecording() ;
+			}
+		});
+
+		probeButton = new JToggleButton("Ping", false) ;
+		probeButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				toggleLatencyProbe() ;
+			}
+		});
+
+		Integer[] baudRates = {2400, 4800, 9600, 19200, 38400, 57600, 76800, 115200, 153600 } ;
 		baudRateComboBox = new JComboBox(baudRates) ;
 		baudRateComboBox.setSelectedIndex(2) ;
 		baudRateComboBox.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				baudRate = (Integer) baudRateComboBox.getSelectedItem() ;
+				dispatcher.setBaudRate(baudRate) ;
+				fleet.setBaudRate(baudRate) ;
+				speedStreamer.setBaudRate(baudRate) ;
 			}
 		});
 
 		String[] usbPorts = enumerateUsbPorts() ;
 		usbPortComboBox = new JComboBox(usbPorts) ;
 		usbPortComboBox.setSelectedIndex(0) ;
+		usbPort = usbPorts[0] ;
+		dispatcher.setCommPort(usbPort) ;
+		fleet.setCommPort(usbPort) ;
 		usbPortComboBox.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				usbPort = (String) usbPortComboBox.getSelectedItem() ;
+				dispatcher.setCommPort(usbPort) ;
+				fleet.setCommPort(usbPort) ;
+			}
+		});
+
+		findButton = new JButton("Find") ;
+		findButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				negotiateLink() ;
+			}
+		});
+
+		robotComboBox = new JComboBox(robots.getRobots()) ;
+		robotComboBox.setSelectedIndex(0) ;
+		dispatcher.setDestination(robots.getRobots()[0].getDestination()) ;
+		robotComboBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				selectRobot((Robot) robotComboBox.getSelectedItem()) ;
+			}
+		});
+		receivePipeline.addRxDataListener(robots) ;
+
+		allStopButton = new JButton("All stop") ;
+		allStopButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				allStop() ;
 			}
 		});
 		
 		
 		speedLabel = new JLabel("Speed: ") ;
 		
+		speedStreamer = new SpeedStreamer(baudRate, new SpeedStreamer.Sink() {
+			public void sendSpeed(int newSpeed) {
+				changeSpeed(newSpeed) ;
+			}
+		});
+		
 		speedSlider = new JSlider(JSlider.HORIZONTAL, 0, 255, 200) ;
 		speedSlider.addChangeListener(new ChangeListener() {
 			public void stateChanged(ChangeEvent e) {
 				speed = speedSlider.getValue() ;
 				
-				// FIXME: slider state changes sends updates too quickly to XBee causing USB port resource contention
-				
-//				/*
-//				 * If we've selected a speed of zero, then that's the same as not moving.
-//				 */
-//				if(speed == 0) {
-//					stopButton.setSelected(true) ;
-//					stopMoving() ;
-//				}
-//				
-//				/*
-//				 * All we're doing here is ensuring that if the robot is currently moving, we simply 
-//				 * re-send the last request, but with the newly selected speed.
-//				 */
-//				if(upButton.isSelected())
-//					moveForward() ;
-//				else if(downButton.isSelected())
-//					moveBackwards() ;
-//				else if(leftButton.isSelected())
-//					moveLeft() ;
-//				else if(rightButton.isSelected())
-//					moveRight() ;
+				/*
+				 * The slider fires far more often than the XBee link can keep up with, so let the streamer
+				 * throttle the updates - it drops the intermediate values and always delivers the final one.
+				 */
+				speedStreamer.speedChanged(speed, speedSlider.getValueIsAdjusting()) ;
 			}
 		});
 		speedSlider.setMajorTickSpacing(50) ;
@@ -182,34 +377,17 @@ public class DFRobot4WDPlatformController implements KeyListener {
 		speedSlider.setPaintLabels(true) ;
 
 		/*
-		 * Load some images for the buttons we will display on the screen.
+		 * The spacer isn't used as a button, it's just used for padding so the arrows are all aligned properly.
+		 * Until the icons are decoded, it and every button show a blank icon the same size.
 		 */
-		ImageIcon leftIcon = createImageIcon("/leftarrow-128.png", "Left") ;
-		ImageIcon rightIcon = createImageIcon("/rightarrow-128.png", "Right") ;
-		ImageIcon upIcon = createImageIcon("/uparrow-128.png", "Up") ;
-		ImageIcon downIcon = createImageIcon("/downarrow-128.png", "Down") ;
-		ImageIcon stopIcon = createImageIcon("/stop-128.png", "Stop") ;
-		
-		ImageIcon selectedLeftIcon = createImageIcon("/selected-leftarrow-128.png", "Left") ;
-		ImageIcon selectedRightIcon = createImageIcon("/selected-rightarrow-128.png", "Right") ;
-		ImageIcon selectedUpIcon = createImageIcon("/selected-uparrow-128.png", "Up") ;
-		ImageIcon selectedDownIcon = createImageIcon("/selected-downarrow-128.png", "Down") ;
-		ImageIcon selectedStopIcon = createImageIcon("/selected-stop-128.png", "Stop") ;
-
-		/*
-		 * This one not used as a button, it's just used for padding so the arrows are all aligned properly.
-		 */
-		ImageIcon spacerIcon = createImageIcon("/spacer-128.png", "Left") ;
-		JLabel spacerLabel1 = new JLabel(spacerIcon) ;
-		JLabel spacerLabel2 = new JLabel(spacerIcon) ;
-		JLabel spacerLabel3 = new JLabel(spacerIcon) ;
-		JLabel spacerLabel4 = new JLabel(spacerIcon) ;
+		spacerLabels = new JLabel[4] ;
+		for(int i = 0; i < spacerLabels.length; i++)
+			spacerLabels[i] = new JLabel(IconAtlas.BLANK) ;
 		
 		/*
 		 * JToggleButtons will toggle between selected and unselected state with each button press.
 		 */
-		leftButton = new JToggleButton(leftIcon) ;
-		leftButton.setPressedIcon(selectedLeftIcon) ;
+		leftButton = new JToggleButton(IconAtlas.BLANK) ;
 		leftButton.addKeyListener(this) ;
 		leftButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -217,8 +395,7 @@ public class DFRobot4WDPlatformController implements KeyListener {
 			}
 		});
 
-		rightButton = new JToggleButton(rightIcon) ;
-		rightButton.setPressedIcon(selectedRightIcon) ;
+		rightButton = new JToggleButton(IconAtlas.BLANK) ;
 		rightButton.addKeyListener(this) ;
 		rightButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -226,8 +403,7 @@ public class DFRobot4WDPlatformController implements KeyListener {
 			}
 		});
 		
-		upButton = new JToggleButton(upIcon) ;
-		upButton.setPressedIcon(selectedUpIcon) ;
+		upButton = new JToggleButton(IconAtlas.BLANK) ;
 		upButton.addKeyListener(this) ;
 		upButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -235,8 +411,7 @@ public class DFRobot4WDPlatformController implements KeyListener {
 			}
 		});
 
-		downButton = new JToggleButton(downIcon) ;
-		downButton.setPressedIcon(selectedDownIcon) ;
+		downButton = new JToggleButton(IconAtlas.BLANK) ;
 		downButton.addKeyListener(this) ;
 		downButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -244,11 +419,11 @@ public class DFRobot4WDPlatformController implements KeyListener {
 			}
 		});
 
-		stopButton = new JToggleButton(stopIcon) ;
-		stopButton.setPressedIcon(selectedStopIcon) ;
+		stopButton = new JToggleButton(IconAtlas.BLANK) ;
 		stopButton.addKeyListener(this) ;
 		stopButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
+				holdToDrive.reset() ;
 				stopMoving() ;
 			}
 		});
@@ -277,8 +452,13 @@ public class DFRobot4WDPlatformController implements KeyListener {
 		headerPanel1.setLayout(headerPanel1BoxLayout) ;
 		headerPanel1.add(aboutButton) ;
 		headerPanel1.add(autonomousModeButton) ;
+		headerPanel1.add(holdButton) ;
+		headerPanel1.add(probeButton) ;
+		headerPanel1.add(infraredButton) ;
+		headerPanel1.add(recordButton) ;
 		headerPanel1.add(baudRateComboBox) ;
 		headerPanel1.add(usbPortComboBox) ;
+		headerPanel1.add(findButton) ;
 		
 		JPanel headerPanel2 = new JPanel();
 		LayoutManager headerPanel2BoxLayout = new BoxLayout(headerPanel2, BoxLayout.LINE_AXIS) ;
@@ -286,6 +466,8 @@ public class DFRobot4WDPlatformController implements KeyListener {
 //		headerPanel2.add(speedLabel) ;
 		headerPanel2.add(speedSlider) ;
 		headerPanel2.add(cancelButton) ;
+		headerPanel2.add(robotComboBox) ;
+		headerPanel2.add(allStopButton) ;
 
 		JPanel headerPanel = new JPanel();
 		LayoutManager headerPanelBoxLayout = new BoxLayout(headerPanel, BoxLayout.PAGE_AXIS) ;
@@ -296,9 +478,9 @@ public class DFRobot4WDPlatformController implements KeyListener {
 		JPanel leftPanel = new JPanel() ;
 		LayoutManager leftPanelBoxLayout = new BoxLayout(leftPanel, BoxLayout.PAGE_AXIS) ;
 		leftPanel.setLayout(leftPanelBoxLayout) ;
-		leftPanel.add(spacerLabel1) ;
+		leftPanel.add(spacerLabels[0]) ;
 		leftPanel.add(leftButton) ;
-		leftPanel.add(spacerLabel2) ;
+		leftPanel.add(spacerLabels[1]) ;
 		
 		JPanel centerPanel = new JPanel() ;
 		LayoutManager centerPanelBoxLayout = new BoxLayout(centerPanel, BoxLayout.PAGE_AXIS) ;
@@ -310,44 +492,253 @@ public class DFRobot4WDPlatformController implements KeyListener {
 		JPanel rightPanel = new JPanel() ;
 		LayoutManager rightPanelBoxLayout = new BoxLayout(rightPanel, BoxLayout.PAGE_AXIS) ;
 		rightPanel.setLayout(rightPanelBoxLayout) ;
-		rightPanel.add(spacerLabel3) ;
+		rightPanel.add(spacerLabels[2]) ;
 		rightPanel.add(rightButton) ;
-		rightPanel.add(spacerLabel4) ;
+		rightPanel.add(spacerLabels[3]) ;
 		
+		JPanel footerPanel = new JPanel();
+		LayoutManager footerPanelBoxLayout = new BoxLayout(footerPanel, BoxLayout.PAGE_AXIS) ;
+		footerPanel.setLayout(footerPanelBoxLayout) ;
+		footerPanel.add(infraredView) ;
+		footerPanel.add(messageLabel) ;
+		footerPanel.add(latencyLabel) ;
+
 		JPanel contentPanel = new JPanel();
 		LayoutManager borderLayout = new BorderLayout() ;
 		
 		contentPanel.setLayout(borderLayout);
 		contentPanel.add(headerPanel, BorderLayout.PAGE_START) ;
-		contentPanel.add(messageLabel, BorderLayout.PAGE_END) ;
+		contentPanel.add(footerPanel, BorderLayout.PAGE_END) ;
 		contentPanel.add(leftPanel, BorderLayout.LINE_START) ;
 		contentPanel.add(centerPanel, BorderLayout.CENTER) ;
 		contentPanel.add(rightPanel, BorderLayout.LINE_END) ;
 
 		JFrame frame = new JFrame();
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				holdToDrive.reset() ;
+				latencyProbe.stop() ;
+				infraredView.stop() ;
+				portScanner.stop() ;
+				metrics.stopSnapshots() ;
+				metrics.unpublish() ;
+				fleet.shutdown() ;
+				dispatcher.shutdown() ;
+				receivePipeline.shutdown() ;
+				link.close() ;
+				stopRecording() ;
+				if(events != null)
+					events.close() ;
+				try {
+					startup.save(new File(METRICS_DIRECTORY, StartupTimer.HISTORY_FILE)) ;
+				} catch (IOException ex) {
+					log.warn("Can't save the startup times: " + ex.getMessage()) ;
+				}
+			}
+		});
 		frame.setContentPane(contentPanel);
 		frame.pack();
 		frame.setResizable(false) ;
 		frame.setLocationRelativeTo(null) ;
 		frame.setTitle("Mobile 4WD Platform Controller v1.0 (c) Craig Jackson 2012") ;
 		frame.setVisible(true);
+		showIconsWhenLoaded() ;
+
+		findButton.setEnabled(false) ;						// main() has started looking for the explorer
+		messageLabel.setText("Looking for the XBee explorer...") ;
+		startMetrics() ;
+		portScanner.watch(new SerialPortScanner.PortListener() {
+			public void portsChanged(String[] ports, final String[] added, final String[] removed) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						usbPortsChanged(added, removed) ;
+					}
+				});
+			}
+		}, SerialPortScanner.DEFAULT_POLL_MILLIS) ;
 	}
 
 	/**
-	 * 
-	 * @param path the path to the icon
-	 * @param description the text that will be displayed with the icon
-	 * @return
-	 */
-	private ImageIcon createImageIcon(String path, String description) {
-		java.net.URL imgURL = getClass().getResource(path);
-		if (imgURL != null) {
-			return new ImageIcon(imgURL, description);
-		} else {
-			log.error("Couldn't find file: " + path);
-			return null;
+	 * Start the event log, unless EventLog.ENABLED_PROPERTY is false.
+	 */
+	private void startEvents() {
+		if(!Boolean.parseBoolean(System.getProperty(EventLog.ENABLED_PROPERTY, "true")))
+			return ;
+		try {
+			events = new EventLog(new File(EVENTS_DIRECTORY, MetricsRegistry.sessionFileName())) ;
+		} catch (IOException e) {
+			log.warn("Can't write the event log: " + e.getMessage()) ;
+			return ;
+		}
+		link.setEventLog(events) ;
+		engine.setEventLog(events) ;
+		dispatcher.setEventLog(events) ;
+	}
+
+	/**
+	 * Register the command and radio path's metrics, publish them for JConsole and start snapshotting them -
+	 * every MetricsRegistry.SNAPSHOT_PROPERTY millis, if it isn't 0.
+	 */
+	private void startMetrics() {
+		dispatcher.registerMetrics(metrics) ;
+		engine.registerMetrics(metrics) ;
+		link.registerMetrics(metrics) ;
+		receivePipeline.registerMetrics(metrics) ;
+		if(events != null)
+			events.registerMetrics(metrics) ;
+		metrics.register("edt.delay", edtDelay) ;
+		metrics.addSampler(new Runnable() {
+			public void run() {
+				final long posted = System.nanoTime() ;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						edtDelay.recordNanos(System.nanoTime() - posted) ;
+					}
+				});
+			}
+		});
+
+		try {
+			metrics.publish(ManagementFactory.getPlatformMBeanServer()) ;
+		} catch (JMException e) {
+			log.warn("Can't publish metrics over JMX: " + e.getMessage()) ;
 		}
+		long snapshotMillis = Long.getLong(MetricsRegistry.SNAPSHOT_PROPERTY, MetricsRegistry.DEFAULT_SNAPSHOT_MILLIS) ;
+		if(snapshotMillis <= 0)
+			return ;
+		try {
+			metrics.startSnapshots(new File(METRICS_DIRECTORY, MetricsRegistry.sessionFileName()), snapshotMillis) ;
+		} catch (IOException e) {
+			log.warn("Can't write metrics snapshots: " + e.getMessage()) ;
+		}
+	}
+
+	/**
+	 * Serial ports have been plugged in or unplugged: update the USB port combo box, and look for the explorer
+	 * again if we haven't found it, or its port has gone.
+	 */
+	private void usbPortsChanged(String[] added, String[] removed) {
+		for(int i = 0; i < removed.length; i++) {
+			if(removed[i].equals(usbPort)) {
+				linkFound = false ;
+				messageLabel.setText("The XBee explorer on " + usbPort + " was unplugged") ;
+			}
+			usbPortComboBox.removeItem(removed[i]) ;
+		}
+		for(int i = 0; i < added.length; i++) {
+			boolean present = false ;
+			for(int j = 0; j < usbPortComboBox.getItemCount() && !present; j++)
+				present = added[i].equals(usbPortComboBox.getItemAt(j)) ;
+			if(!present)
+				usbPortComboBox.addItem(added[i]) ;
+		}
+		if(added.length > 0 && !linkFound)
+			negotiateLink() ;
+	}
+
+	/**
+	 * Look for the explorer in the background - the last good port and baud rate first, then every candidate -
+	 * and switch to what we find. Then ping the robot, so the cold start time is measured every startup.
+	 * 
+	 * Commands are refused until it's done, as each probe re-opens the link.
+	 */
+	private void negotiateLink() {
+		if(negotiating)
+			return ;
+		negotiating = true ;
+		findButton.setEnabled(false) ;
+		messageLabel.setText("Looking for the XBee explorer...") ;
+		startNegotiation(enumerateUsbPorts()) ;
+	}
+
+	/**
+	 * Start the negotiator's thread, once negotiating has been set. The result is handled on the EventDispatch
+	 * thread.
+	 */
+	private void startNegotiation(final String[] ports) {
+		Thread negotiation = new Thread(new Runnable() {
+			public void run() {
+				final LinkNegotiator.Result result = negotiator.negotiate(ports, LinkNegotiator.LIKELY_BAUD_RATES) ;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						negotiating = false ;
+						findButton.setEnabled(true) ;
+						linkFound = result != null ;
+						if(result == null) {
+							messageLabel.setText("No XBee explorer answered - check it is plugged in and in API mode 2") ;
+							return ;
+						}
+						usbPortComboBox.setSelectedItem(result.getCommPort()) ;
+						selectBaudRate(result.getBaudRate()) ;
+						messageLabel.setText("Found the explorer on " + result) ;
+						if(startup.ready())
+							log.info("Ready to drive " + startup.getReadyMillis() + " ms after startup") ;
+						sendCommand(XBeeCommunicatorTask.CMD_PING, 0) ;
+					}
+				});
+			}
+		}, "link-negotiator") ;
+		negotiation.setDaemon(true) ;
+		negotiation.start() ;
+	}
+
+	/**
+	 * Select a baud rate in the baud rate combo box, adding it if it isn't there.
+	 */
+	private void selectBaudRate(int rate) {
+		Integer item = Integer.valueOf(rate) ;
+		boolean present = false ;
+		for(int i = 0; i < baudRateComboBox.getItemCount() && !present; i++)
+			present = item.equals(baudRateComboBox.getItemAt(i)) ;
+		if(!present)
+			baudRateComboBox.addItem(item) ;
+		baudRateComboBox.setSelectedItem(item) ;
+	}
+
+	/**
+	 * Wait in the background for the icons to be decoded, then show them.
+	 */
+	private void showIconsWhenLoaded() {
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final IconAtlas atlas = IconAtlas.prefetch().get() ;
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							showIcons(atlas) ;
+						}
+					});
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt() ;
+				} catch (ExecutionException e) {
+					log.error("Can't load the icons: " + e.getCause()) ;
+				}
+			}
+		}, "icon-waiter") ;
+		waiter.setDaemon(true) ;
+		waiter.start() ;
+	}
+
+	/**
+	 * Swap the placeholders for the real icons - the GUI is now fully usable.
+	 */
+	private void showIcons(IconAtlas atlas) {
+		leftButton.setIcon(atlas.getIcon("/leftarrow-128.png", "Left")) ;
+		leftButton.setPressedIcon(atlas.getIcon("/selected-leftarrow-128.png", "Left")) ;
+		rightButton.setIcon(atlas.getIcon("/rightarrow-128.png", "Right")) ;
+		rightButton.setPressedIcon(atlas.getIcon("/selected-rightarrow-128.png", "Right")) ;
+		upButton.setIcon(atlas.getIcon("/uparrow-128.png", "Up")) ;
+		upButton.setPressedIcon(atlas.getIcon("/selected-uparrow-128.png", "Up")) ;
+		downButton.setIcon(atlas.getIcon("/downarrow-128.png", "Down")) ;
+		downButton.setPressedIcon(atlas.getIcon("/selected-downarrow-128.png", "Down")) ;
+		stopButton.setIcon(atlas.getIcon("/stop-128.png", "Stop")) ;
+		stopButton.setPressedIcon(atlas.getIcon("/selected-stop-128.png", "Stop")) ;
+		ImageIcon spacerIcon = atlas.getIcon("/spacer-128.png", "Spacer") ;
+		for(int i = 0; i < spacerLabels.length; i++)
+			spacerLabels[i].setIcon(spacerIcon) ;
+		if(startup.interactive())
+			log.info("Interactive " + startup.getInteractiveMillis() + " ms after startup, " + atlas) ;
 	}
 
 	/** 
@@ -362,20 +753,46 @@ public class DFRobot4WDPlatformController implements KeyListener {
 	/** 
 	 * Handle the key-pressed event from the text field.
 	 * 
-	 * Not interested in the key press.
+	 * Tracks which arrow keys are down, for chords. Otherwise only used in hold to drive mode, where the robot
+	 * moves while the key is held.
 	 */
 	@Override
 	public void keyPressed(KeyEvent e) {
+		arrowKeysDown |= DriveVector.keyFor(e.getKeyCode()) ;
+		if(holdButton.isSelected() && !autonomousModeButton.isSelected())
+			holdToDrive.keyPressed(e.getKeyCode()) ;
 	}
 
 	/** 
 	 * Handle the key-released event from the text field.
 	 * 
-	 * We only talk to the robot when the key has been released, so handle the keyboard commands here.
+	 * Normally we only talk to the robot when the key has been released, so handle the keyboard commands here.
+	 * In hold to drive mode the release stops the robot instead.
+	 * 
+	 * Releasing one key of a chord - eg up and left held together - drives the arc it makes, and releasing the
+	 * chord's other keys then changes nothing.
 	 */
 	@Override
 	public void keyReleased(KeyEvent e) {
 		int keyCode = e.getKeyCode() ;
+		int key = DriveVector.keyFor(keyCode) ;
+		int chord = arrowKeysDown | key ;
+		arrowKeysDown &= ~key ;
+		if(holdButton.isSelected()) {
+			if(!autonomousModeButton.isSelected())
+				holdToDrive.keyReleased(keyCode) ;
+			return ;
+		}
+		if(key != 0) {
+			boolean sent = chordSent ;
+			chordSent = arrowKeysDown != 0 && (sent || DriveVector.isArc(chord)) ;
+			if(sent)
+				return ;
+			if(DriveVector.isArc(chord)) {
+				keyChord(chord) ;
+				return ;
+			}
+		}
 		switch(keyCode) {
 		case KeyEvent.VK_DOWN:
 			keyDown() ;
@@ -435,6 +852,21 @@ public class DFRobot4WDPlatformController implements KeyListener {
 		moveBackwards() ;
 	}
 	
+	/**
+	 * A chord of arrow keys was pressed, eg up and left together.
+	 * 
+	 * Make the forward or backwards button selected and drive the arc the chord makes.
+	 * 
+	 * @param keys the DriveVector.KEY_* bits
+	 */
+	private void keyChord(int keys) {
+		if((DriveVector.cancelOpposites(keys) & DriveVector.KEY_DOWN) != 0)
+			downButton.setSelected(true) ;
+		else
+			upButton.setSelected(true) ;
+		moveArc(keys) ;
+	}
+	
 	/**
 	 * The period (.) key was pressed.
 	 * 
@@ -449,94 +881,285 @@ public class DFRobot4WDPlatformController implements KeyListener {
 	 * Make the robot move to the left.
 	 */
 	private void moveLeft() {
-		killPreviousCommand() ;
-		task = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_MOTOR_LEFT, speed, usbPort, baudRate, this);
-		cancelButton.setEnabled(true) ;
-		task.execute() ;
 		log.info("Moving left") ;
+		arcKeys = 0 ;
+		sendCommand(XBeeCommunicatorTask.CMD_MOTOR_LEFT, speed) ;
 	}
 	
 	/**
 	 * Make the robot move to the right.
 	 */
 	private void moveRight() {
-		killPreviousCommand() ;
-		task = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_MOTOR_RIGHT, speed, usbPort, baudRate, this);
-		cancelButton.setEnabled(true) ;
-		task.execute() ;
 		log.info("Moving right") ;
+		arcKeys = 0 ;
+		sendCommand(XBeeCommunicatorTask.CMD_MOTOR_RIGHT, speed) ;
 	}
 	
 	/**
 	 * Make the robot move forward.
 	 */
 	private void moveForward() {
-		killPreviousCommand() ;
 		log.info("Moving forward") ;
-		task = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed, usbPort, baudRate, this);
-		cancelButton.setEnabled(true) ;
-		task.execute() ;
+		arcKeys = 0 ;
+		sendCommand(XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed) ;
 	}
 	
 	/**
 	 * Make the robot move backwards.
 	 */
 	private void moveBackwards() {
-		killPreviousCommand() ;
 		log.info("Moving backwards") ;
-		task = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_MOTOR_BACKWARDS, speed, usbPort, baudRate, this);
-		cancelButton.setEnabled(true) ;
-		task.execute() ;
+		arcKeys = 0 ;
+		sendCommand(XBeeCommunicatorTask.CMD_MOTOR_BACKWARDS, speed) ;
+	}
+	
+	/**
+	 * Make the robot drive an arc, both tracks in one CMD_MOTOR_VECTOR - see DriveVector.
+	 * 
+	 * @param keys the arrow key chord (DriveVector.KEY_*)
+	 */
+	private void moveArc(int keys) {
+		RobotCommand command = DriveVector.command(keys, speed) ;
+		log.info("Moving in an arc: " + command) ;
+		arcKeys = keys ;
+		sendCommand(command) ;
 	}
 	
 	/**
 	 * Make the robot stop moving.
 	 */
 	private void stopMoving() {
-		killPreviousCommand() ;
 		log.info("Stop moving") ;
-		task = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0, usbPort, baudRate, this);
-		cancelButton.setEnabled(true) ;
-		task.execute() ;
+		arcKeys = 0 ;
+		sendCommand(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0) ;
+	}
+	
+	/**
+	 * The speed has changed - called by the speed streamer at a rate the XBee link can cope with.
+	 * 
+	 * If the robot is currently moving, we simply re-send the current movement with the new speed.
+	 * 
+	 * @param newSpeed the new speed
+	 */
+	private void changeSpeed(int newSpeed) {
+		if(autonomousModeButton.isSelected())
+			return ;
+		
+		/*
+		 * If we've selected a speed of zero, then that's the same as not moving.
+		 */
+		if(newSpeed == 0) {
+			if(!stopButton.isSelected()) {
+				stopButton.setSelected(true) ;
+				stopMoving() ;
+			}
+			return ;
+		}
+		
+		if(arcKeys != 0)
+			moveArc(arcKeys) ;
+		else if(upButton.isSelected())
+			moveForward() ;
+		else if(downButton.isSelected())
+			moveBackwards() ;
+		else if(leftButton.isSelected())
+			moveLeft() ;
+		else if(rightButton.isSelected())
+			moveRight() ;
 	}
 	
 	private void toggleAutonomousMode() {
-		killPreviousCommand() ;
 		log.info("Toggling autonomous mode") ;
 		if(autonomousModeButton.isSelected()) {
-			task = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_AUTONOMOUS_MODE_ON, 0, usbPort, baudRate, this);
+			holdToDrive.reset() ;
+			sendCommand(XBeeCommunicatorTask.CMD_AUTONOMOUS_MODE_ON, 0) ;
 			upButton.setEnabled(false) ;
 			downButton.setEnabled(false) ;
 			leftButton.setEnabled(false) ;
 			rightButton.setEnabled(false) ;
 			stopButton.setEnabled(false) ;
 		} else {
-			task = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_AUTONOMOUS_MODE_OFF, 0, usbPort, baudRate, this);
+			sendCommand(XBeeCommunicatorTask.CMD_AUTONOMOUS_MODE_OFF, 0) ;
 			upButton.setEnabled(true) ;
 			downButton.setEnabled(true) ;
 			leftButton.setEnabled(true) ;
 			rightButton.setEnabled(true) ;
 			stopButton.setEnabled(true) ;
 		}
-		cancelButton.setEnabled(true) ;
-		task.execute() ;
 	}
+
 	/**
-	 * Detects the candidate USB ports for communicating with the robot via an attached XBee explorer.
+	 * Switch hold to drive on or off, depending on the state of the Hold button. Switching it off while a key is
+	 * held stops the robot.
+	 */
+	private void toggleHoldToDrive() {
+		if(holdButton.isSelected()) {
+			messageLabel.setText("Hold the arrow keys to move, release to stop") ;
+		} else {
+			holdToDrive.stop() ;
+			messageLabel.setText("Use arrow keys to move, the period (.) key to stop") ;
+		}
+	}
+
+	/**
+	 * Start or stop the robot streaming infrared samples, depending on the state of the IR button. The samples
+	 * from the previous run are cleared when a new one starts.
+	 */
+	private void toggleInfraredSampling() {
+		if(infraredButton.isSelected()) {
+			infraredSamples.clear() ;
+			sendCommand(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_START, INFRARED_SAMPLE_INTERVAL) ;
+			infraredView.start() ;
+		} else {
+			sendCommand(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_STOP, 0) ;
+			infraredView.stop() ;
+		}
+	}
+
+	/**
+	 * Start or stop recording every frame to and from the explorer, depending on the state of the Rec button.
+	 */
+	private void toggleRecording() {
+		if(!recordButton.isSelected()) {
+			stopRecording() ;
+			return ;
+		}
+		try {
+			recorder = new TelemetryRecorder(new File(RECORDING_DIRECTORY)) ;
+			engine.setRecorder(recorder) ;
+			receivePipeline.setRecorder(recorder) ;
+			messageLabel.setText("Recording to " + recorder.getDirectory() + File.separator + recorder.getSession()) ;
+		} catch (IOException e) {
+			log.error("Error starting recording", e) ;
+			messageLabel.setText("Error starting recording: " + e.getMessage()) ;
+			recordButton.setSelected(false) ;
+		}
+	}
+
+	/**
+	 * Stop recording, if we are.
+	 */
+	private void stopRecording() {
+		if(recorder == null)
+			return ;
+		engine.setRecorder(null) ;
+		receivePipeline.setRecorder(null) ;
+		recorder.close() ;
+		messageLabel.setText("Recorded " + recorder.getRecordCount() + " frames to " + recorder.getSession()) ;
+		recorder = null ;
+	}
+
+	/**
+	 * Drive a different robot with the arrow keys. Commands still queued for the previous robot are dropped - it
+	 * carries on doing whatever it was last told.
+	 */
+	private void selectRobot(Robot robot) {
+		if(robot == null || robot.getDestination() == dispatcher.getDestination())
+			return ;
+		dispatcher.cancelPending() ;
+		dispatcher.setDestination(robot.getDestination()) ;
+		messageLabel.setText("Driving " + robot) ;
+	}
+
+	/**
+	 * Stop every robot on the PAN, including the one we are driving.
+	 */
+	private void allStop() {
+		holdToDrive.reset() ;
+		dispatcher.cancelPending() ;
+		int stopped = fleet.allStop() ;
+		stopButton.setSelected(true) ;
+		messageLabel.setText("Stopping all " + stopped + " robot(s)") ;
+	}
+
+	/**
+	 * Start or stop the latency probe, depending on the state of the Ping button.
+	 */
+	private void toggleLatencyProbe() {
+		if(probeButton.isSelected()) {
+			latencyProbe.start(LatencyProbe.DEFAULT_INTERVAL_MILLIS) ;
+			latencyTimer.start() ;
+		} else {
+			latencyProbe.stop() ;
+			latencyTimer.stop() ;
+			latencyLabel.setText(latencyProbe.getSummary()) ;
+		}
+	}
+
+	/**
+	 * Queue a command with the dispatcher. Returns immediately - the dispatcher thread sends it.
 	 * 
-	 * @return a list of candidate USB ports.
+	 * @param command the command (CMD_*)
+	 * @param data the data byte for the command
 	 */
-	private String[] enumerateUsbPorts() {
-		String[] usbPorts = {"/dev/ttyUSB0", "/dev/ttyUSB1", "/dev/ttyUSB2", "/dev/ttyUSB3", "/dev/ttyUSB4", "/dev/ttyUSB5", } ; 
-		return usbPorts ;
+	private void sendCommand(int command, int data) {
+		sendCommand(RobotCommand.valueOf(command, data)) ;
 	}
 
 	/**
-	 * Kill the previous command if it is still running.
+	 * Queue a command with the dispatcher - see sendCommand() above.
 	 */
-	private void killPreviousCommand() {
-		if(task != null && task.isDone() == false) {
-			task.cancel(true) ;
+	private void sendCommand(RobotCommand command) {
+		if(negotiating)
+			messageLabel.setText("Still looking for the XBee explorer, ignored: " + command) ;
+		else if(dispatcher.submit(command))
+			cancelButton.setEnabled(true) ;
+		else
+			messageLabel.setText("Too many commands queued, ignored: " + XBeeCommunicatorTask.stringifiedCommandName(command.getCommand())) ;
+	}
+
+	/**
+	 * Called as each command completes - on the XBee api's input thread or the transmit engine's sweeper, or a
+	 * dispatcher thread if it couldn't be sent (see CommandListener), so the GUI is only touched via invokeLater().
+	 * 
+	 * Updates the GUI's message bar based on the completion state of the command, along with the dispatcher's
+	 * queue depth and how many commands it has coalesced. Also disables the cancel button once there is nothing
+	 * left to cancel.
+	 */
+	@Override
+	public void commandCompleted(final RobotCommand command, final String error) {
+		if(error == null && startup.firstAck()) {
+			final String coldStart = "Cold start: first command acknowledged " + startup.getFirstAckMillis() + " ms after startup" ;
+			log.info(coldStart) ;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					latencyLabel.setText(coldStart) ;
+				}
+			});
 		}
+
+		/*
+		 * Successful pings are reported in the latency bar, don't let them hide the other commands' status.
+		 */
+		if(error == null && command.getCommand() == XBeeCommunicatorTask.CMD_PING)
+			return ;
+		final int queueDepth = dispatcher.getQueueDepth() ;
+		final long coalesced = dispatcher.getCoalescedCount() ;
+		final long retried = dispatcher.getRetryCount() ;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				String stats = " (queued: " + queueDepth + ", coalesced: " + coalesced + ", retried: " + retried + ")" ;
+				if(error != null)
+					messageLabel.setText(error + stats) ;
+				else
+					messageLabel.setText("Operation completed successfully" + stats) ;
+				if(queueDepth == 0)
+					cancelButton.setEnabled(false) ;
+			}
+		});
 	}
+
+	/**
+	 * Detects the candidate USB ports for communicating with the robot via an attached XBee explorer.
+	 * 
+	 * @return the serial ports present, most likely first (see SerialPortScanner) - or just DEFAULT_USBPORT if
+	 * there are none, so there is always something to choose.
+	 */
+	private String[] enumerateUsbPorts() {
+		String[] usbPorts = portScanner.scan() ;
+		if(usbPorts.length == 0)
+			return new String[] { DEFAULT_USBPORT } ;
+		return usbPorts ;
+	}
+
 }
\ No newline at end of file
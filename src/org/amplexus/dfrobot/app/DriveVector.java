@@ -0,0 +1,111 @@
+package org.amplexus.dfrobot.app;
+
+import java.awt.event.KeyEvent;
+
+/**
+ * Works out the motion command for the arrow keys held down - computed here, so the robot just drives its tracks.
+ *
+ * A single arrow key maps to the motor command it always has (CMD_MOTOR_FORWARD and so on). A chord - up or down
+ * with left or right - maps to an arc: one CMD_MOTOR_VECTOR with both tracks going the same way and the inside
+ * track slower. Without it a curve takes repeated forward / left switches, each a frame and a round trip of its
+ * own. Opposite keys cancel each other, so up + down + left is the same as left alone.
+ *
+ * The keys are a bit set of KEY_UP, KEY_DOWN, KEY_LEFT and KEY_RIGHT.
+ *
+ * @author craig
+ */
+public final class DriveVector {
+
+	public static final int KEY_UP				= 0x01 ;
+	public static final int KEY_DOWN			= 0x02 ;
+	public static final int KEY_LEFT			= 0x04 ;
+	public static final int KEY_RIGHT			= 0x08 ;
+	public static final int MAX_TRACK_SPEED		= 127 ;		// A track speed is a signed byte
+	public static final int ARC_INNER_PERCENT	= 40 ;		// The inside track's speed in an arc, as a percentage of the outside's
+
+	private DriveVector() {
+	}
+
+	/**
+	 * @param keyCode the KeyEvent.VK_* code
+	 * @return the arrow key's bit, or 0 if it isn't an arrow key
+	 */
+	public static int keyFor(int keyCode) {
+		switch(keyCode) {
+		case KeyEvent.VK_UP:
+			return KEY_UP ;
+		case KeyEvent.VK_DOWN:
+			return KEY_DOWN ;
+		case KeyEvent.VK_LEFT:
+			return KEY_LEFT ;
+		case KeyEvent.VK_RIGHT:
+			return KEY_RIGHT ;
+		default:
+			return 0 ;
+		}
+	}
+
+	/**
+	 * @return the keys with any opposite pairs cancelled out
+	 */
+	public static int cancelOpposites(int keys) {
+		if((keys & (KEY_UP | KEY_DOWN)) == (KEY_UP | KEY_DOWN))
+			keys &= ~(KEY_UP | KEY_DOWN) ;
+		if((keys & (KEY_LEFT | KEY_RIGHT)) == (KEY_LEFT | KEY_RIGHT))
+			keys &= ~(KEY_LEFT | KEY_RIGHT) ;
+		return keys ;
+	}
+
+	/**
+	 * @return true if the keys make an arc - up or down with left or right
+	 */
+	public static boolean isArc(int keys) {
+		keys = cancelOpposites(keys) ;
+		return (keys & (KEY_UP | KEY_DOWN)) != 0 && (keys & (KEY_LEFT | KEY_RIGHT)) != 0 ;
+	}
+
+	/**
+	 * Get the motion command for the keys held down.
+	 *
+	 * @param keys the KEY_* bits held
+	 * @param speed the speed (0-255)
+	 * @return the command - CMD_MOTOR_STOP if the keys cancel out
+	 */
+	public static RobotCommand command(int keys, int speed) {
+		keys = cancelOpposites(keys) ;
+		switch(keys) {
+		case 0:
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0) ;
+		case KEY_UP:
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed) ;
+		case KEY_DOWN:
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_BACKWARDS, speed) ;
+		case KEY_LEFT:
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_LEFT, speed) ;
+		case KEY_RIGHT:
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_RIGHT, speed) ;
+		}
+
+		/*
+		 * An arc: both tracks forwards (or backwards), the one on the inside of the turn slower
+		 */
+		int outer = trackSpeed(speed) ;
+		int inner = outer * ARC_INNER_PERCENT / 100 ;
+		if((keys & KEY_DOWN) != 0) {
+			outer = -outer ;
+			inner = -inner ;
+		}
+		if((keys & KEY_LEFT) != 0)
+			return RobotCommand.vector(inner, outer) ;
+		return RobotCommand.vector(outer, inner) ;
+	}
+
+	/**
+	 * @param speed a speed as the single speed motor commands take it (0-255)
+	 * @return the same speed as a track speed (0-127)
+	 */
+	public static int trackSpeed(int speed) {
+		speed = Math.max(0, Math.min(255, speed)) ;
+		return (speed * MAX_TRACK_SPEED + 127) / 255 ;
+	}
+}
@@ -0,0 +1,299 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A structured log of command and radio events, cheap enough to record on the send path.
+ *
+ * A log4j debug line per command builds its message on the calling thread, and the appender writes it - and
+ * XBee.log's appender flushes it - before the call returns, so every command pays for console and disk I/O on
+ * the dispatcher thread. Instead record() copies an event's type, time and up to three numbers into a
+ * preallocated ring and returns: nothing is formatted, allocated or written. The "event-log" thread wakes every
+ * FLUSH_MILLIS, formats whatever has been recorded and writes it out.
+ *
+ * Events are written one per line, tab separated: the wall clock time in milliseconds since the epoch (to the
+ * microsecond), the event, and its fields as name=value, eg
+ *   1350512345678.123	SENT	command=MOTOR FORWARD	data=200	retries=0
+ * Commands and outcomes are written by name (see XBeeCommunicatorTask.stringifiedCommandName() and
+ * RetryPolicy.outcomeName()), everything else as a number. If the ring fills because the writer has fallen
+ * behind, new events are dropped and counted rather than blocking the caller, and a DROPPED line says how many.
+ *
+ * Events are recorded by the dispatcher thread, the XBee api's input thread and the EventDispatch thread, so a
+ * slot is claimed under a lock held only while the event is copied in; the writer formats outside the lock.
+ *
+ * @author craig
+ */
+public class EventLog implements Runnable {
+
+	public static final String ENABLED_PROPERTY		= "dfrobot.events" ;	// eg -Ddfrobot.events=false for no event log
+	public static final int DEFAULT_CAPACITY		= 4096 ;	// Events buffered between the recorders and the writer
+	public static final long FLUSH_MILLIS			= 100 ;		// How often the writer writes what has been recorded
+
+	/*
+	 * The events, and their fields
+	 */
+	public static final int SUBMITTED				= 0 ;		// command, data
+	public static final int REJECTED				= 1 ;		// command, data - the queue was full
+	public static final int SENT					= 2 ;		// command, data, retries - written to the explorer; a batch's data is its size
+	public static final int DELIVERED				= 3 ;		// command, micros, retries - acknowledged, micros after it was submitted
+	public static final int RETRY					= 4 ;		// command, outcome, delay micros
+	public static final int FAILED					= 5 ;		// command, outcome, retries - given up on
+	public static final int SUPERSEDED				= 6 ;		// command, data - a retry dropped for a newer command
+	public static final int LINK_OPENED				= 7 ;		// micros - how long the open took
+	public static final int LINK_INVALIDATED		= 8 ;
+	public static final int TX_TIMEOUT				= 9 ;		// frame - no TX status arrived
+	private static final String[] eventName = { "SUBMITTED", "REJECTED", "SENT", "DELIVERED", "RETRY", "FAILED", "SUPERSEDED",
+			"LINK_OPENED", "LINK_INVALIDATED", "TX_TIMEOUT" } ;
+	private static final String[][] fieldNames = {
+		{ "command", "data" },
+		{ "command", "data" },
+		{ "command", "data", "retries" },
+		{ "command", "micros", "retries" },
+		{ "command", "outcome", "delayMicros" },
+		{ "command", "outcome", "retries" },
+		{ "command", "data" },
+		{ "micros" },
+		{ },
+		{ "frame" }
+	} ;
+
+	private final int mask ;						// Capacity - 1, the capacity being a power of two
+	private final int[] types ;						// The ring: each event's type,
+	private final long[] times ;					// when it was recorded (nanoTime),
+	private final long[][] values ;					// and its fields
+	private int head = 0 ;							// The oldest event not yet written, guarded by this
+	private int count = 0 ;							// Events recorded and not yet written, guarded by this
+	private long recorded = 0 ;						// Events recorded, guarded by this
+	private long dropped = 0 ;						// Events dropped because the ring was full, guarded by this
+	private boolean closed = false ;				// Set by close(), guarded by this
+	private final long baseNanos = System.nanoTime() ;	// nanoTime when baseMicros was taken
+	private final long baseMicros = System.currentTimeMillis() * 1000L ;	// The wall clock at baseNanos
+	private final Writer writer ;					// Where the events go, only touched by the writer thread until close()
+	private final StringBuilder line = new StringBuilder() ;	// The line being formatted, reused
+	private final Thread thread ;					// The writer thread
+	private long droppedWritten = 0 ;				// Dropped events already reported in a DROPPED line
+    private final static Logger log = Logger.getLogger(EventLog.class);
+
+	/**
+	 * Constructor - logs to a file, creating its directory if need be.
+	 */
+	public EventLog(File file) throws IOException {
+		this(openFile(file), DEFAULT_CAPACITY) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param writer where the events go - closed by close()
+	 * @param capacity the most events buffered before new ones are dropped - a power of two
+	 */
+	public EventLog(Writer writer, int capacity) {
+		if(capacity < 1 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity) ;
+		this.writer = writer ;
+		this.mask = capacity - 1 ;
+		this.types = new int[capacity] ;
+		this.times = new long[capacity] ;
+		this.values = new long[3][capacity] ;
+		this.thread = new Thread(this, "event-log") ;
+		this.thread.setDaemon(true) ;
+		this.thread.start() ;
+	}
+
+	private static Writer openFile(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile() ;
+		if(directory != null)
+			directory.mkdirs() ;
+		return new BufferedWriter(new FileWriter(file, true)) ;
+	}
+
+	/**
+	 * Record an event with no fields.
+	 */
+	public void record(int event) {
+		record(event, 0, 0, 0) ;
+	}
+
+	/**
+	 * Record an event. Never blocks on I/O and allocates nothing.
+	 *
+	 * @param event what happened - SUBMITTED, SENT etc
+	 * @param a the event's first field, if it has one
+	 * @param b its second
+	 * @param c its third
+	 */
+	public void record(int event, long a, long b, long c) {
+		long now = System.nanoTime() ;
+		synchronized(this) {
+			if(closed)
+				return ;
+			if(count > mask) {
+				dropped++ ;
+				return ;
+			}
+			int slot = (head + count) & mask ;
+			types[slot] = event ;
+			times[slot] = now ;
+			values[0][slot] = a ;
+			values[1][slot] = b ;
+			values[2][slot] = c ;
+			count++ ;
+			recorded++ ;
+		}
+	}
+
+	/**
+	 * Write out what has been recorded every FLUSH_MILLIS, until closed.
+	 */
+	public void run() {
+		try {
+			while(true) {
+				synchronized(this) {
+					if(closed)
+						return ;
+					wait(FLUSH_MILLIS) ;
+				}
+				drain() ;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		} catch (IOException e) {
+			log.error("Can't write the event log, no more events will be logged: " + e.getMessage()) ;
+			synchronized(this) {
+				closed = true ;
+			}
+		}
+	}
+
+	/**
+	 * Format and write every event recorded so far. Only one thread drains at a time: the writer thread, or
+	 * close() once the writer thread has stopped.
+	 */
+	private void drain() throws IOException {
+		int first ;
+		int n ;
+		long droppedSoFar ;
+		synchronized(this) {
+			first = head ;
+			n = count ;
+			droppedSoFar = dropped ;
+		}
+		if(n == 0 && droppedSoFar == droppedWritten)
+			return ;
+		for(int i = 0; i < n; i++) {
+			int slot = (first + i) & mask ;
+			format(types[slot], times[slot], values[0][slot], values[1][slot], values[2][slot]) ;
+		}
+		synchronized(this) {
+			head = (first + n) & mask ;
+			count -= n ;
+		}
+		if(droppedSoFar != droppedWritten) {
+			line.setLength(0) ;
+			appendTime(System.nanoTime()) ;
+			line.append("\tDROPPED\tevents=").append(droppedSoFar - droppedWritten).append('\n') ;
+			writer.append(line) ;
+			droppedWritten = droppedSoFar ;
+		}
+		writer.flush() ;
+	}
+
+	private void format(int event, long nanos, long a, long b, long c) throws IOException {
+		line.setLength(0) ;
+		appendTime(nanos) ;
+		line.append('\t').append(event >= 0 && event < eventName.length ? eventName[event] : "EVENT_" + event) ;
+		String[] fields = event >= 0 && event < fieldNames.length ? fieldNames[event] : new String[] { "a", "b", "c" } ;
+		for(int i = 0; i < fields.length; i++) {
+			long value = i == 0 ? a : i == 1 ? b : c ;
+			line.append('\t').append(fields[i]).append('=') ;
+			if(fields[i].equals("command"))
+				line.append(XBeeCommunicatorTask.stringifiedCommandName((int) value)) ;
+			else if(fields[i].equals("outcome"))
+				line.append(RetryPolicy.outcomeName((int) value)) ;
+			else
+				line.append(value) ;
+		}
+		line.append('\n') ;
+		writer.append(line) ;
+	}
+
+	/**
+	 * Append a nanoTime as wall clock millis since the epoch, to the microsecond.
+	 */
+	private void appendTime(long nanos) {
+		long micros = baseMicros + (nanos - baseNanos) / 1000L ;
+		long fraction = micros % 1000L ;
+		line.append(micros / 1000L).append('.') ;
+		if(fraction < 100)
+			line.append('0') ;
+		if(fraction < 10)
+			line.append('0') ;
+		line.append(fraction) ;
+	}
+
+	/**
+	 * Write out everything recorded so far, stop the writer thread and close the writer. Events recorded from now
+	 * on are ignored.
+	 */
+	public void close() {
+		synchronized(this) {
+			if(closed)
+				return ;
+			closed = true ;
+			notifyAll() ;
+		}
+		try {
+			thread.join(5000) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		}
+		try {
+			drain() ;
+			writer.close() ;
+		} catch (IOException e) {
+			log.error("Can't write the event log: " + e.getMessage()) ;
+		}
+	}
+
+	public synchronized long getRecordedCount() {
+		return recorded ;
+	}
+
+	public synchronized long getDroppedCount() {
+		return dropped ;
+	}
+
+	/**
+	 * @return how many events are waiting to be written
+	 */
+	public synchronized int getBacklog() {
+		return count ;
+	}
+
+	/**
+	 * Register our metrics as events.*
+	 */
+	public void registerMetrics(MetricsRegistry metrics) {
+		metrics.register("events.recorded", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getRecordedCount() ;
+			}
+		});
+		metrics.register("events.dropped", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getDroppedCount() ;
+			}
+		});
+		metrics.register("events.backlog", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getBacklog() ;
+			}
+		});
+	}
+}
@@ -0,0 +1,461 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Sends commands to every robot in a RobotRegistry over the one explorer, from a single scheduler thread.
+ *
+ * Each robot has its own queues (see Robot), coalesced the same way as the CommandDispatcher's. The scheduler
+ * shares the transmit engine's window between the robots fairly:
+ * - robots take turns, round robin, so each robot with something to send gets one frame per turn
+ * - no robot may have more than MAX_IN_FLIGHT ordinary frames waiting for their TX status, so a robot that is
+ *   slow to acknowledge (or out of range) can't tie up the window while the others wait
+ * So with N robots busy, a command waits behind at most N - 1 other frames, whatever the others have queued -
+ * adding robots adds a frame time per busy robot, it doesn't multiply anyone's backlog. TestFleetScheduling
+ * checks this with 1, 4 and 16 simulated robots.
+ *
+ * Stop and autonomous mode off are served before any ordinary command, through the engine's reserved priority
+ * slots, and a robot's ordinary commands wait while it has one outstanding. A priority command whose frame
+ * fails (eg no acknowledgement) is sent again until the robot acknowledges it, or PRIORITY_DEADLINE_MILLIS
+ * passes. Unlike the CommandDispatcher's priority lane we don't re-send ahead of the TX status - the scheduler
+ * must not block on one robot - so a lost TX status costs the engine's timeout.
+ *
+ * Broadcasts (see broadcast() and allStop()) go to every XBee on the PAN in one frame, ahead of everything
+ * else. Nobody acknowledges a broadcast, so allStop() also sends each robot its own stop, which is.
+ *
+ * Steady state sending allocates nothing: the queues are fixed size, the frames' attachments are recycled and
+ * every frame completes through the one CompletionCallback.
+ *
+ * @author craig
+ */
+public class FleetDispatcher implements Runnable {
+
+	public static final int MAX_IN_FLIGHT				= 2 ;		// Ordinary frames outstanding per robot
+	public static final int PRIORITY_DEADLINE_MILLIS	= CommandDispatcher.PRIORITY_DEADLINE_MILLIS ;
+	public static final int PRIORITY_RETRY_PAUSE_MILLIS	= CommandDispatcher.PRIORITY_RETRY_PAUSE_MILLIS ;
+	private static final int FRAME_POOL					= 64 ;		// Recycled Frames we keep
+
+	private final RobotRegistry registry ;			// The robots we command
+	private final Robot broadcast ;					// Every robot at once - its queues hold the broadcasts
+	private final XBeeTransmitEngine engine ;		// Pipelines the frames and matches up their TX status
+	private final XBeeCommunicatorTask task ;		// Sends ordinary commands
+	private final XBeeCommunicatorTask priorityTask ;	// Sends through the engine's reserved slots
+	private final FleetListener listener ;			// Told about each command as it completes
+	private final CompletionCallback completion = new CompletionCallback() ;	// Completes every frame we send
+	private final Thread thread ;					// The scheduler thread
+	private final Frame[] pool = new Frame[FRAME_POOL] ;	// Recycled Frames
+	private int pooled = 0 ;						// How many Frames are in the pool
+	private int nextPriority = 0 ;					// Where the next priority turn starts
+	private int nextOrdinary = 0 ;					// Where the next ordinary turn starts
+
+	private volatile String commPort ;				// The USB port we communicate over
+	private volatile int baudRate ;					// The baud rate we communicate at
+	private volatile boolean shutdown = false ;		// Set to stop the scheduler thread
+    private final static Logger log = Logger.getLogger(FleetDispatcher.class);
+
+	/**
+	 * A frame on its way to a robot - the attachment its TX status comes back with.
+	 */
+	private static class Frame {
+		Robot robot ;						// Who it's for
+		RobotCommand command ;				// What it carries
+		long queuedNanos ;					// When the command was submitted
+		boolean priority ;					// True if sent through the reserved slots
+		volatile boolean reported ;			// Set once the engine has reported how it went
+	}
+
+	/**
+	 * Constructor. Starts the scheduler thread.
+	 *
+	 * @param link the shared connection to the XBee explorer
+	 * @param engine sends the frames - may be shared with a CommandDispatcher, and is not shut down with us
+	 * @param registry the robots we command - robots registered later are included from their first command
+	 * @param commPort the USB port we communicate over
+	 * @param baudRate the baud rate we communicate at
+	 * @param listener told about each command as it completes, may be null
+	 */
+	public FleetDispatcher(XBeeLinkManager link, XBeeTransmitEngine engine, RobotRegistry registry, String commPort, int baudRate,
+			FleetListener listener) {
+		this.registry = registry ;
+		this.broadcast = new Robot(XBeeCommunicatorTask.BROADCAST.getAddress(), "All robots") ;
+		this.engine = engine ;
+		this.task = new XBeeCommunicatorTask(link, engine) ;
+		this.priorityTask = new XBeeCommunicatorTask(link, engine, true) ;
+		this.commPort = commPort ;
+		this.baudRate = baudRate ;
+		this.listener = listener ;
+		this.thread = new Thread(this, "fleet-dispatcher") ;
+		this.thread.setDaemon(true) ;
+		this.thread.start() ;
+	}
+
+	public void setCommPort(String commPort) {
+		this.commPort = commPort ;
+	}
+
+	public void setBaudRate(int baudRate) {
+		this.baudRate = baudRate ;
+	}
+
+	public RobotRegistry getRegistry() {
+		return registry ;
+	}
+
+	/**
+	 * @return the pseudo robot broadcasts are queued on and reported against
+	 */
+	public Robot getBroadcast() {
+		return broadcast ;
+	}
+
+	/**
+	 * Queue a command for the robot with the specified MY address.
+	 *
+	 * @return false if there is no such robot, or its queue is full
+	 */
+	public boolean submit(int address, int command, int data) {
+		Robot robot = registry.get(address) ;
+		if(robot == null) {
+			log.warn(String.format("No robot at 0x%04x, dropping %s", address, RobotCommand.valueOf(command, data))) ;
+			return false ;
+		}
+		return submit(robot, RobotCommand.valueOf(command, data)) ;
+	}
+
+	public boolean submit(Robot robot, int command, int data) {
+		return submit(robot, RobotCommand.valueOf(command, data)) ;
+	}
+
+	/**
+	 * Queue a command for a robot. Queued commands the new one supersedes are dropped (see
+	 * RobotCommand.supersedes()). Priority commands are queued separately, and sent first.
+	 *
+	 * @param robot the robot, from our registry (or getBroadcast())
+	 * @param command the command
+	 * @return false if the robot's queue is full and the command was dropped
+	 */
+	public synchronized boolean submit(Robot robot, RobotCommand command) {
+		if(shutdown)
+			return false ;
+		robot.coalesced += robot.queue.coalesce(command) ;
+		CommandQueue queue = robot.queue ;
+		if(command.isPriority()) {
+			queue = robot.priorityQueue ;
+			if(queue.contains(command.getCommand())) {		// Already waiting, no need to queue it twice
+				robot.coalesced++ ;
+				return true ;
+			}
+		}
+		if(!queue.offer(command, System.nanoTime())) {
+			robot.rejected++ ;
+			log.warn("Command queue full for " + robot + ", dropping " + command) ;
+			return false ;
+		}
+		robot.submitted++ ;
+		notifyAll() ;
+		return true ;
+	}
+
+	/**
+	 * Queue a command for every robot on the PAN at once, in one frame. It supersedes commands queued for
+	 * individual robots, just as it would if sent to each of them.
+	 *
+	 * @return false if the broadcast queue is full and the command was dropped
+	 */
+	public synchronized boolean broadcast(int command, int data) {
+		RobotCommand broadcastCommand = RobotCommand.valueOf(command, data) ;
+		Robot[] robots = registry.getRobots() ;
+		for(int i = 0; i < robots.length; i++)
+			robots[i].coalesced += robots[i].queue.coalesce(broadcastCommand) ;
+		return submit(broadcast, broadcastCommand) ;
+	}
+
+	/**
+	 * Stop every robot: a broadcast stop, which reaches them all at once, then each robot's own stop, re-sent
+	 * until it acknowledges. Every queued motion command is dropped.
+	 *
+	 * @return how many robots were told to stop
+	 */
+	public synchronized int allStop() {
+		RobotCommand stop = RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0) ;
+		submit(broadcast, stop) ;
+		Robot[] robots = registry.getRobots() ;
+		int stopped = 0 ;
+		for(int i = 0; i < robots.length; i++) {
+			if(submit(robots[i], stop))
+				stopped++ ;
+		}
+		log.info("All stop: " + stopped + " of " + robots.length + " robots") ;
+		return stopped ;
+	}
+
+	/**
+	 * Throw away every command that has not been sent yet, for every robot.
+	 *
+	 * @return how many commands were thrown away
+	 */
+	public synchronized int cancelPending() {
+		int cancelled = broadcast.queue.clear() ;
+		Robot[] robots = registry.getRobots() ;
+		for(int i = 0; i < robots.length; i++)
+			cancelled += robots[i].queue.clear() ;
+		return cancelled ;
+	}
+
+	/**
+	 * @return how many commands are waiting to be sent, for every robot
+	 */
+	public synchronized int getQueueDepth() {
+		int depth = broadcast.queue.size() + broadcast.priorityQueue.size() ;
+		Robot[] robots = registry.getRobots() ;
+		for(int i = 0; i < robots.length; i++)
+			depth += robots[i].queue.size() + robots[i].priorityQueue.size() ;
+		return depth ;
+	}
+
+	/**
+	 * Stop the scheduler thread once the frame it is sending (if any) is written. Queued commands are discarded.
+	 * The transmit engine is left running, as it may be shared.
+	 */
+	public void shutdown() {
+		synchronized(this) {
+			shutdown = true ;
+			broadcast.queue.clear() ;
+			broadcast.priorityQueue.clear() ;
+			Robot[] robots = registry.getRobots() ;
+			for(int i = 0; i < robots.length; i++) {
+				robots[i].queue.clear() ;
+				robots[i].priorityQueue.clear() ;
+			}
+			notifyAll() ;
+		}
+		try {
+			thread.join(5000) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * The scheduler thread: send the next robot's next command, priority commands first.
+	 *
+	 * As in the CommandDispatcher, we wait for room in the window before choosing an ordinary command, so
+	 * anything submitted while we waited - a stop in particular - is taken into account.
+	 */
+	public void run() {
+		while(true) {
+			boolean ordinary ;
+			synchronized(this) {
+				while(!shutdown && !hasPriority() && !hasOrdinary()) {
+					try {
+						wait() ;
+					} catch (InterruptedException e) {
+						shutdown = true ;
+					}
+				}
+				if(shutdown)
+					return ;
+				ordinary = !hasPriority() ;
+			}
+			if(ordinary) {
+				try {
+					engine.awaitWindow() ;
+				} catch (InterruptedException e) {
+					return ;
+				}
+			}
+			Frame frame ;
+			synchronized(this) {
+				if(shutdown)
+					return ;
+				Robot robot = nextPriority() ;
+				boolean priority = robot != null ;
+				if(!priority)
+					robot = nextOrdinary() ;
+				if(robot == null)
+					continue ;
+				frame = pooled > 0 ? pool[--pooled] : new Frame() ;
+				frame.robot = robot ;
+				frame.priority = priority ;
+				frame.reported = false ;
+				CommandQueue queue = priority ? robot.priorityQueue : robot.queue ;
+				frame.queuedNanos = queue.peekNanos() ;
+				frame.command = queue.poll() ;
+				if(priority)
+					robot.priorityInFlight = true ;
+				else
+					robot.inFlight++ ;
+			}
+			send(frame) ;
+		}
+	}
+
+	/**
+	 * Write a frame. Its TX status arrives later, through the CompletionCallback.
+	 */
+	private void send(Frame frame) {
+		XBeeCommunicatorTask sender = frame.priority ? priorityTask : task ;
+		RobotCommand command = frame.command ;
+		Robot robot = frame.robot ;
+		String error = null ;
+		try {
+			if(!sender.execute(command.getCommand(), command.getData(), robot.getDestination(), commPort, baudRate, completion, frame))
+				error = sender.getLastError() ;
+		} catch (XBeeException e) {
+			error = sender.getLastError() ;
+			pause() ;								// The port is broken, don't spin re-opening it
+		} catch (RuntimeException e) {
+			error = "Error executing: " + command + " for " + robot + ": " + e ;
+			log.error(error, e) ;
+		}
+		/*
+		 * If the engine failed the frame as the write failed, the callback has completed it already - and the
+		 * Frame is back in the pool. Only this thread takes Frames from the pool, so it can't have been reused yet.
+		 */
+		if(error != null && !frame.reported)
+			completed(frame, error) ;
+	}
+
+	/**
+	 * Finish with a frame: count it, re-queue a failed priority command that is still within its deadline, and
+	 * tell the listener.
+	 */
+	private void completed(Frame frame, String error) {
+		long now = System.nanoTime() ;
+		Robot robot = frame.robot ;
+		RobotCommand command = frame.command ;
+		long queuedNanos = frame.queuedNanos ;
+		boolean retry = false ;
+		synchronized(this) {
+			if(frame.priority) {
+				robot.priorityInFlight = false ;
+				if(error != null && !shutdown && now - queuedNanos < PRIORITY_DEADLINE_MILLIS * 1000000L) {
+					if(robot.priorityQueue.contains(command.getCommand()) || robot.priorityQueue.offer(command, queuedNanos)) {
+						robot.retries++ ;
+						retry = true ;
+					}
+				}
+			} else {
+				robot.inFlight-- ;
+			}
+			if(error == null)
+				robot.sent++ ;
+			else if(!retry)
+				robot.failed++ ;
+			frame.robot = null ;
+			frame.command = null ;
+			if(pooled < pool.length)
+				pool[pooled++] = frame ;
+			notifyAll() ;
+		}
+		if(retry) {
+			if(log.isDebugEnabled())
+				log.debug("Re-sending " + command + " to " + robot + ": " + error) ;
+			return ;
+		}
+		if(error == null)
+			robot.acknowledged(command, queuedNanos, now) ;
+		else
+			log.error(robot + ": " + error) ;
+		if(listener != null)
+			listener.commandCompleted(robot, command, error) ;
+	}
+
+	/**
+	 * @return true if any robot has a priority command to send. Caller must hold the lock.
+	 */
+	private boolean hasPriority() {
+		if(canSendPriority(broadcast))
+			return true ;
+		Robot[] robots = registry.getRobots() ;
+		for(int i = 0; i < robots.length; i++) {
+			if(canSendPriority(robots[i]))
+				return true ;
+		}
+		return false ;
+	}
+
+	/**
+	 * @return true if any robot has an ordinary command it may send. Caller must hold the lock.
+	 */
+	private boolean hasOrdinary() {
+		if(canSendOrdinary(broadcast))
+			return true ;
+		Robot[] robots = registry.getRobots() ;
+		for(int i = 0; i < robots.length; i++) {
+			if(canSendOrdinary(robots[i]))
+				return true ;
+		}
+		return false ;
+	}
+
+	/**
+	 * @return the robot whose priority command goes next, broadcasts first, or null. Caller must hold the lock.
+	 */
+	private Robot nextPriority() {
+		if(canSendPriority(broadcast))
+			return broadcast ;
+		Robot[] robots = registry.getRobots() ;
+		for(int i = 0; i < robots.length; i++) {
+			int turn = (nextPriority + i) % robots.length ;
+			if(canSendPriority(robots[turn])) {
+				nextPriority = turn + 1 ;
+				return robots[turn] ;
+			}
+		}
+		return null ;
+	}
+
+	/**
+	 * @return the robot whose ordinary command goes next, broadcasts first, or null. Caller must hold the lock.
+	 */
+	private Robot nextOrdinary() {
+		if(canSendOrdinary(broadcast))
+			return broadcast ;
+		Robot[] robots = registry.getRobots() ;
+		for(int i = 0; i < robots.length; i++) {
+			int turn = (nextOrdinary + i) % robots.length ;
+			if(canSendOrdinary(robots[turn])) {
+				nextOrdinary = turn + 1 ;
+				return robots[turn] ;
+			}
+		}
+		return null ;
+	}
+
+	private static boolean canSendPriority(Robot robot) {
+		return !robot.priorityQueue.isEmpty() && !robot.priorityInFlight ;
+	}
+
+	/**
+	 * A robot's ordinary commands wait while it has a priority command waiting or outstanding, so nothing
+	 * submitted after a stop can overtake it.
+	 */
+	private static boolean canSendOrdinary(Robot robot) {
+		return !robot.queue.isEmpty() && robot.inFlight < MAX_IN_FLIGHT && robot.priorityQueue.isEmpty() && !robot.priorityInFlight ;
+	}
+
+	private void pause() {
+		try {
+			TimeUnit.MILLISECONDS.sleep(PRIORITY_RETRY_PAUSE_MILLIS) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * Completes a frame when the transmit engine tells us its TX status. The Frame travels as the attachment,
+	 * so one callback serves every robot.
+	 */
+	private class CompletionCallback implements TransmitCallback {
+		public void transmitCompleted(TransmitFuture future) {
+			Frame frame = (Frame) future.getAttachment() ;
+			frame.reported = true ;
+			completed(frame, XBeeCommunicatorTask.describeFailure(frame.command.getCommand(), future)) ;
+		}
+	}
+}
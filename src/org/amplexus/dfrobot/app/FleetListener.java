@@ -0,0 +1,21 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * Notified by the FleetDispatcher as each command finishes.
+ *
+ * Called on the XBee api's input thread (or the transmit engine's timeout thread), so implementations must be
+ * quick, and those that touch Swing widgets must hop onto the EventDispatch thread themselves.
+ *
+ * @author craig
+ */
+public interface FleetListener {
+
+	/**
+	 * A command has been sent (or failed to send).
+	 *
+	 * @param robot the robot the command was for, or FleetDispatcher.getBroadcast() for a broadcast
+	 * @param command the command
+	 * @param error null if the command succeeded, otherwise a description of what went wrong
+	 */
+	void commandCompleted(Robot robot, RobotCommand command, String error) ;
+}
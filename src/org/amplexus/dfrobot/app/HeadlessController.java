@@ -0,0 +1,329 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Drives the robot without a GUI, for unattended test rigs: commands come from a script file or stdin, one per
+ * line, and each one's acknowledgement and latency is printed as it completes.
+ *
+ * The same command engine as the GUI - XBeeLinkManager, XBeeTransmitEngine, CommandDispatcher, LinkNegotiator -
+ * but nothing touches AWT or Swing, and there are no icons to load, so the robot can be commanded as soon as the
+ * port is open. Give the port and baud rate to skip the search for the explorer altogether.
+ *
+ * Script lines (# starts a comment):
+ *   forward|backwards|left|right [speed]	speed 0-255, DEFAULT_SPEED if not given
+ *   stop
+ *   vector left right						each track's speed, -127 to 127
+ *   ping
+ *   keepalive
+ *   autonomous on|off
+ *   wait millis							pause before the next command
+ *   mission step, step...				run a timed mission, eg mission forward 200 for 1.5 s, right 150 for 0.4 s, stop
+ *										(see MissionExecutor)
+ *   quit
+ * Each command waits for the one before it to complete, so none are coalesced and every one is reported.
+ *
+ * Output is tab separated, one line per event:
+ *   ready	port	baud	millis since startup
+ *   ack	command	millis from submit to acknowledgement
+ *   fail	command	millis	error
+ *   error	line	what was wrong with it
+ *   step	index	command	scheduled millis	micros sent late	TX status	(a mission's steps)
+ *   mission	steps	millis	mean micros late	max micros late	delivered
+ *   startup	jvm millis	ready millis	first ack millis	(last)
+ * Startup times are also appended to METRICS_DIRECTORY/startup.tsv, as the GUI's are (see StartupTimer).
+ *
+ * Exits 0 if every command was acknowledged, 1 if any failed and 2 if the explorer couldn't be found.
+ *
+ * Usage: HeadlessController [-port port] [-baud baud rate] [script file]
+ *
+ * @author craig
+ */
+public class HeadlessController implements CommandListener {
+
+	public static final int DEFAULT_SPEED			= DFRobot4WDPlatformController.DEFAULT_SPEED ;	// The GUI's constants are compile time constants, so using them doesn't load its class
+	public static final long COMMAND_TIMEOUT_MILLIS	= RetryPolicy.DEFAULT_DEADLINE_MILLIS + XBeeTransmitEngine.DEFAULT_TIMEOUT_MILLIS + 1000 ;	// Retries and all
+
+	private final StartupTimer startup ;			// Times our startup
+	private final XBeeLinkManager link ;			// The connection to the explorer
+	private final XBeeTransmitEngine engine ;		// Sends the frames
+	private final CommandDispatcher dispatcher ;	// Sends the commands
+	private String commPort = null ;				// The explorer's port, once connected
+	private int baudRate = 0 ;						// Its baud rate
+	private final PrintStream out ;					// Where the results go
+	private RobotCommand pending = null ;			// The command being executed, guarded by this
+	private boolean completed = false ;				// Set when it completes, guarded by this
+	private String error = null ;					// Why it failed, null if it was acknowledged, guarded by this
+	private int failures = 0 ;						// Commands that failed, and bad lines
+    private final static Logger log = Logger.getLogger(HeadlessController.class);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param startup times our startup
+	 * @param link the connection to the explorer
+	 * @param out where the results go
+	 */
+	public HeadlessController(StartupTimer startup, XBeeLinkManager link, PrintStream out) {
+		this.startup = startup ;
+		this.link = link ;
+		this.out = out ;
+		this.engine = new XBeeTransmitEngine() ;
+		this.dispatcher = new CommandDispatcher(link, engine, DFRobot4WDPlatformController.DEFAULT_USBPORT,
+				DFRobot4WDPlatformController.DEFAULT_BAUD_RATE, CommandDispatcher.DEFAULT_CAPACITY, this) ;
+		this.dispatcher.setDestination(RobotRegistry.fromSpec(System.getProperty(RobotRegistry.ROBOTS_PROPERTY)).getRobots()[0].getDestination()) ;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StartupTimer startup = new StartupTimer(StartupTimer.HEADLESS) ;
+		PropertyConfigurator.configure("log4j.properties");
+
+		String commPort = null ;
+		int baudRate = 0 ;
+		String script = null ;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-port") && i + 1 < args.length)
+				commPort = args[++i] ;
+			else if(args[i].equals("-baud") && i + 1 < args.length)
+				baudRate = Integer.parseInt(args[++i]) ;
+			else
+				script = args[i] ;
+		}
+
+		HeadlessController controller = new HeadlessController(startup, new XBeeLinkManager(), System.out) ;
+		int failures ;
+		try {
+			if(!controller.connect(commPort, baudRate))
+				System.exit(2) ;
+			BufferedReader in = new BufferedReader(script != null ? new FileReader(script) : new InputStreamReader(System.in)) ;
+			try {
+				failures = controller.run(in) ;
+			} finally {
+				in.close() ;
+			}
+		} finally {
+			controller.shutdown() ;
+		}
+		System.out.println("startup\t" + startup.getJvmMillis() + "\t" + startup.getReadyMillis() + "\t" + startup.getFirstAckMillis()) ;
+		try {
+			startup.save(new File(DFRobot4WDPlatformController.METRICS_DIRECTORY, StartupTimer.HISTORY_FILE)) ;
+		} catch (IOException e) {
+			log.warn("Can't save the startup times: " + e.getMessage()) ;
+		}
+		System.exit(failures == 0 ? 0 : 1) ;
+	}
+
+	/**
+	 * Open the link to the explorer: straight away if the port and baud rate are given, otherwise by looking for
+	 * it - the last good pair first - as the GUI does.
+	 *
+	 * @param commPort the port, or null to look on every serial port
+	 * @param baudRate the baud rate, or 0 to try every likely rate
+	 * @return true if the explorer was found
+	 */
+	public boolean connect(String commPort, int baudRate) {
+		if(commPort == null || baudRate <= 0) {
+			String[] ports = commPort != null ? new String[] { commPort } : new SerialPortScanner().scan() ;
+			if(ports.length == 0)
+				ports = new String[] { DFRobot4WDPlatformController.DEFAULT_USBPORT } ;
+			int[] baudRates = baudRate > 0 ? new int[] { baudRate } : LinkNegotiator.LIKELY_BAUD_RATES ;
+			LinkNegotiator.Result result = new LinkNegotiator(link).negotiate(ports, baudRates) ;
+			if(result == null) {
+				out.println("error\t0\tNo XBee explorer answered - check it is plugged in and in API mode 2") ;
+				return false ;
+			}
+			commPort = result.getCommPort() ;
+			baudRate = result.getBaudRate() ;
+		} else {
+			try {
+				link.acquire(commPort, baudRate) ;
+			} catch (XBeeException e) {
+				out.println("error\t0\tCan't open " + commPort + " at " + baudRate + " baud: " + e.getMessage()) ;
+				return false ;
+			}
+		}
+		dispatcher.setCommPort(commPort) ;
+		dispatcher.setBaudRate(baudRate) ;
+		this.commPort = commPort ;
+		this.baudRate = baudRate ;
+		startup.ready() ;
+		out.println("ready\t" + commPort + "\t" + baudRate + "\t" + startup.getReadyMillis()) ;
+		return true ;
+	}
+
+	/**
+	 * Execute a script, a line at a time, until it ends or says quit.
+	 *
+	 * @return how many commands failed, plus how many lines couldn't be understood
+	 */
+	public int run(BufferedReader in) throws IOException, InterruptedException {
+		int lineNumber = 0 ;
+		for(String line = in.readLine(); line != null; line = in.readLine()) {
+			lineNumber++ ;
+			int comment = line.indexOf('#') ;
+			if(comment >= 0)
+				line = line.substring(0, comment) ;
+			line = line.trim() ;
+			if(line.length() == 0)
+				continue ;
+			String[] words = line.split("\\s+") ;
+			String verb = words[0].toLowerCase() ;
+			try {
+				if(verb.equals("quit"))
+					break ;
+				if(verb.equals("wait")) {
+					Thread.sleep(Long.parseLong(words[1])) ;
+					continue ;
+				}
+				if(verb.equals("mission")) {
+					mission(MissionExecutor.parse(line.substring(words[0].length()))) ;
+					continue ;
+				}
+				RobotCommand command = parse(words) ;
+				if(command == null) {
+					out.println("error\t" + lineNumber + "\tUnknown command: " + line) ;
+					failures++ ;
+					continue ;
+				}
+				execute(command) ;
+			} catch (RuntimeException e) {				// A missing or bad number
+				out.println("error\t" + lineNumber + "\t" + e + ": " + line) ;
+				failures++ ;
+			}
+		}
+		return failures ;
+	}
+
+	/**
+	 * Turn a script line into a command.
+	 *
+	 * @param words the line, split into words
+	 * @return the command, or null if there is no such command
+	 * @throws RuntimeException if a number is missing or out of range
+	 */
+	public static RobotCommand parse(String[] words) {
+		String verb = words[0].toLowerCase() ;
+		int speed = words.length > 1 ? Integer.parseInt(words[1]) : DEFAULT_SPEED ;
+		if(verb.equals("forward"))
+			return motion(XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed) ;
+		if(verb.equals("backwards"))
+			return motion(XBeeCommunicatorTask.CMD_MOTOR_BACKWARDS, speed) ;
+		if(verb.equals("left"))
+			return motion(XBeeCommunicatorTask.CMD_MOTOR_LEFT, speed) ;
+		if(verb.equals("right"))
+			return motion(XBeeCommunicatorTask.CMD_MOTOR_RIGHT, speed) ;
+		if(verb.equals("stop"))
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0) ;
+		if(verb.equals("vector"))
+			return RobotCommand.vector(Integer.parseInt(words[1]), Integer.parseInt(words[2])) ;
+		if(verb.equals("ping"))
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_PING, 0) ;
+		if(verb.equals("keepalive"))
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_KEEPALIVE, 0) ;
+		if(verb.equals("autonomous") && words.length > 1 && words[1].equalsIgnoreCase("on"))
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_AUTONOMOUS_MODE_ON, 0) ;
+		if(verb.equals("autonomous") && words.length > 1 && words[1].equalsIgnoreCase("off"))
+			return RobotCommand.valueOf(XBeeCommunicatorTask.CMD_AUTONOMOUS_MODE_OFF, 0) ;
+		return null ;
+	}
+
+	private static RobotCommand motion(int command, int speed) {
+		if(speed < 0 || speed > 255)
+			throw new IllegalArgumentException("Speed out of range (0-255): " + speed) ;
+		return RobotCommand.valueOf(command, speed) ;
+	}
+
+	/**
+	 * Send a command, wait for it to complete and print how it went.
+	 */
+	private void execute(RobotCommand command) throws InterruptedException {
+		String result ;
+		long start = System.nanoTime() ;
+		synchronized(this) {
+			pending = command ;
+			completed = false ;
+			error = null ;
+			if(!dispatcher.submit(command)) {
+				error = "Command queue full" ;
+				completed = true ;
+			}
+			long deadline = start + COMMAND_TIMEOUT_MILLIS * 1000000L ;
+			while(!completed) {
+				long remaining = deadline - System.nanoTime() ;
+				if(remaining <= 0) {
+					error = "No acknowledgement within " + COMMAND_TIMEOUT_MILLIS + " ms" ;
+					break ;
+				}
+				wait(remaining / 1000000L + 1) ;
+			}
+			result = error ;
+			pending = null ;
+		}
+		String millis = String.format("%.1f", (System.nanoTime() - start) / 1e6) ;
+		if(result == null) {
+			out.println("ack\t" + command + "\t" + millis) ;
+		} else {
+			out.println("fail\t" + command + "\t" + millis + "\t" + result) ;
+			failures++ ;
+		}
+	}
+
+	/**
+	 * Run a timed mission and print how each step went.
+	 */
+	private void mission(MissionExecutor.Step[] steps) throws InterruptedException {
+		MissionExecutor mission = new MissionExecutor(engine, dispatcher.getDestination(), steps) ;
+		boolean delivered ;
+		try {
+			XBee xbee = link.acquire(commPort, baudRate) ;
+			delivered = mission.run(xbee, link.getOutputStream(xbee)) ;
+		} catch (XBeeException e) {
+			out.println("fail\tmission\t0\t" + e.getMessage()) ;
+			delivered = false ;
+		}
+		for(int i = 0; i < steps.length; i++) {
+			MissionExecutor.Step step = steps[i] ;
+			out.println("step\t" + i + "\t" + step.getCommand() + "\t" + (step.getOffsetNanos() / 1000000L) + "\t"
+					+ (step.getLateNanos() < 0 ? "-" : String.valueOf(step.getLateNanos() / 1000L)) + "\t"
+					+ (step.getOutcome() < 0 ? "-" : RetryPolicy.outcomeName(step.getOutcome()))) ;
+		}
+		out.println("mission\t" + steps.length + "\t" + (mission.getElapsedNanos() / 1000000L) + "\t" + mission.getLateness().getMeanMicros()
+				+ "\t" + mission.getLateness().getMaxMicros() + "\t" + delivered) ;
+		if(!delivered)
+			failures++ ;
+	}
+
+	/**
+	 * Called when each command completes, on the dispatcher's or the XBee api's thread.
+	 */
+	public void commandCompleted(RobotCommand command, String error) {
+		if(error == null)
+			startup.firstAck() ;
+		synchronized(this) {
+			if(command != pending)
+				return ;							// Completed after we gave up waiting for it
+			this.error = error ;
+			this.completed = true ;
+			notifyAll() ;
+		}
+	}
+
+	/**
+	 * Stop the dispatcher and close the link.
+	 */
+	public void shutdown() {
+		dispatcher.shutdown() ;
+		link.close() ;
+	}
+}
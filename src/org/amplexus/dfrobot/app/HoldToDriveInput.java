@@ -0,0 +1,219 @@
+package org.amplexus.dfrobot.app;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
+
+import javax.swing.Timer;
+
+/**
+ * Hold to drive: the robot moves while arrow keys are held down, and stops shortly after they are released.
+ *
+ * The state machine has three states:
+ * - idle: no key held, the robot is stopped
+ * - driving: arrow keys are held, the robot moves the way they point and a keepalive is sent every keepalive
+ *   interval, so the robot can stop itself if the link drops while we are driving
+ * - releasing: a held key has been released, and we wait releaseGrace before acting on it
+ *
+ * The releasing state filters the operating system's key auto-repeat. Depending on the platform, a held key
+ * either fires repeated presses (which we ignore as the key is already held) or press / release pairs, where the
+ * release is followed within a few milliseconds by the next press - which takes us straight back to driving,
+ * without the robot ever being told to stop.
+ *
+ * So the robot is told to stop releaseGrace after the key is really released, plus the time to send the command.
+ * If that command is lost, the robot's watchdog stops it once it stops hearing the keepalives.
+ *
+ * Pressing another arrow key while one is held adds it to the chord - up then left is an arc (see DriveVector) -
+ * and releasing one of a chord's keys drives with the keys still held. The period (.) key stops at once.
+ *
+ * All methods must be called on the EventDispatch thread - the timers are Swing Timers, so the driver is also
+ * only ever called on the EventDispatch thread.
+ *
+ * @author craig
+ */
+public class HoldToDriveInput {
+
+	public static final int DEFAULT_RELEASE_GRACE_MILLIS	= 50 ;		// Longer than the auto-repeat release / press gap
+	public static final int DEFAULT_KEEPALIVE_MILLIS		= 200 ;		// How often we send a keepalive while driving
+	public static final int KEEPALIVES_MISSED				= 3 ;		// The robot stops after missing this many keepalives
+
+	/**
+	 * What the state machine drives - called on the EventDispatch thread.
+	 */
+	public interface Driver {
+		/**
+		 * Start moving, or change direction.
+		 *
+		 * @param keys the arrow keys held, as DriveVector.KEY_* bits - see DriveVector.command()
+		 */
+		void drive(int keys) ;
+
+		/**
+		 * Stop moving.
+		 */
+		void stop() ;
+
+		/**
+		 * Tell the robot we are still here.
+		 *
+		 * @param watchdogTicks how long the robot should wait for the next keepalive before stopping, x 10 millis
+		 */
+		void keepalive(int watchdogTicks) ;
+	}
+
+	private final Driver driver ;					// Where the commands go
+	private final Timer releaseTimer ;				// Fires once, releaseGrace after the held key is released
+	private final Timer keepaliveTimer ;			// Fires every keepalive interval while driving
+	private final int watchdogTicks ;				// Sent with each keepalive
+	private int heldKeys = 0 ;						// The arrow keys we are driving with (DriveVector.KEY_*), 0 if idle
+	private int releasingKeys = 0 ;					// The held keys that have been released, which we are waiting to act on
+	private long autoRepeats = 0 ;					// Release / press pairs filtered out
+
+	/**
+	 * Constructor, using the default release grace and keepalive interval.
+	 */
+	public HoldToDriveInput(Driver driver) {
+		this(driver, DEFAULT_RELEASE_GRACE_MILLIS, DEFAULT_KEEPALIVE_MILLIS) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param driver where the commands go
+	 * @param releaseGraceMillis how long after a key is released before we stop - must exceed the gap between an
+	 * auto-repeat release and the press that follows it
+	 * @param keepaliveMillis how often to send a keepalive while driving
+	 */
+	public HoldToDriveInput(Driver driver, int releaseGraceMillis, int keepaliveMillis) {
+		this.driver = driver ;
+		this.watchdogTicks = Math.min(255, (keepaliveMillis * KEEPALIVES_MISSED + 9) / 10) ;
+		this.releaseTimer = new Timer(releaseGraceMillis, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				released() ;
+			}
+		});
+		this.releaseTimer.setRepeats(false) ;
+		this.keepaliveTimer = new Timer(keepaliveMillis, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				HoldToDriveInput.this.driver.keepalive(watchdogTicks) ;
+			}
+		});
+	}
+
+	/**
+	 * A key was pressed.
+	 *
+	 * @param keyCode the KeyEvent.VK_* code
+	 * @return true if we handled the key
+	 */
+	public boolean keyPressed(int keyCode) {
+		if(keyCode == KeyEvent.VK_PERIOD) {
+			reset() ;
+			driver.stop() ;
+			return true ;
+		}
+		int key = DriveVector.keyFor(keyCode) ;
+		if(key == 0)
+			return false ;
+
+		if((heldKeys & key) != 0) {
+			if((releasingKeys & key) != 0) {
+				releasingKeys &= ~key ;		// Auto-repeat: the release was not real
+				if(releasingKeys == 0)
+					releaseTimer.stop() ;
+				autoRepeats++ ;
+			}
+			return true ;
+		}
+
+		releaseTimer.stop() ;
+		boolean wasDriving = heldKeys != 0 ;
+		heldKeys = (heldKeys & ~releasingKeys) | key ;	// Any other release is real, as a new key has been pressed since
+		releasingKeys = 0 ;
+		driver.drive(heldKeys) ;
+		if(!wasDriving)
+			keepaliveTimer.restart() ;
+		return true ;
+	}
+
+	/**
+	 * A key was released.
+	 *
+	 * @param keyCode the KeyEvent.VK_* code
+	 * @return true if we handled the key
+	 */
+	public boolean keyReleased(int keyCode) {
+		if(keyCode == KeyEvent.VK_PERIOD)
+			return true ;
+		int key = DriveVector.keyFor(keyCode) ;
+		if(key == 0)
+			return false ;
+		if((heldKeys & key) != 0 && (releasingKeys & key) == 0) {
+			releasingKeys |= key ;
+			releaseTimer.restart() ;
+		}
+		return true ;
+	}
+
+	/**
+	 * Stop now, eg because hold to drive has been switched off.
+	 */
+	public void stop() {
+		boolean wasDriving = heldKeys != 0 ;
+		reset() ;
+		if(wasDriving)
+			driver.stop() ;
+	}
+
+	/**
+	 * Forget any held keys without telling the driver, eg because the robot is being stopped some other way.
+	 */
+	public void reset() {
+		releaseTimer.stop() ;
+		keepaliveTimer.stop() ;
+		releasingKeys = 0 ;
+		heldKeys = 0 ;
+	}
+
+	/**
+	 * @return true if a key is held (or was released less than releaseGrace ago)
+	 */
+	public boolean isDriving() {
+		return heldKeys != 0 ;
+	}
+
+	/**
+	 * @return the arrow keys held (or released less than releaseGrace ago), as DriveVector.KEY_* bits
+	 */
+	public int getHeldKeys() {
+		return heldKeys ;
+	}
+
+	/**
+	 * @return how many auto-repeat release / press pairs have been filtered out
+	 */
+	public long getAutoRepeatCount() {
+		return autoRepeats ;
+	}
+
+	/**
+	 * @return the watchdog timeout sent with each keepalive, x 10 millis
+	 */
+	public int getWatchdogTicks() {
+		return watchdogTicks ;
+	}
+
+	/**
+	 * The released keys' release was real: stop, or drive on with the keys still held.
+	 */
+	private void released() {
+		if(releasingKeys == 0)
+			return ;
+		heldKeys &= ~releasingKeys ;
+		releasingKeys = 0 ;
+		if(heldKeys == 0)
+			stop() ;
+		else
+			driver.drive(heldKeys) ;
+	}
+}
@@ -0,0 +1,176 @@
+package org.amplexus.dfrobot.app;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The GUI's button icons, decoded in parallel in the background and kept in a single image.
+ *
+ * Decoding the ten 128 px arrow and stop PNGs and the spacer one at a time, with getResource() and an ImageIcon
+ * each, held up showing the frame. Instead prefetch() starts decoding them as soon as the app starts, on one
+ * "icon-decoder" thread per processor, while the frame is built and shown with BLANK placeholders of the same
+ * size; the GUI swaps the real icons in when they are ready.
+ *
+ * The decoded icons are drawn side by side, ICON_SIZE apart, into one atlas image, and getIcon() hands out views
+ * of it (BufferedImage.getSubimage() shares the atlas' pixels), so there is one image to cache however many
+ * buttons and labels show the icons. The atlas is loaded once per run and shared.
+ *
+ * @author craig
+ */
+public class IconAtlas {
+
+	public static final int ICON_SIZE				= 128 ;
+	public static final String[] ICONS = {
+		"/leftarrow-128.png", "/rightarrow-128.png", "/uparrow-128.png", "/downarrow-128.png", "/stop-128.png",
+		"/selected-leftarrow-128.png", "/selected-rightarrow-128.png", "/selected-uparrow-128.png",
+		"/selected-downarrow-128.png", "/selected-stop-128.png", "/spacer-128.png"
+	} ;
+
+	/*
+	 * A transparent placeholder the size of an icon, so the layout doesn't change when the icons arrive
+	 */
+	public static final ImageIcon BLANK = new ImageIcon(new BufferedImage(ICON_SIZE, ICON_SIZE, BufferedImage.TYPE_INT_ARGB)) ;
+
+	private static Future<IconAtlas> shared = null ;	// The atlas of ICONS, once prefetch() has started loading it, guarded by the class
+
+	private final String[] paths ;					// The icons, in the order they are in the atlas
+	private final BufferedImage atlas ;				// Every icon, side by side
+	private final int[] widths ;					// Each icon's size, 0 if it couldn't be loaded
+	private final int[] heights ;
+	private final long loadNanos ;					// How long decoding and drawing them took
+    private final static Logger log = Logger.getLogger(IconAtlas.class);
+
+	private IconAtlas(String[] paths, BufferedImage atlas, int[] widths, int[] heights, long loadNanos) {
+		this.paths = paths ;
+		this.atlas = atlas ;
+		this.widths = widths ;
+		this.heights = heights ;
+		this.loadNanos = loadNanos ;
+	}
+
+	/**
+	 * Start loading the shared atlas of ICONS in the background, unless it has been started already.
+	 *
+	 * @return the atlas, once it has loaded
+	 */
+	public static synchronized Future<IconAtlas> prefetch() {
+		if(shared == null) {
+			FutureTask<IconAtlas> task = new FutureTask<IconAtlas>(new Callable<IconAtlas>() {
+				public IconAtlas call() throws Exception {
+					return load(ICONS, Runtime.getRuntime().availableProcessors()) ;
+				}
+			});
+			Thread loader = new Thread(task, "icon-atlas") ;
+			loader.setDaemon(true) ;
+			loader.start() ;
+			shared = task ;
+		}
+		return shared ;
+	}
+
+	/**
+	 * Decode icons in parallel and draw them into an atlas. An icon that can't be found or decoded is logged and
+	 * left out - getIcon() returns null for it.
+	 *
+	 * @param paths the icons' resource paths, each at most ICON_SIZE square
+	 * @param threads how many to decode at once
+	 */
+	public static IconAtlas load(final String[] paths, int threads) throws InterruptedException {
+		long start = System.nanoTime() ;
+		ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, paths.length)), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "icon-decoder") ;
+				thread.setDaemon(true) ;
+				return thread ;
+			}
+		});
+		List<Future<BufferedImage>> decoded = new ArrayList<Future<BufferedImage>>() ;
+		try {
+			for(final String path : paths) {
+				decoded.add(decoders.submit(new Callable<BufferedImage>() {
+					public BufferedImage call() throws IOException {
+						URL url = IconAtlas.class.getResource(path) ;
+						if(url == null)
+							throw new IOException("Couldn't find file: " + path) ;
+						return ImageIO.read(url) ;
+					}
+				}));
+			}
+
+			BufferedImage atlas = new BufferedImage(ICON_SIZE * paths.length, ICON_SIZE, BufferedImage.TYPE_INT_ARGB) ;
+			int[] widths = new int[paths.length] ;
+			int[] heights = new int[paths.length] ;
+			Graphics2D g = atlas.createGraphics() ;
+			g.setComposite(AlphaComposite.Src) ;			// Copy the pixels as they are - blending loses the colour of faint ones
+			try {
+				for(int i = 0; i < paths.length; i++) {
+					BufferedImage image ;
+					try {
+						image = decoded.get(i).get() ;
+					} catch (ExecutionException e) {
+						log.error("Can't load icon " + paths[i] + ": " + e.getCause().getMessage()) ;
+						continue ;
+					}
+					if(image == null) {
+						log.error("Can't decode icon " + paths[i]) ;
+						continue ;
+					}
+					widths[i] = Math.min(ICON_SIZE, image.getWidth()) ;
+					heights[i] = Math.min(ICON_SIZE, image.getHeight()) ;
+					g.drawImage(image, i * ICON_SIZE, 0, null) ;
+				}
+			} finally {
+				g.dispose() ;
+			}
+			IconAtlas result = new IconAtlas(paths, atlas, widths, heights, System.nanoTime() - start) ;
+			if(log.isDebugEnabled())
+				log.debug("Loaded " + result) ;
+			return result ;
+		} finally {
+			decoders.shutdownNow() ;
+		}
+	}
+
+	/**
+	 * @param path the icon's resource path, as given to load()
+	 * @param description the icon's description, eg for screen readers
+	 * @return the icon - a view of the atlas - or null if it couldn't be loaded
+	 */
+	public ImageIcon getIcon(String path, String description) {
+		for(int i = 0; i < paths.length; i++) {
+			if(paths[i].equals(path))
+				return widths[i] == 0 ? null : new ImageIcon(atlas.getSubimage(i * ICON_SIZE, 0, widths[i], heights[i]), description) ;
+		}
+		log.error("Not in the icon atlas: " + path) ;
+		return null ;
+	}
+
+	/**
+	 * @return how long decoding the icons and drawing them into the atlas took
+	 */
+	public long getLoadNanos() {
+		return loadNanos ;
+	}
+
+	@Override
+	public String toString() {
+		return paths.length + " icons in a " + atlas.getWidth() + "x" + atlas.getHeight() + " atlas in " + (loadNanos / 1000000L) + " ms" ;
+	}
+}
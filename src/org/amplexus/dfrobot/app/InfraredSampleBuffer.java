@@ -0,0 +1,146 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * The most recent infrared samples from each of the robot's sensors (0, 1 and 2), in fixed capacity ring buffers.
+ *
+ * Each sensor has a primitive int ring of distances and a matching long ring of arrival times, allocated once.
+ * Recording a sample overwrites the oldest one, so memory stays flat however long the robot streams - at the
+ * fastest interval (100 millis x 3 sensors) the default capacity holds the last minute.
+ *
+ * Samples are recorded on the receive pipeline's dispatch thread, and read on the EventDispatch thread by the
+ * InfraredView. Every method is synchronized; copy() lets readers take a snapshot into their own arrays without
+ * allocating.
+ *
+ * @author craig
+ */
+public class InfraredSampleBuffer implements ReceivePipeline.TelemetryListener {
+
+	public static final int SENSORS				= 3 ;
+	public static final int DEFAULT_CAPACITY	= 600 ;		// Samples kept per sensor
+
+	private final int[][] distances ;			// Per sensor ring of distances (0-255)
+	private final long[][] receivedNanos ;		// Per sensor ring of arrival times
+	private final int[] next ;					// Per sensor index of the slot the next sample goes in
+	private final long[] total ;				// Per sensor count of samples ever recorded
+	private long ignored = 0 ;					// Samples from a sensor we don't know about
+	private volatile long version = 0 ;			// Bumped on every change, so readers can tell if anything is new
+
+	/**
+	 * Constructor, using the default capacity.
+	 */
+	public InfraredSampleBuffer() {
+		this(DEFAULT_CAPACITY) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity the number of samples kept per sensor
+	 */
+	public InfraredSampleBuffer(int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1: " + capacity) ;
+		this.distances = new int[SENSORS][capacity] ;
+		this.receivedNanos = new long[SENSORS][capacity] ;
+		this.next = new int[SENSORS] ;
+		this.total = new long[SENSORS] ;
+	}
+
+	/**
+	 * Called on the receive pipeline's dispatch thread for every sample.
+	 */
+	public void infraredSample(int source, int sensor, int distance, long nanos) {
+		record(sensor, distance, nanos) ;
+	}
+
+	/**
+	 * Record a sample, overwriting the oldest if the sensor's ring is full.
+	 *
+	 * @return false if the sensor is out of range and the sample was ignored
+	 */
+	public synchronized boolean record(int sensor, int distance, long nanos) {
+		if(sensor < 0 || sensor >= SENSORS) {
+			ignored++ ;
+			return false ;
+		}
+		int slot = next[sensor] ;
+		distances[sensor][slot] = distance ;
+		receivedNanos[sensor][slot] = nanos ;
+		next[sensor] = slot + 1 == distances[sensor].length ? 0 : slot + 1 ;
+		total[sensor]++ ;
+		version++ ;
+		return true ;
+	}
+
+	/**
+	 * Copy a sensor's most recent samples, oldest first.
+	 *
+	 * @param sensor the sensor (0, 1 or 2)
+	 * @param into receives the distances - at most into.length of the newest are copied
+	 * @return the number of samples copied
+	 */
+	public synchronized int copy(int sensor, int[] into) {
+		int capacity = distances[sensor].length ;
+		int count = (int) Math.min(Math.min(total[sensor], capacity), into.length) ;
+		int start = next[sensor] - count ;
+		if(start < 0)
+			start += capacity ;
+		int firstPart = Math.min(count, capacity - start) ;
+		System.arraycopy(distances[sensor], start, into, 0, firstPart) ;
+		System.arraycopy(distances[sensor], 0, into, firstPart, count - firstPart) ;
+		return count ;
+	}
+
+	/**
+	 * @return the sensor's latest distance, or -1 if it hasn't sent one yet
+	 */
+	public synchronized int getLatest(int sensor) {
+		if(total[sensor] == 0)
+			return -1 ;
+		int capacity = distances[sensor].length ;
+		return distances[sensor][(next[sensor] + capacity - 1) % capacity] ;
+	}
+
+	/**
+	 * @return when the sensor's latest sample arrived (System.nanoTime()), or 0 if it hasn't sent one yet
+	 */
+	public synchronized long getLatestNanos(int sensor) {
+		if(total[sensor] == 0)
+			return 0 ;
+		int capacity = receivedNanos[sensor].length ;
+		return receivedNanos[sensor][(next[sensor] + capacity - 1) % capacity] ;
+	}
+
+	/**
+	 * @return the number of samples ever recorded for the sensor, including those since overwritten
+	 */
+	public synchronized long getTotal(int sensor) {
+		return total[sensor] ;
+	}
+
+	public synchronized long getIgnoredCount() {
+		return ignored ;
+	}
+
+	public int getCapacity() {
+		return distances[0].length ;
+	}
+
+	/**
+	 * @return a number that changes whenever a sample is recorded or the buffer is cleared
+	 */
+	public long getVersion() {
+		return version ;
+	}
+
+	/**
+	 * Forget every sample.
+	 */
+	public synchronized void clear() {
+		for(int sensor = 0; sensor < SENSORS; sensor++) {
+			next[sensor] = 0 ;
+			total[sensor] = 0 ;
+		}
+		version++ ;
+	}
+}
@@ -0,0 +1,128 @@
+package org.amplexus.dfrobot.app;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * A live trace of each infrared sensor's recent distances.
+ *
+ * Samples arrive far more often than anyone can watch them, so the view never repaints per sample. Instead a
+ * Swing Timer checks the buffer at most maxFps times a second, and only repaints if something new has arrived.
+ * Painting copies each sensor's ring into arrays allocated once, and draws them with drawPolyline(), so a
+ * running view allocates nothing per frame.
+ *
+ * Must be used on the EventDispatch thread.
+ *
+ * @author craig
+ */
+public class InfraredView extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_MAX_FPS		= 10 ;
+	public static final int DEFAULT_WIDTH		= 300 ;
+	public static final int DEFAULT_HEIGHT		= 80 ;
+	public static final int MAX_DISTANCE		= 255 ;
+
+	private static final Color[] SENSOR_COLOURS = { Color.RED, Color.GREEN.darker(), Color.BLUE } ;
+
+	private final InfraredSampleBuffer samples ;	// What we draw
+	private final Timer refreshTimer ;				// Repaints at most maxFps times a second
+	private final int[] distances ;				// Scratch: one sensor's samples, oldest first
+	private final int[] xs ;					// Scratch: polyline x coordinates
+	private final int[] ys ;					// Scratch: polyline y coordinates
+	private long paintedVersion = -1 ;			// The buffer version last repainted
+	private long repaints = 0 ;					// Repaints requested
+
+	/**
+	 * Constructor, using the default frame rate.
+	 */
+	public InfraredView(InfraredSampleBuffer samples) {
+		this(samples, DEFAULT_MAX_FPS) ;
+	}
+
+	/**
+	 * Constructor. The view is static until start() is called.
+	 *
+	 * @param samples the samples to draw
+	 * @param maxFps the most times a second the view repaints
+	 */
+	public InfraredView(InfraredSampleBuffer samples, int maxFps) {
+		this.samples = samples ;
+		this.distances = new int[samples.getCapacity()] ;
+		this.xs = new int[samples.getCapacity()] ;
+		this.ys = new int[samples.getCapacity()] ;
+		this.refreshTimer = new Timer(1000 / Math.max(1, maxFps), new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				refresh() ;
+			}
+		});
+		setPreferredSize(new Dimension(DEFAULT_WIDTH, DEFAULT_HEIGHT)) ;
+	}
+
+	/**
+	 * Start refreshing.
+	 */
+	public void start() {
+		refreshTimer.start() ;
+	}
+
+	/**
+	 * Stop refreshing. The view keeps showing what it last drew.
+	 */
+	public void stop() {
+		refreshTimer.stop() ;
+		refresh() ;
+	}
+
+	/**
+	 * @return how many times the view has asked to be repainted
+	 */
+	public long getRepaintCount() {
+		return repaints ;
+	}
+
+	/**
+	 * Repaint if anything has changed since the last repaint.
+	 */
+	private void refresh() {
+		long version = samples.getVersion() ;
+		if(version == paintedVersion)
+			return ;
+		paintedVersion = version ;
+		repaints++ ;
+		repaint() ;
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		int width = getWidth() ;
+		int height = getHeight() ;
+		g.setColor(getBackground() == null ? Color.WHITE : getBackground()) ;
+		g.fillRect(0, 0, width, height) ;
+
+		/*
+		 * Newest sample at the right hand edge, one pixel per sample, nearest (largest reading) at the top
+		 */
+		for(int sensor = 0; sensor < InfraredSampleBuffer.SENSORS; sensor++) {
+			int count = samples.copy(sensor, distances) ;
+			int shown = Math.min(count, width) ;
+			int first = count - shown ;
+			for(int i = 0; i < shown; i++) {
+				xs[i] = width - shown + i ;
+				ys[i] = height - 1 - distances[first + i] * (height - 1) / MAX_DISTANCE ;
+			}
+			g.setColor(SENSOR_COLOURS[sensor]) ;
+			if(shown > 1)
+				g.drawPolyline(xs, ys, shown) ;
+			int latest = samples.getLatest(sensor) ;
+			g.drawString("IR" + sensor + " " + (latest < 0 ? "-" : Integer.toString(latest)), 4 + sensor * 60, 12) ;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * A fixed memory histogram of latencies, for reporting percentiles.
+ *
+ * Values are recorded in microseconds into log-linear buckets: exact below 64 us, then 32 buckets per power of
+ * two, so any reported value is within about 3% of the true value. Values above MAX_MICROS (about 67 seconds)
+ * are clamped. The whole histogram is one long[] of 736 entries however many values are recorded, so it can be
+ * left running for a whole session.
+ *
+ * Thread safe - values are recorded on the XBee threads and read on the EventDispatch thread.
+ *
+ * @author craig
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS	= 5 ;
+	private static final int SUB_BUCKETS		= 1 << SUB_BUCKET_BITS ;		// 32 buckets per power of two
+	private static final int MAX_BIT			= 26 ;
+	public static final long MAX_MICROS			= (1L << (MAX_BIT + 1)) - 1 ;
+
+	private final long[] counts = new long[bucketIndex(MAX_MICROS) + 1] ;
+	private long count = 0 ;						// How many values have been recorded
+	private long maxMicros = 0 ;					// The largest value recorded
+	private long totalMicros = 0 ;					// Sum of all values, for the mean
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void recordNanos(long nanos) {
+		recordMicros(nanos / 1000L) ;
+	}
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param micros the latency in microseconds
+	 */
+	public synchronized void recordMicros(long micros) {
+		if(micros < 0)
+			micros = 0 ;
+		if(micros > MAX_MICROS)
+			micros = MAX_MICROS ;
+		counts[bucketIndex(micros)]++ ;
+		count++ ;
+		totalMicros += micros ;
+		if(micros > maxMicros)
+			maxMicros = micros ;
+	}
+
+	/**
+	 * @param percentile 0-100
+	 * @return the latency in microseconds that the specified percentage of values are at or below, or 0 if empty
+	 */
+	public synchronized long getPercentileMicros(double percentile) {
+		if(count == 0)
+			return 0 ;
+		long target = (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0) ;
+		if(target < 1)
+			target = 1 ;
+		long seen = 0 ;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i] ;
+			if(seen >= target)
+				return Math.min(bucketUpperBound(i), maxMicros) ;
+		}
+		return maxMicros ;
+	}
+
+	public synchronized long getMaxMicros() {
+		return maxMicros ;
+	}
+
+	public synchronized long getMeanMicros() {
+		return count == 0 ? 0 : totalMicros / count ;
+	}
+
+	public synchronized long getCount() {
+		return count ;
+	}
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	public synchronized void reset() {
+		java.util.Arrays.fill(counts, 0) ;
+		count = 0 ;
+		maxMicros = 0 ;
+		totalMicros = 0 ;
+	}
+
+	/**
+	 * @return a one line summary: count, p50, p90, p99 and max in milliseconds
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format("n=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f ms", count,
+				getPercentileMicros(50) / 1000.0, getPercentileMicros(90) / 1000.0,
+				getPercentileMicros(99) / 1000.0, maxMicros / 1000.0) ;
+	}
+
+	private static int bucketIndex(long micros) {
+		if(micros < 2 * SUB_BUCKETS)
+			return (int) micros ;
+		int msb = 63 - Long.numberOfLeadingZeros(micros) ;
+		int shift = msb - SUB_BUCKET_BITS ;
+		return shift * SUB_BUCKETS + (int) (micros >> shift) ;
+	}
+
+	private static long bucketUpperBound(int index) {
+		if(index < 2 * SUB_BUCKETS)
+			return index ;
+		int shift = index / SUB_BUCKETS - 1 ;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS ;
+		return ((sub + 1) << shift) - 1 ;
+	}
+}
@@ -0,0 +1,163 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Measures the round trip latency to the robot by sending it a CMD_PING on a schedule and timing its reply.
+ *
+ * Each ping carries a sequence number (0-255) which the robot echoes back in an RX 16 packet, so we can match
+ * replies to pings even if some are lost. The round trip is measured from when the ping is queued with the
+ * dispatcher, so it includes any queueing behind other commands - ie it is the latency a command actually sees.
+ *
+ * Replies are timed by the receive pipeline as they come off the serial port, so a busy dispatch thread
+ * doesn't inflate the round trip.
+ *
+ * Results go into a fixed memory LatencyHistogram. Pings that have not been answered by the time their sequence
+ * number comes round again are counted as lost.
+ *
+ * @author craig
+ */
+public class LatencyProbe implements ReceivePipeline.PingListener {
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 500 ;
+
+	private final CommandDispatcher dispatcher ;	// Sends the pings
+	private final LatencyHistogram histogram = new LatencyHistogram() ;	// Round trip times
+	private final long[] sentNanos = new long[256] ;	// When each outstanding sequence number was sent, 0 if answered
+	private final ScheduledExecutorService scheduler ;	// Sends the pings on a schedule
+	private ScheduledFuture<?> schedule = null ;	// The running schedule, null when stopped
+	private int sequence = 0 ;						// The next sequence number
+	private long sent = 0 ;							// Pings sent
+	private long received = 0 ;						// Ping replies received
+	private long lost = 0 ;							// Pings never answered
+	private volatile long lastRoundTripNanos = -1 ;	// The most recent round trip
+    private final static Logger log = Logger.getLogger(LatencyProbe.class);
+
+	/**
+	 * Constructor. The probe is idle until start() is called.
+	 *
+	 * @param dispatcher sends the pings
+	 * @param pipeline delivers the robot's replies
+	 */
+	public LatencyProbe(CommandDispatcher dispatcher, ReceivePipeline pipeline) {
+		this.dispatcher = dispatcher ;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "latency-probe") ;
+				t.setDaemon(true) ;
+				return t ;
+			}
+		});
+		pipeline.addPingListener(this) ;
+	}
+
+	/**
+	 * Start pinging.
+	 *
+	 * @param intervalMillis time between pings
+	 */
+	public synchronized void start(long intervalMillis) {
+		if(schedule != null)
+			return ;
+		log.info("Starting latency probe every " + intervalMillis + " ms") ;
+		schedule = scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				ping() ;
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS) ;
+	}
+
+	/**
+	 * Stop pinging. The results so far are kept.
+	 */
+	public synchronized void stop() {
+		if(schedule != null) {
+			schedule.cancel(false) ;
+			schedule = null ;
+			log.info("Stopped latency probe: " + getSummary()) ;
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return schedule != null ;
+	}
+
+	public LatencyHistogram getHistogram() {
+		return histogram ;
+	}
+
+	/**
+	 * @return the most recent round trip in nanoseconds, or -1 if none yet
+	 */
+	public long getLastRoundTripNanos() {
+		return lastRoundTripNanos ;
+	}
+
+	public synchronized long getSentCount() {
+		return sent ;
+	}
+
+	public synchronized long getReceivedCount() {
+		return received ;
+	}
+
+	public synchronized long getLostCount() {
+		return lost ;
+	}
+
+	/**
+	 * @return a one line summary suitable for the GUI's status area
+	 */
+	public String getSummary() {
+		long last = lastRoundTripNanos ;
+		return "Ping " + histogram + " last=" + (last < 0 ? "-" : String.format("%.1f", last / 1e6))
+				+ " lost=" + getLostCount() ;
+	}
+
+	/**
+	 * Send the next ping.
+	 */
+	private void ping() {
+		int seq ;
+		synchronized(this) {
+			seq = sequence ;
+			sequence = (sequence + 1) & 0xff ;
+			if(sentNanos[seq] != 0)
+				lost++ ;
+			sentNanos[seq] = System.nanoTime() ;
+			sent++ ;
+		}
+		if(!dispatcher.submit(XBeeCommunicatorTask.CMD_PING, seq)) {
+			synchronized(this) {
+				sentNanos[seq] = 0 ;
+				sent-- ;
+			}
+		}
+	}
+
+	/**
+	 * A ping reply has arrived - called on the receive pipeline's dispatch thread.
+	 *
+	 * @param source the robot that replied
+	 * @param seq the sequence number it carried
+	 * @param nowNanos when it arrived
+	 */
+	public void pingReply(int source, int seq, long nowNanos) {
+		long roundTrip ;
+		synchronized(this) {
+			if(sentNanos[seq] == 0)
+				return ;		// Duplicate, or a reply to a ping we have already given up on
+			roundTrip = nowNanos - sentNanos[seq] ;
+			sentNanos[seq] = 0 ;
+			received++ ;
+		}
+		lastRoundTripNanos = roundTrip ;
+		histogram.recordNanos(roundTrip) ;
+	}
+}
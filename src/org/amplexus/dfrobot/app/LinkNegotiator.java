@@ -0,0 +1,407 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.AtCommandResponse;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeResponse;
+
+/**
+ * Finds the port and baud rate the XBee explorer answers on, so a wrong guess doesn't leave every command
+ * failing after a timeout.
+ *
+ * Each candidate is probed by opening the port at that rate and sending the AT command AP. Only an explorer in
+ * API mode at the same baud rate sends back a well formed AT response - at any other rate it sees noise, and
+ * says nothing.
+ *
+ * The last good port / baud rate pair is kept in the user's preferences and probed first, through the
+ * XBeeLinkManager's shared connection, so the next startup normally connects first time and the link is left
+ * open for the first command. Failing that, the ports are searched at once, each on its own thread and
+ * connection (see XBeeLinkManager.probe()), trying the rates in order of likelihood: the XBee's factory default
+ * 9600 first, then the rates people commonly reconfigure it to. The first port to answer wins, and the others
+ * stop after their current probe - so a dead port, however long it takes to open or fail, only holds up its own
+ * thread. A port that can't be opened at all is skipped without trying its other rates.
+ *
+ * Probing replaces whatever the link manager has open, so nothing else should send while negotiate() runs.
+ *
+ * @author craig
+ */
+public class LinkNegotiator {
+
+	public static final int[] LIKELY_BAUD_RATES		= { 9600, 57600, 115200, 19200, 38400, 4800, 2400, 76800, 153600 } ;
+	public static final int PROBE_TIMEOUT_MILLIS	= 200 ;		// An explorer answers an AT command in a few millis
+	public static final int MAX_PARALLEL_PROBES		= 8 ;		// The most ports probed at once
+	public static final long SEARCH_TIMEOUT_MILLIS	= 20000 ;	// Give up on ports that are still opening after this
+	public static final String PROBE_COMMAND		= "AP" ;	// API mode - answered only if the explorer speaks API at this rate
+	public static final int API_MODE_ESCAPED		= 2 ;		// The AP value XBeeFrameEncoder needs
+	public static final String PORT_KEY				= "lastGoodPort" ;
+	public static final String BAUD_RATE_KEY		= "lastGoodBaudRate" ;
+
+	/*
+	 * What a probe found
+	 */
+	private static final int ANSWERED	= 0 ;		// The explorer answered at this rate
+	private static final int SILENT		= 1 ;		// The port opened, but nothing answered
+	private static final int NO_PORT	= 2 ;		// The port couldn't be opened
+
+	/**
+	 * A port and baud rate the explorer answered on, and what it took to find them.
+	 */
+	public static class Result {
+		private final String commPort ;
+		private final int baudRate ;
+		private final int probes ;			// How many port / baud rate pairs we tried
+		private final long nanos ;			// How long negotiation took
+		private final boolean cached ;		// True if it was the cached pair
+
+		Result(String commPort, int baudRate, int probes, long nanos, boolean cached) {
+			this.commPort = commPort ;
+			this.baudRate = baudRate ;
+			this.probes = probes ;
+			this.nanos = nanos ;
+			this.cached = cached ;
+		}
+
+		public String getCommPort() {
+			return commPort ;
+		}
+
+		public int getBaudRate() {
+			return baudRate ;
+		}
+
+		public int getProbeCount() {
+			return probes ;
+		}
+
+		public long getNanos() {
+			return nanos ;
+		}
+
+		/**
+		 * @return true if the explorer answered on the pair cached from last time
+		 */
+		public boolean isCached() {
+			return cached ;
+		}
+
+		@Override
+		public String toString() {
+			return commPort + " at " + baudRate + " baud after " + probes + (probes == 1 ? " probe" : " probes") + " in "
+					+ (nanos / 1000000L) + " ms" + (cached ? " (cached)" : "") ;
+		}
+	}
+
+	private final XBeeLinkManager link ;				// Opens the port for each probe, and keeps the good one open
+	private final Preferences preferences ;				// Where the last good pair is cached, null not to cache
+	private volatile int parallelism = MAX_PARALLEL_PROBES ;	// How many ports we probe at once
+    private final static Logger log = Logger.getLogger(LinkNegotiator.class);
+
+	/**
+	 * Constructor, caching the last good pair in the user's preferences for this package.
+	 */
+	public LinkNegotiator(XBeeLinkManager link) {
+		this(link, Preferences.userNodeForPackage(LinkNegotiator.class)) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param link the link to probe through
+	 * @param preferences where to cache the last good pair, or null not to cache it
+	 */
+	public LinkNegotiator(XBeeLinkManager link, Preferences preferences) {
+		this.link = link ;
+		this.preferences = preferences ;
+	}
+
+	/**
+	 * @param parallelism how many ports to probe at once - 1 probes them one after the other
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism) ;
+	}
+
+	/**
+	 * Find the port and baud rate the explorer answers on: the cached pair first, if its port is a candidate, then
+	 * every port at once, each at each rate in turn. The link is left open on the pair found.
+	 *
+	 * @param commPorts the candidate ports, most likely first
+	 * @param baudRates the candidate rates, most likely first - eg LIKELY_BAUD_RATES
+	 * @return what was found, or null if the explorer didn't answer on any of them
+	 */
+	public Result negotiate(String[] commPorts, int[] baudRates) {
+		long start = System.nanoTime() ;
+		int probes = 0 ;
+		String cachedPort = getCachedPort() ;
+		int cachedBaudRate = getCachedBaudRate() ;
+		if(cachedPort != null && contains(commPorts, cachedPort)) {
+			probes++ ;
+			if(probeShared(cachedPort, cachedBaudRate) == ANSWERED)
+				return found(cachedPort, cachedBaudRate, probes, start, true) ;
+		}
+
+		Search search = search(commPorts, baudRates, cachedPort, cachedBaudRate) ;
+		probes += search.getProbes() ;
+		String commPort = search.getCommPort() ;
+		int baudRate = search.getBaudRate() ;
+		if(commPort != null) {
+			try {
+				link.acquire(commPort, baudRate) ;
+			} catch (XBeeException e) {
+				log.warn("Can't re-open " + commPort + " after it answered: " + e.getMessage()) ;
+			}
+			return found(commPort, baudRate, probes, start, false) ;
+		}
+		log.warn("The explorer didn't answer on any port after " + probes + " probes in "
+				+ ((System.nanoTime() - start) / 1000000L) + " ms") ;
+		return null ;
+	}
+
+	/**
+	 * @return the port of the last good pair, or null if none is cached
+	 */
+	public String getCachedPort() {
+		return preferences == null ? null : preferences.get(PORT_KEY, null) ;
+	}
+
+	/**
+	 * @return the baud rate of the last good pair, or 0 if none is cached
+	 */
+	public int getCachedBaudRate() {
+		return preferences == null ? 0 : preferences.getInt(BAUD_RATE_KEY, 0) ;
+	}
+
+	/**
+	 * Cache a pair the explorer is known to answer on, eg one the user picked that worked.
+	 */
+	public void remember(String commPort, int baudRate) {
+		if(preferences == null || (commPort.equals(getCachedPort()) && baudRate == getCachedBaudRate()))
+			return ;
+		preferences.put(PORT_KEY, commPort) ;
+		preferences.putInt(BAUD_RATE_KEY, baudRate) ;
+		flush() ;
+	}
+
+	/**
+	 * Forget the cached pair, so the next negotiation starts from scratch.
+	 */
+	public void forget() {
+		if(preferences == null)
+			return ;
+		preferences.remove(PORT_KEY) ;
+		preferences.remove(BAUD_RATE_KEY) ;
+		flush() ;
+	}
+
+	/**
+	 * Probe every port at once, each on its own thread, trying each rate in turn.
+	 *
+	 * @param skipPort the port of the pair already probed, or null
+	 * @param skipBaudRate the rate of the pair already probed
+	 * @return how the search went - over, with commPort null if nothing answered
+	 */
+	private Search search(final String[] commPorts, final int[] baudRates, final String skipPort, final int skipBaudRate) {
+		final Search search = new Search(commPorts.length) ;
+		if(commPorts.length == 0)
+			return search ;
+		ExecutorService probers = Executors.newFixedThreadPool(Math.min(parallelism, commPorts.length), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "link-prober") ;
+				t.setDaemon(true) ;			// A port that never finishes opening mustn't keep us alive
+				return t ;
+			}
+		});
+		for(int i = 0; i < commPorts.length; i++) {
+			final String commPort = commPorts[i] ;
+			probers.execute(new Runnable() {
+				public void run() {
+					try {
+						for(int j = 0; j < baudRates.length && !search.isOver(); j++) {
+							if(commPort.equals(skipPort) && baudRates[j] == skipBaudRate)
+								continue ;				// Already tried
+							search.probed() ;
+							int probed = probeAlone(commPort, baudRates[j]) ;
+							if(probed == ANSWERED) {
+								search.found(commPort, baudRates[j]) ;
+								return ;
+							}
+							if(probed == NO_PORT)
+								return ;
+						}
+					} finally {
+						search.portDone() ;
+					}
+				}
+			});
+		}
+		probers.shutdown() ;				// The threads finish their current probe and go
+		search.await(SEARCH_TIMEOUT_MILLIS) ;
+		return search ;
+	}
+
+	/**
+	 * Probe one port at one baud rate through the shared connection, leaving it open if the explorer answers.
+	 * The probe goes through XBeeLinkManager.probe(), so it can't interleave with the transmit engine's frames.
+	 *
+	 * @return ANSWERED, SILENT or NO_PORT
+	 */
+	private int probeShared(String commPort, int baudRate) {
+		XBee xbee ;
+		try {
+			xbee = link.acquire(commPort, baudRate) ;
+		} catch (XBeeException e) {
+			log.debug("Can't open " + commPort + ": " + e.getMessage()) ;
+			return NO_PORT ;
+		}
+		int probed = SILENT ;
+		try {
+			probed = answered(link.probe(commPort, baudRate, PROBE_COMMAND, PROBE_TIMEOUT_MILLIS), commPort, baudRate) ;
+		} catch (XBeeException e) {
+			log.debug("Error probing " + commPort + " at " + baudRate + " baud: " + e.getMessage()) ;
+		}
+		if(probed != ANSWERED)
+			link.invalidate(xbee) ;
+		return probed ;
+	}
+
+	/**
+	 * Probe one port at one baud rate on a connection of its own.
+	 *
+	 * @return ANSWERED, SILENT or NO_PORT
+	 */
+	private int probeAlone(String commPort, int baudRate) {
+		try {
+			return answered(link.probe(commPort, baudRate, PROBE_COMMAND, PROBE_TIMEOUT_MILLIS), commPort, baudRate) ;
+		} catch (XBeeException e) {
+			log.debug("Can't probe " + commPort + ": " + e.getMessage()) ;
+			return NO_PORT ;
+		}
+	}
+
+	/**
+	 * @param response the answer to PROBE_COMMAND, or null if there was none
+	 * @return ANSWERED if it came from an explorer in API mode, otherwise SILENT
+	 */
+	private static int answered(XBeeResponse response, String commPort, int baudRate) {
+		if(response instanceof AtCommandResponse && ((AtCommandResponse) response).isOk()) {
+			int[] value = ((AtCommandResponse) response).getValue() ;
+			if(value != null && value.length > 0 && value[0] != API_MODE_ESCAPED)
+				log.warn("The explorer on " + commPort + " is in API mode " + value[0] + ", not " + API_MODE_ESCAPED
+						+ " - set AP=" + API_MODE_ESCAPED) ;
+			return ANSWERED ;
+		}
+		if(response == null)
+			log.debug("No answer on " + commPort + " at " + baudRate + " baud") ;
+		else
+			log.debug("Unexpected answer on " + commPort + " at " + baudRate + " baud: " + response) ;
+		return SILENT ;
+	}
+
+	private Result found(String commPort, int baudRate, int probes, long start, boolean cached) {
+		Result result = new Result(commPort, baudRate, probes, System.nanoTime() - start, cached) ;
+		log.info("Found the explorer on " + result) ;
+		remember(commPort, baudRate) ;
+		return result ;
+	}
+
+	private void flush() {
+		try {
+			preferences.flush() ;
+		} catch (BackingStoreException e) {
+			log.warn("Can't save the last good port and baud rate: " + e.getMessage()) ;
+		}
+	}
+
+	/**
+	 * The state of a search, shared by the prober threads.
+	 */
+	private static class Search {
+		private int portsLeft ;				// Ports still being probed
+		private boolean over = false ;		// True once a port has answered, every port has been tried, or we gave up
+		private String commPort = null ;	// The port that answered first, null if none has
+		private int baudRate = 0 ;			// The rate it answered at
+		private int probes = 0 ;			// Probes started
+
+		Search(int ports) {
+			this.portsLeft = ports ;
+		}
+
+		synchronized void probed() {
+			probes++ ;
+		}
+
+		synchronized boolean isOver() {
+			return over ;
+		}
+
+		/**
+		 * A port answered - ignored once the search is over, so the winner can't change after await() returns.
+		 */
+		synchronized void found(String commPort, int baudRate) {
+			if(over)
+				return ;
+			this.commPort = commPort ;
+			this.baudRate = baudRate ;
+			over = true ;
+			notifyAll() ;
+		}
+
+		synchronized int getProbes() {
+			return probes ;
+		}
+
+		/**
+		 * @return the port that answered, null if none did - fixed once the search is over
+		 */
+		synchronized String getCommPort() {
+			return commPort ;
+		}
+
+		/**
+		 * @return the rate the port answered at - fixed once the search is over
+		 */
+		synchronized int getBaudRate() {
+			return baudRate ;
+		}
+
+		synchronized void portDone() {
+			if(--portsLeft <= 0) {
+				over = true ;
+				notifyAll() ;
+			}
+		}
+
+		/**
+		 * Wait for the search to be over - then it is over, for any prober still running.
+		 */
+		synchronized void await(long timeoutMillis) {
+			long deadline = System.currentTimeMillis() + timeoutMillis ;
+			long wait ;
+			while(!over && (wait = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(wait) ;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt() ;
+					break ;
+				}
+			}
+			over = true ;
+		}
+	}
+
+	private static boolean contains(String[] values, String value) {
+		for(int i = 0; i < values.length; i++) {
+			if(values[i].equals(value))
+				return true ;
+		}
+		return false ;
+	}
+}
@@ -0,0 +1,355 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Every metric worth watching on the command and radio path, by name, so a live session can be watched from
+ * JConsole and runs can be compared afterwards.
+ *
+ * The counters and histograms stay where they are kept today - in the dispatcher, the transmit engine, the link
+ * manager and the receive pipeline - and each registers them here with registerMetrics(). A metric is a Gauge,
+ * read only when someone looks: registering costs the command path nothing. A LatencyHistogram is registered as
+ * four gauges - its count, 50th and 99th percentiles and maximum.
+ *
+ * Names are group.metric, eg dispatcher.sent. publish() registers one read only MBean per group with a JMX
+ * server, named org.amplexus.dfrobot:type=Metrics,name=group, each metric an attribute of type long.
+ *
+ * startSnapshots() appends a snapshot of every metric to a tab separated file on a schedule - a header row, then
+ * one row per snapshot, the first column the millis since the snapshots started - so two runs can be compared
+ * with diff or a spreadsheet. Samplers added with addSampler() run just before each snapshot, for metrics that
+ * have to be measured, eg how long the EventDispatch thread takes to run something posted to it.
+ *
+ * Thread safe.
+ *
+ * @author craig
+ */
+public class MetricsRegistry {
+
+	public static final String DOMAIN				= "org.amplexus.dfrobot" ;
+	public static final String SNAPSHOT_PROPERTY	= "dfrobot.metrics.millis" ;	// eg -Ddfrobot.metrics.millis=0 for no snapshots
+	public static final long DEFAULT_SNAPSHOT_MILLIS	= 10000 ;
+
+	/**
+	 * A metric, read when a snapshot is taken or JMX asks for it. Must be quick and must not block.
+	 */
+	public interface Gauge {
+		long getValue() ;
+	}
+
+	private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>() ;	// Every metric, in the order registered
+	private final CopyOnWriteArrayList<Runnable> samplers = new CopyOnWriteArrayList<Runnable>() ;	// Run before each snapshot
+	private final List<ObjectName> published = new ArrayList<ObjectName>() ;	// Our MBeans, for unpublish()
+	private MBeanServer server = null ;				// Where they are published, null if they aren't
+	private ScheduledExecutorService snapshotter = null ;	// Takes the snapshots, null if not running
+	private Writer snapshotWriter = null ;			// Where the snapshots go
+	private List<String> snapshotNames = null ;		// The columns, fixed when the snapshots start
+	private long snapshotStartNanos = 0 ;			// When the snapshots started
+    private final static Logger log = Logger.getLogger(MetricsRegistry.class);
+
+	/**
+	 * Register a metric, replacing any of the same name.
+	 *
+	 * @param name group.metric
+	 */
+	public synchronized void register(String name, Gauge gauge) {
+		if(name.indexOf('.') <= 0)
+			throw new IllegalArgumentException("Metric names are group.metric: " + name) ;
+		gauges.put(name, gauge) ;
+	}
+
+	/**
+	 * Register a histogram's count (name + "Count"), 50th and 99th percentiles (name + "P50Micros", "P99Micros")
+	 * and maximum (name + "MaxMicros").
+	 *
+	 * @param name group.metric
+	 */
+	public void register(String name, final LatencyHistogram histogram) {
+		register(name + "Count", new Gauge() {
+			public long getValue() {
+				return histogram.getCount() ;
+			}
+		});
+		register(name + "P50Micros", new Gauge() {
+			public long getValue() {
+				return histogram.getPercentileMicros(50) ;
+			}
+		});
+		register(name + "P99Micros", new Gauge() {
+			public long getValue() {
+				return histogram.getPercentileMicros(99) ;
+			}
+		});
+		register(name + "MaxMicros", new Gauge() {
+			public long getValue() {
+				return histogram.getMaxMicros() ;
+			}
+		});
+	}
+
+	/**
+	 * @param sampler run on the snapshot thread just before each snapshot is taken
+	 */
+	public void addSampler(Runnable sampler) {
+		samplers.add(sampler) ;
+	}
+
+	/**
+	 * @return the metric's value, or null if there is no such metric
+	 */
+	public Long getValue(String name) {
+		Gauge gauge ;
+		synchronized(this) {
+			gauge = gauges.get(name) ;
+		}
+		return gauge == null ? null : Long.valueOf(gauge.getValue()) ;
+	}
+
+	/**
+	 * @return every metric's current value, in the order registered
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Gauge> copy ;
+		synchronized(this) {
+			copy = new LinkedHashMap<String, Gauge>(gauges) ;
+		}
+		Map<String, Long> values = new LinkedHashMap<String, Long>() ;
+		for(Map.Entry<String, Gauge> entry : copy.entrySet())
+			values.put(entry.getKey(), Long.valueOf(entry.getValue().getValue())) ;
+		return values ;
+	}
+
+	/**
+	 * Publish every group registered so far as an MBean. Groups registered afterwards need publishing again.
+	 *
+	 * @param server eg ManagementFactory.getPlatformMBeanServer(), which JConsole sees
+	 * @throws JMException if an MBean could not be registered
+	 */
+	public synchronized void publish(MBeanServer server) throws JMException {
+		unpublish() ;
+		this.server = server ;
+		for(String group : groups()) {
+			ObjectName name = new ObjectName(DOMAIN + ":type=Metrics,name=" + group) ;
+			if(server.isRegistered(name))
+				server.unregisterMBean(name) ;		// Left by an earlier registry in this JVM, eg a test harness
+			server.registerMBean(new GroupMBean(group), name) ;
+			published.add(name) ;
+		}
+		log.info("Published metrics " + published) ;
+	}
+
+	/**
+	 * Remove our MBeans, if published.
+	 */
+	public synchronized void unpublish() {
+		for(ObjectName name : published) {
+			try {
+				server.unregisterMBean(name) ;
+			} catch (JMException e) {
+				log.warn("Error unpublishing " + name + ": " + e.getMessage()) ;
+			}
+		}
+		published.clear() ;
+		server = null ;
+	}
+
+	/**
+	 * Start appending a snapshot to a file every periodMillis, stopping any snapshots already running. The columns
+	 * are the metrics registered so far.
+	 *
+	 * @param file the file to append to - its directory is created if need be
+	 * @throws IOException if the file can't be opened
+	 */
+	public void startSnapshots(File file, long periodMillis) throws IOException {
+		stopSnapshots() ;
+		synchronized(this) {
+			startSnapshotter(file, periodMillis) ;
+		}
+	}
+
+	/**
+	 * Open the snapshot file and start the snapshot thread. Caller must hold the lock.
+	 */
+	private void startSnapshotter(File file, long periodMillis) throws IOException {
+		if(file.getParentFile() != null)
+			file.getParentFile().mkdirs() ;
+		snapshotWriter = new FileWriter(file, true) ;
+		snapshotNames = new ArrayList<String>(gauges.keySet()) ;
+		snapshotStartNanos = System.nanoTime() ;
+		StringBuilder header = new StringBuilder("millis") ;
+		for(String name : snapshotNames)
+			header.append('\t').append(name) ;
+		snapshotWriter.write(header.append('\n').toString()) ;
+		snapshotWriter.flush() ;
+
+		snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-snapshot") ;
+				t.setDaemon(true) ;
+				return t ;
+			}
+		});
+		snapshotter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					writeSnapshot() ;
+				} catch (RuntimeException e) {
+					log.error("Error taking a metrics snapshot", e) ;		// Don't let it cancel the next one
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS) ;
+		log.info("Writing a metrics snapshot to " + file + " every " + periodMillis + " ms") ;
+	}
+
+	/**
+	 * Take a last snapshot, and stop taking them - if we are.
+	 */
+	public void stopSnapshots() {
+		ScheduledExecutorService stopping ;
+		synchronized(this) {
+			stopping = snapshotter ;
+			snapshotter = null ;
+		}
+		if(stopping == null)
+			return ;
+		stopping.shutdownNow() ;
+		try {
+			stopping.awaitTermination(1, TimeUnit.SECONDS) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		}
+		writeSnapshot() ;
+		synchronized(this) {
+			try {
+				snapshotWriter.close() ;
+			} catch (IOException e) {
+				log.warn("Error closing the metrics snapshots: " + e.getMessage()) ;
+			}
+			snapshotWriter = null ;
+		}
+	}
+
+	/**
+	 * @return a name for a session's snapshot file, eg session-20121104-153012.tsv
+	 */
+	public static String sessionFileName() {
+		return "session-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".tsv" ;
+	}
+
+	/**
+	 * Run the samplers, then append a row to the snapshot file.
+	 */
+	private void writeSnapshot() {
+		for(Runnable sampler : samplers)
+			sampler.run() ;
+		synchronized(this) {
+			if(snapshotWriter == null)
+				return ;
+			StringBuilder row = new StringBuilder() ;
+			row.append((System.nanoTime() - snapshotStartNanos) / 1000000L) ;
+			for(String name : snapshotNames) {
+				Gauge gauge = gauges.get(name) ;
+				row.append('\t') ;
+				if(gauge != null)
+					row.append(gauge.getValue()) ;
+			}
+			try {
+				snapshotWriter.write(row.append('\n').toString()) ;
+				snapshotWriter.flush() ;
+			} catch (IOException e) {
+				log.warn("Error writing a metrics snapshot: " + e.getMessage()) ;
+			}
+		}
+	}
+
+	/**
+	 * @return the groups registered, in the order first registered. Caller must hold the lock.
+	 */
+	private List<String> groups() {
+		List<String> groups = new ArrayList<String>() ;
+		for(String name : gauges.keySet()) {
+			String group = name.substring(0, name.indexOf('.')) ;
+			if(!groups.contains(group))
+				groups.add(group) ;
+		}
+		return groups ;
+	}
+
+	/**
+	 * One group's metrics as a read only MBean, each an attribute named for the part after the group.
+	 */
+	private class GroupMBean implements DynamicMBean {
+		private final String group ;			// The group, eg dispatcher
+
+		GroupMBean(String group) {
+			this.group = group ;
+		}
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = getValue(group + "." + attribute) ;
+			if(value == null)
+				throw new AttributeNotFoundException(group + "." + attribute) ;
+			return value ;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList() ;
+			for(int i = 0; i < attributes.length; i++) {
+				Long value = getValue(group + "." + attributes[i]) ;
+				if(value != null)
+					list.add(new Attribute(attributes[i], value)) ;
+			}
+			return list ;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName()) ;
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList() ;			// Read only, so none were set
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName)) ;
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>() ;
+			synchronized(MetricsRegistry.this) {
+				for(String name : gauges.keySet()) {
+					if(name.startsWith(group + "."))
+						attributes.add(new MBeanAttributeInfo(name.substring(group.length() + 1), "long", name, true, false, false)) ;
+				}
+			}
+			return new MBeanInfo(MetricsRegistry.class.getName(), "Metrics: " + group,
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null) ;
+		}
+	}
+}
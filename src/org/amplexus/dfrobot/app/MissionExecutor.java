@@ -0,0 +1,276 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Drives a fixed route: a mission of timed steps, eg "forward 200 for 1.5 s, right 150 for 0.4 s, stop".
+ *
+ * Every step's send time is fixed before the mission starts, as an offset from its start on the monotonic clock
+ * (System.nanoTime()). Each step waits for its own deadline rather than sleeping for the step before it, so a
+ * late wake up or a slow write delays that step alone - the step boundaries never drift. The wait sleeps until
+ * SPIN_NANOS before the deadline and then yields until it passes, as a sleep may overshoot by a scheduler tick.
+ *
+ * Each step's frame is encoded up front, for every frame id (see XBeeFrameEncoder.preEncodeTx16()), so a step
+ * boundary costs one write to the port - see XBeeTransmitEngine.sendEncoded().
+ *
+ * For each step we report how late it was sent - from its deadline to its write - and its TX status. A failed
+ * step is not retried: a retry would drive the rest of the route off schedule. If the mission is cancelled, the
+ * robot is sent a stop through the engine's reserved slots.
+ *
+ * Mission syntax: steps separated by commas, semicolons or new lines, each a command as HeadlessController reads
+ * them (eg forward 200, vector 100 -100, stop) optionally followed by "for" and a duration in seconds (1.5, 1.5 s)
+ * or milliseconds (400 ms). A step without a duration is sent, and the next one follows at once.
+ *
+ * @author craig
+ */
+public class MissionExecutor {
+
+	public static final long SPIN_NANOS			= 2000000L ;	// Yield rather than sleep this close to a deadline
+	public static final long STATUS_TIMEOUT_MILLIS	= XBeeTransmitEngine.DEFAULT_TIMEOUT_MILLIS + 500 ;	// Wait for the last TX status
+
+	private static final Pattern DURATION = Pattern.compile("([0-9]*\\.?[0-9]+)\\s*(ms|s)?") ;
+
+	/**
+	 * A step of the mission, and how it went.
+	 */
+	public static class Step implements TransmitCallback {
+		private final RobotCommand command ;		// What to send
+		private final long durationNanos ;			// How long until the next step
+		private long offsetNanos ;					// When to send it, from the start of the mission
+		private byte[][] frames ;					// The command encoded for every frame id
+		private long lateNanos = -1 ;				// From its deadline to its write, -1 until sent
+		private int outcome = -1 ;					// RetryPolicy.DELIVERED etc, -1 until its TX status arrives, guarded by this
+
+		public Step(RobotCommand command, long durationNanos) {
+			this.command = command ;
+			this.durationNanos = durationNanos ;
+		}
+
+		public void transmitCompleted(TransmitFuture future) {
+			synchronized(this) {
+				outcome = RetryPolicy.classify(future) ;
+				notifyAll() ;
+			}
+		}
+
+		private synchronized void sendFailed() {
+			outcome = RetryPolicy.LINK_ERROR ;
+			notifyAll() ;
+		}
+
+		public RobotCommand getCommand() {
+			return command ;
+		}
+
+		public long getDurationNanos() {
+			return durationNanos ;
+		}
+
+		/**
+		 * @return when the step is sent, from the start of the mission
+		 */
+		public long getOffsetNanos() {
+			return offsetNanos ;
+		}
+
+		/**
+		 * @return how late the step was sent, or -1 if it wasn't
+		 */
+		public long getLateNanos() {
+			return lateNanos ;
+		}
+
+		/**
+		 * @return the step's TX status, as RetryPolicy.classify(), or -1 if it hasn't arrived
+		 */
+		public synchronized int getOutcome() {
+			return outcome ;
+		}
+
+		@Override
+		public String toString() {
+			return command + (durationNanos > 0 ? " for " + (durationNanos / 1000000L) + " ms" : "") ;
+		}
+	}
+
+	private final XBeeTransmitEngine engine ;		// Sends the steps
+	private final Step[] steps ;					// The mission
+	private final byte[][] stopFrames ;				// A stop, encoded for every frame id, sent if we are cancelled
+	private final LatencyHistogram lateness = new LatencyHistogram() ;	// How late each step was sent
+	private volatile boolean cancelled = false ;	// Set by cancel()
+	private long elapsedNanos = 0 ;					// From the start of the mission to its last write
+    private final static Logger log = Logger.getLogger(MissionExecutor.class);
+
+	/**
+	 * Constructor - encodes every step's frame, ready to run.
+	 *
+	 * @param engine sends the steps
+	 * @param destination the robot
+	 * @param steps the mission, eg from parse()
+	 */
+	public MissionExecutor(XBeeTransmitEngine engine, XBeeFrameEncoder.Destination destination, Step[] steps) {
+		this.engine = engine ;
+		this.steps = steps ;
+		XBeeFrameEncoder encoder = new XBeeFrameEncoder() ;
+		int[] payload = new int[XBeeFrameEncoder.MAX_PAYLOAD] ;
+		long offset = 0 ;
+		for(Step step : steps) {
+			step.offsetNanos = offset ;
+			step.command.writePayload(payload, 0) ;
+			step.frames = encoder.preEncodeTx16(destination, payload, 0, step.command.getPayloadLength()) ;
+			offset += step.durationNanos ;
+		}
+		RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0).writePayload(payload, 0) ;
+		this.stopFrames = encoder.preEncodeTx16(destination, payload, 0, XBeeCommunicatorTask.payloadLength(XBeeCommunicatorTask.CMD_MOTOR_STOP)) ;
+	}
+
+	/**
+	 * Read a mission.
+	 *
+	 * @param mission eg "forward 200 for 1.5 s, right 150 for 0.4 s, stop"
+	 * @return its steps
+	 * @throws IllegalArgumentException if a step can't be understood
+	 */
+	public static Step[] parse(String mission) {
+		List<Step> steps = new ArrayList<Step>() ;
+		for(String text : mission.split("[,;\\n]")) {
+			text = text.trim() ;
+			if(text.length() == 0)
+				continue ;
+			String[] words = text.split("\\s+") ;
+			int end = 0 ;
+			while(end < words.length && !words[end].equalsIgnoreCase("for"))
+				end++ ;
+			String[] commandWords = new String[end] ;
+			System.arraycopy(words, 0, commandWords, 0, end) ;
+			RobotCommand command = end > 0 ? HeadlessController.parse(commandWords) : null ;
+			if(command == null)
+				throw new IllegalArgumentException("Unknown command: " + text) ;
+			long durationNanos = 0 ;
+			if(end < words.length) {
+				StringBuilder duration = new StringBuilder() ;
+				for(int i = end + 1; i < words.length; i++)
+					duration.append(words[i]) ;
+				Matcher matcher = DURATION.matcher(duration) ;
+				if(!matcher.matches())
+					throw new IllegalArgumentException("Bad duration: " + text) ;
+				double value = Double.parseDouble(matcher.group(1)) ;
+				durationNanos = (long) (value * ("ms".equals(matcher.group(2)) ? 1e6 : 1e9)) ;
+			}
+			steps.add(new Step(command, durationNanos)) ;
+		}
+		if(steps.isEmpty())
+			throw new IllegalArgumentException("No steps: " + mission) ;
+		return steps.toArray(new Step[steps.size()]) ;
+	}
+
+	/**
+	 * Run the mission on the calling thread, and wait for the last step's TX status.
+	 *
+	 * @param xbee the open XBee
+	 * @param out its output stream, see XBeeLinkManager.getOutputStream()
+	 * @return true if every step was sent and delivered
+	 * @throws XBeeException if a step couldn't be written - the rest of the mission isn't sent
+	 */
+	public boolean run(XBee xbee, OutputStream out) throws XBeeException, InterruptedException {
+		long start = System.nanoTime() ;
+		for(Step step : steps) {
+			long deadline = start + step.offsetNanos ;
+			if(!waitUntil(deadline))
+				break ;
+			long now = System.nanoTime() ;
+			step.lateNanos = now - deadline ;
+			lateness.recordNanos(step.lateNanos) ;
+			try {
+				engine.sendEncoded(xbee, out, step.frames, step, step) ;
+			} catch (XBeeException e) {
+				step.sendFailed() ;
+				throw e ;
+			}
+			elapsedNanos = now - start ;
+		}
+		if(cancelled) {
+			log.info("Mission cancelled, stopping") ;
+			engine.sendEncodedPriority(xbee, out, stopFrames, null, null) ;
+		}
+
+		boolean delivered = !cancelled ;
+		long statusDeadline = System.nanoTime() + STATUS_TIMEOUT_MILLIS * 1000000L ;
+		for(Step step : steps) {
+			if(step.lateNanos < 0)
+				continue ;
+			synchronized(step) {
+				long remaining ;
+				while(step.outcome < 0 && (remaining = statusDeadline - System.nanoTime()) > 0)
+					step.wait(remaining / 1000000L + 1) ;
+				delivered &= step.outcome == RetryPolicy.DELIVERED ;
+			}
+		}
+		if(log.isDebugEnabled())
+			log.debug(this) ;
+		return delivered ;
+	}
+
+	/**
+	 * Wait until a deadline on the monotonic clock: sleep until SPIN_NANOS before it, then yield.
+	 *
+	 * @return false if we were cancelled
+	 */
+	private boolean waitUntil(long deadline) throws InterruptedException {
+		synchronized(this) {
+			long remaining ;
+			while(!cancelled && (remaining = deadline - System.nanoTime()) > SPIN_NANOS)
+				wait((remaining - SPIN_NANOS) / 1000000L + 1) ;
+		}
+		while(!cancelled && System.nanoTime() - deadline < 0)
+			Thread.yield() ;
+		return !cancelled ;
+	}
+
+	/**
+	 * Stop the mission: the steps not yet sent aren't, and the robot is sent a stop. May be called from any thread.
+	 */
+	public void cancel() {
+		synchronized(this) {
+			cancelled = true ;
+			notifyAll() ;
+		}
+	}
+
+	public Step[] getSteps() {
+		return steps ;
+	}
+
+	/**
+	 * @return how late the steps were sent
+	 */
+	public LatencyHistogram getLateness() {
+		return lateness ;
+	}
+
+	/**
+	 * @return from the start of the mission to the last step sent
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos ;
+	}
+
+	@Override
+	public String toString() {
+		int delivered = 0 ;
+		for(Step step : steps)
+			if(step.getOutcome() == RetryPolicy.DELIVERED)
+				delivered++ ;
+		return String.format("%d steps over %d ms, %d delivered, sent late by: mean %d us, max %d us", steps.length,
+				elapsedNanos / 1000000L, delivered, lateness.getMeanMicros(), lateness.getMaxMicros()) ;
+	}
+}
@@ -0,0 +1,349 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.ApiId;
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBeeAddress16;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.wpan.RxResponse;
+import com.rapplogic.xbee.api.wpan.RxResponse16;
+import com.rapplogic.xbee.api.wpan.TxStatusResponse;
+
+/**
+ * Everything the robot sends us, decoded once and handed to typed listeners on a dedicated thread.
+ *
+ * The XBee api's input thread reads and decodes the frames from the explorer and calls its packet listeners one
+ * after another, so a slow listener holds up every frame behind it - including the TX status frames the transmit
+ * window depends on. Instead, the pipeline is the only listener on that thread: it time stamps each frame and
+ * drops it into a bounded single producer / single consumer ring buffer, which never blocks and never locks. The
+ * "receive-dispatch" thread takes the frames off the ring and calls the typed listeners:
+ * - TxStatusListener: every TX status
+ * - RxDataListener: every RX 16 packet from a robot
+ * - PingListener: ping replies (CMD_PING, sequence)
+ * - TelemetryListener: infrared samples (CMD_INFRARED_POLL, sensor, distance)
+ *
+ * If a TelemetryRecorder is set, every frame is recorded as it arrives, before it is queued.
+ *
+ * If the dispatch thread falls behind and the ring fills, new frames are dropped and counted rather than
+ * stalling the XBee api's input thread.
+ *
+ * The ring has exactly one producer because the XBee api delivers every frame from one input thread, and the
+ * link manager closes an XBee before opening its replacement. Listener lists are copy on write arrays, so
+ * dispatching a frame takes no locks either. Listeners that update Swing components should go through a
+ * SwingBatcher, rather than calling invokeLater() per frame.
+ *
+ * @author craig
+ */
+public class ReceivePipeline implements PacketListener, Runnable {
+
+	public static final int DEFAULT_CAPACITY	= 256 ;		// Frames buffered between the reader and dispatch threads
+	private static final long IDLE_PARK_NANOS	= 10000000L ;	// Longest the dispatch thread sleeps before re-checking
+
+	/**
+	 * Told about every TX status frame.
+	 */
+	public interface TxStatusListener {
+		void txStatus(TxStatusResponse status, long receivedNanos) ;
+	}
+
+	/**
+	 * Told about every RX 16 packet.
+	 */
+	public interface RxDataListener {
+		/**
+		 * @param source the sender's 16 bit MY address
+		 * @param rssi the received signal strength, -dBm
+		 * @param data the packet's data - the first byte is the command being answered
+		 * @param receivedNanos when the frame arrived
+		 */
+		void rxData(int source, int rssi, int[] data, long receivedNanos) ;
+	}
+
+	/**
+	 * Told about every ping reply.
+	 */
+	public interface PingListener {
+		void pingReply(int source, int sequence, long receivedNanos) ;
+	}
+
+	/**
+	 * Told about every infrared sample.
+	 */
+	public interface TelemetryListener {
+		void infraredSample(int source, int sensor, int distance, long receivedNanos) ;
+	}
+
+	private final XBeeResponse[] ring ;				// The frames, indexed by sequence & mask
+	private final long[] ringNanos ;				// When each frame arrived
+	private final int mask ;						// ring.length - 1, ring.length being a power of 2
+	private final AtomicLong head = new AtomicLong() ;	// Sequence of the next frame to dispatch, written by the consumer
+	private final AtomicLong tail = new AtomicLong() ;	// Sequence of the next free slot, written by the producer
+	private volatile boolean idle = false ;			// True while the dispatch thread is (about to be) parked
+	private volatile boolean shutdown = false ;		// Set to stop the dispatch thread
+	private volatile long dropped = 0 ;				// Frames dropped because the ring was full, written by the producer
+	private volatile long received = 0 ;			// Frames received, written by the producer
+	private volatile long bytesReceived = 0 ;		// Bytes received - whole API frames, escaped - written by the producer
+	private volatile long dispatched = 0 ;			// Frames dispatched, written by the consumer
+	private volatile TelemetryRecorder recorder = null ;	// Records every frame, if set
+
+	private volatile TxStatusListener[] txStatusListeners = new TxStatusListener[0] ;
+	private volatile RxDataListener[] rxDataListeners = new RxDataListener[0] ;
+	private volatile PingListener[] pingListeners = new PingListener[0] ;
+	private volatile TelemetryListener[] telemetryListeners = new TelemetryListener[0] ;
+
+	private final XBeeLinkManager link ;			// Delivers the frames to us
+	private final Thread thread ;					// The dispatch thread
+    private final static Logger log = Logger.getLogger(ReceivePipeline.class);
+
+	/**
+	 * Constructor, using the default capacity. Starts the dispatch thread and registers with the link.
+	 */
+	public ReceivePipeline(XBeeLinkManager link) {
+		this(link, DEFAULT_CAPACITY) ;
+	}
+
+	/**
+	 * Constructor. Starts the dispatch thread and registers with the link.
+	 *
+	 * @param link delivers the frames from the explorer
+	 * @param capacity frames buffered between the reader and dispatch threads, rounded up to a power of 2
+	 */
+	public ReceivePipeline(XBeeLinkManager link, int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1 ;
+		this.ring = new XBeeResponse[size] ;
+		this.ringNanos = new long[size] ;
+		this.mask = size - 1 ;
+		this.link = link ;
+		this.thread = new Thread(this, "receive-dispatch") ;
+		this.thread.setDaemon(true) ;
+		this.thread.start() ;
+		link.addPacketListener(this) ;
+	}
+
+	public synchronized void addTxStatusListener(TxStatusListener listener) {
+		txStatusListeners = append(txStatusListeners, listener, new TxStatusListener[txStatusListeners.length + 1]) ;
+	}
+
+	public synchronized void removeTxStatusListener(TxStatusListener listener) {
+		txStatusListeners = remove(txStatusListeners, listener, new TxStatusListener[0]) ;
+	}
+
+	public synchronized void addRxDataListener(RxDataListener listener) {
+		rxDataListeners = append(rxDataListeners, listener, new RxDataListener[rxDataListeners.length + 1]) ;
+	}
+
+	public synchronized void removeRxDataListener(RxDataListener listener) {
+		rxDataListeners = remove(rxDataListeners, listener, new RxDataListener[0]) ;
+	}
+
+	public synchronized void addPingListener(PingListener listener) {
+		pingListeners = append(pingListeners, listener, new PingListener[pingListeners.length + 1]) ;
+	}
+
+	public synchronized void removePingListener(PingListener listener) {
+		pingListeners = remove(pingListeners, listener, new PingListener[0]) ;
+	}
+
+	public synchronized void addTelemetryListener(TelemetryListener listener) {
+		telemetryListeners = append(telemetryListeners, listener, new TelemetryListener[telemetryListeners.length + 1]) ;
+	}
+
+	public synchronized void removeTelemetryListener(TelemetryListener listener) {
+		telemetryListeners = remove(telemetryListeners, listener, new TelemetryListener[0]) ;
+	}
+
+	/**
+	 * Start or stop recording the frames the explorer sends us.
+	 *
+	 * @param recorder records every frame, or null to stop recording
+	 */
+	public void setRecorder(TelemetryRecorder recorder) {
+		this.recorder = recorder ;
+	}
+
+	/**
+	 * Stop the dispatch thread. Frames still in the ring are discarded.
+	 */
+	public void shutdown() {
+		link.removePacketListener(this) ;
+		shutdown = true ;
+		LockSupport.unpark(thread) ;
+		try {
+			thread.join(5000) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * @return frames dropped because the dispatch thread fell too far behind
+	 */
+	public long getDroppedCount() {
+		return dropped ;
+	}
+
+	public long getDispatchedCount() {
+		return dispatched ;
+	}
+
+	/**
+	 * @return frames received from the explorer, including any dropped
+	 */
+	public long getReceivedCount() {
+		return received ;
+	}
+
+	/**
+	 * @return bytes received from the explorer - whole API frames, escaped
+	 */
+	public long getBytesReceived() {
+		return bytesReceived ;
+	}
+
+	/**
+	 * Register our metrics as receive.*.
+	 */
+	public void registerMetrics(MetricsRegistry metrics) {
+		metrics.register("receive.frames", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getReceivedCount() ;
+			}
+		});
+		metrics.register("receive.bytes", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getBytesReceived() ;
+			}
+		});
+		metrics.register("receive.dispatched", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getDispatchedCount() ;
+			}
+		});
+		metrics.register("receive.dropped", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getDroppedCount() ;
+			}
+		});
+		metrics.register("receive.backlog", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getBacklog() ;
+			}
+		});
+	}
+
+	/**
+	 * @return frames waiting to be dispatched
+	 */
+	public int getBacklog() {
+		return (int) (tail.get() - head.get()) ;
+	}
+
+	/**
+	 * The producer: called by the XBee api's input thread for every frame. Never blocks.
+	 */
+	public void processResponse(XBeeResponse response) {
+		long receivedNanos = System.nanoTime() ;
+		int[] raw = response.getRawPacketBytes() ;
+		received++ ;							// Only this thread writes them
+		if(raw != null)
+			bytesReceived += raw.length ;
+		TelemetryRecorder r = recorder ;
+		if(r != null)
+			r.recordInbound(raw, receivedNanos) ;
+		long t = tail.get() ;
+		if(t - head.get() > mask) {
+			dropped++ ;
+			if(Long.bitCount(dropped) == 1)		// Log the 1st, 2nd, 4th, 8th... drop, not every one
+				log.warn("Receive ring full, dropped " + dropped + " frame(s)") ;
+			return ;
+		}
+		int slot = (int) t & mask ;
+		ring[slot] = response ;
+		ringNanos[slot] = receivedNanos ;
+		tail.set(t + 1) ;						// Publishes the slot, and orders it before the read of idle
+		if(idle)
+			LockSupport.unpark(thread) ;
+	}
+
+	/**
+	 * The consumer: the dispatch thread.
+	 */
+	public void run() {
+		while(!shutdown) {
+			long h = head.get() ;
+			if(h == tail.get()) {
+				idle = true ;
+				if(h == tail.get() && !shutdown)	// Re-check, so we can't sleep through a frame
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS) ;
+				idle = false ;
+				continue ;
+			}
+			int slot = (int) h & mask ;
+			XBeeResponse response = ring[slot] ;
+			long receivedNanos = ringNanos[slot] ;
+			ring[slot] = null ;
+			head.lazySet(h + 1) ;				// Only the producer reads head, and it only needs to see it eventually
+			try {
+				dispatch(response, receivedNanos) ;
+			} catch(RuntimeException e) {
+				log.error("Listener failed on " + response.getApiId(), e) ;
+			}
+			dispatched++ ;
+		}
+	}
+
+	/**
+	 * Hand a frame to the listeners that want it.
+	 */
+	private void dispatch(XBeeResponse response, long receivedNanos) {
+		ApiId apiId = response.getApiId() ;
+		if(apiId == ApiId.TX_STATUS_RESPONSE) {
+			TxStatusListener[] listeners = txStatusListeners ;
+			for(int i = 0; i < listeners.length; i++)
+				listeners[i].txStatus((TxStatusResponse) response, receivedNanos) ;
+		} else if(apiId == ApiId.RX_16_RESPONSE) {
+			RxResponse16 rx = (RxResponse16) response ;
+			XBeeAddress16 address = rx.getRemoteAddress() ;
+			int source = address == null ? -1 : (address.getMsb() << 8) | address.getLsb() ;
+			dispatchRx(source, rx, receivedNanos) ;
+		}
+	}
+
+	private void dispatchRx(int source, RxResponse rx, long receivedNanos) {
+		int[] data = rx.getData() ;
+		if(data == null || data.length == 0)
+			return ;
+		RxDataListener[] rxListeners = rxDataListeners ;
+		for(int i = 0; i < rxListeners.length; i++)
+			rxListeners[i].rxData(source, rx.getRssi(), data, receivedNanos) ;
+
+		if(data[0] == XBeeCommunicatorTask.CMD_PING && data.length >= 2) {
+			PingListener[] listeners = pingListeners ;
+			for(int i = 0; i < listeners.length; i++)
+				listeners[i].pingReply(source, data[1] & 0xff, receivedNanos) ;
+		} else if(data[0] == XBeeCommunicatorTask.CMD_INFRARED_POLL && data.length >= 3) {
+			TelemetryListener[] listeners = telemetryListeners ;
+			for(int i = 0; i < listeners.length; i++)
+				listeners[i].infraredSample(source, data[1], data[2], receivedNanos) ;
+		}
+	}
+
+	private static <T> T[] append(T[] listeners, T listener, T[] larger) {
+		System.arraycopy(listeners, 0, larger, 0, listeners.length) ;
+		larger[listeners.length] = listener ;
+		return larger ;
+	}
+
+	private static <T> T[] remove(T[] listeners, T listener, T[] empty) {
+		List<T> kept = new ArrayList<T>(Arrays.asList(listeners)) ;
+		kept.remove(listener) ;
+		return kept.toArray(empty) ;
+	}
+}
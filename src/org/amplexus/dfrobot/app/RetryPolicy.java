@@ -0,0 +1,169 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.Random;
+
+import com.rapplogic.xbee.api.XBeeTimeoutException;
+import com.rapplogic.xbee.api.wpan.TxStatusResponse;
+
+/**
+ * Decides whether, and when, a command whose frame failed is sent again - by why it failed:
+ * - CHANNEL_BUSY: the explorer found the channel busy (CCA failure) and never sent the frame. Everyone on the
+ *   channel backed off the same way, so we retry after a randomized, growing backoff - retrying at once, or in
+ *   step with the other senders, just collides again
+ * - NO_ACK: the frame went out but the robot didn't acknowledge it, after the radio's own MAC retries. The robot
+ *   is most likely briefly out of range or busy, so we retry after a short pause, for as long as the deadline
+ *   allows
+ * - NO_STATUS: no TX status arrived within the transmit engine's timeout - the explorer may have been reset. We
+ *   retry at once, if the deadline allows
+ * - LINK_ERROR: the frame couldn't be written to the serial port. The port is re-opened by the next attempt, so
+ *   we pause first rather than spin re-opening it
+ * - PURGED: the explorer threw the frame away on purpose (an indirect transmission nobody collected), so sending
+ *   it again won't help
+ * Every retry must be due before the deadline, measured from when the command was submitted, and there are at
+ * most maxRetries of them. Dropping a retry that a newer command has made pointless is up to the sender (see
+ * CommandDispatcher).
+ *
+ * Thread safe - the backoff's random numbers come from a java.util.Random.
+ *
+ * @author craig
+ */
+public class RetryPolicy {
+
+	/*
+	 * Why a frame failed
+	 */
+	public static final int DELIVERED				= 0 ;		// It didn't - the robot acknowledged it
+	public static final int CHANNEL_BUSY			= 1 ;
+	public static final int NO_ACK					= 2 ;
+	public static final int PURGED					= 3 ;
+	public static final int NO_STATUS				= 4 ;
+	public static final int LINK_ERROR				= 5 ;
+	public static final int OUTCOMES				= 6 ;		// How many of the above
+
+	public static final int DEFAULT_DEADLINE_MILLIS	= 2000 ;	// Room for one retry after a TX status timeout
+	public static final int DEFAULT_MAX_RETRIES		= 10 ;
+	public static final int CCA_BACKOFF_MIN_MICROS	= 2000 ;	// Ceiling of the first busy channel backoff
+	public static final int CCA_BACKOFF_MAX_MICROS	= 64000 ;	// The ceiling doubles with each retry up to this
+	public static final int ACK_RETRY_PAUSE_MICROS	= 20000 ;	// Give an unacknowledging robot a moment
+	public static final int LINK_RETRY_PAUSE_MICROS	= 10000 ;	// Same as CommandDispatcher.PRIORITY_RETRY_PAUSE_MILLIS
+
+	/**
+	 * Never retries - every failure is final, as before retries existed.
+	 */
+	public static final RetryPolicy NO_RETRIES = new RetryPolicy(0, 0) ;
+
+	private static final String[] outcomeName = { "DELIVERED", "CHANNEL BUSY", "NO ACK", "PURGED", "NO STATUS", "LINK ERROR" } ;
+
+	private final long deadlineNanos ;			// Retries must be due within this long of the command's submission
+	private final int maxRetries ;				// The most times one command is retried
+	private final Random random = new Random() ;	// Jitters the busy channel backoff
+
+	/**
+	 * Constructor, with the default deadline and retry limit.
+	 */
+	public RetryPolicy() {
+		this(DEFAULT_DEADLINE_MILLIS, DEFAULT_MAX_RETRIES) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param deadlineMillis retries must be due within this long of the command being submitted
+	 * @param maxRetries the most times one command is retried, 0 for never
+	 */
+	public RetryPolicy(int deadlineMillis, int maxRetries) {
+		if(deadlineMillis < 0 || maxRetries < 0)
+			throw new IllegalArgumentException("deadlineMillis and maxRetries must not be negative: " + deadlineMillis + ", " + maxRetries) ;
+		this.deadlineNanos = deadlineMillis * 1000000L ;
+		this.maxRetries = maxRetries ;
+	}
+
+	/**
+	 * Seed the random number generator, for a reproducible backoff.
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed) ;
+	}
+
+	/**
+	 * Work out why a frame failed, from its TX status or, if none arrived, the error the engine failed it with.
+	 *
+	 * @param future the completed frame
+	 * @return DELIVERED, CHANNEL_BUSY, NO_ACK, PURGED, NO_STATUS or LINK_ERROR
+	 */
+	public static int classify(TransmitFuture future) {
+		if(future.isSuccess())
+			return DELIVERED ;
+		TxStatusResponse status = future.getStatus() ;
+		if(status != null) {
+			if(status.isCcaError())
+				return CHANNEL_BUSY ;
+			if(status.isPurged())
+				return PURGED ;
+			return NO_ACK ;
+		}
+		if(future.getError() instanceof XBeeTimeoutException)
+			return NO_STATUS ;
+		return LINK_ERROR ;
+	}
+
+	/**
+	 * @return true if a frame that failed this way is worth sending again
+	 */
+	public static boolean isRetryable(int outcome) {
+		return outcome == CHANNEL_BUSY || outcome == NO_ACK || outcome == NO_STATUS || outcome == LINK_ERROR ;
+	}
+
+	/**
+	 * Decide whether, and when, to retry a failed command.
+	 *
+	 * @param outcome why it failed (see classify())
+	 * @param retries how many times it has already been retried
+	 * @param ageNanos how long ago it was submitted
+	 * @return how long to wait before sending it again, or -1 not to
+	 */
+	public long retryDelayMicros(int outcome, int retries, long ageNanos) {
+		if(!isRetryable(outcome) || retries >= maxRetries)
+			return -1 ;
+		long delay = backoffMicros(outcome, retries) ;
+		if(ageNanos + delay * 1000L > deadlineNanos)
+			return -1 ;
+		return delay ;
+	}
+
+	/**
+	 * @param retries how many times the command has already been retried
+	 * @return how long to wait before retrying a command that failed this way
+	 */
+	public long backoffMicros(int outcome, int retries) {
+		switch(outcome) {
+		case CHANNEL_BUSY:
+			/*
+			 * Half the ceiling plus a random amount up to the other half: never retrying at once, and never in
+			 * step with another sender that backed off from the same busy channel
+			 */
+			long ceiling = Math.min(CCA_BACKOFF_MAX_MICROS, (long) CCA_BACKOFF_MIN_MICROS << Math.min(retries, 16)) ;
+			return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2)) ;
+		case NO_ACK:
+			return ACK_RETRY_PAUSE_MICROS ;
+		case LINK_ERROR:
+			return LINK_RETRY_PAUSE_MICROS ;
+		default:
+			return 0 ;
+		}
+	}
+
+	public long getDeadlineMillis() {
+		return deadlineNanos / 1000000L ;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries ;
+	}
+
+	public static String outcomeName(int outcome) {
+		if(outcome >= 0 && outcome < outcomeName.length)
+			return outcomeName[outcome] ;
+		return "invalid (" + outcome + ")" ;
+	}
+}
@@ -0,0 +1,155 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * One robot on the PAN, known by the 16 bit MY address of its XBee shield.
+ *
+ * Holds the robot's own queue of commands waiting to be sent by the FleetDispatcher, and what we know about its
+ * state: the last command it acknowledged, when we last heard from it and how strongly, and how its commands
+ * are faring. The queue and in flight counts are guarded by the FleetDispatcher's lock; the state is safe to
+ * read from any thread.
+ *
+ * @author craig
+ */
+public class Robot {
+
+	public static final int DEFAULT_CAPACITY	= 8 ;		// Commands queued per robot
+	public static final int PRIORITY_CAPACITY	= CommandDispatcher.PRIORITY_CAPACITY ;
+
+	private final XBeeFrameEncoder.Destination destination ;	// The robot's XBee, pre-encoded
+	private final String name ;					// What we call it in the GUI and logs
+
+	/*
+	 * Guarded by the FleetDispatcher's lock
+	 */
+	final CommandQueue queue ;					// Ordinary commands waiting to be sent
+	final CommandQueue priorityQueue = new CommandQueue(PRIORITY_CAPACITY) ;	// Stop and autonomous mode off
+	int inFlight = 0 ;							// Ordinary frames waiting for their TX status
+	boolean priorityInFlight = false ;			// True while a priority frame is waiting for its TX status
+
+	/*
+	 * Written by the FleetDispatcher and the receive pipeline, read by anyone
+	 */
+	private volatile RobotCommand lastCommand = null ;	// The last command the robot acknowledged
+	private volatile long lastHeardNanos = 0 ;	// When the robot last sent us anything, 0 if never
+	private volatile int rssi = 0 ;				// Signal strength of the last frame from the robot, -dBm
+	volatile long submitted = 0 ;				// Commands accepted into the queues
+	volatile long coalesced = 0 ;				// Queued commands replaced by a newer one before being sent
+	volatile long rejected = 0 ;				// Commands refused because the queue was full
+	volatile long sent = 0 ;					// Commands the robot acknowledged
+	volatile long failed = 0 ;					// Commands that failed to send
+	volatile long retries = 0 ;					// Priority commands re-sent after a failure
+	private final LatencyHistogram latency = new LatencyHistogram() ;	// Submit to acknowledgement
+
+	/**
+	 * Constructor.
+	 *
+	 * @param address the robot's 16 bit MY address
+	 * @param name what to call it, or null to name it after its address
+	 * @param capacity the most ordinary commands we will queue for it
+	 */
+	public Robot(int address, String name, int capacity) {
+		this.destination = new XBeeFrameEncoder.Destination(address >> 8, address) ;
+		this.name = name != null ? name : "Robot " + destination ;
+		this.queue = new CommandQueue(capacity) ;
+	}
+
+	public Robot(int address, String name) {
+		this(address, name, DEFAULT_CAPACITY) ;
+	}
+
+	/**
+	 * @return the robot's 16 bit MY address
+	 */
+	public int getAddress() {
+		return destination.getAddress() ;
+	}
+
+	public XBeeFrameEncoder.Destination getDestination() {
+		return destination ;
+	}
+
+	public String getName() {
+		return name ;
+	}
+
+	/**
+	 * @return the last command the robot acknowledged, null if none
+	 */
+	public RobotCommand getLastCommand() {
+		return lastCommand ;
+	}
+
+	/**
+	 * @return true if the last command the robot acknowledged set it moving
+	 */
+	public boolean isMoving() {
+		RobotCommand last = lastCommand ;
+		return last != null && last.isMotion() && !last.isStop() ;
+	}
+
+	/**
+	 * @return when we last heard from the robot (System.nanoTime()), 0 if never
+	 */
+	public long getLastHeardNanos() {
+		return lastHeardNanos ;
+	}
+
+	/**
+	 * @return the signal strength of the last frame from the robot, -dBm
+	 */
+	public int getRssi() {
+		return rssi ;
+	}
+
+	public long getSubmittedCount() {
+		return submitted ;
+	}
+
+	public long getCoalescedCount() {
+		return coalesced ;
+	}
+
+	public long getRejectedCount() {
+		return rejected ;
+	}
+
+	public long getSentCount() {
+		return sent ;
+	}
+
+	public long getFailedCount() {
+		return failed ;
+	}
+
+	public long getRetryCount() {
+		return retries ;
+	}
+
+	/**
+	 * @return the time from each command being submitted to the robot acknowledging it
+	 */
+	public LatencyHistogram getLatency() {
+		return latency ;
+	}
+
+	/**
+	 * The robot acknowledged a command.
+	 */
+	void acknowledged(RobotCommand command, long queuedNanos, long nowNanos) {
+		lastCommand = command ;
+		latency.recordNanos(nowNanos - queuedNanos) ;
+	}
+
+	/**
+	 * A frame arrived from the robot.
+	 */
+	void heard(int rssi, long nowNanos) {
+		this.rssi = rssi ;
+		this.lastHeardNanos = nowNanos ;
+	}
+
+	@Override
+	public String toString() {
+		return name ;
+	}
+}
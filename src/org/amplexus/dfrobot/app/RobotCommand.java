@@ -0,0 +1,168 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * A single command for the robot: one of the XBeeCommunicatorTask.CMD_* commands plus its data byte.
+ *
+ * Immutable, so it can be handed between the GUI and the dispatcher thread without any locking, and shared:
+ * valueOf() hands out the same instance for the same command and data, so sending a command allocates nothing.
+ * The exception is CMD_MOTOR_VECTOR, whose two track speeds are packed into data (see vector()): there are too
+ * many of them to cache, so each is a new instance.
+ *
+ * @author craig
+ */
+public class RobotCommand {
+
+	private static final int CACHED_COMMANDS = 32 ;	// valueOf() caches commands 0-31, with data 0-255
+	private static final RobotCommand[] cache = new RobotCommand[CACHED_COMMANDS * 256] ;
+
+	private final int command ;					// The command (CMD_*) to execute
+	private final int data ;					// For the movement commands, data is speed (0-255), or both track speeds for a vector. Otherwise not used
+
+	/**
+	 * Constructor.
+	 */
+	public RobotCommand(int command, int data) {
+		this.command = command ;
+		this.data = data ;
+	}
+
+	/**
+	 * Get the shared instance for a command.
+	 *
+	 * Racing threads may both create an instance for the same command, which is harmless: nothing relies on
+	 * the instances being unique, and the final fields make them safe to publish without locking.
+	 */
+	public static RobotCommand valueOf(int command, int data) {
+		if(command < 0 || command >= CACHED_COMMANDS || data < 0 || data > 255)
+			return new RobotCommand(command, data) ;
+		int index = command * 256 + data ;
+		RobotCommand cached = cache[index] ;
+		if(cached == null)
+			cache[index] = cached = new RobotCommand(command, data) ;
+		return cached ;
+	}
+
+	/**
+	 * Get a CMD_MOTOR_VECTOR command: each track driven at its own speed.
+	 *
+	 * @param left the left track's speed, -127 (full backwards) to 127 (full forwards)
+	 * @param right the right track's speed, likewise
+	 * @throws IllegalArgumentException if either speed is out of range
+	 */
+	public static RobotCommand vector(int left, int right) {
+		if(left < -DriveVector.MAX_TRACK_SPEED || left > DriveVector.MAX_TRACK_SPEED
+				|| right < -DriveVector.MAX_TRACK_SPEED || right > DriveVector.MAX_TRACK_SPEED)
+			throw new IllegalArgumentException("Track speed out of range: " + left + ", " + right) ;
+		return valueOf(XBeeCommunicatorTask.CMD_MOTOR_VECTOR, ((left & 0xff) << 8) | (right & 0xff)) ;
+	}
+
+	public int getCommand() {
+		return command ;
+	}
+
+	public int getData() {
+		return data ;
+	}
+
+	/**
+	 * @return a CMD_MOTOR_VECTOR's left track speed (-127 to 127)
+	 */
+	public int getLeftSpeed() {
+		return (byte) (data >> 8) ;
+	}
+
+	/**
+	 * @return a CMD_MOTOR_VECTOR's right track speed (-127 to 127)
+	 */
+	public int getRightSpeed() {
+		return (byte) data ;
+	}
+
+	/**
+	 * @return how many bytes the command takes on the air, including the command byte
+	 */
+	public int getPayloadLength() {
+		return XBeeCommunicatorTask.payloadLength(command) ;
+	}
+
+	/**
+	 * Encode the command as the robot expects it.
+	 *
+	 * @param payload where to put it, getPayloadLength() bytes from offset
+	 */
+	public void writePayload(int[] payload, int offset) {
+		payload[offset] = command & 0xff ;
+		if(command == XBeeCommunicatorTask.CMD_MOTOR_VECTOR) {
+			payload[offset + 1] = (data >> 8) & 0xff ;
+			payload[offset + 2] = data & 0xff ;
+		} else
+			payload[offset + 1] = data & 0xff ;
+	}
+
+	/**
+	 * Motion commands supersede each other - there is no point driving forward if we have since been asked to
+	 * turn left - so a queued motion command can be replaced by a newer one before it is sent.
+	 *
+	 * @return true if this is one of the motor commands
+	 */
+	public boolean isMotion() {
+		switch(command) {
+		case XBeeCommunicatorTask.CMD_MOTOR_STOP:
+		case XBeeCommunicatorTask.CMD_MOTOR_FORWARD:
+		case XBeeCommunicatorTask.CMD_MOTOR_BACKWARDS:
+		case XBeeCommunicatorTask.CMD_MOTOR_LEFT:
+		case XBeeCommunicatorTask.CMD_MOTOR_RIGHT:
+		case XBeeCommunicatorTask.CMD_MOTOR_VECTOR:
+			return true ;
+		default:
+			return false ;
+		}
+	}
+
+	/**
+	 * @return true if this is a motion command that leaves the robot standing still
+	 */
+	public boolean isStop() {
+		return command == XBeeCommunicatorTask.CMD_MOTOR_STOP || (command == XBeeCommunicatorTask.CMD_MOTOR_VECTOR && data == 0) ;
+	}
+
+	/**
+	 * Priority commands make the robot safe - stop, or stop navigating by itself - so they skip the queue and are
+	 * re-sent until the robot acknowledges them (see CommandDispatcher).
+	 *
+	 * @return true for stop and autonomous mode off
+	 */
+	public boolean isPriority() {
+		return command == XBeeCommunicatorTask.CMD_MOTOR_STOP || command == XBeeCommunicatorTask.CMD_AUTONOMOUS_MODE_OFF ;
+	}
+
+	/**
+	 * A queued command that is superseded by a newer one need never be sent: motion commands supersede each
+	 * other, a keepalive supersedes an older keepalive, and starting or stopping infrared sampling supersedes an
+	 * older start or stop.
+	 *
+	 * @param queued a command still waiting to be sent
+	 * @return true if this command makes the queued one pointless
+	 */
+	public boolean supersedes(RobotCommand queued) {
+		if(isMotion())
+			return queued.isMotion() ;
+		if(isInfraredSampling())
+			return queued.isInfraredSampling() ;
+		return command == XBeeCommunicatorTask.CMD_KEEPALIVE && queued.command == XBeeCommunicatorTask.CMD_KEEPALIVE ;
+	}
+
+	/**
+	 * @return true if this command starts or stops infrared sampling
+	 */
+	public boolean isInfraredSampling() {
+		return command == XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_START || command == XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_STOP ;
+	}
+
+	@Override
+	public String toString() {
+		if(command == XBeeCommunicatorTask.CMD_MOTOR_VECTOR)
+			return XBeeCommunicatorTask.stringifiedCommandName(command) + " (" + getLeftSpeed() + ", " + getRightSpeed() + ")" ;
+		return XBeeCommunicatorTask.stringifiedCommandName(command) + " (" + data + ")" ;
+	}
+}
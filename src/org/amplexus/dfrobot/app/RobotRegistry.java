@@ -0,0 +1,119 @@
+package org.amplexus.dfrobot.app;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The robots we command, keyed by the 16 bit MY address of their XBee shields. Every robot is on the same PAN
+ * (XBeeCommunicatorTask.PANID), so one explorer reaches them all.
+ *
+ * Robots are held in an array that is replaced, never changed, when a robot is registered, so looking one up
+ * or iterating over them takes no lock and allocates nothing. Fleets are small - a linear search of a handful
+ * of robots is cheaper than boxing the address for a map lookup on every frame.
+ *
+ * Attach it to a ReceivePipeline to keep each robot's last heard time and signal strength up to date.
+ *
+ * @author craig
+ */
+public class RobotRegistry implements ReceivePipeline.RxDataListener {
+
+	public static final String ROBOTS_PROPERTY = "dfrobot.robots" ;	// eg -Ddfrobot.robots=0x8081:Alpha,0x8082:Bravo
+
+	private volatile Robot[] robots = new Robot[0] ;	// Every registered robot, in the order registered
+	private long unknown = 0 ;							// Frames from addresses we don't know
+    private final static Logger log = Logger.getLogger(RobotRegistry.class);
+
+	/**
+	 * Build a registry from a spec such as "0x8081:Alpha,0x8082:Bravo,8083" - addresses in hex, with or without
+	 * the 0x, each with an optional name.
+	 *
+	 * @param spec the robots, or null or empty for just the robot at XBeeCommunicatorTask.XBEE_SHIELD
+	 * @throws IllegalArgumentException if the spec can't be parsed
+	 */
+	public static RobotRegistry fromSpec(String spec) {
+		RobotRegistry registry = new RobotRegistry() ;
+		if(spec == null || spec.trim().length() == 0) {
+			registry.register(XBeeCommunicatorTask.XBEE_SHIELD.getAddress(), null) ;
+			return registry ;
+		}
+		for(String entry : spec.split(",")) {
+			entry = entry.trim() ;
+			if(entry.length() == 0)
+				continue ;
+			int colon = entry.indexOf(':') ;
+			String address = colon < 0 ? entry : entry.substring(0, colon).trim() ;
+			String name = colon < 0 ? null : entry.substring(colon + 1).trim() ;
+			try {
+				if(address.startsWith("0x") || address.startsWith("0X"))
+					address = address.substring(2) ;
+				registry.register(Integer.parseInt(address, 16), name) ;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad robot address in " + ROBOTS_PROPERTY + ": " + entry) ;
+			}
+		}
+		return registry ;
+	}
+
+	/**
+	 * Register a robot, if it isn't already.
+	 *
+	 * @param address the robot's 16 bit MY address (not the broadcast address)
+	 * @param name what to call it, or null to name it after its address
+	 * @return the robot
+	 */
+	public synchronized Robot register(int address, String name) {
+		if(address < 0 || address >= XBeeCommunicatorTask.BROADCAST.getAddress())
+			throw new IllegalArgumentException("Not a robot address: " + address) ;
+		Robot robot = get(address) ;
+		if(robot != null)
+			return robot ;
+		robot = new Robot(address, name) ;
+		Robot[] larger = new Robot[robots.length + 1] ;
+		System.arraycopy(robots, 0, larger, 0, robots.length) ;
+		larger[robots.length] = robot ;
+		robots = larger ;
+		log.info("Registered " + robot + " at " + robot.getDestination()) ;
+		return robot ;
+	}
+
+	/**
+	 * @return the robot with the specified MY address, or null if there isn't one
+	 */
+	public Robot get(int address) {
+		Robot[] current = robots ;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i].getAddress() == address)
+				return current[i] ;
+		}
+		return null ;
+	}
+
+	/**
+	 * @return every registered robot, in the order registered. Don't change the array.
+	 */
+	public Robot[] getRobots() {
+		return robots ;
+	}
+
+	public int size() {
+		return robots.length ;
+	}
+
+	/**
+	 * @return how many frames have arrived from addresses that aren't registered
+	 */
+	public synchronized long getUnknownCount() {
+		return unknown ;
+	}
+
+	public void rxData(int source, int rssi, int[] data, long receivedNanos) {
+		Robot robot = get(source) ;
+		if(robot != null) {
+			robot.heard(rssi, receivedNanos) ;
+			return ;
+		}
+		synchronized(this) {
+			if(unknown++ == 0)
+				log.warn(String.format("Frame from unregistered robot 0x%04x", source)) ;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the serial devices actually present, and watches for them being plugged in and unplugged.
+ *
+ * Looks in the device directory (/dev) for:
+ * - the links under serial/by-id, which udev creates for every USB serial device - named after the adapter, so
+ *   an FTDI based explorer shows up as usb-FTDI_..., and listed first
+ * - ttyUSB* (FTDI and other USB serial adapters) and ttyACM* (USB CDC devices, eg an Arduino)
+ * - tty.usbserial* and cu.usbserial* on Mac OS X
+ * Each device is reported once, by its real path (a by-id link is resolved to the ttyUSB device it points at), so
+ * it can be opened however it was found.
+ *
+ * There's no file system watching before Java 7, so hot-plug is detected by re-scanning every poll interval - a
+ * directory listing, which costs well under a millisecond.
+ *
+ * @author craig
+ */
+public class SerialPortScanner {
+
+	public static final long DEFAULT_POLL_MILLIS	= 2000 ;
+	public static final String BY_ID_DIRECTORY		= "serial/by-id" ;
+	public static final String[] DEVICE_PREFIXES	= { "ttyUSB", "ttyACM", "tty.usbserial", "cu.usbserial" } ;
+	public static final String[] LIKELY_ADAPTERS	= { "FTDI", "XBee", "Digi" } ;	// by-id names of the adapters explorers use
+
+	/**
+	 * Told when ports come and go - called on the scanner's thread.
+	 */
+	public interface PortListener {
+		/**
+		 * @param ports every port present now, most likely first
+		 * @param added the ports that have appeared since the last scan
+		 * @param removed the ports that have gone since the last scan
+		 */
+		void portsChanged(String[] ports, String[] added, String[] removed) ;
+	}
+
+	private final File devices ;						// The device directory
+	private ScheduledExecutorService watcher = null ;	// Re-scans every poll interval while watching
+	private String[] lastPorts = new String[0] ;		// What the last scan found, guarded by this
+    private final static Logger log = Logger.getLogger(SerialPortScanner.class);
+
+	/**
+	 * Constructor, scanning /dev.
+	 */
+	public SerialPortScanner() {
+		this(new File("/dev")) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param devices the device directory to scan
+	 */
+	public SerialPortScanner(File devices) {
+		this.devices = devices ;
+	}
+
+	/**
+	 * Scan for the serial devices present now.
+	 *
+	 * @return their paths, most likely to be an explorer first: by-id devices from a likely adapter, then other
+	 * by-id devices, then the rest - each group in name order. Empty if there are none.
+	 */
+	public String[] scan() {
+		List<String> likely = new ArrayList<String>() ;
+		List<String> byId = new ArrayList<String>() ;
+		List<String> others = new ArrayList<String>() ;
+
+		String[] links = list(new File(devices, BY_ID_DIRECTORY)) ;
+		for(int i = 0; i < links.length; i++) {
+			String path = resolve(new File(new File(devices, BY_ID_DIRECTORY), links[i])) ;
+			if(path == null || likely.contains(path) || byId.contains(path))
+				continue ;
+			if(isLikelyAdapter(links[i]))
+				likely.add(path) ;
+			else
+				byId.add(path) ;
+		}
+
+		String[] names = list(devices) ;
+		for(int i = 0; i < names.length; i++) {
+			if(!isSerialDevice(names[i]))
+				continue ;
+			String path = resolve(new File(devices, names[i])) ;
+			if(path != null && !likely.contains(path) && !byId.contains(path) && !others.contains(path))
+				others.add(path) ;
+		}
+
+		likely.addAll(byId) ;
+		likely.addAll(others) ;
+		return likely.toArray(new String[likely.size()]) ;
+	}
+
+	/**
+	 * Start watching for ports coming and going. The ports present now are taken as known - the listener is only
+	 * told about changes from here on.
+	 *
+	 * @param pollMillis how often to re-scan
+	 */
+	public synchronized void watch(final PortListener listener, long pollMillis) {
+		stop() ;
+		lastPorts = scan() ;
+		watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "serial-port-scanner") ;
+				t.setDaemon(true) ;
+				return t ;
+			}
+		});
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					rescan(listener) ;
+				} catch (RuntimeException e) {
+					log.error("Error scanning for serial ports", e) ;		// Don't let it cancel the next scan
+				}
+			}
+		}, pollMillis, pollMillis, TimeUnit.MILLISECONDS) ;
+	}
+
+	/**
+	 * Stop watching, if we are.
+	 */
+	public synchronized void stop() {
+		if(watcher != null)
+			watcher.shutdownNow() ;
+		watcher = null ;
+	}
+
+	/**
+	 * Scan, and tell the listener if anything has changed since the last scan.
+	 */
+	private void rescan(PortListener listener) {
+		String[] ports = scan() ;
+		String[] previous ;
+		synchronized(this) {
+			previous = lastPorts ;
+			if(Arrays.equals(ports, previous))
+				return ;
+			lastPorts = ports ;
+		}
+		String[] added = difference(ports, previous) ;
+		String[] removed = difference(previous, ports) ;
+		if(added.length > 0)
+			log.info("Serial ports plugged in: " + Arrays.toString(added)) ;
+		if(removed.length > 0)
+			log.info("Serial ports unplugged: " + Arrays.toString(removed)) ;
+		listener.portsChanged(ports, added, removed) ;
+	}
+
+	private static boolean isSerialDevice(String name) {
+		for(int i = 0; i < DEVICE_PREFIXES.length; i++) {
+			if(name.startsWith(DEVICE_PREFIXES[i]))
+				return true ;
+		}
+		return false ;
+	}
+
+	private static boolean isLikelyAdapter(String byIdName) {
+		for(int i = 0; i < LIKELY_ADAPTERS.length; i++) {
+			if(byIdName.indexOf(LIKELY_ADAPTERS[i]) >= 0)
+				return true ;
+		}
+		return false ;
+	}
+
+	/**
+	 * @return the directory's entries in name order, or none if it doesn't exist
+	 */
+	private static String[] list(File directory) {
+		String[] names = directory.list() ;
+		if(names == null)
+			return new String[0] ;
+		Arrays.sort(names) ;
+		return names ;
+	}
+
+	/**
+	 * @return the device's real path with any links resolved, or null if it has gone (eg a dangling by-id link)
+	 */
+	private static String resolve(File device) {
+		try {
+			File real = device.getCanonicalFile() ;
+			return real.exists() ? real.getPath() : null ;
+		} catch (IOException e) {
+			return null ;
+		}
+	}
+
+	/**
+	 * @return the entries of a that aren't in b
+	 */
+	private static String[] difference(String[] a, String[] b) {
+		List<String> result = new ArrayList<String>() ;
+		List<String> other = Arrays.asList(b) ;
+		for(int i = 0; i < a.length; i++) {
+			if(!other.contains(a[i]))
+				result.add(a[i]) ;
+		}
+		return result.toArray(new String[result.size()]) ;
+	}
+}
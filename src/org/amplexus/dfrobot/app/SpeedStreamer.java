@@ -0,0 +1,136 @@
+package org.amplexus.dfrobot.app;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+/**
+ * Throttles the stream of speed changes coming from the speed slider.
+ *
+ * Dragging the slider fires a change event for every pixel of movement - far more than the XBee link can carry.
+ * We pass on at most one speed per frame interval and drop the intermediate values, so only the newest speed
+ * is ever sent. When the slider is released the final value is always delivered straight away.
+ *
+ * The frame interval is derived from the baud rate: a 2 byte command is an 11 byte API frame, 10 bits per byte
+ * on the serial link, and we allow the speed stream to use a fraction (utilisation) of that capacity so there is
+ * room left for the other commands, capped at maxFramesPerSecond.
+ *
+ * All methods must be called on the EventDispatch thread - the deferred sends use a Swing Timer, so the sink is
+ * also only ever called on the EventDispatch thread.
+ *
+ * @author craig
+ */
+public class SpeedStreamer {
+
+	public static final int		FRAME_BYTES					= 11 ;		// API frame size for a 2 byte command
+	public static final double	DEFAULT_UTILISATION			= 0.25 ;	// Fraction of the link the stream may use
+	public static final int		DEFAULT_MAX_FRAMES_PER_SEC	= 20 ;		// Never stream faster than this
+
+	/**
+	 * Where the throttled speeds go.
+	 */
+	public interface Sink {
+		void sendSpeed(int speed) ;
+	}
+
+	private final Sink sink ;						// Where the throttled speeds go
+	private final double utilisation ;				// Fraction of the link capacity the stream may use
+	private final int maxFramesPerSecond ;			// Upper limit on the stream rate, whatever the baud rate
+	private final Timer timer ;						// Fires once to deliver the pending speed
+	private long intervalNanos ;					// Minimum time between two sends
+	private long lastSendNanos = 0 ;				// When we last sent a speed
+	private int pendingSpeed = -1 ;					// Newest speed not yet sent, -1 if none
+
+	/**
+	 * Constructor, using the default utilisation and maximum frame rate.
+	 */
+	public SpeedStreamer(int baudRate, Sink sink) {
+		this(baudRate, DEFAULT_UTILISATION, DEFAULT_MAX_FRAMES_PER_SEC, sink) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param baudRate the baud rate we communicate with the XBee at
+	 * @param utilisation fraction (0-1] of the link capacity the speed stream may use
+	 * @param maxFramesPerSecond upper limit on the stream rate
+	 * @param sink where the throttled speeds go
+	 */
+	public SpeedStreamer(int baudRate, double utilisation, int maxFramesPerSecond, Sink sink) {
+		this.sink = sink ;
+		this.utilisation = utilisation ;
+		this.maxFramesPerSecond = maxFramesPerSecond ;
+		this.timer = new Timer(0, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				flush() ;
+			}
+		});
+		this.timer.setRepeats(false) ;
+		setBaudRate(baudRate) ;
+	}
+
+	/**
+	 * Recalculate the frame interval for a new baud rate.
+	 */
+	public void setBaudRate(int baudRate) {
+		intervalNanos = (long) (1000000000L / maxFramesPerSecond(baudRate)) ;
+	}
+
+	/**
+	 * @return the most speed updates per second we will send at the specified baud rate
+	 */
+	public double maxFramesPerSecond(int baudRate) {
+		double linkFramesPerSecond = baudRate / (10.0 * FRAME_BYTES) ;
+		return Math.max(1.0, Math.min(maxFramesPerSecond, linkFramesPerSecond * utilisation)) ;
+	}
+
+	/**
+	 * @return the minimum time between two speed updates in milliseconds
+	 */
+	public long getIntervalMillis() {
+		return intervalNanos / 1000000L ;
+	}
+
+	/**
+	 * The slider has moved.
+	 *
+	 * @param speed the new speed
+	 * @param adjusting true while the slider is still being dragged, false once it has been released
+	 */
+	public void speedChanged(int speed, boolean adjusting) {
+		pendingSpeed = speed ;
+		if(!adjusting) {
+			flush() ;
+			return ;
+		}
+		long wait = lastSendNanos + intervalNanos - System.nanoTime() ;
+		if(wait <= 0) {
+			flush() ;
+		} else if(!timer.isRunning()) {
+			timer.setInitialDelay((int) Math.max(1, wait / 1000000L)) ;
+			timer.start() ;
+		}
+	}
+
+	/**
+	 * Forget any pending speed, eg because the robot has stopped.
+	 */
+	public void cancel() {
+		timer.stop() ;
+		pendingSpeed = -1 ;
+	}
+
+	/**
+	 * Send the pending speed, if any.
+	 */
+	private void flush() {
+		timer.stop() ;
+		if(pendingSpeed < 0)
+			return ;
+		int speed = pendingSpeed ;
+		pendingSpeed = -1 ;
+		lastSendNanos = System.nanoTime() ;
+		sink.sendSpeed(speed) ;
+	}
+}
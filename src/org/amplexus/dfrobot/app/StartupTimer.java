@@ -0,0 +1,142 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times how long the app takes to become useful, so startup can be tracked from run to run, in both the GUI and
+ * headless modes:
+ * - jvm: from the JVM starting to the timer being created, first thing in startup
+ * - ready: from then to the app being able to send commands - the explorer found
+ * - first ack: from then to the robot acknowledging the first command
+ * - interactive: from then to the GUI being usable - the frame shown with its icons. Not reached headless.
+ *
+ * save() appends one line per run to a tab separated history (see HEADER) - METRICS_DIRECTORY/startup.tsv in
+ * both modes - so the modes can be compared, and a startup regression shows up as soon as it happens.
+ *
+ * Thread safe: ready() and firstAck() may be called from any thread, and only the first call of each counts.
+ *
+ * @author craig
+ */
+public class StartupTimer {
+
+	public static final String GUI				= "gui" ;
+	public static final String HEADLESS			= "headless" ;
+	public static final String HISTORY_FILE		= "startup.tsv" ;
+	public static final String HEADER			= "date\tmode\tjvm_ms\tready_ms\tfirst_ack_ms\tinteractive_ms" ;
+
+	private final String mode ;						// GUI or HEADLESS
+	private final long startNanos = System.nanoTime() ;	// When we were created
+	private final long startMillis = System.currentTimeMillis() ;	// The same, by the wall clock
+	private final AtomicLong readyNanos = new AtomicLong() ;	// From startNanos to ready(), 0 until then
+	private final AtomicLong firstAckNanos = new AtomicLong() ;	// From startNanos to firstAck(), 0 until then
+	private final AtomicLong interactiveNanos = new AtomicLong() ;	// From startNanos to interactive(), 0 until then
+	private boolean saved = false ;					// Set once save() has written our line, guarded by this
+
+	/**
+	 * Constructor - startup is timed from now.
+	 *
+	 * @param mode GUI or HEADLESS
+	 */
+	public StartupTimer(String mode) {
+		this.mode = mode ;
+	}
+
+	/**
+	 * The app can send commands.
+	 *
+	 * @return true if this was the first call
+	 */
+	public boolean ready() {
+		return readyNanos.compareAndSet(0, Math.max(1, System.nanoTime() - startNanos)) ;
+	}
+
+	/**
+	 * The robot has acknowledged a command.
+	 *
+	 * @return true if this was the first call - the first command acknowledged
+	 */
+	public boolean firstAck() {
+		return firstAckNanos.get() == 0 && firstAckNanos.compareAndSet(0, Math.max(1, System.nanoTime() - startNanos)) ;
+	}
+
+	/**
+	 * The GUI is usable.
+	 *
+	 * @return true if this was the first call
+	 */
+	public boolean interactive() {
+		return interactiveNanos.compareAndSet(0, Math.max(1, System.nanoTime() - startNanos)) ;
+	}
+
+	/**
+	 * @return millis from startup to ready(), or -1 if we aren't ready yet
+	 */
+	public long getReadyMillis() {
+		long nanos = readyNanos.get() ;
+		return nanos == 0 ? -1 : nanos / 1000000L ;
+	}
+
+	/**
+	 * @return millis from startup to the first acknowledged command, or -1 if there hasn't been one
+	 */
+	public long getFirstAckMillis() {
+		long nanos = firstAckNanos.get() ;
+		return nanos == 0 ? -1 : nanos / 1000000L ;
+	}
+
+	/**
+	 * @return millis from startup to interactive(), or -1 if the GUI isn't usable yet
+	 */
+	public long getInteractiveMillis() {
+		long nanos = interactiveNanos.get() ;
+		return nanos == 0 ? -1 : nanos / 1000000L ;
+	}
+
+	/**
+	 * @return millis from the JVM starting to startup - class loading and anything main() did before us
+	 */
+	public long getJvmMillis() {
+		return startMillis - ManagementFactory.getRuntimeMXBean().getStartTime() ;
+	}
+
+	public String getMode() {
+		return mode ;
+	}
+
+	/**
+	 * Append our line to a history file, with the header if the file is new. Only the first call writes.
+	 *
+	 * @param file the history, eg METRICS_DIRECTORY/HISTORY_FILE
+	 */
+	public synchronized void save(File file) throws IOException {
+		if(saved)
+			return ;
+		saved = true ;
+		File directory = file.getAbsoluteFile().getParentFile() ;
+		if(directory != null)
+			directory.mkdirs() ;
+		boolean exists = file.length() > 0 ;
+		PrintWriter out = new PrintWriter(new FileWriter(file, true)) ;
+		try {
+			if(!exists)
+				out.println(HEADER) ;
+			out.println(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(startMillis)) + "\t" + mode + "\t" + getJvmMillis()
+					+ "\t" + getReadyMillis() + "\t" + getFirstAckMillis() + "\t" + getInteractiveMillis()) ;
+		} finally {
+			out.close() ;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mode + " startup: JVM " + getJvmMillis() + " ms, ready " + getReadyMillis() + " ms, first ack " + getFirstAckMillis()
+				+ " ms" + (GUI.equals(mode) ? ", interactive " + getInteractiveMillis() + " ms" : "") ;
+	}
+}
@@ -0,0 +1,78 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Coalesces items produced on a background thread into batches delivered on the EventDispatch thread.
+ *
+ * Calling invokeLater() for every inbound packet floods the event queue when the robot is streaming, and each
+ * one repaints the GUI for a single value. Instead, items are added to a pending list, and at most one
+ * invokeLater() is outstanding at a time: everything that arrives before the EventDispatch thread gets round to
+ * it is delivered in the same batch.
+ *
+ * The two lists are swapped rather than copied, so a steady stream allocates nothing once they have grown.
+ *
+ * @author craig
+ */
+public abstract class SwingBatcher<E> {
+
+	private List<E> pending = new ArrayList<E>() ;		// Items waiting for the EventDispatch thread
+	private List<E> delivering = new ArrayList<E>() ;	// The batch being delivered, only touched on the EventDispatch thread
+	private boolean scheduled = false ;					// True while an invokeLater() is outstanding
+	private long batches = 0 ;							// Batches delivered
+	private long items = 0 ;							// Items delivered
+
+	private final Runnable deliver = new Runnable() {
+		public void run() {
+			List<E> batch ;
+			synchronized(SwingBatcher.this) {
+				batch = pending ;
+				pending = delivering ;
+				scheduled = false ;
+				batches++ ;
+				items += batch.size() ;
+			}
+			try {
+				batch(batch) ;
+			} finally {
+				batch.clear() ;
+				synchronized(SwingBatcher.this) {
+					delivering = batch ;
+				}
+			}
+		}
+	} ;
+
+	/**
+	 * Queue an item for the next batch. Can be called on any thread.
+	 */
+	public void add(E item) {
+		synchronized(this) {
+			pending.add(item) ;
+			if(scheduled)
+				return ;
+			scheduled = true ;
+		}
+		SwingUtilities.invokeLater(deliver) ;
+	}
+
+	/**
+	 * @return the average number of items per batch, 0 if none have been delivered
+	 */
+	public synchronized double getAverageBatchSize() {
+		return batches == 0 ? 0 : (double) items / batches ;
+	}
+
+	public synchronized long getBatchCount() {
+		return batches ;
+	}
+
+	/**
+	 * Called on the EventDispatch thread with the items that arrived since the last batch, oldest first. The list
+	 * is reused once this returns, so don't keep a reference to it.
+	 */
+	protected abstract void batch(List<E> batch) ;
+}
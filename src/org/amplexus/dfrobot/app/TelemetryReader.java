@@ -0,0 +1,162 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back a session written by TelemetryRecorder, one frame at a time, oldest first, across all of its segments.
+ *
+ * Segments are mapped read only, and frames are copied into the caller's array, so reading a long session
+ * allocates nothing per frame:
+ *
+ *	TelemetryReader reader = new TelemetryReader(directory, session) ;
+ *	while(reader.next()) {
+ *		int length = reader.copyFrame(buffer) ;
+ *		...
+ *	}
+ *
+ * @author craig
+ */
+public class TelemetryReader {
+
+	private final File directory ;				// Where the segments are
+	private final String session ;				// The segment file name prefix
+	private MappedByteBuffer segment = null ;	// The segment being read, null once they are all read
+	private int segmentNumber = -1 ;			// The number of the segment being read
+	private long startMillis = 0 ;				// Wall clock time the session started
+	private long startNanos = 0 ;				// System.nanoTime() the session started
+	private int length = 0 ;					// The current frame's length
+	private byte direction = 0 ;				// The current frame's direction
+	private long nanos = 0 ;					// When the current frame crossed the serial port
+	private int framePosition = 0 ;				// Where the current frame's bytes start in the segment
+
+	/**
+	 * Constructor. Opens the first segment.
+	 *
+	 * @param directory where the segments are
+	 * @param session the session's name, ie the segment file name prefix
+	 * @throws IOException if the session's first segment can't be read
+	 */
+	public TelemetryReader(File directory, String session) throws IOException {
+		this.directory = directory ;
+		this.session = session ;
+		if(!openSegment(0))
+			throw new IOException("No such recording: " + TelemetryRecorder.segmentFile(directory, session, 0)) ;
+	}
+
+	/**
+	 * Move on to the next frame.
+	 *
+	 * @return false if there are no more frames
+	 * @throws IOException if a segment is corrupt or can't be read
+	 */
+	public boolean next() throws IOException {
+		while(segment != null) {
+			if(segment.remaining() >= TelemetryRecorder.RECORD_HEADER_BYTES) {
+				int position = segment.position() ;
+				length = segment.getShort() & 0xffff ;
+				if(length > 0) {
+					direction = segment.get() ;
+					nanos = segment.getLong() ;
+					if(length > segment.remaining())
+						throw new IOException("Truncated frame at " + position + " in segment " + segmentNumber) ;
+					framePosition = segment.position() ;
+					segment.position(framePosition + length) ;
+					return true ;
+				}
+			}
+			if(!openSegment(segmentNumber + 1))
+				segment = null ;
+		}
+		return false ;
+	}
+
+	/**
+	 * @return TelemetryRecorder.INBOUND or OUTBOUND
+	 */
+	public byte getDirection() {
+		return direction ;
+	}
+
+	public boolean isInbound() {
+		return direction == TelemetryRecorder.INBOUND ;
+	}
+
+	/**
+	 * @return when the current frame crossed the serial port, System.nanoTime() when it was recorded
+	 */
+	public long getNanos() {
+		return nanos ;
+	}
+
+	/**
+	 * @return the current frame's time stamp as a wall clock time, epoch millis
+	 */
+	public long getMillis() {
+		return startMillis + (nanos - startNanos) / 1000000L ;
+	}
+
+	/**
+	 * @return the current frame's length in bytes
+	 */
+	public int getLength() {
+		return length ;
+	}
+
+	/**
+	 * Copy the current frame - escaped, with start byte and checksum.
+	 *
+	 * @param into receives the frame, must hold at least getLength() bytes
+	 * @return the frame's length
+	 */
+	public int copyFrame(byte[] into) {
+		for(int i = 0; i < length; i++)
+			into[i] = segment.get(framePosition + i) ;
+		return length ;
+	}
+
+	/**
+	 * @return the wall clock time the session started, epoch millis
+	 */
+	public long getStartMillis() {
+		return startMillis ;
+	}
+
+	/**
+	 * @return the number of the segment being read
+	 */
+	public int getSegmentNumber() {
+		return segmentNumber ;
+	}
+
+	/**
+	 * Map a segment and check its header.
+	 *
+	 * @return false if the segment doesn't exist
+	 */
+	private boolean openSegment(int number) throws IOException {
+		File file = TelemetryRecorder.segmentFile(directory, session, number) ;
+		if(!file.isFile())
+			return false ;
+		RandomAccessFile raf = new RandomAccessFile(file, "r") ;
+		try {
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()) ;
+			if(mapped.remaining() < TelemetryRecorder.HEADER_BYTES || mapped.getInt() != TelemetryRecorder.MAGIC)
+				throw new IOException(file + " is not a recording") ;
+			int version = mapped.getInt() ;
+			if(version != TelemetryRecorder.VERSION)
+				throw new IOException(file + " is recording version " + version + ", we read " + TelemetryRecorder.VERSION) ;
+			mapped.getInt() ;		// Segment number
+			startMillis = mapped.getLong() ;
+			startNanos = mapped.getLong() ;
+			segment = mapped ;
+			segmentNumber = number ;
+			return true ;
+		} finally {
+			raf.close() ;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.XBeePacket;
+
+/**
+ * Records every frame to and from the explorer, with a nanosecond time stamp, in compact binary segment files.
+ *
+ * Each segment is a fixed size file, mapped into memory, so recording a frame is a copy into the mapping - no
+ * system call, no formatting and no flush - and the operating system writes the pages out in the background.
+ * That keeps recording off the send path's critical time: the engine records each frame while it still holds
+ * the encoded buffer, which costs about as much as encoding it. When a segment fills, recording moves on to the
+ * next one, which has already been created and mapped by the "telemetry-recorder" thread.
+ *
+ * Segment files are named <session>-NNNN.rec, and laid out as:
+ * - header: magic "DFRT" (int), VERSION (int), segment number (int), session start (long, epoch millis) and
+ *   session start (long, System.nanoTime()) - so a reader can turn time stamps into wall clock times
+ * - records: length (short), direction INBOUND or OUTBOUND (byte), System.nanoTime() (long), then length bytes
+ *   of the frame exactly as it crossed the serial port - API mode 2, start byte, escaped, with checksum
+ * - a zero length marks the end of the segment's records
+ *
+ * TelemetryReader reads a session back, and TelemetryReplay feeds one through a ReceivePipeline.
+ *
+ * @author craig
+ */
+public class TelemetryRecorder {
+
+	public static final int MAGIC					= 0x44465254 ;	// "DFRT"
+	public static final int VERSION					= 1 ;
+	public static final int HEADER_BYTES			= 28 ;		// magic, version, segment, start millis, start nanos
+	public static final int RECORD_HEADER_BYTES		= 11 ;		// length, direction, nanos
+	public static final byte INBOUND				= 1 ;		// From the explorer to us
+	public static final byte OUTBOUND				= 2 ;		// From us to the explorer
+	public static final int DEFAULT_SEGMENT_BYTES	= 8 * 1024 * 1024 ;
+	public static final String EXTENSION			= ".rec" ;
+
+	private final File directory ;					// Where the segments go
+	private final String session ;					// The segment file name prefix
+	private final int segmentBytes ;				// The size of each segment file
+	private final long startMillis ;				// Wall clock time the session started
+	private final long startNanos ;					// System.nanoTime() the session started
+	private final ExecutorService preparer ;		// Creates and maps the next segment ahead of time
+	private MappedByteBuffer segment ;				// The segment being recorded to, null once closed
+	private Future<MappedByteBuffer> nextSegment ;	// The next segment, being prepared
+	private int segmentNumber = 0 ;					// The number of the segment being recorded to
+	private long records = 0 ;						// Frames recorded
+	private long bytes = 0 ;						// Frame bytes recorded
+	private long dropped = 0 ;						// Frames not recorded, eg too big or recording failed
+    private final static Logger log = Logger.getLogger(TelemetryRecorder.class);
+
+	/**
+	 * Constructor, using the default segment size and a session name based on the current time.
+	 */
+	public TelemetryRecorder(File directory) throws IOException {
+		this(directory, newSessionName(), DEFAULT_SEGMENT_BYTES) ;
+	}
+
+	/**
+	 * Constructor. Creates and maps the first segment.
+	 *
+	 * @param directory where the segments go - created if need be
+	 * @param session the segment file name prefix
+	 * @param segmentBytes the size of each segment file
+	 * @throws IOException if the first segment can't be created
+	 */
+	public TelemetryRecorder(File directory, String session, int segmentBytes) throws IOException {
+		if(segmentBytes < HEADER_BYTES + RECORD_HEADER_BYTES + XBeeFrameEncoder.MAX_PAYLOAD * 2 + 32)
+			throw new IllegalArgumentException("Segments must hold at least one frame: " + segmentBytes) ;
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create " + directory) ;
+		this.directory = directory ;
+		this.session = session ;
+		this.segmentBytes = segmentBytes ;
+		this.startMillis = System.currentTimeMillis() ;
+		this.startNanos = System.nanoTime() ;
+		this.preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "telemetry-recorder") ;
+				t.setDaemon(true) ;
+				return t ;
+			}
+		});
+		this.segment = createSegment(0) ;
+		this.nextSegment = prepare(1) ;
+		log.info("Recording to " + segmentFile(directory, session, 0)) ;
+	}
+
+	/**
+	 * @return a session name based on the current time, eg session-20120521-193005
+	 */
+	public static String newSessionName() {
+		return "session-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) ;
+	}
+
+	/**
+	 * @return the file holding the specified segment of a session
+	 */
+	public static File segmentFile(File directory, String session, int segmentNumber) {
+		return new File(directory, session + "-" + String.format("%04d", segmentNumber) + EXTENSION) ;
+	}
+
+	/**
+	 * Record a frame we wrote to the explorer.
+	 *
+	 * @param frame the frame as written - escaped, with start byte and checksum
+	 * @param offset where the frame starts in the array
+	 * @param length the frame's length
+	 * @param nanos when it was written
+	 */
+	public synchronized void recordOutbound(byte[] frame, int offset, int length, long nanos) {
+		if(!reserve(length, OUTBOUND, nanos))
+			return ;
+		segment.put(frame, offset, length) ;
+	}
+
+	/**
+	 * Record a frame we handed to the XBee api to write, eg from XBeePacket.getByteArray().
+	 *
+	 * @param packet the frame as written - escaped, with start byte and checksum
+	 * @param nanos when it was written
+	 */
+	public synchronized void recordOutbound(int[] packet, long nanos) {
+		if(!reserve(packet.length, OUTBOUND, nanos))
+			return ;
+		for(int i = 0; i < packet.length; i++)
+			segment.put((byte) packet[i]) ;
+	}
+
+	/**
+	 * Record a frame the XBee api read from the explorer.
+	 *
+	 * @param rawPacketBytes the frame as read, from XBeeResponse.getRawPacketBytes() - escaped, with checksum,
+	 * but without the start byte
+	 * @param nanos when it arrived
+	 */
+	public synchronized void recordInbound(int[] rawPacketBytes, long nanos) {
+		if(rawPacketBytes == null || !reserve(rawPacketBytes.length + 1, INBOUND, nanos))
+			return ;
+		segment.put((byte) XBeePacket.SpecialByte.START_BYTE.getValue()) ;
+		for(int i = 0; i < rawPacketBytes.length; i++)
+			segment.put((byte) rawPacketBytes[i]) ;
+	}
+
+	/**
+	 * Stop recording: flush the segment being recorded to, and delete the one prepared for it.
+	 */
+	public synchronized void close() {
+		if(segment == null)
+			return ;
+		segment.force() ;
+		segment = null ;
+		nextSegment.cancel(false) ;
+		preparer.shutdown() ;
+		try {
+			nextSegment.get() ;
+			segmentFile(directory, session, segmentNumber + 1).delete() ;
+		} catch (Exception e) {
+			// Never created
+		}
+		log.info("Recorded " + records + " frames (" + bytes + " bytes) in " + (segmentNumber + 1) + " segment(s), dropped "
+				+ dropped) ;
+	}
+
+	public File getDirectory() {
+		return directory ;
+	}
+
+	public String getSession() {
+		return session ;
+	}
+
+	public synchronized long getRecordCount() {
+		return records ;
+	}
+
+	public synchronized long getDroppedCount() {
+		return dropped ;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segmentNumber + 1 ;
+	}
+
+	/**
+	 * Make room for a record and write its header, moving on to the next segment if this one is full.
+	 *
+	 * @return false if the frame can't be recorded
+	 */
+	private boolean reserve(int length, byte direction, long nanos) {
+		if(segment == null || length <= 0 || length > Short.MAX_VALUE) {
+			dropped++ ;
+			return false ;
+		}
+		if(segment.remaining() < RECORD_HEADER_BYTES + length + 2) {		// Leave room for the end marker
+			if(!nextSegment()) {
+				dropped++ ;
+				return false ;
+			}
+			if(segment.remaining() < RECORD_HEADER_BYTES + length + 2) {
+				dropped++ ;
+				return false ;
+			}
+		}
+		segment.putShort((short) length) ;
+		segment.put(direction) ;
+		segment.putLong(nanos) ;
+		records++ ;
+		bytes += length ;
+		return true ;
+	}
+
+	/**
+	 * Finish the current segment and switch to the prepared one.
+	 *
+	 * @return false if there is no next segment, in which case recording stops
+	 */
+	private boolean nextSegment() {
+		segment.putShort((short) 0) ;
+		try {
+			MappedByteBuffer next = nextSegment.get() ;		// Normally ready long ago
+			segment = next ;
+			segmentNumber++ ;
+			nextSegment = prepare(segmentNumber + 1) ;
+			return true ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+			log.error("Interrupted waiting for segment " + (segmentNumber + 1) + ", recording stopped") ;
+		} catch (ExecutionException e) {
+			log.error("Error creating segment " + (segmentNumber + 1) + ", recording stopped", e.getCause()) ;
+		}
+		segment = null ;
+		preparer.shutdown() ;
+		return false ;
+	}
+
+	private Future<MappedByteBuffer> prepare(final int number) {
+		return preparer.submit(new Callable<MappedByteBuffer>() {
+			public MappedByteBuffer call() throws IOException {
+				return createSegment(number) ;
+			}
+		});
+	}
+
+	/**
+	 * Create a segment file, map it, and write its header.
+	 */
+	private MappedByteBuffer createSegment(int number) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(directory, session, number), "rw") ;
+		try {
+			file.setLength(segmentBytes) ;
+			MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes) ;
+			mapped.putInt(MAGIC) ;
+			mapped.putInt(VERSION) ;
+			mapped.putInt(number) ;
+			mapped.putLong(startMillis) ;
+			mapped.putLong(startNanos) ;
+			return mapped ;
+		} finally {
+			file.close() ;			// The mapping stays valid
+		}
+	}
+}
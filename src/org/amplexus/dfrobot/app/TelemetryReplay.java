@@ -0,0 +1,181 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.XBeeConnection;
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Plays the inbound frames of a recorded session back through the XBee api, and so through any ReceivePipeline
+ * (or other packet listener) attached to getLink() - exactly as if the explorer were sending them again.
+ *
+ * Replays either in real time, keeping the recorded gaps between frames (or a multiple of them), or at
+ * MAXIMUM_SPEED, as fast as the XBee api can parse them. Outbound frames are skipped, since there is nothing
+ * to send them to.
+ *
+ *	TelemetryReplay replay = new TelemetryReplay(directory, session) ;
+ *	ReceivePipeline pipeline = new ReceivePipeline(replay.getLink()) ;
+ *	pipeline.addTelemetryListener(...) ;
+ *	replay.replay(TelemetryReplay.REAL_TIME) ;
+ *
+ * @author craig
+ */
+public class TelemetryReplay {
+
+	public static final double REAL_TIME		= 1.0 ;
+	public static final double MAXIMUM_SPEED	= 0 ;
+	public static final int BUFFER_BYTES		= 64 * 1024 ;	// Replayed bytes the XBee api hasn't parsed yet
+	private static final String PORT			= "replay" ;
+
+	private final File directory ;						// Where the recording is
+	private final String session ;						// The recording's name
+	private final ReplayConnection connection = new ReplayConnection() ;	// Feeds the frames to the XBee api
+	private final XBeeLinkManager link ;				// Owns the XBee reading from the connection
+	private long frames = 0 ;							// Inbound frames replayed
+    private final static Logger log = Logger.getLogger(TelemetryReplay.class);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory where the recording is
+	 * @param session the recording's name, ie its segment file name prefix
+	 */
+	public TelemetryReplay(File directory, String session) {
+		this.directory = directory ;
+		this.session = session ;
+		this.link = new XBeeLinkManager() {
+			@Override
+			protected XBeeConnection openConnection(String commPort, int baudRate) {
+				return connection ;
+			}
+		} ;
+	}
+
+	/**
+	 * @return the link that delivers the replayed frames - attach packet listeners or a ReceivePipeline here
+	 */
+	public XBeeLinkManager getLink() {
+		return link ;
+	}
+
+	/**
+	 * Replay the recording. Blocks until the XBee api has read every inbound frame.
+	 *
+	 * @param speed REAL_TIME, a multiple of it (eg 10 for ten times faster), or MAXIMUM_SPEED
+	 * @return the number of frames replayed
+	 * @throws IOException if the recording can't be read
+	 * @throws XBeeException if the XBee api can't be started
+	 */
+	public long replay(double speed) throws IOException, XBeeException {
+		TelemetryReader reader = new TelemetryReader(directory, session) ;
+		link.acquire(PORT, 0) ;
+		byte[] frame = new byte[Short.MAX_VALUE] ;
+		long firstNanos = -1 ;
+		long replayStartNanos = System.nanoTime() ;
+		frames = 0 ;
+		try {
+			while(reader.next()) {
+				if(!reader.isInbound())
+					continue ;
+				if(firstNanos < 0)
+					firstNanos = reader.getNanos() ;
+				if(speed > 0) {
+					long dueNanos = replayStartNanos + (long) ((reader.getNanos() - firstNanos) / speed) ;
+					long waitNanos = dueNanos - System.nanoTime() ;
+					if(waitNanos > 0)
+						TimeUnit.NANOSECONDS.sleep(waitNanos) ;
+				}
+				int length = reader.copyFrame(frame) ;
+				connection.append(frame, length) ;
+				frames++ ;
+			}
+			connection.drain() ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+			throw new IOException("Interrupted replaying " + session) ;
+		}
+		long millis = (System.nanoTime() - replayStartNanos) / 1000000L ;
+		log.info("Replayed " + frames + " frames from " + session + " in " + millis + " ms") ;
+		return frames ;
+	}
+
+	/**
+	 * Stop the XBee api reading the replay.
+	 */
+	public void close() {
+		link.close() ;
+	}
+
+	/**
+	 * The serial port the XBee api reads the replayed frames from. The api's input thread waits on the
+	 * connection when there is nothing available, so we notify it whenever we append a frame. The buffer is
+	 * bounded: replaying at maximum speed waits for the api to catch up rather than buffering the whole
+	 * recording.
+	 */
+	private static class ReplayConnection extends InputStream implements XBeeConnection {
+		private final byte[] buffer = new byte[BUFFER_BYTES] ;
+		private int head = 0 ;
+		private int count = 0 ;
+		private final OutputStream discard = new OutputStream() {
+			public void write(int b) {
+			}
+		} ;
+
+		void append(byte[] frame, int length) throws InterruptedException {
+			synchronized(this) {
+				while(count + length > buffer.length)
+					wait() ;
+				for(int i = 0; i < length; i++)
+					buffer[(head + count++) % buffer.length] = frame[i] ;
+				notifyAll() ;
+			}
+		}
+
+		/**
+		 * Wait until the XBee api has read everything appended.
+		 */
+		synchronized void drain() throws InterruptedException {
+			while(count > 0)
+				wait() ;
+		}
+
+		@Override
+		public synchronized int available() {
+			return count ;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			while(count == 0) {
+				try {
+					wait() ;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt() ;
+					throw new IOException("interrupted") ;
+				}
+			}
+			int b = buffer[head] & 0xff ;
+			head = (head + 1) % buffer.length ;
+			count-- ;
+			notifyAll() ;
+			return b ;
+		}
+
+		public InputStream getInputStream() {
+			return this ;
+		}
+
+		public OutputStream getOutputStream() {
+			return discard ;
+		}
+
+		public void close() {
+		}
+	}
+}
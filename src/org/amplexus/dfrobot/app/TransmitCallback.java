@@ -0,0 +1,17 @@
+package org.amplexus.dfrobot.app;
+
+/**
+ * Told when a frame sent by the XBeeTransmitEngine completes.
+ *
+ * Called on the XBee api's input thread (or the engine's timeout thread), so implementations must be quick and
+ * must not send frames synchronously.
+ *
+ * @author craig
+ */
+public interface TransmitCallback {
+
+	/**
+	 * @param future the completed frame - check isSuccess(), getStatus() and getError()
+	 */
+	void transmitCompleted(TransmitFuture future) ;
+}
@@ -0,0 +1,171 @@
+package org.amplexus.dfrobot.app;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.wpan.TxStatusResponse;
+
+/**
+ * The outcome of a frame sent by the XBeeTransmitEngine.
+ *
+ * Completes when the explorer reports the TX status for the frame, or when the engine gives up on it (timeout,
+ * or the link was re-opened). Either block on get(), or supply a TransmitCallback to be told without blocking.
+ *
+ * Frames that have already been handed to the XBee can't be recalled, so cancel() always returns false.
+ *
+ * Futures for frames sent with XBeeTransmitEngine.send() are recycled by the engine once the frame's id comes
+ * round again, so they are only valid inside the callback.
+ *
+ * @author craig
+ */
+public class TransmitFuture implements Future<TxStatusResponse> {
+
+	private int frameId ;							// The API frame id the TX status will carry
+	private int[] payload ;							// What we sent, for diagnostics - null for send()
+	private TransmitCallback callback ;				// Told when we complete, may be null
+	private Object attachment ;						// Whatever the sender wants the callback to see, may be null
+	private boolean done ;							// Set once we have completed, guarded by this
+	private int generation ;						// Incremented each time we are recycled, guarded by this
+	private volatile long sentNanos ;				// When the frame was handed to the XBee
+	private volatile long completedNanos ;			// When the TX status (or failure) arrived
+	private volatile TxStatusResponse status ;		// The TX status, if one arrived
+	private volatile XBeeException error ;			// Why we failed, if no TX status arrived
+
+	TransmitFuture(int frameId, int[] payload, TransmitCallback callback) {
+		reset(frameId, payload, callback, null) ;
+	}
+
+	/**
+	 * Make ready for a new frame. Called by the engine, which must know nothing else still refers to us.
+	 */
+	synchronized void reset(int frameId, int[] payload, TransmitCallback callback, Object attachment) {
+		this.frameId = frameId ;
+		this.payload = payload ;
+		this.callback = callback ;
+		this.attachment = attachment ;
+		this.status = null ;
+		this.error = null ;
+		this.done = false ;
+		this.generation++ ;
+		this.sentNanos = System.nanoTime() ;
+	}
+
+	/**
+	 * Complete with a TX status or an error. Called by the engine - only the first call has any effect.
+	 *
+	 * @return true if this call completed us
+	 */
+	boolean complete(TxStatusResponse status, XBeeException error) {
+		return complete(generation(), status, error) ;
+	}
+
+	/**
+	 * Complete, as long as we haven't been recycled since the caller looked at us.
+	 *
+	 * @param generation from generation(), when the caller decided to complete us
+	 * @return true if this call completed us
+	 */
+	boolean complete(int generation, TxStatusResponse status, XBeeException error) {
+		synchronized(this) {
+			if(done || generation != this.generation)
+				return false ;
+			this.status = status ;
+			this.error = error ;
+			this.completedNanos = System.nanoTime() ;
+			done = true ;
+			notifyAll() ;
+		}
+		if(callback != null)
+			callback.transmitCompleted(this) ;
+		return true ;
+	}
+
+	synchronized int generation() {
+		return generation ;
+	}
+
+	public int getFrameId() {
+		return frameId ;
+	}
+
+	public int[] getPayload() {
+		return payload ;
+	}
+
+	/**
+	 * @return the attachment supplied to XBeeTransmitEngine.send(), or null
+	 */
+	public Object getAttachment() {
+		return attachment ;
+	}
+
+	public long getSentNanos() {
+		return sentNanos ;
+	}
+
+	/**
+	 * @return how long the TX status took to arrive in nanoseconds, or -1 if we are not done yet
+	 */
+	public long getLatencyNanos() {
+		return isDone() ? completedNanos - sentNanos : -1 ;
+	}
+
+	/**
+	 * @return the TX status, or null if we are not done or no status arrived
+	 */
+	public TxStatusResponse getStatus() {
+		return status ;
+	}
+
+	/**
+	 * @return why we failed without a TX status, or null
+	 */
+	public XBeeException getError() {
+		return error ;
+	}
+
+	/**
+	 * @return true if the explorer reported the frame was delivered (acked) successfully
+	 */
+	public boolean isSuccess() {
+		return status != null && status.isSuccess() ;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false ;
+	}
+
+	public boolean isCancelled() {
+		return false ;
+	}
+
+	public synchronized boolean isDone() {
+		return done ;
+	}
+
+	public synchronized TxStatusResponse get() throws InterruptedException, ExecutionException {
+		while(!done)
+			wait() ;
+		return result() ;
+	}
+
+	public synchronized TxStatusResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout) ;
+		while(!done) {
+			long remaining = deadline - System.nanoTime() ;
+			if(remaining <= 0)
+				throw new TimeoutException("No TX status for frame " + frameId) ;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining) ;
+		}
+		return result() ;
+	}
+
+	private TxStatusResponse result() throws ExecutionException {
+		if(error != null)
+			throw new ExecutionException(error) ;
+		return status ;
+	}
+}
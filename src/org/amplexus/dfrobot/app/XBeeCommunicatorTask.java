@@ -1,22 +1,17 @@
 package org.amplexus.dfrobot.app;
 
-import java.util.List;
-
-import javax.swing.SwingWorker;
+import java.io.OutputStream;
 
 import org.apache.log4j.Logger;
 
 import com.rapplogic.xbee.api.XBee;
-import com.rapplogic.xbee.api.XBeeAddress16;
 import com.rapplogic.xbee.api.XBeeException;
 import com.rapplogic.xbee.api.XBeeTimeoutException;
-import com.rapplogic.xbee.api.wpan.TxRequest16;
-import com.rapplogic.xbee.api.wpan.TxStatusResponse;
 
 /**
 *   ATSL to get the low bits.
  *   
- * PROTOCOL DATA PC TO XBEE: 2 x bytes where first byte is a command and the second byte is data
+ * PROTOCOL DATA PC TO XBEE: 2 x bytes where first byte is a command and the second byte is data, except where noted
  * - motor stop:			byte 1 = 00, byte 2 = N/A
  * - motor forward:			byte 1 = 01, byte 2 = speed (0-255)
  * - motor backward:		byte 1 = 02, byte 2 = speed (0-255)
@@ -26,18 +21,30 @@ import com.rapplogic.xbee.api.wpan.TxStatusResponse;
  * - pan-tilt right:		byte 1 = 06, byte 2 = N/A																					# NOT YET SUPPORTED
  * - pan-tilt up:			byte 1 = 07, byte 2 = N/A																					# NOT YET SUPPORTED
  * - pan-tilt down:			byte 1 = 08, byte 2 = N/A																					# NOT YET SUPPORTED
- * - ping					byte 1 = 09, byte 2 = N/A																					# NOT YET SUPPORTED
+ * - ping					byte 1 = 09, byte 2 = sequence number (0-255), echoed back in the reply
  * - camera zoom:			byte 1 = 10, byte 2 = amount (-127 to 128), where negative is zoom out and positive is zoom in				# NOT YET SUPPORTED
  * - camera picture:		byte 1 = 11, byte 2 = quality (0-255) where 0 is lowest and 255 is highest									# NOT YET SUPPORTED
  * - video stream start:	byte 1 = 12, byte 2 = quality (0-255) where 0 is lowest and 255 is highest									# NOT YET SUPPORTED
  * - video stream stop:		byte 1 = 13, byte 2 = N/A																					# NOT YET SUPPORTED
- * - infrared poll:			byte 1 = 14, byte 2 = sensor to poll (0, 1 or 2)															# NOT YET SUPPORTED
- * - infrared sample start:	byte 1 = 15, byte 2 = poll interval (10-255) x 10 millis - ie 50 = 500 millis. if < 10 ignored				# NOT YET SUPPORTED 
- * - infrared sample stop:	byte 1 = 16, byte 2 = N/A	
- *																			# NOT YET SUPPORTED
+ * - infrared poll:			byte 1 = 14, byte 2 = sensor to poll (0, 1 or 2)
+ * - infrared sample start:	byte 1 = 15, byte 2 = poll interval (10-255) x 10 millis - ie 50 = 500 millis. if < 10 ignored. The
+ *							robot sends a sample from each sensor every interval until told to stop
+ * - infrared sample stop:	byte 1 = 16, byte 2 = N/A
+ * - keepalive:				byte 1 = 17, byte 2 = watchdog timeout (1-255) x 10 millis. Sent while a key is held in hold to
+ *							drive mode: the robot stops if nothing arrives from us within the timeout
+ * - batch:					byte 1 = 18, byte 2 = version (1), byte 3 = flags, byte 4 = count, then count commands of 2 bytes
+ *							each (3 for motor vector) - with the MY address MSB and LSB first if flags bit 0 is set. See CommandBatch
+ * - motor vector:			byte 1 = 19, byte 2 = left track speed, byte 3 = right track speed, each signed (-127 to 127) where
+ *							negative is backwards. One frame for any arc or spin - see DriveVector
+ *
+ * PROTOCOL DATA XBEE TO PC: RX 16 packets from the robot, where the first byte is the command being answered
+ * - ping reply:			byte 1 = 09, byte 2 = sequence number from the ping
+ * - infrared sample:		byte 1 = 14, byte 2 = sensor (0, 1 or 2), byte 3 = distance (0-255). Sent in reply to a poll, and every
+ *							poll interval while sampling
+ *
  * PROTOCOL LOGIC PC TO XBEE
  *	- startup()
- *		- XBee.open(...)
+ *		- XBeeLinkManager.acquire(...) # opened once and shared by every command
  *		- flushPending()
  *	- motor<Dir>Command(speed) # where <Dir> is one of Left, Right, Forward, Backwards, Stop
  *		- flushPending()
@@ -60,13 +67,15 @@ import com.rapplogic.xbee.api.wpan.TxStatusResponse;
  * 
  * @author craig
  */
-class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
+public class XBeeCommunicatorTask {
 	/*
 	 * Networking info
 	 */
 	public static final int PANID				= 0x4545;	// The network we communicate on
 	public static final int XBEE_SHIELD_MY_MSB	= 0x80;		// The MY address MSB of the XBee we are talking to
 	public static final int XBEE_SHIELD_MY_LSB	= 0x81;		// The MY address LSB of the XBee we are talking to
+	public static final XBeeFrameEncoder.Destination XBEE_SHIELD = new XBeeFrameEncoder.Destination(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB) ;
+	public static final XBeeFrameEncoder.Destination BROADCAST = new XBeeFrameEncoder.Destination(0xFF, 0xFF) ;	// Every XBee on the PAN
 	/*
 	 * Commands we send to the robot
 	 */
@@ -82,6 +91,12 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	public static final int CMD_PING				= 9 ;
 	public static final int CMD_AUTONOMOUS_MODE_ON	= 10 ;
 	public static final int CMD_AUTONOMOUS_MODE_OFF	= 11 ;
+	public static final int CMD_INFRARED_POLL		= 14 ;
+	public static final int CMD_INFRARED_SAMPLE_START	= 15 ;
+	public static final int CMD_INFRARED_SAMPLE_STOP	= 16 ;
+	public static final int CMD_KEEPALIVE			= 17 ;
+	public static final int CMD_BATCH				= 18 ;
+	public static final int CMD_MOTOR_VECTOR		= 19 ;
 	/*
 	 * Stringified command names
 	 */
@@ -98,29 +113,54 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 		"PING",
 		"AUTO ON",
 		"AUTO OFF",
+		"VIDEO START",
+		"VIDEO STOP",
+		"IR POLL",
+		"IR SAMPLE START",
+		"IR SAMPLE STOP",
+		"KEEPALIVE",
+		"BATCH",
+		"MOTOR VECTOR",
 	} ;
-    private XBee xbee = new XBee(); // We communicate with the robot via the XBee api
+    private XBee xbee = null ;						// We communicate with the robot via the XBee api
+    private OutputStream out = null ;				// The serial port under xbee, which our frames are written to
+    private XBeeLinkManager link ;					// Owns the shared, long lived connection that xbee comes from
+    private XBeeTransmitEngine engine ;				// Sends our frames asynchronously and matches up their TX status
+    private boolean priority ;						// True to use the engine's reserved priority slots
     
     /*
-     * All the information pertaining to the command we are executing in this task
+     * All the information pertaining to the command we are currently executing
      */
-    private int command ;							// The command (CMD_*) we are executing in this task 
-    private int baudRate ;							// The BAUD rate we communicate at over the USB port (commPort)
+    private int command ;							// The command (CMD_*) we are executing
 	private int data ; 								// For the movement commands, data is speed (0-255). Otherwise not used
-	private String commPort ;						// The USB port we communicate over
-	private DFRobot4WDPlatformController gui ;		// We might need to update widgets in the GUI
+	private XBeeFrameEncoder.Destination destination ;	// The robot the command is for
+	private TransmitCallback callback ;				// Told when the command's TX status arrives
+	private Object attachment ;						// Handed to the callback along with the command's future
 	private String lastError = null ;				// If there was an error, the message goes here
+	private final int[] vectorPayload = new int[3] ;	// Reused for each motor vector, which doesn't fit sendCommand()
     private final static Logger log = Logger.getLogger(XBeeCommunicatorTask.class);
 	
     /**
 	 * Constructor.
+	 * 
+	 * @param link the shared connection to the XBee explorer
+	 * @param engine sends our frames asynchronously
 	 */
-	public XBeeCommunicatorTask(int command, int data, String commPort, int baudRate, DFRobot4WDPlatformController gui) {
-		this.command = command ;
-		this.commPort = commPort ;
-		this.data = data ;
-		this.baudRate = baudRate ;
-		this.gui = gui ;
+	public XBeeCommunicatorTask(XBeeLinkManager link, XBeeTransmitEngine engine) {
+		this(link, engine, false) ;
+	}
+	
+    /**
+	 * Constructor.
+	 * 
+	 * @param link the shared connection to the XBee explorer
+	 * @param engine sends our frames asynchronously
+	 * @param priority true to send through the engine's reserved priority slots, for urgent commands
+	 */
+	public XBeeCommunicatorTask(XBeeLinkManager link, XBeeTransmitEngine engine, boolean priority) {
+		this.link = link ;
+		this.engine = engine ;
+		this.priority = priority ;
 	}
 	
 	/**
@@ -131,17 +171,52 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	}
 	
 	/**
-	 * Execute the command specified in the constructor.
+	 * Execute a command.
+	 * 
+	 * Borrows the shared communications channel to the XBee explorer from the link manager (opening it if this
+	 * is the first command, or the port / baud rate has changed) and issues the command. The channel is left open
+	 * for the next command, unless the command fails in which case it is invalidated so the next command re-opens it.
 	 * 
-	 * Opens a communications channel to the XBee explorer, issues the command and closes the channel.
+	 * Called on the CommandDispatcher thread, one command at a time. Returns as soon as the frame has been written
+	 * to the explorer - the TX status arrives later through the callback. Nothing is allocated per command, so the
+	 * callback must not keep the future it is handed (see XBeeTransmitEngine.send()).
 	 * 
-	 * Performs the work in a separate task.
+	 * @param command the command (CMD_*) to execute
+	 * @param data for the movement commands, data is speed (0-255) - or for CMD_MOTOR_VECTOR both track speeds, as
+	 * packed by RobotCommand.vector(). Otherwise not used
+	 * @param commPort the USB port we communicate over
+	 * @param baudRate the baud rate we communicate at
+	 * @param callback told when the command's TX status arrives, may be null
+	 * @param attachment handed to the callback via TransmitFuture.getAttachment(), may be null
+	 * @return true if the frame was sent, false if the command is invalid - getLastError() describes why
+	 * @throws XBeeException if the command could not be sent - getLastError() describes why
 	 */
-	@Override
-	protected Integer doInBackground() throws Exception {
-		log.info("Executing command: " + stringifiedCommandName(command)) ;
+	public boolean execute(int command, int data, String commPort, int baudRate, TransmitCallback callback, Object attachment) throws XBeeException {
+		return execute(command, data, XBEE_SHIELD, commPort, baudRate, callback, attachment) ;
+	}
+	
+	/**
+	 * Execute a command on a specific robot - see execute() above.
+	 * 
+	 * A command sent to BROADCAST reaches every robot on the PAN, but no robot acknowledges it, so its TX status
+	 * only says the frame left the explorer.
+	 * 
+	 * @param destination the robot's XBee, or BROADCAST
+	 */
+	public boolean execute(int command, int data, XBeeFrameEncoder.Destination destination, String commPort, int baudRate,
+			TransmitCallback callback, Object attachment) throws XBeeException {
+		this.command = command ;
+		this.destination = destination ;
+		this.data = data ;
+		this.callback = callback ;
+		this.attachment = attachment ;
+		this.lastError = null ;
+		boolean sent = true ;
+		if(log.isDebugEnabled())
+			log.debug("Executing command: " + stringifiedCommandName(command)) ;
 		try {
-			xbee.open(commPort, baudRate);
+			xbee = link.acquire(commPort, baudRate) ;
+			out = link.getOutputStream(xbee) ;
 			switch(command) {
 			case CMD_MOTOR_BACKWARDS: 
 				motorBackwards() ;
@@ -158,13 +233,32 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 			case CMD_MOTOR_STOP:
 				motorStop() ;
 				break ;
+			case CMD_MOTOR_VECTOR:
+				motorVector() ;
+				break ;
 			case CMD_AUTONOMOUS_MODE_ON:
 				autonomousModeOn() ;
 				break ;
 			case CMD_AUTONOMOUS_MODE_OFF:
 				autonomousModeOff() ;
 				break ;
+			case CMD_PING:
+				ping() ;
+				break ;
+			case CMD_KEEPALIVE:
+				keepalive() ;
+				break ;
+			case CMD_INFRARED_POLL:
+				infraredPoll() ;
+				break ;
+			case CMD_INFRARED_SAMPLE_START:
+				infraredSampleStart() ;
+				break ;
+			case CMD_INFRARED_SAMPLE_STOP:
+				infraredSampleStop() ;
+				break ;
 			default:
+				sent = false ;
 				lastError = "Invalid command ignored: " + command ;
 				log.error(lastError) ;
 			}
@@ -172,59 +266,62 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 		catch(XBeeException e) {
 			lastError = "Error executing: " + stringifiedCommandName(command) + ": " + e.getMessage() ;
 			log.error(lastError, e) ;
+			link.invalidate(xbee) ;
 			throw e ;
 		} finally {
-			if(xbee != null && xbee.isConnected())
-				xbee.close() ;
 			xbee = null ;
+			out = null ;
+			this.callback = null ;
+			this.attachment = null ;
+			this.destination = null ;
 		}
-		return 0 ;
+		return sent ;
 	}
-		
+	
 	/**
-	 * Receives data chunks from the publish method asynchronously on the EventDispatch thread.
+	 * Execute a batch of commands in one frame - see execute() and CommandBatch. The robot acts on them in order.
 	 * 
-	 * Not used.
+	 * @param batch the commands - only read while the frame is encoded, so it may be reused once we return
+	 * @param destination the robot's XBee, or BROADCAST
+	 * @return true if the frame was sent, false if the batch is empty - getLastError() describes why
+	 * @throws XBeeException if the batch could not be sent - getLastError() describes why
 	 */
-	@Override
-	protected void process(List<Integer> chunks) {
-//		System.out.println(chunks);
+	public boolean executeBatch(CommandBatch batch, XBeeFrameEncoder.Destination destination, String commPort, int baudRate,
+			TransmitCallback callback, Object attachment) throws XBeeException {
+		this.command = CMD_BATCH ;
+		this.data = batch.size() ;
+		this.lastError = null ;
+		if(batch.isEmpty()) {
+			lastError = "Empty batch ignored" ;
+			log.error(lastError) ;
+			return false ;
+		}
+		if(log.isDebugEnabled())
+			log.debug("Executing " + batch + " for " + destination) ;
+		XBee xbee = null ;
+		try {
+			xbee = link.acquire(commPort, baudRate) ;
+			OutputStream out = link.getOutputStream(xbee) ;
+			if(priority)
+				engine.sendPriority(xbee, out, destination, batch.getPayload(), 0, batch.getLength(), callback, attachment) ;
+			else
+				engine.send(xbee, out, destination, batch.getPayload(), 0, batch.getLength(), callback, attachment) ;
+		}
+		catch(XBeeException e) {
+			lastError = "Error executing: " + batch + ": " + e.getMessage() ;
+			log.error(lastError, e) ;
+			if(xbee != null)
+				link.invalidate(xbee) ;
+			throw e ;
+		}
+		return true ;
 	}
 	
 	/**
-	 * Executed on the EventDispatch thread once the doInBackground method is finished.
-	 * 
-	 * Updates the GUI's message bar based on the completion state of the operation, and 
-	 * shuts down the XBee communication channel.
-	 * 
-	 * Also disables the cancel button in the GUI, as there is now nothing to cancel.
+	 * @return a description of what went wrong with the last command, or null if it succeeded
 	 */
-	@Override
-	protected void done() {
-		if (isCancelled()) {
-			log.warn("Cancelled command: " + stringifiedCommandName(command)) ;
-			if(lastError != null)
-				gui.messageLabel.setText("Operation cancelled: " + lastError) ;
-			else
-				gui.messageLabel.setText("Operation cancelled (no errors)") ;
-		} else if(lastError != null) {
-			gui.messageLabel.setText(lastError) ;
-		} else {
-			gui.messageLabel.setText("Operation completed successfully") ;
-			log.info("Completed command: " + stringifiedCommandName(command)) ;
-		}
-		
-		/*
-		 * Strictly speaking we shouldn't need to do this, as the doInBackground() method does this in it's finally
-		 * block.
-		 */
-		if(xbee != null && xbee.isConnected())
-			xbee.close();
-		xbee = null ;
-		/*
-		 * Disable the cancel button because there is now nothing to cancel.
-		 */
-		gui.cancelButton.setEnabled(false) ;
+	public String getLastError() {
+		return lastError ;
 	}
 		
 	/**
@@ -234,9 +331,20 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	 * @throws XBeeException
 	 */
 	private void motorStop() throws XBeeTimeoutException, XBeeException {
-		int[] payload = new int[] { this.CMD_MOTOR_STOP, 200 };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+		sendCommand(CMD_MOTOR_STOP, 200) ;
+	}
+	
+	/**
+	 * Drive each track at its own signed speed, as packed into data by RobotCommand.vector().
+	 * 
+	 * @throws XBeeTimeoutException
+	 * @throws XBeeException
+	 */
+	private void motorVector() throws XBeeTimeoutException, XBeeException {
+		vectorPayload[0] = CMD_MOTOR_VECTOR ;
+		vectorPayload[1] = (data >> 8) & 0xff ;
+		vectorPayload[2] = data & 0xff ;
+		sendPayload(vectorPayload, vectorPayload.length) ;
 	}
 	
 	/**
@@ -245,10 +353,8 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	 * @throws XBeeTimeoutException
 	 * @throws XBeeException
 	 */
-	private void motorForward() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_MOTOR_FORWARD, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+	private void motorForward() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_MOTOR_FORWARD, data) ;
 	}
 	
 	/**
@@ -256,10 +362,8 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	 * @throws XBeeTimeoutException
 	 * @throws XBeeException
  	 */
-	private void motorBackwards() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_MOTOR_BACKWARDS, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+	private void motorBackwards() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_MOTOR_BACKWARDS, data) ;
 	}
 	
 	/**
@@ -267,10 +371,8 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	 * @throws XBeeTimeoutException
 	 * @throws XBeeException
 	 */
-	private void motorLeft() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_MOTOR_LEFT, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+	private void motorLeft() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_MOTOR_LEFT, data) ;
 	}
 	
 	/**
@@ -278,10 +380,8 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	 * @throws XBeeTimeoutException
 	 * @throws XBeeException
 	 */
-	private void motorRight() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_MOTOR_RIGHT, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+	private void motorRight() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_MOTOR_RIGHT, data) ;
 	}
 	
 	/**
@@ -290,10 +390,8 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	 * @throws XBeeTimeoutException
 	 * @throws XBeeException
 	 */
-	private void autonomousModeOn() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_AUTONOMOUS_MODE_ON, 0};
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+	private void autonomousModeOn() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_AUTONOMOUS_MODE_ON, 0) ;
 	}
 	
 	/**
@@ -302,45 +400,118 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	 * @throws XBeeTimeoutException
 	 * @throws XBeeException
 	 */
-	private void autonomousModeOff() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_AUTONOMOUS_MODE_OFF, 0};
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+	private void autonomousModeOff() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_AUTONOMOUS_MODE_OFF, 0) ;
+	}
+	
+	/**
+	 * ping the robot - it replies with an RX 16 packet carrying the same sequence number (data).
+	 * 
+	 * @throws XBeeTimeoutException
+	 * @throws XBeeException
+	 */
+	private void ping() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_PING, data) ;
+	}
+	
+	/**
+	 * Tell the robot we are still here - it stops if it doesn't hear from us within the timeout (data).
+	 * 
+	 * @throws XBeeTimeoutException
+	 * @throws XBeeException
+	 */
+	private void keepalive() throws XBeeTimeoutException, XBeeException {		
+		sendCommand(CMD_KEEPALIVE, data) ;
+	}
+	
+	/**
+	 * Start streaming infrared samples - the robot sends one per sensor every interval (data x 10 millis).
+	 * 
+	 * @throws XBeeTimeoutException
+	 * @throws XBeeException
+	 */
+	private void infraredSampleStart() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_INFRARED_SAMPLE_START, data) ;
+	}
+	
+	/**
+	 * Ask for one infrared sample from a sensor.
+	 * 
+	 * @throws XBeeTimeoutException
+	 * @throws XBeeException
+	 */
+	private void infraredPoll() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_INFRARED_POLL, data) ;
 	}
 	
 	/**
-	 * ping the remote XBee
+	 * Stop streaming infrared samples.
 	 * 
 	 * @throws XBeeTimeoutException
 	 * @throws XBeeException
 	 */
-	private void ping() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_PING, 0 };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
+	private void infraredSampleStop() throws XBeeTimeoutException, XBeeException {
+		sendCommand(CMD_INFRARED_SAMPLE_STOP, 0) ;
 	}
 	
 	/**
 	 * sends a command to the remote XBee.
 	 * 
-	 * @param destination the remote XBee's MY address
-	 * @param payload an array of two 8 bit numbers - the first is the command, the second is the accompanying data.
-	 * @throws XBeeTimeoutException if we timed out trying to communicate with the remote XBee
-	 * @throws XBeeException if there was some other exception communicating with the remote XBee
+	 * The frame is sent asynchronously - the TX status (or a timeout if the remote XBee doesn't answer) is
+	 * delivered to the callback supplied to execute().
+	 * 
+	 * @param command the command byte
+	 * @param data the accompanying data byte
+	 * @throws XBeeException if the frame could not be written to the explorer
+	 */
+	private void sendCommand(int command, int data) throws XBeeException {
+		if(priority)
+			engine.sendPriority(xbee, out, destination, command, data, callback, attachment) ;
+		else
+			engine.send(xbee, out, destination, command, data, callback, attachment) ;
+	}
+	
+	/**
+	 * Send a command longer than two bytes to the remote XBee - see sendCommand().
+	 * 
+	 * @param payload the command byte then its data
+	 * @param length how many bytes of payload to send
+	 * @throws XBeeException if the frame could not be written to the explorer
+	 */
+	private void sendPayload(int[] payload, int length) throws XBeeException {
+		if(priority)
+			engine.sendPriority(xbee, out, destination, payload, 0, length, callback, attachment) ;
+		else
+			engine.send(xbee, out, destination, payload, 0, length, callback, attachment) ;
+	}
+	
+	/**
+	 * @param command the command (CMD_*)
+	 * @return how many payload bytes the command takes, including the command byte itself
+	 */
+	public static int payloadLength(int command) {
+		return command == CMD_MOTOR_VECTOR ? 3 : 2 ;
+	}
+	
+	/**
+	 * Describe why a command's frame failed.
+	 * 
+	 * @param command the command (CMD_*) the frame carried
+	 * @param future the completed frame
+	 * @return null if the frame was delivered successfully, otherwise a description of what went wrong
 	 */
-	private void sendCommand(XBeeAddress16 destination, int[] payload) throws XBeeTimeoutException, XBeeException {
-		TxRequest16 tx = new TxRequest16(destination, payload);
-        log.info("Sending request to " + destination);
-        TxStatusResponse status = (TxStatusResponse) xbee.sendSynchronous(tx);
-        if (status.isSuccess()) {
-                log.info("Sent payload to" + destination);
-        } else {
-                log.info("Error sending payload to" + destination);
-        }
+	public static String describeFailure(int command, TransmitFuture future) {
+		if(future.isSuccess())
+			return null ;
+		if(future.getStatus() != null)
+			return "Error sending " + stringifiedCommandName(command) + ": " + future.getStatus().getStatus() ;
+		if(future.getError() instanceof XBeeTimeoutException)
+			return "Timed out executing: " + stringifiedCommandName(command) ;
+		return "Error executing: " + stringifiedCommandName(command) + ": " + future.getError().getMessage() ;
 	}
 	
-	private String stringifiedCommandName(int command) {
-		if(command > 0 && command < commandName.length)
+	public static String stringifiedCommandName(int command) {
+		if(command >= 0 && command < commandName.length)
 			return commandName[command] ;
 		else
 			return "invalid (" + command + ")" ;
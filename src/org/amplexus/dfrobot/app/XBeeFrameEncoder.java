@@ -0,0 +1,183 @@
+package org.amplexus.dfrobot.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes TX 16 requests straight into complete, escaped API frames, without allocating.
+ *
+ * The xbee-api builds a TxRequest16, an XBeePacket and several int[]s for every frame, and then re-encodes the
+ * frame a byte at a time. Here the frame is written into one ByteBuffer that is reused for every frame, the
+ * per destination part of the frame is built once (see Destination) and the checksum is accumulated as the
+ * bytes are written. In steady state, encoding a command produces no garbage at all.
+ *
+ * The frame layout (API mode 2, escaped):
+ * - 0x7e start byte (never escaped)
+ * - length MSB, length LSB (of the frame data)
+ * - frame data: api id 0x01, frame id, destination MSB, destination LSB, options, payload...
+ * - checksum: 0xff minus the low byte of the sum of the frame data
+ * Every byte after the start byte that is 0x7e, 0x7d, 0x11 or 0x13 is sent as 0x7d followed by the byte XOR 0x20.
+ *
+ * Not thread safe - each thread that encodes needs its own encoder.
+ *
+ * @author craig
+ */
+public class XBeeFrameEncoder {
+
+	public static final int API_TX_REQUEST_16	= 0x01 ;
+	public static final int OPTIONS_NONE		= 0x00 ;
+	public static final int MAX_PAYLOAD			= 100 ;		// The most an 802.15.4 XBee carries in one frame
+	public static final int FRAME_IDS			= 256 ;		// Frame ids 0 (no TX status) to 255
+
+	private static final int START_BYTE	= 0x7e ;
+	private static final int ESCAPE		= 0x7d ;
+	private static final int XON		= 0x11 ;
+	private static final int XOFF		= 0x13 ;
+
+	/*
+	 * Worst case: start byte, then length, frame data and checksum all escaped
+	 */
+	private static final int MAX_FRAME_BYTES = 1 + 2 * (2 + 5 + MAX_PAYLOAD + 1) ;
+
+	/**
+	 * The pre-built, pre-escaped destination part of a TX 16 frame. Build one per robot and keep it.
+	 */
+	public static class Destination {
+		private final int msb ;
+		private final int lsb ;
+		private final byte[] escaped ;		// destination MSB, LSB and options, escaped
+		private final int sum ;				// their contribution to the checksum
+
+		public Destination(int msb, int lsb) {
+			this.msb = msb & 0xff ;
+			this.lsb = lsb & 0xff ;
+			ByteBuffer header = ByteBuffer.allocate(6) ;
+			putEscaped(header, this.msb) ;
+			putEscaped(header, this.lsb) ;
+			putEscaped(header, OPTIONS_NONE) ;
+			this.escaped = new byte[header.position()] ;
+			header.flip() ;
+			header.get(this.escaped) ;
+			this.sum = this.msb + this.lsb + OPTIONS_NONE ;
+		}
+
+		public int getMsb() {
+			return msb ;
+		}
+
+		public int getLsb() {
+			return lsb ;
+		}
+
+		/**
+		 * @return the 16 bit MY address
+		 */
+		public int getAddress() {
+			return (msb << 8) | lsb ;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("0x%02x%02x", msb, lsb) ;
+		}
+	}
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME_BYTES) ;	// Reused for every frame
+	private int checksum ;							// Running sum of the frame data written so far
+
+	/**
+	 * Encode a two byte command - the common case.
+	 *
+	 * @param destination the robot
+	 * @param frameId the API frame id, 0 for no TX status
+	 * @param command the command (CMD_*)
+	 * @param data the command's data byte
+	 * @return the encoded frame, ready to write from position to limit. Only valid until the next encode.
+	 */
+	public ByteBuffer encodeTx16(Destination destination, int frameId, int command, int data) {
+		begin(destination, frameId, 2) ;
+		put(command) ;
+		put(data) ;
+		return end() ;
+	}
+
+	/**
+	 * Encode a command with an arbitrary payload.
+	 *
+	 * @param destination the robot
+	 * @param frameId the API frame id, 0 for no TX status
+	 * @param payload holds the payload
+	 * @param offset where the payload starts in the array
+	 * @param length the payload length (0 - MAX_PAYLOAD)
+	 * @return the encoded frame, ready to write from position to limit. Only valid until the next encode.
+	 */
+	public ByteBuffer encodeTx16(Destination destination, int frameId, int[] payload, int offset, int length) {
+		if(length < 0 || length > MAX_PAYLOAD)
+			throw new IllegalArgumentException("payload must be 0-" + MAX_PAYLOAD + " bytes: " + length) ;
+		begin(destination, frameId, length) ;
+		for(int i = 0; i < length; i++)
+			put(payload[offset + i]) ;
+		return end() ;
+	}
+
+	/**
+	 * Copy the most recently encoded frame, eg to pre-encode frames that are sent later.
+	 */
+	public byte[] copyFrame() {
+		byte[] copy = new byte[buffer.limit()] ;
+		buffer.duplicate().get(copy) ;
+		return copy ;
+	}
+
+	/**
+	 * Encode a command once for every frame id, so it can be sent later with a single write whatever frame id
+	 * it is given - see XBeeTransmitEngine.sendEncoded(). A few kilobytes per command.
+	 *
+	 * @param destination the robot
+	 * @param payload holds the payload
+	 * @param offset where the payload starts in the array
+	 * @param length the payload length (0 - MAX_PAYLOAD)
+	 * @return the encoded frames, indexed by frame id
+	 */
+	public byte[][] preEncodeTx16(Destination destination, int[] payload, int offset, int length) {
+		byte[][] frames = new byte[FRAME_IDS][] ;
+		for(int frameId = 0; frameId < FRAME_IDS; frameId++) {
+			encodeTx16(destination, frameId, payload, offset, length) ;
+			frames[frameId] = copyFrame() ;
+		}
+		return frames ;
+	}
+
+	private void begin(Destination destination, int frameId, int payloadLength) {
+		int length = 5 + payloadLength ;
+		buffer.clear() ;
+		buffer.put((byte) START_BYTE) ;
+		putEscaped(buffer, length >> 8) ;
+		putEscaped(buffer, length & 0xff) ;
+		checksum = 0 ;
+		put(API_TX_REQUEST_16) ;
+		put(frameId) ;
+		buffer.put(destination.escaped) ;
+		checksum += destination.sum ;
+	}
+
+	private void put(int b) {
+		b &= 0xff ;
+		checksum += b ;
+		putEscaped(buffer, b) ;
+	}
+
+	private ByteBuffer end() {
+		putEscaped(buffer, 0xff - (checksum & 0xff)) ;
+		buffer.flip() ;
+		return buffer ;
+	}
+
+	private static void putEscaped(ByteBuffer buffer, int b) {
+		if(b == START_BYTE || b == ESCAPE || b == XON || b == XOFF) {
+			buffer.put((byte) ESCAPE) ;
+			buffer.put((byte) (b ^ 0x20)) ;
+		} else {
+			buffer.put((byte) b) ;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.OutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.RxTxSerialComm;
+import com.rapplogic.xbee.XBeeConnection;
+import com.rapplogic.xbee.api.AtCommand;
+import com.rapplogic.xbee.api.AtCommandResponse;
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.XBeeTimeoutException;
+
+/**
+ * Owns the long lived connection to the XBee explorer.
+ *
+ * Opening the serial port (RXTX initialisation plus the radio settling) costs far more than sending a 2 byte
+ * command, so rather than opening and closing the port for every command we keep a single XBee instance open
+ * for the current port/baud rate pair and share it between every command.
+ *
+ * The connection is transparently re-opened when:
+ * - the port or baud rate changes (eg the user picks a different entry in the GUI), or
+ * - a command reports an I/O error via invalidate().
+ *
+ * Packet listeners registered with the manager are attached to every XBee it opens, so anything that reads what
+ * the robot sends keeps working across a re-open.
+ *
+ * We open the serial port ourselves and hand it to the XBee as a provider connection, rather than letting the
+ * XBee open it, so the transmit path can write pre-encoded frames straight to the port: see getOutputStream().
+ *
+ * If an EventLog is set, every open and invalidation is recorded in it.
+ *
+ * All methods bar probe() are synchronized, so the manager can be shared between the GUI and the communicator
+ * threads. probe() opens its own connection outside the lock, so several ports can be probed at once.
+ *
+ * Writes to the shared connection are made holding its XBee's lock, as the transmit engine's are, so a probe's
+ * AT command can't interleave with the frames being sent (see XBeeTransmitEngine).
+ *
+ * @author craig
+ */
+public class XBeeLinkManager {
+
+	private XBee xbee = null ;						// The currently open XBee, or null if nothing is open
+	private XBeeConnection connection = null ;		// The serial connection under xbee
+	private String commPort = null ;				// The USB port the current XBee was opened on
+	private int baudRate = 0 ;						// The baud rate the current XBee was opened at
+	private long openCount = 0 ;					// How many times we have opened the port
+	private long lastOpenNanos = 0 ;				// How long the last open took
+	private EventLog events = null ;				// Records every open and invalidation, if set
+	private final CopyOnWriteArrayList<PacketListener> listeners = new CopyOnWriteArrayList<PacketListener>() ;	// Attached to every XBee we open
+    private final static Logger log = Logger.getLogger(XBeeLinkManager.class);
+
+	/**
+	 * Get an open XBee for the specified port and baud rate.
+	 *
+	 * If we already have an open XBee for this port/baud rate pair it is returned as is, otherwise the previous
+	 * XBee (if any) is closed and a new one opened.
+	 *
+	 * @param commPort the USB port we communicate over
+	 * @param baudRate the baud rate we communicate at
+	 * @return an open XBee
+	 * @throws XBeeException if the port could not be opened
+	 */
+	public synchronized XBee acquire(String commPort, int baudRate) throws XBeeException {
+		if(xbee != null && xbee.isConnected() && baudRate == this.baudRate && commPort.equals(this.commPort))
+			return xbee ;
+
+		closeQuietly() ;
+
+		long start = System.nanoTime() ;
+		XBeeConnection candidateConnection = openConnection(commPort, baudRate) ;
+		XBee candidate = new XBee() ;
+		try {
+			candidate.initProviderConnection(candidateConnection) ;
+		} catch(XBeeException e) {
+			candidateConnection.close() ;
+			throw e ;
+		}
+		lastOpenNanos = System.nanoTime() - start ;
+		openCount++ ;
+		if(events != null)
+			events.record(EventLog.LINK_OPENED, lastOpenNanos / 1000L, 0, 0) ;
+
+		for(PacketListener listener : listeners)
+			candidate.addPacketListener(listener) ;
+		xbee = candidate ;
+		connection = candidateConnection ;
+		this.commPort = commPort ;
+		this.baudRate = baudRate ;
+		log.info("Opened " + commPort + " at " + baudRate + " baud in " + (lastOpenNanos / 1000000) + " ms") ;
+		return xbee ;
+	}
+
+	/**
+	 * Send an AT command to whatever is on a port, on a connection of its own that is closed again afterwards - eg
+	 * to find which port and baud rate the explorer answers on. Several ports may be probed at once.
+	 *
+	 * Only the shared connection is disturbed, and only if it is on the same port: at the same baud rate it is
+	 * used for the probe, otherwise it is closed, as a serial port can only be opened once.
+	 *
+	 * @param commPort the USB port to probe
+	 * @param baudRate the baud rate to probe at
+	 * @param atCommand the two character AT command, eg "AP"
+	 * @param timeoutMillis how long to wait for the answer
+	 * @return the answer, or null if nothing answered in time
+	 * @throws XBeeException if the port could not be opened, or failed
+	 */
+	public XBeeResponse probe(String commPort, int baudRate, String atCommand, int timeoutMillis) throws XBeeException {
+		synchronized(this) {
+			if(commPort.equals(this.commPort)) {
+				if(baudRate == this.baudRate && xbee != null && xbee.isConnected())
+					return sendSharedAtCommand(xbee, atCommand, timeoutMillis) ;
+				closeQuietly() ;
+			}
+		}
+		XBeeConnection probeConnection = openConnection(commPort, baudRate) ;
+		XBee probe = new XBee() ;
+		try {
+			probe.initProviderConnection(probeConnection) ;
+			return sendAtCommand(probe, atCommand, timeoutMillis) ;
+		} finally {
+			try {
+				if(probe.isConnected())
+					probe.close() ;
+			} catch(RuntimeException e) {
+				log.warn("Error closing " + commPort, e) ;
+			}
+			probeConnection.close() ;
+		}
+	}
+
+	/**
+	 * Get the stream that writes to the explorer under an XBee from acquire(). Frames written here bypass the
+	 * XBee api, so they must be complete, escaped API frames (see XBeeFrameEncoder).
+	 *
+	 * @param xbee the XBee from acquire()
+	 * @return the serial port's output stream
+	 * @throws XBeeException if the XBee has since been closed or replaced
+	 */
+	public synchronized OutputStream getOutputStream(XBee xbee) throws XBeeException {
+		if(xbee == null || xbee != this.xbee)
+			throw new XBeeException("Connection to " + commPort + " has been closed") ;
+		return connection.getOutputStream() ;
+	}
+
+	/**
+	 * Register a listener for everything the explorer sends us, on this and every future connection.
+	 */
+	public synchronized void addPacketListener(PacketListener listener) {
+		listeners.add(listener) ;
+		if(xbee != null)
+			xbee.addPacketListener(listener) ;
+	}
+
+	public synchronized void removePacketListener(PacketListener listener) {
+		listeners.remove(listener) ;
+		if(xbee != null)
+			xbee.removePacketListener(listener) ;
+	}
+
+	/**
+	 * Mark the current connection as broken.
+	 *
+	 * Called when a command fails with an I/O error. The XBee is closed and the next call to acquire() re-opens it.
+	 *
+	 * @param xbee the XBee that failed - ignored if we have already replaced it
+	 */
+	public synchronized void invalidate(XBee xbee) {
+		if(xbee != null && xbee == this.xbee) {
+			log.warn("Invalidating connection to " + commPort) ;
+			if(events != null)
+				events.record(EventLog.LINK_INVALIDATED) ;
+			closeQuietly() ;
+		}
+	}
+
+	/**
+	 * Close the connection, if open. Used on application shutdown.
+	 */
+	public synchronized void close() {
+		closeQuietly() ;
+	}
+
+	/**
+	 * @return true if we currently hold an open XBee
+	 */
+	public synchronized boolean isOpen() {
+		return xbee != null && xbee.isConnected() ;
+	}
+
+	/**
+	 * @param events records every open and invalidation, or null for none
+	 */
+	public synchronized void setEventLog(EventLog events) {
+		this.events = events ;
+	}
+
+	/**
+	 * @return how many times the port has been opened - anything more than one means we have re-opened it
+	 */
+	public synchronized long getOpenCount() {
+		return openCount ;
+	}
+
+	/**
+	 * @return how long the most recent open took in nanoseconds
+	 */
+	public synchronized long getLastOpenNanos() {
+		return lastOpenNanos ;
+	}
+
+	/**
+	 * Register our metrics as link.* - opens counts every open, so re-opens are opens - 1.
+	 */
+	public void registerMetrics(MetricsRegistry metrics) {
+		metrics.register("link.opens", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getOpenCount() ;
+			}
+		});
+		metrics.register("link.lastOpenMillis", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getLastOpenNanos() / 1000000L ;
+			}
+		});
+		metrics.register("link.open", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return isOpen() ? 1 : 0 ;
+			}
+		});
+	}
+
+	/**
+	 * Open the connection to the explorer.
+	 *
+	 * Overridden by the test harnesses to connect to a simulated endpoint instead of a real serial port.
+	 *
+	 * @param commPort the USB port we communicate over
+	 * @param baudRate the baud rate we communicate at
+	 * @return an open connection
+	 * @throws XBeeException if the port could not be opened
+	 */
+	protected XBeeConnection openConnection(String commPort, int baudRate) throws XBeeException {
+		RxTxSerialComm serial = new RxTxSerialComm() ;
+		serial.openSerialPort(commPort, baudRate) ;
+		return serial ;
+	}
+
+	/**
+	 * @return the answer to an AT command, or null if none arrived in time
+	 */
+	private static XBeeResponse sendAtCommand(XBee xbee, String atCommand, int timeoutMillis) throws XBeeException {
+		try {
+			return xbee.sendSynchronous(new AtCommand(atCommand), timeoutMillis) ;
+		} catch (XBeeTimeoutException e) {
+			return null ;
+		}
+	}
+
+	/**
+	 * Send an AT command on the shared connection and wait for its answer. The command is written holding the
+	 * XBee's lock, so it can't interleave with the transmit engine's frames, but the answer is waited for without
+	 * it, so the engine isn't held up meanwhile.
+	 *
+	 * @return the answer to the AT command, or null if none arrived in time
+	 */
+	private static XBeeResponse sendSharedAtCommand(XBee xbee, String atCommand, int timeoutMillis) throws XBeeException {
+		final AtCommand request = new AtCommand(atCommand) ;
+		final XBeeResponse[] answer = new XBeeResponse[1] ;		// Guarded by itself
+		PacketListener listener = new PacketListener() {
+			public void processResponse(XBeeResponse response) {
+				if(response instanceof AtCommandResponse && ((AtCommandResponse) response).getFrameId() == request.getFrameId()) {
+					synchronized(answer) {
+						answer[0] = response ;
+						answer.notifyAll() ;
+					}
+				}
+			}
+		};
+		xbee.addPacketListener(listener) ;
+		try {
+			synchronized(xbee) {
+				xbee.sendAsynchronous(request) ;
+			}
+			long deadline = System.nanoTime() + timeoutMillis * 1000000L ;
+			synchronized(answer) {
+				long remaining ;
+				while(answer[0] == null && (remaining = deadline - System.nanoTime()) > 0)
+					answer.wait(remaining / 1000000L + 1) ;
+				return answer[0] ;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+			throw new XBeeException("Interrupted waiting for the answer to " + atCommand) ;
+		} finally {
+			xbee.removePacketListener(listener) ;
+		}
+	}
+
+	/**
+	 * Close the current XBee, ignoring any errors. Caller must hold the lock.
+	 */
+	private void closeQuietly() {
+		if(xbee != null) {
+			try {
+				if(xbee.isConnected())
+					xbee.close() ;
+			} catch(RuntimeException e) {
+				log.warn("Error closing " + commPort, e) ;
+			}
+		}
+		if(connection != null) {
+			try {
+				connection.close() ;		// The XBee doesn't close provider connections
+			} catch(RuntimeException e) {
+				log.warn("Error closing " + commPort, e) ;
+			}
+		}
+		xbee = null ;
+		connection = null ;
+		commPort = null ;
+		baudRate = 0 ;
+	}
+}
@@ -0,0 +1,556 @@
+package org.amplexus.dfrobot.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.ApiId;
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress16;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.XBeeTimeoutException;
+import com.rapplogic.xbee.api.wpan.TxRequest16;
+import com.rapplogic.xbee.api.wpan.TxStatusResponse;
+
+/**
+ * Pipelined, asynchronous transmit of TX 16 frames.
+ *
+ * sendSynchronous() only ever has one frame in flight, and blocks the caller for the whole TX status round trip.
+ * Instead we give every frame its own API frame id, send it with sendAsynchronous() and match the TX status
+ * frames that come back to the outstanding requests by frame id (the same pattern as TestApiSenderExample).
+ *
+ * Up to window frames may be outstanding at once; transmit() only blocks when the window is full. Each frame's
+ * outcome is delivered through its TransmitFuture and optional TransmitCallback. Frames whose TX status does not
+ * arrive within the timeout are failed with an XBeeTimeoutException, so a lost status can't leak a window slot.
+ *
+ * send() is the allocation free version of transmit() for the command path: the frame is encoded by an
+ * XBeeFrameEncoder and written straight to the serial port, and its future is recycled, one per frame id.
+ *
+ * sendEncoded() writes a frame pre-encoded by XBeeFrameEncoder.preEncodeTx16(), so sending it is a single write
+ * with nothing left to encode, eg for the steps of a timed mission (see MissionExecutor).
+ *
+ * Every write to the port - a raw frame, or a request through the XBee api - is made holding the XBee's lock,
+ * so frames from different threads, or from XBeeLinkManager.probe() on the same connection, can't interleave.
+ *
+ * releaseSlot() gives an outstanding frame's window slot back early, for a sender that has given up waiting and
+ * is about to send the frame again: the frame can still be completed by a late TX status until it times out.
+ *
+ * sendPriority() is the same, but uses a small number of window slots reserved for urgent commands (stop), so
+ * an urgent frame never waits behind a window full of ordinary ones.
+ *
+ * If a TelemetryRecorder is set, every frame is recorded as it is written.
+ *
+ * Counts the frames and bytes written and the TX status timeouts - see registerMetrics(). If an EventLog is set,
+ * each timeout is recorded in it.
+ *
+ * @author craig
+ */
+public class XBeeTransmitEngine implements PacketListener {
+
+	public static final int DEFAULT_WINDOW			= 4 ;
+	public static final int DEFAULT_TIMEOUT_MILLIS	= 1000 ;
+	public static final int PRIORITY_SLOTS			= 2 ;		// Window slots reserved for sendPriority()
+	private static final int MAX_FRAME_ID			= 255 ;		// Frame ids are 1-255, 0 means no TX status
+
+	private final int window ;						// Most frames outstanding at once
+	private final long timeoutNanos ;				// How long we wait for a TX status
+	private final Semaphore permits ;				// One permit per free window slot
+	private final Semaphore priorityPermits = new Semaphore(PRIORITY_SLOTS) ;	// One permit per free reserved slot
+	private final Semaphore[] lanes = new Semaphore[MAX_FRAME_ID + 1] ;	// Which permits each outstanding frame holds
+	private final TransmitFuture[] pending = new TransmitFuture[MAX_FRAME_ID + 1] ;	// Outstanding frames by frame id
+	private final TransmitFuture[] recycled = new TransmitFuture[MAX_FRAME_ID + 1] ;	// send()'s futures, by frame id
+	private final XBeeFrameEncoder encoder = new XBeeFrameEncoder() ;	// Encodes send()'s frames, guarded by itself
+	private final ScheduledExecutorService sweeper ;	// Times out frames whose TX status never arrives
+	private int nextFrameId = 1 ;					// The next frame id to try
+	private int released = 0 ;						// Outstanding frames whose slot releaseSlot() has given back
+	private XBee xbee = null ;						// The XBee we are listening to for TX status frames
+	private volatile TelemetryRecorder recorder = null ;	// Records every frame we write, if set
+	private volatile EventLog events = null ;		// Records the TX status timeouts, if set
+	private final AtomicLong framesSent = new AtomicLong() ;	// Frames written to the explorer
+	private final AtomicLong bytesSent = new AtomicLong() ;	// Bytes written to the explorer, escaped, start byte to checksum
+	private final AtomicLong timeouts = new AtomicLong() ;	// Frames failed because their TX status never arrived
+    private final static Logger log = Logger.getLogger(XBeeTransmitEngine.class);
+
+	/**
+	 * Constructor, using the default window and timeout.
+	 */
+	public XBeeTransmitEngine() {
+		this(DEFAULT_WINDOW, DEFAULT_TIMEOUT_MILLIS) ;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param window the most frames outstanding at once, not counting the reserved priority slots (1-253)
+	 * @param timeoutMillis how long to wait for each frame's TX status
+	 */
+	public XBeeTransmitEngine(int window, int timeoutMillis) {
+		if(window < 1 || window > MAX_FRAME_ID - PRIORITY_SLOTS)
+			throw new IllegalArgumentException("window must be 1-" + (MAX_FRAME_ID - PRIORITY_SLOTS) + ": " + window) ;
+		this.window = window ;
+		this.timeoutNanos = timeoutMillis * 1000000L ;
+		this.permits = new Semaphore(window) ;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "transmit-timeouts") ;
+				t.setDaemon(true) ;
+				return t ;
+			}
+		});
+		long period = Math.max(10, timeoutMillis / 4) ;
+		this.sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expire() ;
+			}
+		}, period, period, TimeUnit.MILLISECONDS) ;
+	}
+
+	/**
+	 * Send a frame without waiting for its TX status. Blocks only while the window is full.
+	 *
+	 * @param xbee the XBee to send through - normally from XBeeLinkManager.acquire()
+	 * @param destination the remote XBee's MY address
+	 * @param payload the data to send
+	 * @param callback told when the frame completes, may be null
+	 * @return the frame's future
+	 * @throws XBeeException if the frame could not be handed to the XBee
+	 */
+	public TransmitFuture transmit(XBee xbee, XBeeAddress16 destination, int[] payload, TransmitCallback callback) throws XBeeException {
+		try {
+			permits.acquire() ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+			throw new XBeeException("Interrupted waiting for a transmit window slot") ;
+		}
+
+		TransmitFuture future ;
+		synchronized(this) {
+			listenTo(xbee) ;
+			future = new TransmitFuture(allocateFrameId(), payload, callback) ;
+			pending[future.getFrameId()] = future ;
+			lanes[future.getFrameId()] = permits ;
+		}
+
+		try {
+			TxRequest16 request = new TxRequest16(destination, future.getFrameId(), payload) ;
+			synchronized(xbee) {
+				xbee.sendAsynchronous(request) ;
+			}
+			long writtenNanos = System.nanoTime() ;
+			int[] bytes = request.getXBeePacket().getByteArray() ;
+			framesSent.incrementAndGet() ;
+			bytesSent.addAndGet(bytes.length) ;
+			TelemetryRecorder r = recorder ;
+			if(r != null)
+				r.recordOutbound(bytes, writtenNanos) ;
+		} catch (XBeeException e) {
+			fail(future.getFrameId(), future, e) ;
+			throw e ;
+		}
+		return future ;
+	}
+
+	/**
+	 * Send a two byte command without waiting for its TX status and without allocating. Blocks only while the
+	 * window is full.
+	 *
+	 * The future handed to the callback is recycled when its frame id is reused, so the callback must not keep
+	 * it: anything it needs from the sender can travel in the attachment.
+	 *
+	 * @param xbee the XBee to send through - normally from XBeeLinkManager.acquire()
+	 * @param out the serial port under the XBee - from XBeeLinkManager.getOutputStream()
+	 * @param destination the remote XBee
+	 * @param command the command byte
+	 * @param data the data byte
+	 * @param callback told when the frame completes, may be null
+	 * @param attachment handed to the callback via TransmitFuture.getAttachment(), may be null
+	 * @throws XBeeException if the frame could not be written to the port
+	 */
+	public void send(XBee xbee, OutputStream out, XBeeFrameEncoder.Destination destination, int command, int data,
+			TransmitCallback callback, Object attachment) throws XBeeException {
+		send(xbee, out, destination, command, data, null, 0, 0, null, callback, attachment, permits) ;
+	}
+
+	/**
+	 * As send(), but with an arbitrary payload, eg a CommandBatch.
+	 *
+	 * @param payload holds the payload - only read while the frame is encoded, so it may be reused at once
+	 * @param offset where the payload starts in the array
+	 * @param length the payload length (0 - XBeeFrameEncoder.MAX_PAYLOAD)
+	 */
+	public void send(XBee xbee, OutputStream out, XBeeFrameEncoder.Destination destination, int[] payload, int offset, int length,
+			TransmitCallback callback, Object attachment) throws XBeeException {
+		send(xbee, out, destination, 0, 0, payload, offset, length, null, callback, attachment, permits) ;
+	}
+
+	/**
+	 * As send(), but using the window slots reserved for urgent commands. Blocks only while every reserved
+	 * slot is in use, however many ordinary frames are outstanding.
+	 */
+	public void sendPriority(XBee xbee, OutputStream out, XBeeFrameEncoder.Destination destination, int command, int data,
+			TransmitCallback callback, Object attachment) throws XBeeException {
+		send(xbee, out, destination, command, data, null, 0, 0, null, callback, attachment, priorityPermits) ;
+	}
+
+	/**
+	 * As send() with a payload, but using the window slots reserved for urgent commands.
+	 */
+	public void sendPriority(XBee xbee, OutputStream out, XBeeFrameEncoder.Destination destination, int[] payload, int offset,
+			int length, TransmitCallback callback, Object attachment) throws XBeeException {
+		send(xbee, out, destination, 0, 0, payload, offset, length, null, callback, attachment, priorityPermits) ;
+	}
+
+	/**
+	 * As send(), but writes a pre-encoded frame: the one for the frame id it is given.
+	 *
+	 * @param encoded the frame encoded for every frame id, from XBeeFrameEncoder.preEncodeTx16()
+	 */
+	public void sendEncoded(XBee xbee, OutputStream out, byte[][] encoded, TransmitCallback callback, Object attachment)
+			throws XBeeException {
+		send(xbee, out, null, 0, 0, null, 0, 0, encoded, callback, attachment, permits) ;
+	}
+
+	/**
+	 * As sendEncoded(), but using the window slots reserved for urgent commands.
+	 */
+	public void sendEncodedPriority(XBee xbee, OutputStream out, byte[][] encoded, TransmitCallback callback, Object attachment)
+			throws XBeeException {
+		send(xbee, out, null, 0, 0, null, 0, 0, encoded, callback, attachment, priorityPermits) ;
+	}
+
+	/**
+	 * Give back the window slot of an outstanding frame, eg because its sender has stopped waiting for it and is
+	 * sending it again, so the new attempt doesn't wait for the old one to time out. The frame stays outstanding:
+	 * a late TX status still completes it, and it still times out.
+	 *
+	 * Released frames keep their frame ids, so only as many can be outstanding as the frame ids spare beyond the
+	 * window and the reserved slots.
+	 *
+	 * @param attachment the attachment the frame was sent with
+	 * @return true if the slot was given back, false if the frame has completed, its slot was already given back,
+	 * or there are no spare frame ids
+	 */
+	public boolean releaseSlot(Object attachment) {
+		Semaphore lane = null ;
+		synchronized(this) {
+			if(released >= MAX_FRAME_ID - window - PRIORITY_SLOTS)
+				return false ;
+			for(int i = 1; i <= MAX_FRAME_ID && lane == null; i++) {
+				if(pending[i] != null && lanes[i] != null && pending[i].getAttachment() == attachment) {
+					lane = lanes[i] ;
+					lanes[i] = null ;
+					released++ ;
+				}
+			}
+		}
+		if(lane == null)
+			return false ;
+		lane.release() ;
+		return true ;
+	}
+
+	/**
+	 * Start or stop recording the frames we write.
+	 *
+	 * @param recorder records every frame, or null to stop recording
+	 */
+	public void setRecorder(TelemetryRecorder recorder) {
+		this.recorder = recorder ;
+	}
+
+	/**
+	 * @param events records the TX status timeouts, or null for none
+	 */
+	public void setEventLog(EventLog events) {
+		this.events = events ;
+	}
+
+	/**
+	 * Wait until an ordinary window slot is free, without taking it.
+	 *
+	 * Lets a single sending thread choose what to send once it knows send() won't block: anything submitted
+	 * while it waited is taken into account.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitWindow() throws InterruptedException {
+		permits.acquire() ;
+		permits.release() ;
+	}
+
+	/**
+	 * Send a frame through a lane: the pre-encoded frame if there is one, else the payload if there is one, else
+	 * the two byte command.
+	 */
+	private void send(XBee xbee, OutputStream out, XBeeFrameEncoder.Destination destination, int command, int data,
+			int[] payload, int offset, int length, byte[][] encoded, TransmitCallback callback, Object attachment, Semaphore lane)
+			throws XBeeException {
+		if(payload != null && (length < 0 || length > XBeeFrameEncoder.MAX_PAYLOAD))
+			throw new IllegalArgumentException("payload must be 0-" + XBeeFrameEncoder.MAX_PAYLOAD + " bytes: " + length) ;
+		try {
+			lane.acquire() ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+			throw new XBeeException("Interrupted waiting for a transmit window slot") ;
+		}
+
+		TransmitFuture future ;
+		synchronized(this) {
+			listenTo(xbee) ;
+			int frameId = allocateFrameId() ;
+			future = recycled[frameId] ;
+			if(future == null)
+				future = recycled[frameId] = new TransmitFuture(frameId, null, null) ;
+			future.reset(frameId, null, callback, attachment) ;
+			pending[frameId] = future ;
+			lanes[frameId] = lane ;
+		}
+
+		try {
+			synchronized(encoder) {
+				ByteBuffer frame = encoded != null ? ByteBuffer.wrap(encoded[future.getFrameId()])
+						: payload == null ? encoder.encodeTx16(destination, future.getFrameId(), command, data)
+						: encoder.encodeTx16(destination, future.getFrameId(), payload, offset, length) ;
+				long writtenNanos = System.nanoTime() ;
+				synchronized(xbee) {
+					out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining()) ;
+					out.flush() ;
+				}
+				framesSent.incrementAndGet() ;
+				bytesSent.addAndGet(frame.remaining()) ;
+				TelemetryRecorder r = recorder ;
+				if(r != null)
+					r.recordOutbound(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), writtenNanos) ;
+			}
+		} catch (IOException e) {
+			XBeeException failure = new XBeeException("Error writing frame " + future.getFrameId() + ": " + e.getMessage()) ;
+			fail(future.getFrameId(), future, failure) ;
+			throw failure ;
+		}
+	}
+
+	/**
+	 * @return how many frames are waiting for their TX status
+	 */
+	public int getOutstanding() {
+		return window - permits.availablePermits() + PRIORITY_SLOTS - priorityPermits.availablePermits() + getReleasedCount() ;
+	}
+
+	/**
+	 * @return outstanding frames whose slot releaseSlot() has given back
+	 */
+	public synchronized int getReleasedCount() {
+		return released ;
+	}
+
+	public int getWindow() {
+		return window ;
+	}
+
+	public long getFramesSent() {
+		return framesSent.get() ;
+	}
+
+	/**
+	 * @return bytes written to the explorer - whole API frames, escaped
+	 */
+	public long getBytesSent() {
+		return bytesSent.get() ;
+	}
+
+	/**
+	 * @return frames failed because their TX status didn't arrive within the timeout
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get() ;
+	}
+
+	/**
+	 * Register our metrics as engine.*.
+	 */
+	public void registerMetrics(MetricsRegistry metrics) {
+		metrics.register("engine.framesSent", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getFramesSent() ;
+			}
+		});
+		metrics.register("engine.bytesSent", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getBytesSent() ;
+			}
+		});
+		metrics.register("engine.outstanding", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getOutstanding() ;
+			}
+		});
+		metrics.register("engine.timeouts", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return getTimeoutCount() ;
+			}
+		});
+	}
+
+	/**
+	 * Fail any outstanding frames and stop the timeout thread.
+	 */
+	public void shutdown() {
+		sweeper.shutdownNow() ;
+		XBee old ;
+		synchronized(this) {
+			old = xbee ;
+			xbee = null ;
+		}
+		if(old != null)
+			old.removePacketListener(this) ;
+		for(int i = 1; i <= MAX_FRAME_ID; i++) {
+			TransmitFuture future ;
+			synchronized(this) {
+				future = pending[i] ;
+			}
+			if(future != null)
+				fail(i, future, new XBeeException("Transmit engine shut down")) ;
+		}
+	}
+
+	/**
+	 * Called by the XBee api's input thread for every frame the explorer sends us. We only want TX status.
+	 */
+	public void processResponse(XBeeResponse response) {
+		if(response.getApiId() != ApiId.TX_STATUS_RESPONSE)
+			return ;
+		TxStatusResponse status = (TxStatusResponse) response ;
+		int frameId = status.getFrameId() ;
+		TransmitFuture future ;
+		synchronized(this) {
+			future = frameId > 0 && frameId <= MAX_FRAME_ID ? pending[frameId] : null ;
+		}
+		if(future == null) {
+			log.warn("TX status for unknown or expired frame " + frameId) ;
+			return ;
+		}
+		if(future.complete(status, null))
+			release(frameId, future) ;
+	}
+
+	/**
+	 * Make sure we are listening to the specified XBee. If the link has been re-opened, the frames sent through
+	 * the old XBee will never get a TX status, so fail them now. Caller must hold the lock.
+	 */
+	private void listenTo(XBee candidate) {
+		if(candidate == xbee)
+			return ;
+		if(xbee != null) {
+			xbee.removePacketListener(this) ;
+			for(int i = 1; i <= MAX_FRAME_ID; i++)
+				if(pending[i] != null)
+					failLater(i, new XBeeException("Link re-opened before TX status arrived")) ;
+		}
+		xbee = candidate ;
+		if(xbee != null)
+			xbee.addPacketListener(this) ;
+	}
+
+	/**
+	 * Find a free frame id. There is always one, as the window plus the reserved slots is smaller than the frame
+	 * id space.
+	 * Caller must hold the lock.
+	 */
+	private int allocateFrameId() {
+		while(pending[nextFrameId] != null)
+			nextFrameId = nextFrameId % MAX_FRAME_ID + 1 ;
+		int frameId = nextFrameId ;
+		nextFrameId = nextFrameId % MAX_FRAME_ID + 1 ;
+		return frameId ;
+	}
+
+	/**
+	 * Remove a completed frame, freeing its frame id and window slot - unless releaseSlot() has freed the slot.
+	 *
+	 * Frames are completed before they are removed, so a recycled future can't be reset for a new frame while
+	 * its callback is still running.
+	 */
+	private void release(int frameId, TransmitFuture future) {
+		Semaphore lane ;
+		synchronized(this) {
+			if(pending[frameId] != future)
+				return ;
+			pending[frameId] = null ;
+			lane = lanes[frameId] ;
+			lanes[frameId] = null ;
+			if(lane == null)
+				released-- ;
+		}
+		if(lane != null)
+			lane.release() ;
+	}
+
+	private void fail(int frameId, TransmitFuture future, XBeeException e) {
+		fail(frameId, future, future.generation(), e) ;
+	}
+
+	private void fail(int frameId, TransmitFuture future, int generation, XBeeException e) {
+		if(future.complete(generation, null, e))
+			release(frameId, future) ;
+	}
+
+	/**
+	 * Fail a frame from the timeout thread rather than the caller's, as the caller may be holding our lock.
+	 */
+	private void failLater(final int frameId, final XBeeException e) {
+		final TransmitFuture future = pending[frameId] ;
+		final int generation = future.generation() ;
+		sweeper.execute(new Runnable() {
+			public void run() {
+				fail(frameId, future, generation, e) ;		// Does nothing if it has completed, or been recycled
+			}
+		});
+	}
+
+	/**
+	 * Fail frames whose TX status is overdue.
+	 * 
+	 * Also empties the XBee api's response queue: it keeps a copy of every response for getResponse(), which we
+	 * never call as we use listeners, and it complains each time it has to trim the queue.
+	 */
+	private void expire() {
+		XBee current ;
+		synchronized(this) {
+			current = xbee ;
+		}
+		if(current != null)
+			current.clearResponseQueue() ;
+
+		long now = System.nanoTime() ;
+		for(int i = 1; i <= MAX_FRAME_ID; i++) {
+			TransmitFuture future ;
+			int generation ;
+			synchronized(this) {
+				future = pending[i] ;
+				if(future == null)
+					continue ;
+				generation = future.generation() ;
+			}
+			if(now - future.getSentNanos() > timeoutNanos) {
+				log.warn("No TX status for frame " + i + " after " + (timeoutNanos / 1000000L) + " ms") ;
+				if(future.complete(generation, null, new XBeeTimeoutException())) {
+					timeouts.incrementAndGet() ;
+					EventLog e = events ;
+					if(e != null)
+						e.record(EventLog.TX_TIMEOUT, i, 0, 0) ;
+					release(i, future) ;
+				}
+			}
+		}
+	}
+}
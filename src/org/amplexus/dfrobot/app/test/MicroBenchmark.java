@@ -0,0 +1,86 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * A minimal micro benchmark harness: warms an operation up, then times it over several measurement rounds and
+ * reports nanoseconds and bytes allocated per operation.
+ *
+ * Each result is printed as one tab separated line - name, ns/op (median round), ns/op (best round),
+ * bytes/op - so two runs can be compared with diff or a spreadsheet.
+ *
+ * @author craig
+ */
+public class MicroBenchmark {
+
+	/**
+	 * The operation being measured.
+	 */
+	public interface Operation {
+		/**
+		 * Perform the operation once.
+		 *
+		 * @return anything derived from the work, so the JIT can't optimise the work away
+		 */
+		long run() throws Exception ;
+	}
+
+	public static final String HEADER = "benchmark\tns_per_op_median\tns_per_op_best\tbytes_per_op" ;
+
+	private final int warmupRounds ;				// Rounds run before measuring
+	private final int rounds ;						// Rounds measured
+	private final int opsPerRound ;					// Operations per round
+	private long sink = 0 ;							// Accumulates the operations' results
+
+	public MicroBenchmark(int warmupRounds, int rounds, int opsPerRound) {
+		this.warmupRounds = warmupRounds ;
+		this.rounds = rounds ;
+		this.opsPerRound = opsPerRound ;
+	}
+
+	/**
+	 * Measure an operation.
+	 *
+	 * @param name what to call it in the results
+	 * @param operation the operation
+	 * @return the result line
+	 */
+	public String measure(String name, Operation operation) throws Exception {
+		for(int r = 0; r < warmupRounds; r++)
+			for(int i = 0; i < opsPerRound; i++)
+				sink += operation.run() ;
+
+		double[] nanosPerOp = new double[rounds] ;
+		long allocatedBefore = allocatedBytes() ;
+		for(int r = 0; r < rounds; r++) {
+			long start = System.nanoTime() ;
+			for(int i = 0; i < opsPerRound; i++)
+				sink += operation.run() ;
+			nanosPerOp[r] = (System.nanoTime() - start) / (double) opsPerRound ;
+		}
+		long allocated = allocatedBytes() - allocatedBefore ;
+
+		Arrays.sort(nanosPerOp) ;
+		String bytesPerOp = allocatedBefore < 0 ? "n/a" : String.format("%.1f", allocated / (double) (rounds * (long) opsPerRound)) ;
+		return String.format("%s\t%.1f\t%.1f\t%s", name, nanosPerOp[rounds / 2], nanosPerOp[0], bytesPerOp) ;
+	}
+
+	/**
+	 * @return something derived from every operation's result - print it so the work can't be optimised away
+	 */
+	public long getSink() {
+		return sink ;
+	}
+
+	/**
+	 * @return bytes allocated by this thread so far, or -1 if the JVM can't tell us
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean() ;
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()) ;
+		return -1 ;
+	}
+}
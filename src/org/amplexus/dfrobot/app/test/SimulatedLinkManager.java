@@ -0,0 +1,99 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.amplexus.dfrobot.app.XBeeLinkManager;
+
+import com.rapplogic.xbee.XBeeConnection;
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * An XBeeLinkManager that connects to a SimulatedXBeeConnection instead of a serial port, so the production
+ * command path can be driven without a radio.
+ *
+ * Any port name opens the simulated explorer, unless ports have been added with addPort() / addDeadPort(), in
+ * which case only those ports exist, each with its own explorer (or none).
+ *
+ * @author craig
+ */
+public class SimulatedLinkManager extends XBeeLinkManager {
+
+	private final long openDelayMillis ;			// How long each simulated port open takes
+	private final long airtimeMicros ;				// Simulated radio airtime + MAC ack for one frame
+	private volatile SimulatedXBeeConnection connection = null ;	// The most recently opened endpoint
+	private volatile int explorerBaudRate = 0 ;		// The rate the simulated explorer is set to, 0 for whatever we open at
+	private final ConcurrentHashMap<String, Long> ports = new ConcurrentHashMap<String, Long>() ;	// Port to explorer baud rate, see addPort()
+
+	public SimulatedLinkManager(long openDelayMillis, long airtimeMicros) {
+		this.openDelayMillis = openDelayMillis ;
+		this.airtimeMicros = airtimeMicros ;
+	}
+
+	/**
+	 * @return the most recently opened endpoint, so a test can adjust its jitter, loss etc - or null
+	 */
+	public SimulatedXBeeConnection getConnection() {
+		return connection ;
+	}
+
+	/**
+	 * Set the baud rate the simulated explorer is configured for: opened at any other rate it hears only noise,
+	 * and says nothing.
+	 *
+	 * @param explorerBaudRate the rate, or 0 to answer at whatever rate we are opened at
+	 */
+	public void setExplorerBaudRate(int explorerBaudRate) {
+		this.explorerBaudRate = explorerBaudRate ;
+	}
+
+	/**
+	 * Add a port. Once any port has been added, opening a port that hasn't fails.
+	 *
+	 * @param commPort the port name
+	 * @param explorerBaudRate the rate its explorer is set to, or 0 for a device that never answers
+	 */
+	public void addPort(String commPort, int explorerBaudRate) {
+		ports.put(commPort, Long.valueOf(explorerBaudRate)) ;
+	}
+
+	/**
+	 * Add a dead port: one that exists, but takes hangMillis to fail to open - like a Bluetooth serial port whose
+	 * device is out of range.
+	 */
+	public void addDeadPort(String commPort, long hangMillis) {
+		ports.put(commPort, Long.valueOf(-hangMillis - 1)) ;
+	}
+
+	/**
+	 * Open the simulated endpoint now, so the test can configure it before the first command.
+	 */
+	public SimulatedXBeeConnection open(String commPort, int baudRate) throws XBeeException {
+		acquire(commPort, baudRate) ;
+		return connection ;
+	}
+
+	@Override
+	protected XBeeConnection openConnection(String commPort, int baudRate) throws XBeeException {
+		long explorer = explorerBaudRate ;
+		if(!ports.isEmpty()) {
+			Long port = ports.get(commPort) ;
+			if(port == null)
+				throw new XBeeException("No such port: " + commPort) ;
+			explorer = port.longValue() ;
+			if(explorer < 0) {
+				try {
+					Thread.sleep(-explorer - 1) ;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt() ;
+				}
+				throw new XBeeException("Timed out opening " + commPort) ;
+			}
+			if(explorer == 0)
+				explorer = -1 ;			// Nothing answers at any rate
+		}
+		SimulatedXBeeConnection candidate = new SimulatedXBeeConnection(baudRate, openDelayMillis, airtimeMicros) ;
+		candidate.setGarbled(explorer != 0 && baudRate != explorer) ;
+		connection = candidate ;
+		return candidate ;
+	}
+}
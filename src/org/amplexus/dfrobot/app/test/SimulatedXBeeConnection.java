@@ -0,0 +1,718 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.amplexus.dfrobot.app.CommandBatch;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+
+import com.rapplogic.xbee.XBeeConnection;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * A software stand-in for the XBee explorer plus the robot (XBee shield and sketch), so the controller can be
+ * exercised, benchmarked and regression tested without a radio on /dev/ttyUSB0.
+ *
+ * Plugs into the xbee-api via XBee.initProviderConnection(), entirely in memory, and speaks API mode (AP 2 -
+ * escaped) frames. For every TX 16 request (api id 0x01) it:
+ * - answers with a TX status (0x89) if the frame id is non zero - SUCCESS, or NO_ACK / CCA_FAILURE when the
+ *   simulated radio loses the frame
+ * - acts on the payload the way the robot's sketch would:
+ *   - ping (09): replies with an RX 16 packet (0x81) echoing the sequence number
+ *   - infrared poll (14): replies with one infrared sample for the requested sensor
+ *   - infrared sample start (15): streams samples for sensors 0, 1 and 2 every interval x 10 ms
+ *   - infrared sample stop (16): stops the stream
+ *   - batch (18): acts on each command in the batch in turn - for an addressed batch, only those addressed to
+ *     the robot the frame was sent to, or to every robot if it was broadcast
+ * Any 16 bit destination address is accepted, and replies come from that address, so one simulated endpoint
+ * can stand in for a whole fleet of robots.
+ *
+ * It also answers AT commands (api id 0x08) the way the explorer itself would - AP with 2 (API mode, escaped),
+ * anything else with an error - unless it is garbled, ie opened at a baud rate other than the explorer's, in
+ * which case it ignores everything.
+ *
+ * Infrared samples are RX 16 packets of 3 bytes: 14, the sensor (0-2) and the distance (0-255).
+ *
+ * The timing model:
+ * - opening the connection costs openDelayMillis (RXTX initialisation plus the radio settling)
+ * - every byte on the serial link, in either direction, costs 10 bit times at the simulated baud rate, and the
+ *   writer is blocked until its bytes have drained
+ * - every frame costs airtimeMicros on the air, plus airtimePerByteMicros for each byte of frame data, plus up to
+ *   jitterMicros of random jitter, and the air carries one frame at a time
+ * - each frame is lost with probability lossRate, in which case the radio retries 3 times before reporting NO_ACK,
+ *   or suffers a busy channel with probability ccaRate, reported as CCA_FAILURE
+ *
+ * All randomness comes from a seeded Random, so runs are reproducible.
+ *
+ * @author craig
+ */
+public class SimulatedXBeeConnection implements XBeeConnection {
+
+	public static final int API_TX_REQUEST_16		= 0x01 ;
+	public static final int API_RX_16				= 0x81 ;
+	public static final int API_TX_STATUS			= 0x89 ;
+	public static final int API_AT_COMMAND			= 0x08 ;
+	public static final int API_AT_RESPONSE			= 0x88 ;
+	public static final int AT_STATUS_OK			= 0x00 ;
+	public static final int AT_STATUS_ERROR			= 0x01 ;
+	public static final long AT_DELAY_MICROS		= 1000 ;	// How long the explorer takes to answer an AT command
+	public static final int TX_STATUS_SUCCESS		= 0x00 ;
+	public static final int TX_STATUS_NO_ACK		= 0x01 ;
+	public static final int TX_STATUS_CCA_FAILURE	= 0x02 ;
+	public static final int MAC_RETRIES				= 3 ;
+
+	/*
+	 * The robot side of the protocol - see XBeeCommunicatorTask
+	 */
+	public static final int ROBOT_INFRARED_POLL			= 14 ;
+	public static final int ROBOT_INFRARED_SAMPLE_START	= 15 ;
+	public static final int ROBOT_INFRARED_SAMPLE_STOP	= 16 ;
+	public static final int ROBOT_RSSI					= 40 ;
+
+	private static final int START_BYTE	= 0x7e ;
+	private static final int ESCAPE		= 0x7d ;
+	private static final int XON		= 0x11 ;
+	private static final int XOFF		= 0x13 ;
+
+	private final int baudRate ;						// The simulated serial baud rate
+	private final long airtimeMicros ;					// Simulated radio airtime + MAC ack for one frame
+	private final InboundStream in = new InboundStream() ;		// What the XBee reads from us
+	private final OutboundStream out = new OutboundStream() ;	// What the XBee writes to us
+	private final ScheduledExecutorService responder ;	// Delivers our replies after the simulated delays
+	private final Object timing = new Object() ;		// Guards the timing model below
+	private Random random = new Random(4545) ;			// All randomness, seeded so runs are reproducible
+	private long jitterMicros = 0 ;						// Up to this much random extra airtime per frame
+	private long airtimePerByteMicros = 0 ;				// Extra airtime per byte of frame data
+	private long airtimeUsedNanos = 0 ;					// Airtime taken by the frames from the PC
+	private long bytesReceived = 0 ;					// Serial bytes received from the PC
+	private double lossRate = 0 ;						// Probability a frame is lost on the air
+	private double ccaRate = 0 ;						// Probability the channel is busy
+	private long robotDelayMicros = 500 ;				// How long the robot's sketch takes to answer
+	private long airFreeAtNanos = 0 ;					// When the simulated air is next free
+	private long serialInFreeAtNanos = 0 ;				// When the serial link towards the PC is next free
+	private ScheduledFuture<?> telemetry = null ;		// The infrared sample stream, if started
+	private volatile boolean garbled = false ;			// True if we are at the wrong baud rate, and hear only noise
+	private long framesReceived = 0 ;					// TX requests received from the PC
+	private long framesLost = 0 ;						// TX requests lost on the air
+	private long framesSent = 0 ;						// Frames sent to the PC
+	private volatile int robotMotion = XBeeCommunicatorTask.CMD_MOTOR_STOP ;	// The last motor command the robot acted on
+	private volatile int robotVector = 0 ;				// The track speeds of the last motor vector, as RobotCommand.vector() packs them
+	private long motionChanges = 0 ;					// Motor commands that changed what the robot was doing
+
+	/**
+	 * Constructor - "opens" the simulated port, which takes openDelayMillis.
+	 *
+	 * @param baudRate the simulated serial baud rate
+	 * @param openDelayMillis how long the simulated port open takes
+	 * @param airtimeMicros how long the simulated radio takes to deliver a frame and get the MAC ack
+	 */
+	public SimulatedXBeeConnection(int baudRate, long openDelayMillis, long airtimeMicros) {
+		this.baudRate = baudRate ;
+		this.airtimeMicros = airtimeMicros ;
+		this.responder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "simulated-xbee") ;
+				t.setDaemon(true) ;
+				return t ;
+			}
+		});
+		sleepQuietly(openDelayMillis * 1000000L) ;
+	}
+
+	/**
+	 * Create an XBee that talks to a new simulated endpoint.
+	 */
+	public static XBee open(int baudRate, long openDelayMillis, long airtimeMicros) throws XBeeException {
+		return open(new SimulatedXBeeConnection(baudRate, openDelayMillis, airtimeMicros)) ;
+	}
+
+	/**
+	 * Create an XBee that talks to the specified simulated endpoint.
+	 */
+	public static XBee open(SimulatedXBeeConnection connection) throws XBeeException {
+		XBee xbee = new XBee() ;
+		xbee.initProviderConnection(connection) ;
+		return xbee ;
+	}
+
+	/**
+	 * @param garbled true if the PC opened us at a baud rate other than the explorer's, so every frame is noise
+	 */
+	public void setGarbled(boolean garbled) {
+		this.garbled = garbled ;
+	}
+
+	/**
+	 * Seed the random number generator, for reproducible jitter and loss.
+	 */
+	public void setSeed(long seed) {
+		synchronized(timing) {
+			random = new Random(seed) ;
+		}
+	}
+
+	/**
+	 * @param jitterMicros up to this much random extra airtime is added to each frame
+	 */
+	public void setJitterMicros(long jitterMicros) {
+		synchronized(timing) {
+			this.jitterMicros = jitterMicros ;
+		}
+	}
+
+	/**
+	 * @param airtimePerByteMicros airtime added for each byte of frame data - 32 for 802.15.4's 250 kbps
+	 */
+	public void setAirtimePerByteMicros(long airtimePerByteMicros) {
+		synchronized(timing) {
+			this.airtimePerByteMicros = airtimePerByteMicros ;
+		}
+	}
+
+	/**
+	 * @param lossRate probability (0-1) that a frame is lost on the air
+	 */
+	public void setLossRate(double lossRate) {
+		synchronized(timing) {
+			this.lossRate = lossRate ;
+		}
+	}
+
+	/**
+	 * @param ccaRate probability (0-1) that the channel is busy when a frame is sent
+	 */
+	public void setCcaRate(double ccaRate) {
+		synchronized(timing) {
+			this.ccaRate = ccaRate ;
+		}
+	}
+
+	/**
+	 * @param robotDelayMicros how long the robot's sketch takes to answer a ping or poll
+	 */
+	public void setRobotDelayMicros(long robotDelayMicros) {
+		synchronized(timing) {
+			this.robotDelayMicros = robotDelayMicros ;
+		}
+	}
+
+	public long getFramesReceived() {
+		synchronized(timing) {
+			return framesReceived ;
+		}
+	}
+
+	public long getFramesLost() {
+		synchronized(timing) {
+			return framesLost ;
+		}
+	}
+
+	/**
+	 * @return how long the frames from the PC have spent on the air, including retries, in microseconds
+	 */
+	public long getAirtimeMicros() {
+		synchronized(timing) {
+			return airtimeUsedNanos / 1000L ;
+		}
+	}
+
+	/**
+	 * @return how many bytes the PC has written and flushed to the serial link, escapes included
+	 */
+	public long getBytesReceived() {
+		synchronized(timing) {
+			return bytesReceived ;
+		}
+	}
+
+	public long getFramesSent() {
+		synchronized(timing) {
+			return framesSent ;
+		}
+	}
+
+	/**
+	 * @return the last motor command (CMD_MOTOR_*) the robot acted on - what it is doing now
+	 */
+	public int getRobotMotion() {
+		return robotMotion ;
+	}
+
+	/**
+	 * @return the track speeds of the last CMD_MOTOR_VECTOR the robot acted on, as RobotCommand.vector() packs them
+	 */
+	public int getRobotVector() {
+		return robotVector ;
+	}
+
+	/**
+	 * @return how many motor commands changed what the robot was doing - ie direction switches
+	 */
+	public long getMotionChanges() {
+		synchronized(timing) {
+			return motionChanges ;
+		}
+	}
+
+	public InputStream getInputStream() {
+		return in ;
+	}
+
+	public OutputStream getOutputStream() {
+		return out ;
+	}
+
+	public void close() {
+		responder.shutdownNow() ;
+	}
+
+	/**
+	 * Handle a complete, unescaped and checksum verified frame from the PC.
+	 *
+	 * @param frameData the frame data - api id followed by the api specific data
+	 */
+	protected void handleFrame(int[] frameData) {
+		if(garbled)
+			return ;
+		if(frameData[0] == API_AT_COMMAND && frameData.length >= 4) {
+			handleAtCommand(frameData) ;
+			return ;
+		}
+		if(frameData[0] != API_TX_REQUEST_16 || frameData.length < 5)
+			return ;
+		int frameId = frameData[1] ;
+		int msb = frameData[2] ;
+		int lsb = frameData[3] ;
+		int[] payload = new int[frameData.length - 5] ;
+		System.arraycopy(frameData, 5, payload, 0, payload.length) ;
+
+		/*
+		 * Put the frame on the air, once it has finished crossing the serial link to the explorer
+		 */
+		long arrivedNanos = System.nanoTime() + serialNanos(frameData.length + 4) ;
+		int status ;
+		long deliveredNanos ;
+		synchronized(timing) {
+			framesReceived++ ;
+			long airtime = (airtimeMicros + airtimePerByteMicros * frameData.length) * 1000L ;
+			if(jitterMicros > 0)
+				airtime += (long) (random.nextDouble() * jitterMicros * 1000L) ;
+			if(random.nextDouble() < ccaRate) {
+				status = TX_STATUS_CCA_FAILURE ;
+				airtime /= 4 ;
+			} else if(random.nextDouble() < lossRate) {
+				status = TX_STATUS_NO_ACK ;
+				airtime *= 1 + MAC_RETRIES ;
+			} else {
+				status = TX_STATUS_SUCCESS ;
+			}
+			if(status != TX_STATUS_SUCCESS)
+				framesLost++ ;
+			long start = Math.max(arrivedNanos, airFreeAtNanos) ;
+			airFreeAtNanos = start + airtime ;
+			airtimeUsedNanos += airtime ;
+			deliveredNanos = airFreeAtNanos ;
+		}
+
+		if(frameId != 0)
+			replyAt(new int[] { API_TX_STATUS, frameId, status }, deliveredNanos) ;
+		if(status == TX_STATUS_SUCCESS && payload.length > 0)
+			handlePayload(msb, lsb, payload, deliveredNanos) ;
+	}
+
+	/**
+	 * The explorer: answer an AT command, once it has crossed the serial link.
+	 *
+	 * @param frameData api id, frame id, then the two character command and any parameter
+	 */
+	protected void handleAtCommand(int[] frameData) {
+		boolean ap = frameData[2] == 'A' && frameData[3] == 'P' ;
+		int[] response = new int[ap ? 6 : 5] ;
+		response[0] = API_AT_RESPONSE ;
+		response[1] = frameData[1] ;
+		response[2] = frameData[2] ;
+		response[3] = frameData[3] ;
+		response[4] = ap ? AT_STATUS_OK : AT_STATUS_ERROR ;
+		if(ap)
+			response[5] = 2 ;
+		if(frameData[1] != 0)
+			reply(response, serialNanos(frameData.length + 4) + AT_DELAY_MICROS * 1000L) ;
+	}
+
+	/**
+	 * The robot's sketch: act on a command delivered over the air.
+	 *
+	 * @param msb the robot's MY address MSB
+	 * @param lsb the robot's MY address LSB
+	 * @param payload the command and its data
+	 * @param deliveredNanos when the command reached the robot
+	 */
+	protected void handlePayload(final int msb, final int lsb, int[] payload, long deliveredNanos) {
+		int data = payload.length > 1 ? payload[1] : 0 ;
+		switch(payload[0]) {
+		case XBeeCommunicatorTask.CMD_MOTOR_STOP:
+		case XBeeCommunicatorTask.CMD_MOTOR_FORWARD:
+		case XBeeCommunicatorTask.CMD_MOTOR_BACKWARDS:
+		case XBeeCommunicatorTask.CMD_MOTOR_LEFT:
+		case XBeeCommunicatorTask.CMD_MOTOR_RIGHT:
+			if(robotMotion != payload[0]) {
+				synchronized(timing) {
+					motionChanges++ ;
+				}
+			}
+			robotMotion = payload[0] ;
+			break ;
+		case XBeeCommunicatorTask.CMD_MOTOR_VECTOR:
+			if(payload.length < 3)
+				break ;
+			int vector = (payload[1] << 8) | payload[2] ;
+			if(robotMotion != payload[0] || robotVector != vector) {
+				synchronized(timing) {
+					motionChanges++ ;
+				}
+			}
+			robotVector = vector ;
+			robotMotion = payload[0] ;
+			break ;
+		case XBeeCommunicatorTask.CMD_PING:
+			robotReply(msb, lsb, new int[] { XBeeCommunicatorTask.CMD_PING, data }, deliveredNanos) ;
+			break ;
+		case ROBOT_INFRARED_POLL:
+			robotReply(msb, lsb, infraredSample(data % 3), deliveredNanos) ;
+			break ;
+		case ROBOT_INFRARED_SAMPLE_START:
+			if(data >= 10) {
+				stopTelemetry() ;
+				long periodMillis = data * 10L ;
+				synchronized(timing) {
+					telemetry = responder.scheduleAtFixedRate(new Runnable() {
+						public void run() {
+							long now = System.nanoTime() ;
+							for(int sensor = 0; sensor < 3; sensor++)
+								robotReply(msb, lsb, infraredSample(sensor), now) ;
+						}
+					}, periodMillis, periodMillis, TimeUnit.MILLISECONDS) ;
+				}
+			}
+			break ;
+		case ROBOT_INFRARED_SAMPLE_STOP:
+			stopTelemetry() ;
+			break ;
+		case XBeeCommunicatorTask.CMD_BATCH:
+			handleBatch(msb, lsb, payload, deliveredNanos) ;
+			break ;
+		}
+	}
+
+	/**
+	 * The robot's sketch: act on each command in a batch (see CommandBatch) in turn.
+	 */
+	protected void handleBatch(int msb, int lsb, int[] payload, long deliveredNanos) {
+		if(payload.length < CommandBatch.HEADER_BYTES || payload[1] != CommandBatch.VERSION)
+			return ;
+		boolean addressed = (payload[2] & CommandBatch.FLAG_ADDRESSED) != 0 ;
+		boolean broadcast = msb == 0xff && lsb == 0xff ;
+		int position = CommandBatch.HEADER_BYTES ;
+		for(int i = 0; i < payload[3]; i++) {
+			int robotMsb = msb ;
+			int robotLsb = lsb ;
+			if(position + (addressed ? 2 : 0) >= payload.length)
+				return ;						// Truncated
+			if(addressed) {
+				robotMsb = payload[position++] ;
+				robotLsb = payload[position++] ;
+				boolean everyRobot = robotMsb == 0xff && robotLsb == 0xff ;
+				if(!broadcast && !everyRobot && (robotMsb != msb || robotLsb != lsb)) {
+					position += XBeeCommunicatorTask.payloadLength(payload[position]) ;
+					continue ;					// Another robot's command
+				}
+				if(everyRobot) {
+					robotMsb = msb ;
+					robotLsb = lsb ;
+				}
+			}
+			int length = XBeeCommunicatorTask.payloadLength(payload[position]) ;
+			if(position + length > payload.length)
+				return ;						// Truncated
+			int[] entry = new int[length] ;
+			System.arraycopy(payload, position, entry, 0, length) ;
+			position += length ;
+			if(entry[0] != XBeeCommunicatorTask.CMD_BATCH)		// No nesting
+				handlePayload(robotMsb, robotLsb, entry, deliveredNanos) ;
+		}
+	}
+
+	private void stopTelemetry() {
+		synchronized(timing) {
+			if(telemetry != null)
+				telemetry.cancel(false) ;
+			telemetry = null ;
+		}
+	}
+
+	/**
+	 * A plausible infrared distance: a slow sine wave per sensor, plus a little noise.
+	 */
+	private int[] infraredSample(int sensor) {
+		double t = System.nanoTime() / 1e9 ;
+		int noise ;
+		synchronized(timing) {
+			noise = random.nextInt(9) - 4 ;
+		}
+		int distance = (int) (128 + 100 * Math.sin(t / (2 + sensor))) + noise ;
+		return new int[] { ROBOT_INFRARED_POLL, sensor, Math.max(0, Math.min(255, distance)) } ;
+	}
+
+	/**
+	 * Send data from the robot to the PC: it takes the robot robotDelayMicros to answer, then the reply goes over
+	 * the air (unless it is lost) and arrives as an RX 16 packet.
+	 */
+	protected void robotReply(int msb, int lsb, int[] data, long fromNanos) {
+		long deliveredNanos ;
+		synchronized(timing) {
+			long airtime = airtimeMicros * 1000L ;
+			if(jitterMicros > 0)
+				airtime += (long) (random.nextDouble() * jitterMicros * 1000L) ;
+			if(random.nextDouble() < lossRate) {
+				framesLost++ ;
+				return ;
+			}
+			long start = Math.max(fromNanos + robotDelayMicros * 1000L, airFreeAtNanos) ;
+			airFreeAtNanos = start + airtime ;
+			deliveredNanos = airFreeAtNanos ;
+		}
+		int[] frameData = new int[5 + data.length] ;
+		frameData[0] = API_RX_16 ;
+		frameData[1] = msb ;
+		frameData[2] = lsb ;
+		frameData[3] = ROBOT_RSSI ;
+		frameData[4] = 0 ;
+		System.arraycopy(data, 0, frameData, 5, data.length) ;
+		replyAt(frameData, deliveredNanos) ;
+	}
+
+	/**
+	 * Queue a frame for delivery to the PC.
+	 *
+	 * @param frameData the frame data - api id followed by the api specific data
+	 * @param delayNanos how long before the frame starts to arrive on the serial link
+	 */
+	protected void reply(int[] frameData, long delayNanos) {
+		replyAt(frameData, System.nanoTime() + delayNanos) ;
+	}
+
+	/**
+	 * Queue a frame for delivery to the PC. The serial link carries one frame at a time, so the frame is delivered
+	 * once it, and any frames ahead of it, have crossed the serial link.
+	 *
+	 * @param frameData the frame data - api id followed by the api specific data
+	 * @param readyNanos when the explorer has the frame ready to send to the PC
+	 */
+	protected void replyAt(int[] frameData, long readyNanos) {
+		final int[] packet = encode(frameData) ;
+		long arrivesNanos ;
+		synchronized(timing) {
+			long start = Math.max(readyNanos, serialInFreeAtNanos) ;
+			serialInFreeAtNanos = start + serialNanos(packet.length) ;
+			arrivesNanos = serialInFreeAtNanos ;
+			framesSent++ ;
+		}
+		try {
+			responder.schedule(new Runnable() {
+				public void run() {
+					in.append(packet) ;
+				}
+			}, arrivesNanos - System.nanoTime(), TimeUnit.NANOSECONDS) ;
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * @return how long the specified number of bytes take on the serial link, at 10 bits per byte
+	 */
+	protected long serialNanos(int bytes) {
+		return bytes * 10L * 1000000000L / baudRate ;
+	}
+
+	/**
+	 * Wrap frame data in an escaped API packet: start byte, length, frame data, checksum.
+	 */
+	protected static int[] encode(int[] frameData) {
+		int[] raw = new int[frameData.length + 3] ;
+		raw[0] = (frameData.length >> 8) & 0xff ;
+		raw[1] = frameData.length & 0xff ;
+		int sum = 0 ;
+		for(int i = 0; i < frameData.length; i++) {
+			raw[i + 2] = frameData[i] & 0xff ;
+			sum += raw[i + 2] ;
+		}
+		raw[raw.length - 1] = 0xff - (sum & 0xff) ;
+
+		int escapes = 0 ;
+		for(int b : raw)
+			if(isSpecial(b))
+				escapes++ ;
+		int[] packet = new int[1 + raw.length + escapes] ;
+		int pos = 0 ;
+		packet[pos++] = START_BYTE ;
+		for(int b : raw) {
+			if(isSpecial(b)) {
+				packet[pos++] = ESCAPE ;
+				packet[pos++] = b ^ 0x20 ;
+			} else {
+				packet[pos++] = b ;
+			}
+		}
+		return packet ;
+	}
+
+	private static boolean isSpecial(int b) {
+		return b == START_BYTE || b == ESCAPE || b == XON || b == XOFF ;
+	}
+
+	private static void sleepQuietly(long nanos) {
+		if(nanos <= 0)
+			return ;
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * The bytes the XBee api reads. The api's input thread waits on the connection when there is nothing
+	 * available, so we notify the connection whenever we append a packet.
+	 */
+	private class InboundStream extends InputStream {
+		private byte[] buffer = new byte[1024] ;
+		private int head = 0 ;
+		private int count = 0 ;
+
+		void append(int[] packet) {
+			synchronized(this) {
+				if(count + packet.length > buffer.length) {
+					byte[] bigger = new byte[Math.max(buffer.length * 2, count + packet.length)] ;
+					for(int i = 0; i < count; i++)
+						bigger[i] = buffer[(head + i) % buffer.length] ;
+					buffer = bigger ;
+					head = 0 ;
+				}
+				for(int b : packet)
+					buffer[(head + count++) % buffer.length] = (byte) b ;
+				notifyAll() ;
+			}
+			synchronized(SimulatedXBeeConnection.this) {
+				SimulatedXBeeConnection.this.notifyAll() ;
+			}
+		}
+
+		@Override
+		public synchronized int available() {
+			return count ;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			while(count == 0) {
+				try {
+					wait() ;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt() ;
+					throw new IOException("interrupted") ;
+				}
+			}
+			int b = buffer[head] & 0xff ;
+			head = (head + 1) % buffer.length ;
+			count-- ;
+			return b ;
+		}
+	}
+
+	/**
+	 * The bytes the XBee api writes. Unescapes them and hands each complete frame to handleFrame().
+	 */
+	private class OutboundStream extends OutputStream {
+		private int[] frame = new int[256] ;
+		private int length = -1 ;		// Frame data length, -1 until both length bytes arrive
+		private int pos = -1 ;			// Bytes received since the start byte, -1 while hunting for a start byte
+		private boolean escaped = false ;
+		private long bytesSinceFlush = 0 ;
+
+		@Override
+		public synchronized void write(int b) {
+			b &= 0xff ;
+			bytesSinceFlush++ ;
+			if(b == START_BYTE) {
+				pos = 0 ;
+				length = -1 ;
+				escaped = false ;
+				return ;
+			}
+			if(pos < 0)
+				return ;
+			if(b == ESCAPE) {
+				escaped = true ;
+				return ;
+			}
+			if(escaped) {
+				b ^= 0x20 ;
+				escaped = false ;
+			}
+			if(pos == 0) {
+				length = b << 8 ;
+			} else if(pos == 1) {
+				length |= b ;
+				if(length >= frame.length)
+					frame = new int[length + 1] ;
+			} else {
+				frame[pos - 2] = b ;
+				if(pos - 2 == length) {
+					int sum = 0 ;
+					for(int i = 0; i <= length; i++)
+						sum += frame[i] ;
+					if((sum & 0xff) == 0xff) {
+						int[] frameData = new int[length] ;
+						System.arraycopy(frame, 0, frameData, 0, length) ;
+						handleFrame(frameData) ;
+					}
+					pos = -1 ;
+					return ;
+				}
+			}
+			pos++ ;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for(int i = 0; i < len; i++)
+				write(b[off + i]) ;
+		}
+
+		/**
+		 * The serial port drains at the baud rate, so block the writer for that long.
+		 */
+		@Override
+		public void flush() {
+			long bytes ;
+			synchronized(this) {
+				bytes = bytesSinceFlush ;
+				bytesSinceFlush = 0 ;
+			}
+			synchronized(timing) {
+				bytesReceived += bytes ;
+			}
+			sleepQuietly(serialNanos((int) bytes)) ;
+		}
+	}
+}
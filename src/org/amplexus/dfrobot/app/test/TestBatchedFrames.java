@@ -0,0 +1,166 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.amplexus.dfrobot.app.CommandBatch;
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.CommandListener;
+import org.amplexus.dfrobot.app.ReceivePipeline;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeTransmitEngine;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Measures what batching commands into one frame (see CommandBatch) saves against today's one command per frame,
+ * at 9600 baud against the simulated robot with airtime that grows with the frame.
+ *
+ * The same workload is run both ways: as fast as the dispatcher takes them, rounds of a motor command, an
+ * infrared poll and a ping - the sort of thing a control loop sends every tick. Then one addressed batch is
+ * broadcast to several robots at once, pinging each of them.
+ *
+ * Passes if, batched:
+ * - at least MIN_SPEEDUP times as many commands are acknowledged per second
+ * - each command costs at most MAX_AIRTIME_RATIO of the airtime it does unbatched
+ * - every robot answers the broadcast batch
+ *
+ * Usage: TestBatchedFrames [rounds] [baud rate] [commands per batch] [linger millis]
+ *
+ * @author craig
+ */
+public class TestBatchedFrames {
+
+	public static final long AIRTIME_MICROS			= 600 ;		// MAC overhead and acknowledgement
+	public static final long AIRTIME_PER_BYTE_MICROS	= 32 ;		// 250 kbps
+	public static final int CAPACITY				= 64 ;
+	public static final double MIN_SPEEDUP			= 1.5 ;
+	public static final double MAX_AIRTIME_RATIO	= 0.5 ;
+	public static final int BROADCAST_ROBOTS		= 4 ;
+	public static final int FIRST_ADDRESS			= 0x8101 ;
+
+	private final static Logger log = Logger.getLogger(TestBatchedFrames.class);
+
+	/**
+	 * What one run measured.
+	 */
+	private static class Result {
+		long commands ;				// Commands acknowledged
+		long frames ;				// Frames the simulated explorer received
+		long millis ;				// How long the run took
+		long airtimeMicros ;		// Airtime the frames took
+		long bytes ;				// Serial bytes we wrote
+
+		double commandsPerSecond() {
+			return commands * 1000.0 / millis ;
+		}
+
+		double airtimePerCommand() {
+			return commands == 0 ? 0 : (double) airtimeMicros / commands ;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 12 ;
+		int lingerMillis = args.length > 3 ? Integer.parseInt(args[3]) : 5 ;
+
+		Result single = run("one per frame", rounds, baudRate, 1, 0) ;
+		Result batched = run("batched", rounds, baudRate, batchSize, lingerMillis) ;
+
+		double speedup = batched.commandsPerSecond() / single.commandsPerSecond() ;
+		double airtimeRatio = batched.airtimePerCommand() / single.airtimePerCommand() ;
+		boolean pass = speedup >= MIN_SPEEDUP && airtimeRatio <= MAX_AIRTIME_RATIO ;
+		log.info(String.format("Batching: %.2fx the commands per second, %.0f%% of the airtime per command%s", speedup,
+				airtimeRatio * 100, pass ? "" : " FAIL")) ;
+
+		pass &= broadcast(baudRate) ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Send rounds of motor, infrared poll and ping commands as fast as the dispatcher takes them.
+	 */
+	private static Result run(String name, int rounds, int baudRate, int batchSize, int lingerMillis) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		SimulatedXBeeConnection connection = link.open("simulated", baudRate) ;
+		connection.setAirtimePerByteMicros(AIRTIME_PER_BYTE_MICROS) ;
+		final AtomicLong acknowledged = new AtomicLong() ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", baudRate, CAPACITY, new CommandListener() {
+			public void commandCompleted(RobotCommand command, String error) {
+				if(error == null)
+					acknowledged.incrementAndGet() ;
+			}
+		});
+		dispatcher.setBatching(batchSize, lingerMillis) ;
+
+		long start = System.nanoTime() ;
+		for(int i = 0; i < rounds; i++) {
+			submit(dispatcher, XBeeCommunicatorTask.CMD_MOTOR_FORWARD + (i % 4), 100 + (i % 100)) ;
+			submit(dispatcher, XBeeCommunicatorTask.CMD_INFRARED_POLL, i % 3) ;
+			submit(dispatcher, XBeeCommunicatorTask.CMD_PING, i & 0xff) ;
+		}
+		while(dispatcher.getQueueDepth() > 0 || dispatcher.getOutstanding() > 0)
+			Thread.sleep(1) ;
+
+		Result result = new Result() ;
+		result.millis = (System.nanoTime() - start) / 1000000L ;
+		result.commands = acknowledged.get() ;
+		result.frames = connection.getFramesReceived() ;
+		result.airtimeMicros = connection.getAirtimeMicros() ;
+		result.bytes = connection.getBytesReceived() ;
+		log.info(String.format("%-14s %5d commands in %5d frames, %6d ms: %6.1f commands/s %6.1f frames/s, %5.0f us airtime and %4.1f serial bytes per command (%d coalesced)",
+				name, result.commands, result.frames, result.millis, result.commandsPerSecond(), result.frames * 1000.0 / result.millis,
+				result.airtimePerCommand(), (double) result.bytes / Math.max(1, result.commands), dispatcher.getCoalescedCount())) ;
+		dispatcher.shutdown() ;
+		link.close() ;
+		return result ;
+	}
+
+	private static void submit(CommandDispatcher dispatcher, int command, int data) throws InterruptedException {
+		while(!dispatcher.submit(command, data))
+			Thread.sleep(1) ;			// Queue full - wait for the dispatcher to catch up
+	}
+
+	/**
+	 * Broadcast one addressed batch that pings each of several robots.
+	 *
+	 * @return true if every robot answered
+	 */
+	private static boolean broadcast(int baudRate) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		link.open("simulated", baudRate) ;
+		ReceivePipeline pipeline = new ReceivePipeline(link) ;
+		final boolean[] answered = new boolean[BROADCAST_ROBOTS] ;
+		pipeline.addPingListener(new ReceivePipeline.PingListener() {
+			public void pingReply(int source, int sequence, long receivedNanos) {
+				int robot = source - FIRST_ADDRESS ;
+				if(robot >= 0 && robot < BROADCAST_ROBOTS && sequence == robot)
+					answered[robot] = true ;
+			}
+		});
+		XBeeTransmitEngine engine = new XBeeTransmitEngine() ;
+		XBeeCommunicatorTask task = new XBeeCommunicatorTask(link, engine) ;
+
+		CommandBatch batch = new CommandBatch(true) ;
+		for(int i = 0; i < BROADCAST_ROBOTS; i++)
+			batch.add(FIRST_ADDRESS + i, RobotCommand.valueOf(XBeeCommunicatorTask.CMD_PING, i)) ;
+		task.executeBatch(batch, XBeeCommunicatorTask.BROADCAST, "simulated", baudRate, null, null) ;
+		Thread.sleep(1000) ;
+		pipeline.shutdown() ;			// Joins the dispatch thread, so answered is up to date
+
+		boolean pass = true ;
+		StringBuilder who = new StringBuilder() ;
+		for(int i = 0; i < BROADCAST_ROBOTS; i++) {
+			pass &= answered[i] ;
+			who.append(String.format(" 0x%04x=%s", FIRST_ADDRESS + i, answered[i] ? "answered" : "silent")) ;
+		}
+		log.info("Broadcast " + batch + " in one " + batch.getLength() + " byte payload:" + who + (pass ? "" : " FAIL")) ;
+		engine.shutdown() ;
+		link.close() ;
+		return pass ;
+	}
+}
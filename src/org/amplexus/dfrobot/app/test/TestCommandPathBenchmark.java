@@ -0,0 +1,216 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.CommandListener;
+import org.amplexus.dfrobot.app.EventLog;
+import org.amplexus.dfrobot.app.LatencyHistogram;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.TelemetryRecorder;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeFrameEncoder;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.rapplogic.xbee.api.XBeeAddress16;
+import com.rapplogic.xbee.api.wpan.TxRequest16;
+
+/**
+ * Benchmarks each stage of the command encode / transmit path:
+ * - payload: building the int[] payload, XBeeAddress16 and TxRequest16 for a motor command
+ * - serialize: turning the TxRequest16 into an escaped, checksummed API frame
+ * - encode: building the same frame with XBeeFrameEncoder, as the command path now does - should allocate nothing
+ * - record: encoding plus recording the frame with a TelemetryRecorder - the cost recording adds to the send path
+ * - log4j: a debug line per command through a file appender that flushes every line, as XBee.log's does - what
+ *   tracing each command used to cost the send path
+ * - events: recording the same command in an EventLog instead
+ * - dispatch: handing a command from the EventDispatch thread to the dispatcher thread
+ * - end-to-end: submit to TX status, against a loopback endpoint fast enough that only our own software shows
+ *
+ * Results are tab separated, one line per stage, so a run can be saved as a baseline and later runs diffed
+ * against it: see the Benchmarks section of the README.
+ *
+ * Usage: TestCommandPathBenchmark [results file]
+ *
+ * @author craig
+ */
+public class TestCommandPathBenchmark {
+
+	public static final int LOOPBACK_BAUD_RATE		= 1000000 ;	// Fast enough that serial time is negligible
+	public static final int ROUND_TRIPS				= 2000 ;
+	public static final int TRACE_OPS				= 20000 ;	// Per round, for log4j and events
+	public static final int TRACE_EVENT_CAPACITY	= 1 << 18 ;	// More than every round of events together
+	public static final String LOG4J_PATTERN		= "[%d] [%t] [%p] [%c] %m %n" ;	// As log4j.properties
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		List<String> results = new ArrayList<String>() ;
+		results.add(MicroBenchmark.HEADER) ;
+		MicroBenchmark bench = new MicroBenchmark(5, 10, 200000) ;
+
+		/*
+		 * Payload construction - what every motor<Dir>() method does per command
+		 */
+		results.add(bench.measure("payload", new MicroBenchmark.Operation() {
+			int speed = 0 ;
+			public long run() {
+				speed = (speed + 1) & 0xff ;
+				int[] payload = new int[] { XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed } ;
+				XBeeAddress16 destination = new XBeeAddress16(XBeeCommunicatorTask.XBEE_SHIELD_MY_MSB, XBeeCommunicatorTask.XBEE_SHIELD_MY_LSB) ;
+				TxRequest16 tx = new TxRequest16(destination, 1, payload) ;
+				return tx.getFrameId() ;
+			}
+		})) ;
+
+		/*
+		 * API frame serialization, with escaping and checksum
+		 */
+		results.add(bench.measure("serialize", new MicroBenchmark.Operation() {
+			int speed = 0 ;
+			XBeeAddress16 destination = new XBeeAddress16(XBeeCommunicatorTask.XBEE_SHIELD_MY_MSB, XBeeCommunicatorTask.XBEE_SHIELD_MY_LSB) ;
+			public long run() {
+				speed = (speed + 1) & 0xff ;
+				TxRequest16 tx = new TxRequest16(destination, 1, new int[] { XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed }) ;
+				return tx.getXBeePacket().getByteArray().length ;
+			}
+		})) ;
+
+		/*
+		 * The same frame, encoded into a reused buffer with the cached destination
+		 */
+		results.add(bench.measure("encode", new MicroBenchmark.Operation() {
+			int speed = 0 ;
+			XBeeFrameEncoder encoder = new XBeeFrameEncoder() ;
+			public long run() {
+				speed = (speed + 1) & 0xff ;
+				return encoder.encodeTx16(XBeeCommunicatorTask.XBEE_SHIELD, 1, XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed).remaining() ;
+			}
+		})) ;
+
+		/*
+		 * The same frame, encoded and recorded to a memory mapped segment
+		 */
+		File recordings = new File(System.getProperty("java.io.tmpdir"), "dfrobot-benchmark") ;
+		final TelemetryRecorder recorder = new TelemetryRecorder(recordings, TelemetryRecorder.newSessionName(), TelemetryRecorder.DEFAULT_SEGMENT_BYTES) ;
+		results.add(bench.measure("record", new MicroBenchmark.Operation() {
+			int speed = 0 ;
+			XBeeFrameEncoder encoder = new XBeeFrameEncoder() ;
+			public long run() {
+				speed = (speed + 1) & 0xff ;
+				ByteBuffer frame = encoder.encodeTx16(XBeeCommunicatorTask.XBEE_SHIELD, 1, XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed) ;
+				recorder.recordOutbound(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), System.nanoTime()) ;
+				return frame.remaining() ;
+			}
+		})) ;
+		recorder.close() ;
+		for(int i = 0; i < recorder.getSegmentCount(); i++)
+			TelemetryRecorder.segmentFile(recordings, recorder.getSession(), i).delete() ;
+
+		/*
+		 * Tracing each command: a log4j debug line flushed to a file, against an event recorded in an EventLog.
+		 * Fewer operations, as each log4j line hits the disk - and the event ring is big enough that no round
+		 * overflows it, so we time recording rather than dropping
+		 */
+		MicroBenchmark tracing = new MicroBenchmark(2, 5, TRACE_OPS) ;
+		File log4jFile = File.createTempFile("dfrobot-benchmark", ".log") ;
+		final Logger log4j = Logger.getLogger("dfrobot.benchmark") ;
+		FileAppender appender = new FileAppender(new PatternLayout(LOG4J_PATTERN), log4jFile.getPath(), false) ;
+		appender.setImmediateFlush(true) ;
+		log4j.setAdditivity(false) ;
+		log4j.setLevel(Level.DEBUG) ;
+		log4j.addAppender(appender) ;
+		results.add(tracing.measure("log4j", new MicroBenchmark.Operation() {
+			int speed = 0 ;
+			public long run() {
+				speed = (speed + 1) & 0xff ;
+				if(log4j.isDebugEnabled())
+					log4j.debug("Executing command: " + XBeeCommunicatorTask.stringifiedCommandName(XBeeCommunicatorTask.CMD_MOTOR_FORWARD) + " " + speed) ;
+				return speed ;
+			}
+		})) ;
+		log4j.removeAppender(appender) ;
+		appender.close() ;
+		log4jFile.delete() ;
+
+		File eventsFile = File.createTempFile("dfrobot-benchmark", ".tsv") ;
+		final EventLog events = new EventLog(new FileWriter(eventsFile), TRACE_EVENT_CAPACITY) ;
+		results.add(tracing.measure("events", new MicroBenchmark.Operation() {
+			int speed = 0 ;
+			public long run() {
+				speed = (speed + 1) & 0xff ;
+				events.record(EventLog.SENT, XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed, 0) ;
+				return speed ;
+			}
+		})) ;
+		events.close() ;
+		eventsFile.delete() ;
+		if(events.getDroppedCount() > 0)
+			System.err.println("(events dropped " + events.getDroppedCount() + ")") ;
+
+		/*
+		 * Dispatch and end-to-end, through the production dispatcher and a loopback endpoint
+		 */
+		SimulatedLinkManager link = new SimulatedLinkManager(0, 0) ;
+		link.open("loopback", LOOPBACK_BAUD_RATE).setRobotDelayMicros(0) ;
+		final Semaphore completed = new Semaphore(0) ;
+		final CommandDispatcher dispatcher = new CommandDispatcher(link, "loopback", LOOPBACK_BAUD_RATE, CommandDispatcher.DEFAULT_CAPACITY, new CommandListener() {
+			public void commandCompleted(RobotCommand command, String error) {
+				completed.release() ;
+			}
+		});
+		LatencyHistogram endToEnd = new LatencyHistogram() ;
+		for(int i = 0; i < ROUND_TRIPS; i++) {
+			if(i == ROUND_TRIPS / 2) {
+				dispatcher.getDispatchDelay().reset() ;		// first half is warm up
+				endToEnd.reset() ;
+			}
+			final int speed = i & 0xff ;
+			long start = System.nanoTime() ;
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					dispatcher.submit(XBeeCommunicatorTask.CMD_MOTOR_FORWARD, speed) ;
+				}
+			});
+			if(!completed.tryAcquire(5, TimeUnit.SECONDS))
+				throw new IllegalStateException("No TX status from the loopback endpoint") ;
+			endToEnd.recordNanos(System.nanoTime() - start) ;
+		}
+		results.add(histogramLine("dispatch", dispatcher.getDispatchDelay())) ;
+		results.add(histogramLine("end-to-end", endToEnd)) ;
+		dispatcher.shutdown() ;
+		link.close() ;
+
+		PrintWriter out = args.length > 0 ? new PrintWriter(new FileWriter(args[0])) : null ;
+		for(String line : results) {
+			System.out.println(line) ;
+			if(out != null)
+				out.println(line) ;
+		}
+		if(out != null)
+			out.close() ;
+		System.err.println("(sink " + bench.getSink() + ")") ;
+	}
+
+	/**
+	 * Latencies measured across threads aren't per operation timings, so report the median and best as for the
+	 * micro benchmarks, in nanoseconds, with allocation not applicable.
+	 */
+	private static String histogramLine(String name, LatencyHistogram histogram) {
+		return String.format("%s\t%d\t%d\tn/a\t# p99=%d ns max=%d ns", name, histogram.getPercentileMicros(50) * 1000L,
+				histogram.getPercentileMicros(0) * 1000L, histogram.getPercentileMicros(99) * 1000L, histogram.getMaxMicros() * 1000L) ;
+	}
+}
@@ -0,0 +1,65 @@
+package org.amplexus.dfrobot.app.test;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.CommandListener;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeLinkManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Simulates key mashing: fires motion commands at the dispatcher much faster than a 9600 baud link can carry
+ * them, against a simulated endpoint, and reports how many were sent versus coalesced.
+ *
+ * The last command submitted must always be the last command sent.
+ *
+ * Usage: TestDispatcherCoalescing [commands] [interval millis]
+ *
+ * @author craig
+ */
+public class TestDispatcherCoalescing {
+
+	private final static Logger log = Logger.getLogger(TestDispatcherCoalescing.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 200 ;
+		long intervalMillis = args.length > 1 ? Long.parseLong(args[1]) : 2 ;
+
+		XBeeLinkManager link = new SimulatedLinkManager(50, 2000) ;
+		final RobotCommand[] lastSent = new RobotCommand[1] ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", 9600, CommandDispatcher.DEFAULT_CAPACITY, new CommandListener() {
+			public void commandCompleted(RobotCommand command, String error) {
+				synchronized(lastSent) {
+					lastSent[0] = command ;
+					lastSent.notifyAll() ;
+				}
+			}
+		});
+
+		int maxDepth = 0 ;
+		RobotCommand last = null ;
+		for(int i = 0; i < commands; i++) {
+			last = new RobotCommand(XBeeCommunicatorTask.CMD_MOTOR_LEFT + (i % 2), i % 256) ;
+			dispatcher.submit(last) ;
+			maxDepth = Math.max(maxDepth, dispatcher.getQueueDepth()) ;
+			Thread.sleep(intervalMillis) ;
+		}
+
+		synchronized(lastSent) {
+			long deadline = System.currentTimeMillis() + 10000 ;
+			while(lastSent[0] != last && System.currentTimeMillis() < deadline)
+				lastSent.wait(100) ;
+		}
+
+		log.info("submitted=" + dispatcher.getSubmittedCount() + " sent=" + dispatcher.getSentCount()
+				+ " coalesced=" + dispatcher.getCoalescedCount() + " failed=" + dispatcher.getFailedCount()
+				+ " max queue depth=" + maxDepth + " port opens=" + link.getOpenCount()) ;
+		log.info(lastSent[0] == last ? "PASS: newest command sent last" : "FAIL: newest command was not sent last") ;
+
+		dispatcher.shutdown() ;
+		link.close() ;
+	}
+}
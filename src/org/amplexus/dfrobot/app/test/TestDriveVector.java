@@ -0,0 +1,144 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.CommandListener;
+import org.amplexus.dfrobot.app.DriveVector;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Drives the same arc two ways against the simulated robot, and counts the frames each takes:
+ * - the old way: switching between forward and left every SWITCH_MILLIS, as the operator taps the keys
+ * - with up + left held as a chord, which DriveVector turns into one CMD_MOTOR_VECTOR
+ * Both end with a stop. Then checks the chords map to the track speeds expected, and that a motor vector
+ * survives being batched (see CommandBatch) between two other commands.
+ *
+ * Passes if the arc takes at most MAX_VECTOR_FRAMES frames as a vector, at most MAX_FRAME_RATIO of the frames the
+ * old way takes, and the robot acts on exactly the track speeds sent, batched or not.
+ *
+ * Usage: TestDriveVector [manoeuvre millis] [baud rate]
+ *
+ * @author craig
+ */
+public class TestDriveVector {
+
+	public static final long SWITCH_MILLIS		= 100 ;		// How often the old way switches between forward and left
+	public static final long AIRTIME_MICROS		= 2000 ;
+	public static final int SPEED				= 200 ;
+	public static final int MAX_VECTOR_FRAMES	= 2 ;		// The vector, then the stop
+	public static final double MAX_FRAME_RATIO	= 0.25 ;
+
+	private final static Logger log = Logger.getLogger(TestDriveVector.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		long manoeuvreMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+
+		boolean pass = checkMapping() ;
+		long switched = arc("switching", manoeuvreMillis, baudRate, false) ;
+		long vector = arc("vector", manoeuvreMillis, baudRate, true) ;
+		boolean framesPass = vector > 0 && vector <= MAX_VECTOR_FRAMES && vector <= switched * MAX_FRAME_RATIO ;
+		log.info(String.format("Arc: %d frames switching, %d frames as a vector (%.0f%%)%s", switched, vector,
+				vector * 100.0 / Math.max(1, switched), framesPass ? "" : " FAIL")) ;
+		pass &= framesPass ;
+		pass &= batched(baudRate) ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Check each chord maps to the track speeds expected, and the speeds survive being packed.
+	 */
+	private static boolean checkMapping() {
+		int outer = DriveVector.trackSpeed(SPEED) ;
+		int inner = outer * DriveVector.ARC_INNER_PERCENT / 100 ;
+		boolean pass = true ;
+		pass &= check("up + left", DriveVector.KEY_UP | DriveVector.KEY_LEFT, inner, outer) ;
+		pass &= check("up + right", DriveVector.KEY_UP | DriveVector.KEY_RIGHT, outer, inner) ;
+		pass &= check("down + left", DriveVector.KEY_DOWN | DriveVector.KEY_LEFT, -inner, -outer) ;
+		pass &= check("down + right", DriveVector.KEY_DOWN | DriveVector.KEY_RIGHT, -outer, -inner) ;
+
+		RobotCommand cancelled = DriveVector.command(DriveVector.KEY_UP | DriveVector.KEY_DOWN | DriveVector.KEY_LEFT, SPEED) ;
+		RobotCommand single = DriveVector.command(DriveVector.KEY_UP, SPEED) ;
+		boolean legacy = cancelled.getCommand() == XBeeCommunicatorTask.CMD_MOTOR_LEFT && single.getCommand() == XBeeCommunicatorTask.CMD_MOTOR_FORWARD
+				&& single.getData() == SPEED ;
+		log.info("up + down + left -> " + cancelled + ", up -> " + single + (legacy ? "" : " FAIL")) ;
+		return pass && legacy ;
+	}
+
+	private static boolean check(String name, int keys, int left, int right) {
+		RobotCommand command = DriveVector.command(keys, SPEED) ;
+		boolean pass = command.getCommand() == XBeeCommunicatorTask.CMD_MOTOR_VECTOR && command.getLeftSpeed() == left
+				&& command.getRightSpeed() == right && command.isMotion() && !command.isStop() ;
+		log.info(name + " -> " + command + (pass ? "" : " FAIL (expected " + left + ", " + right + ")")) ;
+		return pass ;
+	}
+
+	/**
+	 * Drive an arc for manoeuvreMillis, then stop.
+	 *
+	 * @param vector true to drive it as one motor vector, false to switch between forward and left
+	 * @return the frames the robot received, or -1 if it didn't end up stopped
+	 */
+	private static long arc(String name, long manoeuvreMillis, int baudRate, boolean vector) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		SimulatedXBeeConnection robot = link.open("simulated", baudRate) ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", baudRate, CommandDispatcher.DEFAULT_CAPACITY, null) ;
+
+		long end = System.currentTimeMillis() + manoeuvreMillis ;
+		if(vector) {
+			dispatcher.submit(DriveVector.command(DriveVector.KEY_UP | DriveVector.KEY_LEFT, SPEED)) ;
+			Thread.sleep(manoeuvreMillis) ;
+		} else {
+			for(int i = 0; System.currentTimeMillis() < end; i++) {
+				dispatcher.submit(i % 2 == 0 ? XBeeCommunicatorTask.CMD_MOTOR_FORWARD : XBeeCommunicatorTask.CMD_MOTOR_LEFT, SPEED) ;
+				Thread.sleep(SWITCH_MILLIS) ;
+			}
+		}
+		dispatcher.submit(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0) ;
+		Thread.sleep(200) ;
+
+		long frames = robot.getFramesReceived() ;
+		boolean stopped = robot.getRobotMotion() == XBeeCommunicatorTask.CMD_MOTOR_STOP ;
+		log.info(String.format("%-10s %d frames, %d direction changes%s", name, frames, robot.getMotionChanges(),
+				stopped ? "" : ", robot left moving FAIL")) ;
+		dispatcher.shutdown() ;
+		link.close() ;
+		return stopped ? frames : -1 ;
+	}
+
+	/**
+	 * Send a motor vector batched between two pings, and check the robot acted on it.
+	 */
+	private static boolean batched(int baudRate) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		SimulatedXBeeConnection robot = link.open("simulated", baudRate) ;
+		final AtomicLong acknowledged = new AtomicLong() ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", baudRate, CommandDispatcher.DEFAULT_CAPACITY, new CommandListener() {
+			public void commandCompleted(RobotCommand command, String error) {
+				if(error == null)
+					acknowledged.incrementAndGet() ;
+			}
+		});
+		dispatcher.setBatching(4, 20) ;
+
+		RobotCommand arc = DriveVector.command(DriveVector.KEY_DOWN | DriveVector.KEY_RIGHT, SPEED) ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_PING, 1) ;
+		dispatcher.submit(arc) ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_PING, 2) ;
+		Thread.sleep(500) ;
+
+		boolean pass = acknowledged.get() == 3 && robot.getRobotMotion() == XBeeCommunicatorTask.CMD_MOTOR_VECTOR
+				&& robot.getRobotVector() == arc.getData() ;
+		log.info("Batched " + arc + ": " + acknowledged.get() + " commands acknowledged in " + robot.getFramesReceived()
+				+ " frames, " + dispatcher.getBatchCount() + " batches" + (pass ? "" : " FAIL")) ;
+		dispatcher.shutdown() ;
+		link.close() ;
+		return pass ;
+	}
+}
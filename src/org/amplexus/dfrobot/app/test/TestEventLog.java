@@ -0,0 +1,105 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.StringWriter;
+
+import org.amplexus.dfrobot.app.EventLog;
+import org.amplexus.dfrobot.app.RetryPolicy;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Checks the EventLog:
+ * - THREADS threads record EVENTS_PER_THREAD events each at once, and every one is written, one well formed line
+ *   each, in the order each thread recorded them
+ * - events recorded faster than a small ring can hold are dropped, counted and reported in a DROPPED line, and
+ *   never block the recorder
+ *
+ * Usage: TestEventLog
+ *
+ * @author craig
+ */
+public class TestEventLog {
+
+	public static final int THREADS				= 4 ;
+	public static final int EVENTS_PER_THREAD	= 10000 ;
+	public static final int SMALL_CAPACITY		= 16 ;
+
+	private final static Logger log = Logger.getLogger(TestEventLog.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		boolean pass = concurrent() ;
+		pass &= overflow() ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Record from several threads at once, and check what is written.
+	 */
+	private static boolean concurrent() throws Exception {
+		StringWriter out = new StringWriter() ;
+		final EventLog events = new EventLog(out, 1 << 16) ;
+		Thread[] threads = new Thread[THREADS] ;
+		for(int t = 0; t < THREADS; t++) {
+			final int thread = t ;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for(int i = 0; i < EVENTS_PER_THREAD; i++)
+						events.record(EventLog.RETRY, XBeeCommunicatorTask.CMD_MOTOR_FORWARD, RetryPolicy.CHANNEL_BUSY, thread * EVENTS_PER_THREAD + i) ;
+				}
+			});
+			threads[t].start() ;
+		}
+		long start = System.nanoTime() ;
+		for(int t = 0; t < THREADS; t++)
+			threads[t].join() ;
+		long recordNanos = System.nanoTime() - start ;
+		events.close() ;
+
+		String[] lines = out.toString().split("\n") ;
+		int[] next = new int[THREADS] ;			// The next value expected from each thread
+		int wellFormed = 0 ;
+		boolean ordered = true ;
+		for(String line : lines) {
+			String[] fields = line.split("\t") ;
+			if(fields.length != 5 || !fields[0].matches("\\d+\\.\\d{3}") || !fields[1].equals("RETRY")
+					|| !fields[2].equals("command=" + XBeeCommunicatorTask.stringifiedCommandName(XBeeCommunicatorTask.CMD_MOTOR_FORWARD))
+					|| !fields[3].equals("outcome=" + RetryPolicy.outcomeName(RetryPolicy.CHANNEL_BUSY)) || !fields[4].startsWith("delayMicros=")) {
+				log.info("Malformed: " + line) ;
+				continue ;
+			}
+			wellFormed++ ;
+			int value = Integer.parseInt(fields[4].substring("delayMicros=".length())) ;
+			int thread = value / EVENTS_PER_THREAD ;
+			if(value % EVENTS_PER_THREAD != next[thread]++)
+				ordered = false ;
+		}
+		int total = THREADS * EVENTS_PER_THREAD ;
+		boolean pass = lines.length == total && wellFormed == total && ordered && events.getDroppedCount() == 0 ;
+		log.info(String.format("Concurrent: %d events recorded in %.1f ms (%.0f ns each), %d lines written, %d well formed, %s, %d dropped%s",
+				events.getRecordedCount(), recordNanos / 1e6, (double) recordNanos * THREADS / total, lines.length, wellFormed,
+				ordered ? "in order" : "OUT OF ORDER", events.getDroppedCount(), pass ? "" : " FAIL")) ;
+		return pass ;
+	}
+
+	/**
+	 * Record far more events than a small ring holds, faster than the writer wakes up.
+	 */
+	private static boolean overflow() throws Exception {
+		StringWriter out = new StringWriter() ;
+		EventLog events = new EventLog(out, SMALL_CAPACITY) ;
+		Thread.sleep(EventLog.FLUSH_MILLIS / 2) ;		// Clear of the writer's first wake up
+		for(int i = 0; i < SMALL_CAPACITY * 10; i++)
+			events.record(EventLog.LINK_OPENED, i, 0, 0) ;
+		events.close() ;
+
+		String written = out.toString() ;
+		long dropped = events.getDroppedCount() ;
+		boolean pass = events.getRecordedCount() + dropped == SMALL_CAPACITY * 10 && dropped > 0
+				&& written.contains("\tDROPPED\tevents=" + dropped + "\n") ;
+		log.info("Overflow: " + events.getRecordedCount() + " recorded, " + dropped + " dropped" + (pass ? "" : " FAIL")) ;
+		return pass ;
+	}
+}
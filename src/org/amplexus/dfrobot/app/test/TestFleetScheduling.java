@@ -0,0 +1,152 @@
+package org.amplexus.dfrobot.app.test;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.FleetDispatcher;
+import org.amplexus.dfrobot.app.LatencyHistogram;
+import org.amplexus.dfrobot.app.Robot;
+import org.amplexus.dfrobot.app.RobotRegistry;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeTransmitEngine;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Benchmarks the FleetDispatcher with 1, 4 and 16 simulated robots sharing one explorer.
+ *
+ * Each robot is sent a ping every PERIOD_MILLIS, and we record each one's latency from submit to the robot
+ * acknowledging it. Then, with 16 robots, the first robot is flooded with pings as fast as its queue takes them,
+ * while the others carry on as before. Finally every robot is set moving and stopped with allStop().
+ *
+ * Passes if:
+ * - no robot's p99 latency, with 4 or 16 robots, is more than FAIRNESS_FACTOR times the single robot p99 plus
+ *   one frame time per extra robot - ie adding robots adds frames to wait behind, it doesn't multiply the wait
+ * - the same holds for the 15 well behaved robots while the first one floods the link
+ * - every robot acknowledges the all stop within CommandDispatcher.STOP_LATENCY_TARGET_MILLIS
+ *
+ * Usage: TestFleetScheduling [seconds per run] [baud rate]
+ *
+ * @author craig
+ */
+public class TestFleetScheduling {
+
+	public static final int[] FLEET_SIZES		= { 1, 4, 16 } ;
+	public static final int FIRST_ADDRESS		= 0x8101 ;
+	public static final long PERIOD_MILLIS		= 100 ;		// Each robot is pinged this often
+	public static final long AIRTIME_MICROS		= 2000 ;
+	public static final long JITTER_MICROS		= 1000 ;
+	public static final double FAIRNESS_FACTOR	= 2.0 ;
+	public static final long FRAME_MICROS		= 4000 ;	// Roughly one frame's serial time plus airtime at 57600 baud
+
+	private final static Logger log = Logger.getLogger(TestFleetScheduling.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 57600 ;
+
+		boolean pass = true ;
+		long singleP99 = 0 ;
+		for(int i = 0; i < FLEET_SIZES.length; i++) {
+			long worstP99 = run(FLEET_SIZES[i], seconds, baudRate, false) ;
+			if(FLEET_SIZES[i] == 1)
+				singleP99 = worstP99 ;
+			else
+				pass &= check(FLEET_SIZES[i], worstP99, singleP99) ;
+		}
+		long floodedP99 = run(16, seconds, baudRate, true) ;
+		pass &= check(16, floodedP99, singleP99) ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Ping every robot in a fleet for a while, then stop them all.
+	 *
+	 * @param robots how many robots
+	 * @param flood true to flood the first robot with pings
+	 * @return the worst p99 latency of the robots not being flooded, microseconds - or -1 if the all stop failed
+	 */
+	private static long run(int robots, int seconds, int baudRate, boolean flood) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		SimulatedXBeeConnection connection = link.open("simulated", baudRate) ;
+		connection.setJitterMicros(JITTER_MICROS) ;
+		RobotRegistry registry = new RobotRegistry() ;
+		for(int i = 0; i < robots; i++)
+			registry.register(FIRST_ADDRESS + i, null) ;
+		XBeeTransmitEngine engine = new XBeeTransmitEngine() ;
+		FleetDispatcher fleet = new FleetDispatcher(link, engine, registry, "simulated", baudRate, null) ;
+		Robot[] fleetRobots = registry.getRobots() ;
+
+		/*
+		 * Ping each robot every period, staggered across the period, flooding the first if asked
+		 */
+		long start = System.nanoTime() ;
+		long end = start + seconds * 1000000000L ;
+		long stagger = PERIOD_MILLIS * 1000000L / robots ;
+		int sequence = 0 ;
+		long tick = 0 ;
+		while(System.nanoTime() < end) {
+			int turn = (int) (tick % robots) ;
+			long due = start + tick * stagger ;
+			long wait = due - System.nanoTime() ;
+			if(wait > 0)
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L)) ;
+			if(flood)
+				while(fleet.submit(fleetRobots[0], XBeeCommunicatorTask.CMD_PING, sequence++ & 0xff)) ;
+			if(!flood || turn != 0)
+				fleet.submit(fleetRobots[turn], XBeeCommunicatorTask.CMD_PING, sequence++ & 0xff) ;
+			tick++ ;
+		}
+		Thread.sleep(500) ;			// Let the last pings complete
+
+		long worstP99 = 0 ;
+		LatencyHistogram all = new LatencyHistogram() ;
+		for(int i = flood ? 1 : 0; i < robots; i++) {
+			LatencyHistogram latency = fleetRobots[i].getLatency() ;
+			worstP99 = Math.max(worstP99, latency.getPercentileMicros(99)) ;
+			all.recordMicros(latency.getPercentileMicros(50)) ;
+		}
+		log.info(String.format("%2d robots%s: worst p99=%.1f ms, median of robot p50s=%.1f ms, frames sent=%d lost=%d",
+				robots, flood ? " (first flooding)" : "", worstP99 / 1000.0, all.getPercentileMicros(50) / 1000.0,
+				connection.getFramesReceived(), connection.getFramesLost())) ;
+		if(flood)
+			log.info("   flooding robot: sent=" + fleetRobots[0].getSentCount() + " rejected=" + fleetRobots[0].getRejectedCount()
+					+ " " + fleetRobots[0].getLatency()) ;
+
+		/*
+		 * Set them all moving, then stop them all
+		 */
+		fleet.cancelPending() ;
+		for(int i = 0; i < robots; i++)
+			fleet.submit(fleetRobots[i], XBeeCommunicatorTask.CMD_MOTOR_FORWARD, 200) ;
+		Thread.sleep(500) ;
+		long stopStart = System.nanoTime() ;
+		fleet.allStop() ;
+		long stopDeadline = stopStart + CommandDispatcher.STOP_LATENCY_TARGET_MILLIS * 1000000L ;
+		boolean stopped = false ;
+		while(!stopped && System.nanoTime() < stopDeadline + 1000000000L) {
+			stopped = true ;
+			for(int i = 0; i < robots; i++)
+				stopped &= fleetRobots[i].getLastCommand() != null && !fleetRobots[i].isMoving() ;
+			if(!stopped)
+				Thread.sleep(1) ;
+		}
+		long stopMillis = (System.nanoTime() - stopStart) / 1000000L ;
+		boolean stopPass = stopped && stopMillis <= CommandDispatcher.STOP_LATENCY_TARGET_MILLIS ;
+		log.info("   all stop: " + (stopped ? "every robot stopped in " + stopMillis + " ms" : "not every robot stopped")
+				+ (stopPass ? "" : " FAIL")) ;
+
+		fleet.shutdown() ;
+		engine.shutdown() ;
+		link.close() ;
+		return stopPass ? worstP99 : -1 ;
+	}
+
+	private static boolean check(int robots, long worstP99, long singleP99) {
+		long limit = (long) (singleP99 * FAIRNESS_FACTOR) + (robots - 1) * FRAME_MICROS ;
+		boolean pass = worstP99 >= 0 && worstP99 <= limit ;
+		if(!pass)
+			log.info(String.format("%2d robots: worst p99 %.1f ms is over the %.1f ms limit FAIL", robots, worstP99 / 1000.0, limit / 1000.0)) ;
+		return pass ;
+	}
+}
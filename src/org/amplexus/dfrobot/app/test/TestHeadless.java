@@ -0,0 +1,80 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import org.amplexus.dfrobot.app.HeadlessController;
+import org.amplexus.dfrobot.app.StartupTimer;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Runs a script through the HeadlessController against the simulated robot, twice:
+ * - with the port and baud rate given, so the link is opened straight away
+ * - with only the port, so the explorer's baud rate is looked for first
+ *
+ * Passes if both runs are ready within READY_BUDGET_MILLIS, every command in SCRIPT is acknowledged, and its one
+ * bad line is reported as an error.
+ *
+ * Usage: TestHeadless [open delay millis]
+ *
+ * @author craig
+ */
+public class TestHeadless {
+
+	public static final String PORT				= "simulated" ;
+	public static final int BAUD_RATE			= 9600 ;
+	public static final long AIRTIME_MICROS		= 2000 ;
+	public static final long READY_BUDGET_MILLIS	= 1000 ;
+	public static final String SCRIPT			= "# A short drive\nping\nforward 200\nwait 50\nleft\nvector 100 -100\nbogus\nstop\nquit\nping\n" ;
+	public static final int COMMANDS			= 5 ;		// Acknowledgements expected from SCRIPT - nothing after quit
+
+	private final static Logger log = Logger.getLogger(TestHeadless.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		long openDelayMillis = args.length > 0 ? Long.parseLong(args[0]) : 100 ;
+
+		boolean pass = run("port given", PORT, BAUD_RATE, openDelayMillis) ;
+		pass &= run("baud found", PORT, 0, openDelayMillis) ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Start up as HeadlessController.main() does, and run SCRIPT.
+	 */
+	private static boolean run(String name, String commPort, int baudRate, long openDelayMillis) throws Exception {
+		StartupTimer startup = new StartupTimer(StartupTimer.HEADLESS) ;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+		PrintStream out = new PrintStream(bytes, true) ;
+		HeadlessController controller = new HeadlessController(startup, new SimulatedLinkManager(openDelayMillis, AIRTIME_MICROS), out) ;
+		int failures = -1 ;
+		try {
+			if(controller.connect(commPort, baudRate))
+				failures = controller.run(new BufferedReader(new StringReader(SCRIPT))) ;
+		} finally {
+			controller.shutdown() ;
+		}
+
+		int ready = 0 ;
+		int acks = 0 ;
+		int errors = 0 ;
+		for(String line : bytes.toString().split("\n")) {
+			log.debug(name + ": " + line) ;
+			if(line.startsWith("ready\t"))
+				ready++ ;
+			else if(line.startsWith("ack\t"))
+				acks++ ;
+			else if(line.startsWith("error\t"))
+				errors++ ;
+		}
+		boolean pass = ready == 1 && startup.getReadyMillis() >= 0 && startup.getReadyMillis() < READY_BUDGET_MILLIS && acks == COMMANDS
+				&& errors == 1 && failures == 1 && startup.getFirstAckMillis() >= startup.getReadyMillis() ;
+		log.info(String.format("%-10s %s, %d of %d commands acknowledged, %d bad lines%s", name, startup, acks, COMMANDS, errors,
+				pass ? "" : " FAIL")) ;
+		return pass ;
+	}
+}
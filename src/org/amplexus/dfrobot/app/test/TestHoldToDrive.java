@@ -0,0 +1,117 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.awt.event.KeyEvent;
+
+import javax.swing.SwingUtilities;
+
+import org.amplexus.dfrobot.app.HoldToDriveInput;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Holds the up arrow down for a while, with auto-repeat in both of the styles platforms use, then releases it,
+ * and checks the hold to drive state machine:
+ * - drives exactly once, however many auto-repeats arrive
+ * - sends keepalives while the key is held
+ * - stops exactly once, within the release grace (plus timer slop) of the real release
+ *
+ * Usage: TestHoldToDrive [hold millis]
+ *
+ * @author craig
+ */
+public class TestHoldToDrive {
+
+	public static final int AUTO_REPEAT_MILLIS	= 33 ;		// A typical 30 per second auto-repeat
+	public static final int REPEAT_GAP_MILLIS	= 2 ;		// Gap between an auto-repeat release and its press
+	public static final int TIMER_SLOP_MILLIS	= 30 ;		// Swing Timers are not precise
+
+	private final static Logger log = Logger.getLogger(TestHoldToDrive.class);
+
+	/**
+	 * Counts what the state machine asks for. Only touched on the EventDispatch thread.
+	 */
+	private static class RecordingDriver implements HoldToDriveInput.Driver {
+		int drives = 0 ;
+		int stops = 0 ;
+		int keepalives = 0 ;
+		long stoppedNanos = 0 ;
+
+		public void drive(int command) {
+			drives++ ;
+		}
+
+		public void stop() {
+			stops++ ;
+			stoppedNanos = System.nanoTime() ;
+		}
+
+		public void keepalive(int watchdogTicks) {
+			keepalives++ ;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		long holdMillis = args.length > 0 ? Long.parseLong(args[0]) : 1000 ;
+		boolean pass = run("press / release pairs", holdMillis, true) ;
+		pass &= run("repeated presses", holdMillis, false) ;
+		log.info(pass ? "PASS" : "FAIL") ;
+		System.exit(0) ;		// The Swing Timers keep the AWT threads alive
+	}
+
+	/**
+	 * Hold the up arrow for holdMillis, then release it.
+	 *
+	 * @param pairs true for X11 style auto-repeat (release then press), false for Windows style (press only)
+	 */
+	private static boolean run(final String name, final long holdMillis, boolean pairs) throws Exception {
+		final RecordingDriver driver = new RecordingDriver() ;
+		final HoldToDriveInput[] input = new HoldToDriveInput[1] ;
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				input[0] = new HoldToDriveInput(driver) ;
+				input[0].keyPressed(KeyEvent.VK_UP) ;
+			}
+		});
+
+		long end = System.currentTimeMillis() + holdMillis ;
+		while(System.currentTimeMillis() < end) {
+			Thread.sleep(AUTO_REPEAT_MILLIS) ;
+			if(pairs) {
+				key(input[0], KeyEvent.VK_UP, false) ;
+				Thread.sleep(REPEAT_GAP_MILLIS) ;
+			}
+			key(input[0], KeyEvent.VK_UP, true) ;
+		}
+
+		final long releasedNanos = System.nanoTime() ;
+		key(input[0], KeyEvent.VK_UP, false) ;
+		Thread.sleep(HoldToDriveInput.DEFAULT_RELEASE_GRACE_MILLIS + 200) ;
+
+		final boolean[] pass = new boolean[1] ;
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				long stopMillis = (driver.stoppedNanos - releasedNanos) / 1000000L ;
+				int expectedKeepalives = (int) (holdMillis / HoldToDriveInput.DEFAULT_KEEPALIVE_MILLIS) ;
+				pass[0] = driver.drives == 1 && driver.stops == 1 && driver.keepalives >= expectedKeepalives - 1
+						&& stopMillis <= HoldToDriveInput.DEFAULT_RELEASE_GRACE_MILLIS + TIMER_SLOP_MILLIS ;
+				log.info(name + ": drives=" + driver.drives + " stops=" + driver.stops + " keepalives=" + driver.keepalives
+						+ " auto-repeats filtered=" + input[0].getAutoRepeatCount() + " stop after release=" + stopMillis + " ms"
+						+ (pass[0] ? "" : " FAIL")) ;
+			}
+		});
+		return pass[0] ;
+	}
+
+	private static void key(final HoldToDriveInput input, final int keyCode, final boolean pressed) throws Exception {
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				if(pressed)
+					input.keyPressed(keyCode) ;
+				else
+					input.keyReleased(keyCode) ;
+			}
+		});
+	}
+}
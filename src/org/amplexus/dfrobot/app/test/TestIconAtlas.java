@@ -0,0 +1,75 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.awt.image.BufferedImage;
+import java.net.URL;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+import org.amplexus.dfrobot.app.IconAtlas;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Times loading the GUI's icons - what stood between startup and the frame being shown - in one of three ways:
+ * - imageicon: one at a time, an ImageIcon per getResource() URL, as the GUI used to
+ * - atlas1: into an IconAtlas, on one thread
+ * - atlas: into an IconAtlas, on one thread per processor (the default)
+ * Startup loads them once, into a cold JVM, so run each way in a JVM of its own to compare them: a second load
+ * in the same JVM finds the image decoders warmed up, and the Toolkit caches an ImageIcon's image by URL.
+ *
+ * The atlas ways pass if every icon is in the atlas, pixel for pixel the same as its PNG.
+ *
+ * Run with the resources directory on the class path.
+ *
+ * Usage: TestIconAtlas [imageicon|atlas1|atlas]
+ *
+ * @author craig
+ */
+public class TestIconAtlas {
+
+	private final static Logger log = Logger.getLogger(TestIconAtlas.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		String way = args.length > 0 ? args[0] : "atlas" ;
+		int threads = way.equals("atlas1") ? 1 : Runtime.getRuntime().availableProcessors() ;
+		long start = System.nanoTime() ;
+		if(way.equals("imageicon")) {
+			for(String path : IconAtlas.ICONS)
+				new ImageIcon(TestIconAtlas.class.getResource(path), path) ;
+			log.info(String.format("%s: %d icons in %.1f ms", way, IconAtlas.ICONS.length, (System.nanoTime() - start) / 1e6)) ;
+			return ;
+		}
+		IconAtlas atlas = IconAtlas.load(IconAtlas.ICONS, threads) ;
+		log.info(String.format("%s: %d icons in %.1f ms on %d threads", way, IconAtlas.ICONS.length, (System.nanoTime() - start) / 1e6, threads)) ;
+
+		boolean pass = true ;
+		for(String path : IconAtlas.ICONS) {
+			URL url = TestIconAtlas.class.getResource(path) ;
+			ImageIcon icon = atlas.getIcon(path, path) ;
+			boolean same = url != null && icon != null && same(ImageIO.read(url), icon) ;
+			if(!same)
+				log.info(path + " differs from its PNG FAIL") ;
+			pass &= same ;
+		}
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * @return true if an icon from the atlas has the same pixels as the PNG it was decoded from
+	 */
+	private static boolean same(BufferedImage png, ImageIcon icon) {
+		BufferedImage image = (BufferedImage) icon.getImage() ;
+		if(png.getWidth() != image.getWidth() || png.getHeight() != image.getHeight())
+			return false ;
+		for(int y = 0; y < png.getHeight(); y++) {
+			for(int x = 0; x < png.getWidth(); x++) {
+				if(png.getRGB(x, y) != image.getRGB(x, y))
+					return false ;
+			}
+		}
+		return true ;
+	}
+}
@@ -0,0 +1,99 @@
+package org.amplexus.dfrobot.app.test;
+
+import javax.swing.SwingUtilities;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.InfraredSampleBuffer;
+import org.amplexus.dfrobot.app.InfraredView;
+import org.amplexus.dfrobot.app.ReceivePipeline;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Soaks the infrared streaming path against the simulated robot at the fastest interval (100 millis x 3 sensors):
+ * starts sampling through the dispatcher, stores the samples in an InfraredSampleBuffer drawn by an InfraredView,
+ * and checks the used heap after a GC every report interval.
+ *
+ * Passes if every sensor's samples arrive at the expected rate, the view repaints no more than its frame rate
+ * allows, and the heap after the first report grows by less than MAX_HEAP_GROWTH_BYTES. Run it for hours with a
+ * larger seconds argument.
+ *
+ * Usage: TestInfraredStreaming [seconds] [baud rate]
+ *
+ * @author craig
+ */
+public class TestInfraredStreaming {
+
+	public static final int INFRARED_INTERVAL		= 10 ;		// x 10 ms, the fastest the sketch supports
+	public static final int REPORT_SECONDS			= 10 ;
+	public static final long MAX_HEAP_GROWTH_BYTES	= 512 * 1024 ;
+	public static final double MIN_SAMPLE_RATE		= 0.9 ;		// Fraction of the expected samples that must arrive
+
+	private final static Logger log = Logger.getLogger(TestInfraredStreaming.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+
+		SimulatedLinkManager link = new SimulatedLinkManager(50, 2000) ;
+		link.open("simulated", baudRate) ;
+		ReceivePipeline pipeline = new ReceivePipeline(link) ;
+		final InfraredSampleBuffer samples = new InfraredSampleBuffer() ;
+		pipeline.addTelemetryListener(samples) ;
+		final InfraredView[] view = new InfraredView[1] ;
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				view[0] = new InfraredView(samples) ;
+				view[0].setSize(InfraredView.DEFAULT_WIDTH, InfraredView.DEFAULT_HEIGHT) ;
+				view[0].start() ;
+			}
+		});
+
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", baudRate, CommandDispatcher.DEFAULT_CAPACITY, null) ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_START, INFRARED_INTERVAL) ;
+
+		Runtime runtime = Runtime.getRuntime() ;
+		long baselineHeap = -1 ;
+		long maxGrowth = 0 ;
+		long start = System.currentTimeMillis() ;
+		for(int elapsed = REPORT_SECONDS; elapsed <= seconds; elapsed += REPORT_SECONDS) {
+			Thread.sleep(Math.max(0, start + elapsed * 1000L - System.currentTimeMillis())) ;
+			System.gc() ;
+			long used = runtime.totalMemory() - runtime.freeMemory() ;
+			if(baselineHeap < 0)
+				baselineHeap = used ;		// The first report, once everything has been loaded and warmed up
+			maxGrowth = Math.max(maxGrowth, used - baselineHeap) ;
+			log.info(elapsed + " s: samples=" + samples.getTotal(0) + "/" + samples.getTotal(1) + "/" + samples.getTotal(2)
+					+ " heap=" + used / 1024 + " KB growth=" + (used - baselineHeap) / 1024 + " KB dropped="
+					+ pipeline.getDroppedCount()) ;
+		}
+		long runMillis = System.currentTimeMillis() - start ;
+
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_STOP, 0) ;
+		Thread.sleep(500) ;
+		final long[] repaints = new long[1] ;
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				view[0].stop() ;
+				repaints[0] = view[0].getRepaintCount() ;
+			}
+		});
+
+		long expected = runMillis / (INFRARED_INTERVAL * 10) ;
+		boolean pass = maxGrowth < MAX_HEAP_GROWTH_BYTES
+				&& repaints[0] <= runMillis * InfraredView.DEFAULT_MAX_FPS / 1000 + 2 ;
+		for(int sensor = 0; sensor < InfraredSampleBuffer.SENSORS; sensor++)
+			pass &= samples.getTotal(sensor) >= expected * MIN_SAMPLE_RATE ;
+		log.info("Expected " + expected + " samples per sensor, repaints=" + repaints[0] + " max heap growth="
+				+ maxGrowth / 1024 + " KB") ;
+		log.info(pass ? "PASS" : "FAIL") ;
+
+		dispatcher.shutdown() ;
+		pipeline.shutdown() ;
+		link.close() ;
+		System.exit(0) ;		// The Swing Timer keeps the AWT threads alive
+	}
+}
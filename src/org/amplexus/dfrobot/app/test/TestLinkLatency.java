@@ -0,0 +1,96 @@
+package org.amplexus.dfrobot.app.test;
+
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeLinkManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress16;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.wpan.TxRequest16;
+import com.rapplogic.xbee.api.wpan.TxStatusResponse;
+
+/**
+ * Measures per command latency against a simulated serial endpoint, before and after the link manager:
+ * - before: open the port, send the command synchronously, close the port (what every command used to do)
+ * - after: borrow the already open port from an XBeeLinkManager and send the command synchronously
+ *
+ * The simulated port takes OPEN_DELAY_MILLIS to open, roughly what RXTX plus the radio settling costs on a
+ * real explorer, so the "after" numbers should be bounded by serial time plus airtime.
+ *
+ * Usage: TestLinkLatency [commands] [baud rate]
+ *
+ * @author craig
+ */
+public class TestLinkLatency {
+
+	public static final int XBEE_SHIELD_MY_MSB = 0x80; // The MY address MSB of the XBee we are talking to
+	public static final int XBEE_SHIELD_MY_LSB = 0x81; // The MY address LSB of the XBee we are talking to
+	public static final long OPEN_DELAY_MILLIS = 50 ;
+	public static final long AIRTIME_MICROS = 2000 ;
+
+	private final static Logger log = Logger.getLogger(TestLinkLatency.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 50 ;
+		final int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+
+		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB) ;
+		int[] payload = new int[] { XBeeCommunicatorTask.CMD_MOTOR_FORWARD, 200 } ;
+
+		/*
+		 * Before: open / send / close per command
+		 */
+		long[] before = new long[commands] ;
+		for(int i = 0; i < commands; i++) {
+			long start = System.nanoTime() ;
+			XBee xbee = SimulatedXBeeConnection.open(baudRate, OPEN_DELAY_MILLIS, AIRTIME_MICROS) ;
+			try {
+				send(xbee, destination, payload) ;
+			} finally {
+				xbee.close() ;
+			}
+			before[i] = System.nanoTime() - start ;
+		}
+
+		/*
+		 * After: one shared connection
+		 */
+		XBeeLinkManager link = new SimulatedLinkManager(OPEN_DELAY_MILLIS, AIRTIME_MICROS) ;
+		long[] after = new long[commands] ;
+		try {
+			for(int i = 0; i < commands; i++) {
+				long start = System.nanoTime() ;
+				send(link.acquire("simulated", baudRate), destination, payload) ;
+				after[i] = System.nanoTime() - start ;
+			}
+		} finally {
+			link.close() ;
+		}
+
+		log.info("Simulated link: " + baudRate + " baud, open " + OPEN_DELAY_MILLIS + " ms, airtime " + AIRTIME_MICROS + " us") ;
+		report("before (open/send/close)", before) ;
+		report("after (XBeeLinkManager)", after) ;
+		log.info("Port opens with link manager: " + link.getOpenCount()) ;
+	}
+
+	private static void send(XBee xbee, XBeeAddress16 destination, int[] payload) throws XBeeException {
+		TxStatusResponse status = (TxStatusResponse) xbee.sendSynchronous(new TxRequest16(destination, payload), 5000) ;
+		if(!status.isSuccess())
+			throw new XBeeException("TX status " + status.getStatus()) ;
+	}
+
+	private static void report(String label, long[] nanos) {
+		long min = Long.MAX_VALUE, max = 0, total = 0 ;
+		for(long n : nanos) {
+			min = Math.min(min, n) ;
+			max = Math.max(max, n) ;
+			total += n ;
+		}
+		log.info(String.format("%-26s n=%d mean=%.2f ms min=%.2f ms max=%.2f ms", label, nanos.length,
+				total / (double) nanos.length / 1e6, min / 1e6, max / 1e6)) ;
+	}
+}
@@ -0,0 +1,95 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.CommandListener;
+import org.amplexus.dfrobot.app.LinkNegotiator;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Measures the cold start time - from startup to the first command acknowledged - against a simulated explorer
+ * set to a baud rate other than the default, twice:
+ * - with nothing cached, so the negotiator probes the likely rates in turn
+ * - as the next startup would, with the pair the first run found cached
+ *
+ * Uses its own preferences node, which it clears before and after, so the real cached pair is left alone.
+ *
+ * Passes if both runs find the explorer's rate, the second in a single probe, and the second cold start is
+ * faster than the first.
+ *
+ * Usage: TestLinkNegotiation [explorer baud rate] [open delay millis]
+ *
+ * @author craig
+ */
+public class TestLinkNegotiation {
+
+	public static final String PORT				= "simulated" ;
+	public static final long AIRTIME_MICROS		= 2000 ;
+	public static final String PREFERENCES_NODE	= "org/amplexus/dfrobot/app/test/TestLinkNegotiation" ;
+
+	private final static Logger log = Logger.getLogger(TestLinkNegotiation.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int explorerBaudRate = args.length > 0 ? Integer.parseInt(args[0]) : 38400 ;
+		long openDelayMillis = args.length > 1 ? Long.parseLong(args[1]) : 100 ;
+
+		Preferences preferences = Preferences.userRoot().node(PREFERENCES_NODE) ;
+		new LinkNegotiator(null, preferences).forget() ;
+
+		long[] coldMillis = new long[1] ;
+		LinkNegotiator.Result cold = coldStart("nothing cached", explorerBaudRate, openDelayMillis, preferences, coldMillis) ;
+		long[] cachedMillis = new long[1] ;
+		LinkNegotiator.Result cached = coldStart("cached", explorerBaudRate, openDelayMillis, preferences, cachedMillis) ;
+
+		boolean pass = cold != null && cached != null && cold.getBaudRate() == explorerBaudRate && cached.getBaudRate() == explorerBaudRate
+				&& cached.isCached() && cached.getProbeCount() == 1 && cachedMillis[0] < coldMillis[0] ;
+		new LinkNegotiator(null, preferences).forget() ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Start up as the controller does: negotiate the link, then ping the robot.
+	 *
+	 * @param millis set to the cold start time - negotiation plus the first command - or -1 if it wasn't acknowledged
+	 * @return what negotiation found, or null
+	 */
+	private static LinkNegotiator.Result coldStart(String name, int explorerBaudRate, long openDelayMillis, Preferences preferences,
+			long[] millis) throws Exception {
+		long start = System.nanoTime() ;
+		SimulatedLinkManager link = new SimulatedLinkManager(openDelayMillis, AIRTIME_MICROS) ;
+		link.setExplorerBaudRate(explorerBaudRate) ;
+		LinkNegotiator negotiator = new LinkNegotiator(link, preferences) ;
+		LinkNegotiator.Result result = negotiator.negotiate(new String[] { PORT }, LinkNegotiator.LIKELY_BAUD_RATES) ;
+		millis[0] = -1 ;
+		if(result == null) {
+			log.info(name + ": the explorer wasn't found FAIL") ;
+			link.close() ;
+			return null ;
+		}
+
+		final Semaphore acknowledged = new Semaphore(0) ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, result.getCommPort(), result.getBaudRate(), CommandDispatcher.DEFAULT_CAPACITY,
+				new CommandListener() {
+			public void commandCompleted(RobotCommand command, String error) {
+				if(error == null)
+					acknowledged.release() ;
+			}
+		});
+		dispatcher.submit(XBeeCommunicatorTask.CMD_PING, 0) ;
+		if(acknowledged.tryAcquire(2, TimeUnit.SECONDS))
+			millis[0] = (System.nanoTime() - start) / 1000000L ;
+		log.info(String.format("%-15s found %s, link opened %d times, first command acknowledged %s", name, result, link.getOpenCount(),
+				millis[0] < 0 ? "never FAIL" : millis[0] + " ms after startup")) ;
+		dispatcher.shutdown() ;
+		link.close() ;
+		return result ;
+	}
+}
@@ -0,0 +1,275 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.amplexus.dfrobot.app.LatencyHistogram;
+import org.amplexus.dfrobot.app.RetryPolicy;
+import org.amplexus.dfrobot.app.TransmitCallback;
+import org.amplexus.dfrobot.app.TransmitFuture;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeFrameEncoder;
+import org.amplexus.dfrobot.app.XBeeLinkManager;
+import org.amplexus.dfrobot.app.XBeeTransmitEngine;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress16;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeePacket;
+
+/**
+ * Load generator for the radio link: the soak test TestApiSenderExample started as, grown into a tool for sizing
+ * how fast a link really goes.
+ *
+ * Sends TX 16 frames to the robot for a number of seconds through an XBeeTransmitEngine, with up to in flight
+ * frames outstanding at once, either as fast as the window allows or paced to a target rate. Each frame is a
+ * ping (the sequence number in the second byte) padded with start bytes, so every frame exercises escaping as
+ * TestApiSenderExample's did. The padded sizes are drawn from a payload mix, eg "2:70,8:20,32:10" is 70% 2 byte,
+ * 20% 8 byte and 10% 32 byte payloads.
+ *
+ * Paced sends are due on a fixed schedule from the start of the run, so a stall doesn't slow the rate down
+ * afterwards; the response time is measured from when a frame was due, not when it was sent, so time spent
+ * waiting for the window counts against it too. The latency is the TX status round trip alone.
+ *
+ * Progress is logged every PROGRESS_MILLIS. At the end one tab separated line of results (see HEADER) is printed
+ * and, if a results file is given, appended to it - with the header, if the file is new - so runs can be
+ * compared:
+ * - target_fps is 0 for as fast as possible
+ * - fps and payload_bytes_per_s count delivered frames only, over the time from the first send to the last TX
+ *   status
+ * - the p*_us columns are the TX status latency percentiles, response_p99_us the 99th percentile response time
+ * - the last columns count the failures, by why they failed (see RetryPolicy.classify())
+ *
+ * Runs against the simulated endpoint (port "simulated", 802.15.4's 250 kbps airtime) or a real port.
+ *
+ * Usage: TestLinkSoak [port] [baud rate] [target frames/s] [seconds] [in flight] [payload mix] [results file]
+ *
+ * @author craig
+ */
+public class TestLinkSoak {
+
+	public static final String SIMULATED				= "simulated" ;
+	public static final long AIRTIME_MICROS				= 2000 ;	// Simulated airtime + MAC ack per frame
+	public static final long AIRTIME_PER_BYTE_MICROS	= 32 ;		// Simulated airtime per byte at 250 kbps
+	public static final long PROGRESS_MILLIS			= 10000 ;
+	public static final long SEED						= 42 ;		// For the payload mix
+	public static final String HEADER = "port\tbaud\ttarget_fps\tin_flight\tpayload_mix\tseconds\tsent\tdelivered\tfps\tpayload_bytes_per_s"
+			+ "\tp50_us\tp90_us\tp99_us\tp999_us\tmax_us\tresponse_p99_us\tchannel_busy\tno_ack\tpurged\tno_status\tlink_error" ;
+
+	private final static Logger log = Logger.getLogger(TestLinkSoak.class);
+
+	private final int[][] payloads ;				// One payload per size in the mix
+	private final int[] cumulativeWeights ;			// Running total of the mix's weights, to pick a payload
+	private final Random random = new Random(SEED) ;
+	private final LatencyHistogram latency = new LatencyHistogram() ;	// TX status round trips
+	private final LatencyHistogram response = new LatencyHistogram() ;	// From when each frame was due to its TX status
+	private final AtomicLong[] outcomes = new AtomicLong[RetryPolicy.OUTCOMES] ;	// Completed frames, by outcome
+	private final AtomicLong deliveredBytes = new AtomicLong() ;	// Payload bytes the robot acknowledged
+	private volatile long lastCompletedNanos = 0 ;	// When the latest TX status (or failure) arrived
+
+	/**
+	 * Constructor.
+	 *
+	 * @param mix the payload sizes and their weights, eg "2:70,8:20,32:10" - a size with no weight weighs 1
+	 */
+	public TestLinkSoak(String mix) {
+		String[] entries = mix.split(",") ;
+		payloads = new int[entries.length][] ;
+		cumulativeWeights = new int[entries.length] ;
+		int total = 0 ;
+		for(int i = 0; i < entries.length; i++) {
+			String[] entry = entries[i].trim().split(":") ;
+			int size = Integer.parseInt(entry[0].trim()) ;
+			int weight = entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1 ;
+			if(size < 2 || size > XBeeFrameEncoder.MAX_PAYLOAD || weight < 1)
+				throw new IllegalArgumentException("payload sizes must be 2-" + XBeeFrameEncoder.MAX_PAYLOAD + " with a positive weight: " + entries[i]) ;
+			payloads[i] = new int[size] ;
+			payloads[i][0] = XBeeCommunicatorTask.CMD_PING ;
+			for(int j = 2; j < size; j++)
+				payloads[i][j] = XBeePacket.SpecialByte.START_BYTE.getValue() ;
+			total += weight ;
+			cumulativeWeights[i] = total ;
+		}
+		for(int i = 0; i < outcomes.length; i++)
+			outcomes[i] = new AtomicLong() ;
+	}
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		String commPort = args.length > 0 ? args[0] : SIMULATED ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+		double targetRate = args.length > 2 ? Double.parseDouble(args[2]) : 0 ;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10 ;
+		int inFlight = args.length > 4 ? Integer.parseInt(args[4]) : XBeeTransmitEngine.DEFAULT_WINDOW ;
+		String mix = args.length > 5 ? args[5] : "2" ;
+		String resultsFile = args.length > 6 ? args[6] : null ;
+
+		XBeeLinkManager link ;
+		if(SIMULATED.equals(commPort)) {
+			SimulatedLinkManager simulated = new SimulatedLinkManager(0, AIRTIME_MICROS) ;
+			simulated.open(commPort, baudRate).setAirtimePerByteMicros(AIRTIME_PER_BYTE_MICROS) ;
+			link = simulated ;
+		} else {
+			link = new XBeeLinkManager() ;
+		}
+
+		String result ;
+		try {
+			result = new TestLinkSoak(mix).run(link, commPort, baudRate, targetRate, seconds, inFlight) ;
+		} finally {
+			link.close() ;
+		}
+		result = commPort + "\t" + baudRate + "\t" + targetRate + "\t" + inFlight + "\t" + mix + "\t" + seconds + "\t" + result ;
+
+		System.out.println(HEADER) ;
+		System.out.println(result) ;
+		if(resultsFile != null) {
+			boolean exists = new File(resultsFile).length() > 0 ;
+			PrintWriter out = new PrintWriter(new FileWriter(resultsFile, true)) ;
+			if(!exists)
+				out.println(HEADER) ;
+			out.println(result) ;
+			out.close() ;
+		}
+	}
+
+	/**
+	 * Send frames for the specified time, then wait for the outstanding ones to complete.
+	 *
+	 * @param targetRate frames per second to send, or 0 for as fast as the window allows
+	 * @param inFlight the most frames outstanding at once
+	 * @return the results, from the sent column on (see HEADER)
+	 */
+	public String run(XBeeLinkManager link, String commPort, int baudRate, double targetRate, int seconds, int inFlight) throws InterruptedException {
+		XBeeTransmitEngine engine = new XBeeTransmitEngine(inFlight, XBeeTransmitEngine.DEFAULT_TIMEOUT_MILLIS) ;
+		XBeeAddress16 destination = new XBeeAddress16(XBeeCommunicatorTask.XBEE_SHIELD_MY_MSB, XBeeCommunicatorTask.XBEE_SHIELD_MY_LSB) ;
+		long periodNanos = targetRate > 0 ? (long) (1e9 / targetRate) : 0 ;
+		long start = System.nanoTime() ;
+		long end = start + seconds * 1000000000L ;
+		long nextProgress = start + PROGRESS_MILLIS * 1000000L ;
+		long lastProgressDelivered = 0 ;
+		long sent = 0 ;
+
+		try {
+			for(long now = start; now < end; now = System.nanoTime()) {
+				long due = now ;
+				if(periodNanos > 0) {
+					due = start + sent * periodNanos ;
+					if(due >= end)
+						break ;
+					if(due > now)
+						LockSupport.parkNanos(due - now) ;
+				}
+
+				int[] payload = nextPayload((int) sent) ;
+				XBee xbee = null ;
+				try {
+					xbee = link.acquire(commPort, baudRate) ;
+					engine.transmit(xbee, destination, payload, new Outcome(due, payload.length)) ;
+				} catch (XBeeException e) {
+					/*
+					 * If the port opened, the engine has already failed the frame and counted it - either way,
+					 * re-open the port and carry on
+					 */
+					log.warn("Couldn't send frame " + sent + ": " + e.getMessage()) ;
+					if(xbee == null)
+						outcomes[RetryPolicy.LINK_ERROR].incrementAndGet() ;
+					link.invalidate(xbee) ;
+					Thread.sleep(RetryPolicy.LINK_RETRY_PAUSE_MICROS / 1000) ;
+				}
+				sent++ ;
+
+				if(now >= nextProgress) {
+					long delivered = outcomes[RetryPolicy.DELIVERED].get() ;
+					log.info(String.format("%d s: %d sent, %d delivered (%.1f frames/s), %d failed, %d outstanding - latency %s",
+							(now - start) / 1000000000L, sent, delivered, (delivered - lastProgressDelivered) * 1000.0 / PROGRESS_MILLIS,
+							completed() - delivered, engine.getOutstanding(), latency)) ;
+					lastProgressDelivered = delivered ;
+					nextProgress += PROGRESS_MILLIS * 1000000L ;
+				}
+			}
+
+			long deadline = System.nanoTime() + 2 * XBeeTransmitEngine.DEFAULT_TIMEOUT_MILLIS * 1000000L ;
+			while(completed() < sent && System.nanoTime() < deadline)
+				Thread.sleep(1) ;
+		} finally {
+			engine.shutdown() ;
+		}
+
+		long delivered = outcomes[RetryPolicy.DELIVERED].get() ;
+		double elapsed = Math.max(1, lastCompletedNanos - start) / 1e9 ;
+		log.info(String.format("%d sent, %d delivered in %.1f s = %.1f frames/s, %.0f payload bytes/s - latency %s - response %s", sent,
+				delivered, elapsed, delivered / elapsed, deliveredBytes.get() / elapsed, latency, response)) ;
+		StringBuilder failures = new StringBuilder() ;
+		for(int outcome = RetryPolicy.DELIVERED + 1; outcome < RetryPolicy.OUTCOMES; outcome++) {
+			if(outcomes[outcome].get() > 0)
+				failures.append(", ").append(outcomes[outcome].get()).append(" ").append(RetryPolicy.outcomeName(outcome)) ;
+		}
+		if(completed() < sent)
+			failures.append(", ").append(sent - completed()).append(" never completed") ;
+		if(failures.length() > 0)
+			log.info("Failures: " + failures.substring(2)) ;
+
+		return sent + "\t" + delivered + "\t" + String.format("%.1f\t%.0f", delivered / elapsed, deliveredBytes.get() / elapsed)
+				+ "\t" + latency.getPercentileMicros(50) + "\t" + latency.getPercentileMicros(90) + "\t" + latency.getPercentileMicros(99)
+				+ "\t" + latency.getPercentileMicros(99.9) + "\t" + latency.getMaxMicros() + "\t" + response.getPercentileMicros(99)
+				+ "\t" + outcomes[RetryPolicy.CHANNEL_BUSY].get() + "\t" + outcomes[RetryPolicy.NO_ACK].get() + "\t" + outcomes[RetryPolicy.PURGED].get()
+				+ "\t" + outcomes[RetryPolicy.NO_STATUS].get() + "\t" + outcomes[RetryPolicy.LINK_ERROR].get() ;
+	}
+
+	/**
+	 * Pick the next payload from the mix. The engine has finished with a payload by the time transmit() returns,
+	 * so each size's payload is reused.
+	 */
+	private int[] nextPayload(int sequence) {
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]) ;
+		int i = 0 ;
+		while(pick >= cumulativeWeights[i])
+			i++ ;
+		payloads[i][1] = sequence & 0xff ;
+		return payloads[i] ;
+	}
+
+	/**
+	 * @return how many frames have completed, delivered or not
+	 */
+	private long completed() {
+		long completed = 0 ;
+		for(int i = 0; i < outcomes.length; i++)
+			completed += outcomes[i].get() ;
+		return completed ;
+	}
+
+	/**
+	 * Counts one frame's outcome.
+	 */
+	private class Outcome implements TransmitCallback {
+
+		private final long dueNanos ;				// When the frame was due to be sent
+		private final int length ;					// Its payload length
+
+		Outcome(long dueNanos, int length) {
+			this.dueNanos = dueNanos ;
+			this.length = length ;
+		}
+
+		public void transmitCompleted(TransmitFuture future) {
+			long completedNanos = future.getSentNanos() + future.getLatencyNanos() ;
+			int outcome = RetryPolicy.classify(future) ;
+			if(outcome == RetryPolicy.DELIVERED) {
+				latency.recordNanos(future.getLatencyNanos()) ;
+				response.recordNanos(completedNanos - dueNanos) ;
+				deliveredBytes.addAndGet(length) ;
+			}
+			outcomes[outcome].incrementAndGet() ;
+			lastCompletedNanos = completedNanos ;
+		}
+	}
+}
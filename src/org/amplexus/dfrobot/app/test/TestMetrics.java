@@ -0,0 +1,114 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.MetricsRegistry;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeTransmitEngine;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Registers the command path's metrics against a simulated robot, sends it some pings, then reads the metrics
+ * back the ways a user would:
+ * - over JMX from the platform MBean server, as JConsole does
+ * - from the snapshot file, written every SNAPSHOT_MILLIS
+ *
+ * Passes if the dispatcher's MBean lists its metrics, JMX and the snapshot agree with the dispatcher's own
+ * counters, and the snapshot file has a header and a row per snapshot.
+ *
+ * Usage: TestMetrics [pings]
+ *
+ * @author craig
+ */
+public class TestMetrics {
+
+	public static final int BAUD_RATE			= 9600 ;
+	public static final long AIRTIME_MICROS		= 2000 ;
+	public static final long SNAPSHOT_MILLIS	= 100 ;
+
+	private final static Logger log = Logger.getLogger(TestMetrics.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int pings = args.length > 0 ? Integer.parseInt(args[0]) : 50 ;
+
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		link.open("simulated", BAUD_RATE) ;
+		XBeeTransmitEngine engine = new XBeeTransmitEngine() ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, engine, "simulated", BAUD_RATE, CommandDispatcher.DEFAULT_CAPACITY, null) ;
+		MetricsRegistry metrics = new MetricsRegistry() ;
+		dispatcher.registerMetrics(metrics) ;
+		engine.registerMetrics(metrics) ;
+		link.registerMetrics(metrics) ;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer() ;
+		metrics.publish(server) ;
+		File file = File.createTempFile("TestMetrics", ".tsv") ;
+		file.delete() ;
+		metrics.startSnapshots(file, SNAPSHOT_MILLIS) ;
+
+		for(int i = 0; i < pings; i++) {
+			dispatcher.submit(XBeeCommunicatorTask.CMD_PING, i % 256) ;
+			Thread.sleep(10) ;
+		}
+		long deadline = System.currentTimeMillis() + 5000 ;
+		while(dispatcher.getSentCount() + dispatcher.getFailedCount() < pings && System.currentTimeMillis() < deadline)
+			Thread.sleep(10) ;
+		Thread.sleep(SNAPSHOT_MILLIS * 2) ;
+		metrics.stopSnapshots() ;
+
+		/*
+		 * Over JMX
+		 */
+		ObjectName name = new ObjectName(MetricsRegistry.DOMAIN + ":type=Metrics,name=dispatcher") ;
+		MBeanAttributeInfo[] attributes = server.getMBeanInfo(name).getAttributes() ;
+		long submitted = (Long) server.getAttribute(name, "submitted") ;
+		long sent = (Long) server.getAttribute(name, "sent") ;
+		long timeToSuccess = (Long) server.getAttribute(name, "timeToSuccessCount") ;
+		long bytesSent = (Long) server.getAttribute(new ObjectName(MetricsRegistry.DOMAIN + ":type=Metrics,name=engine"), "bytesSent") ;
+		boolean jmx = attributes.length > 10 && submitted == pings && sent == dispatcher.getSentCount() && timeToSuccess == sent
+				&& bytesSent >= engine.getFramesSent() * 9 ;		// The smallest TX 16 frame is 9 bytes with 1 byte of payload
+		log.info("JMX: " + attributes.length + " dispatcher attributes, submitted=" + submitted + " sent=" + sent + " timeToSuccessCount="
+				+ timeToSuccess + " engine bytesSent=" + bytesSent + (jmx ? "" : " FAIL")) ;
+
+		/*
+		 * From the snapshot file
+		 */
+		List<String> lines = new ArrayList<String>() ;
+		BufferedReader reader = new BufferedReader(new FileReader(file)) ;
+		for(String line = reader.readLine(); line != null; line = reader.readLine())
+			lines.add(line) ;
+		reader.close() ;
+		file.delete() ;
+		Map<String, Long> snapshot = metrics.snapshot() ;
+		String[] header = lines.get(0).split("\t") ;
+		String[] last = lines.get(lines.size() - 1).split("\t") ;
+		int column = 0 ;
+		for(int i = 0; i < header.length; i++) {
+			if(header[i].equals("dispatcher.submitted"))
+				column = i ;
+		}
+		boolean snapshots = header.length == snapshot.size() + 1 && lines.size() >= 3 && column > 0 && Long.parseLong(last[column]) == pings ;
+		log.info("Snapshots: " + (lines.size() - 1) + " rows of " + (header.length - 1) + " metrics, last dispatcher.submitted="
+				+ (column > 0 ? last[column] : "missing") + (snapshots ? "" : " FAIL")) ;
+		log.info(snapshot.toString()) ;
+
+		metrics.unpublish() ;
+		dispatcher.shutdown() ;
+		link.close() ;
+		log.info(jmx && snapshots ? "PASS" : "FAIL") ;
+	}
+}
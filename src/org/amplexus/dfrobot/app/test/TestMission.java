@@ -0,0 +1,116 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.amplexus.dfrobot.app.MissionExecutor;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeFrameEncoder;
+import org.amplexus.dfrobot.app.XBeeTransmitEngine;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.rapplogic.xbee.api.XBee;
+
+/**
+ * Runs a timed mission against the simulated robot:
+ * - checks each pre-encoded frame is byte for byte the frame XBeeFrameEncoder encodes for that frame id
+ * - runs MISSION with the MissionExecutor, and reports how late each step was sent
+ * - runs the same steps the naive way - send, then sleep for the step's duration - and reports how far the last
+ *   step drifted from its scheduled time
+ *
+ * Passes if the frames match, every step is delivered and no step is sent more than MAX_LATE_MILLIS late.
+ *
+ * Usage: TestMission [baud rate]
+ *
+ * @author craig
+ */
+public class TestMission {
+
+	public static final String PORT				= "simulated" ;
+	public static final long AIRTIME_MICROS		= 2000 ;
+	public static final String MISSION			= "forward 200 for 0.1 s, left 150 for 80 ms, forward 200 for 0.1 s, right 150 for 80 ms, "
+			+ "vector 100 60 for 0.2 s, backwards 120 for 0.1 s, left 150 for 60 ms, forward 255 for 0.25 s, stop" ;
+	public static final long MAX_LATE_MILLIS	= 5 ;
+
+	private final static Logger log = Logger.getLogger(TestMission.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 57600 ;
+
+		boolean pass = frames() ;
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		XBee xbee = link.acquire(PORT, baudRate) ;
+		OutputStream out = link.getOutputStream(xbee) ;
+		XBeeTransmitEngine engine = new XBeeTransmitEngine() ;
+		try {
+			pass &= scheduled(engine, xbee, out) ;
+			naive(engine, xbee, out) ;
+		} finally {
+			engine.shutdown() ;
+			link.close() ;
+		}
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Compare every pre-encoded frame with the frame encoded for its frame id.
+	 */
+	private static boolean frames() {
+		XBeeFrameEncoder encoder = new XBeeFrameEncoder() ;
+		int[] payload = new int[XBeeFrameEncoder.MAX_PAYLOAD] ;
+		RobotCommand command = RobotCommand.valueOf(XBeeCommunicatorTask.CMD_MOTOR_FORWARD, 0x7e) ;	// A data byte that is escaped
+		command.writePayload(payload, 0) ;
+		byte[][] frames = encoder.preEncodeTx16(XBeeCommunicatorTask.XBEE_SHIELD, payload, 0, command.getPayloadLength()) ;
+		int mismatches = 0 ;
+		for(int frameId = 0; frameId < XBeeFrameEncoder.FRAME_IDS; frameId++) {
+			ByteBuffer frame = encoder.encodeTx16(XBeeCommunicatorTask.XBEE_SHIELD, frameId, command.getCommand(), command.getData()) ;
+			byte[] expected = new byte[frame.remaining()] ;
+			frame.get(expected) ;
+			if(!Arrays.equals(expected, frames[frameId]))
+				mismatches++ ;
+		}
+		log.info("Pre-encoded frames: " + mismatches + " of " + XBeeFrameEncoder.FRAME_IDS + " differ" + (mismatches == 0 ? "" : " FAIL")) ;
+		return mismatches == 0 ;
+	}
+
+	/**
+	 * Run the mission with the MissionExecutor.
+	 */
+	private static boolean scheduled(XBeeTransmitEngine engine, XBee xbee, OutputStream out) throws Exception {
+		MissionExecutor.Step[] steps = MissionExecutor.parse(MISSION) ;
+		MissionExecutor mission = new MissionExecutor(engine, XBeeCommunicatorTask.XBEE_SHIELD, steps) ;
+		boolean delivered = mission.run(xbee, out) ;
+		for(MissionExecutor.Step step : steps)
+			log.debug(String.format("  %-30s due %5d ms, sent %4d us late", step, step.getOffsetNanos() / 1000000L, step.getLateNanos() / 1000L)) ;
+		boolean pass = delivered && mission.getLateness().getMaxMicros() <= MAX_LATE_MILLIS * 1000L ;
+		log.info("Scheduled: " + mission + (pass ? "" : " FAIL")) ;
+		return pass ;
+	}
+
+	/**
+	 * Run the same steps by sending each one and then sleeping for its duration, so every step's lateness adds to
+	 * the next one's.
+	 */
+	private static void naive(XBeeTransmitEngine engine, XBee xbee, OutputStream out) throws Exception {
+		MissionExecutor.Step[] steps = MissionExecutor.parse(MISSION) ;
+		int[] payload = new int[XBeeFrameEncoder.MAX_PAYLOAD] ;
+		long start = System.nanoTime() ;
+		long scheduled = 0 ;
+		long lateNanos = 0 ;
+		for(MissionExecutor.Step step : steps) {
+			lateNanos = System.nanoTime() - start - scheduled ;
+			RobotCommand command = step.getCommand() ;
+			command.writePayload(payload, 0) ;
+			engine.send(xbee, out, XBeeCommunicatorTask.XBEE_SHIELD, payload, 0, command.getPayloadLength(), null, null) ;
+			Thread.sleep(step.getDurationNanos() / 1000000L) ;
+			scheduled += step.getDurationNanos() ;
+		}
+		log.info(String.format("Naive: %d steps, the last sent %d us late", steps.length, lateNanos / 1000L)) ;
+		Thread.sleep(XBeeTransmitEngine.DEFAULT_TIMEOUT_MILLIS) ;	// Let the TX statuses arrive before the link is closed
+	}
+}
@@ -0,0 +1,79 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.amplexus.dfrobot.app.TransmitFuture;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeTransmitEngine;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress16;
+import com.rapplogic.xbee.api.wpan.TxRequest16;
+import com.rapplogic.xbee.api.wpan.TxStatusResponse;
+
+/**
+ * Compares command throughput against a simulated endpoint:
+ * - sendSynchronous(), one frame in flight at a time
+ * - XBeeTransmitEngine, with a window of 1, 2, 4 and 8 outstanding frames
+ *
+ * Usage: TestPipelinedTransmit [frames] [baud rate]
+ *
+ * @author craig
+ */
+public class TestPipelinedTransmit {
+
+	public static final int XBEE_SHIELD_MY_MSB = 0x80; // The MY address MSB of the XBee we are talking to
+	public static final int XBEE_SHIELD_MY_LSB = 0x81; // The MY address LSB of the XBee we are talking to
+	public static final long AIRTIME_MICROS = 4000 ;
+
+	private final static Logger log = Logger.getLogger(TestPipelinedTransmit.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB) ;
+		int[] payload = new int[] { XBeeCommunicatorTask.CMD_MOTOR_FORWARD, 200 } ;
+
+		XBee xbee = SimulatedXBeeConnection.open(baudRate, 0, AIRTIME_MICROS) ;
+		try {
+			long start = System.nanoTime() ;
+			for(int i = 0; i < frames; i++) {
+				TxStatusResponse status = (TxStatusResponse) xbee.sendSynchronous(new TxRequest16(destination, payload), 5000) ;
+				if(!status.isSuccess())
+					log.error("Frame " + i + " failed: " + status.getStatus()) ;
+			}
+			report("sendSynchronous", frames, System.nanoTime() - start) ;
+		} finally {
+			xbee.close() ;
+		}
+
+		for(int window : new int[] { 1, 2, 4, 8 }) {
+			xbee = SimulatedXBeeConnection.open(baudRate, 0, AIRTIME_MICROS) ;
+			XBeeTransmitEngine engine = new XBeeTransmitEngine(window, XBeeTransmitEngine.DEFAULT_TIMEOUT_MILLIS) ;
+			try {
+				TransmitFuture[] futures = new TransmitFuture[frames] ;
+				long start = System.nanoTime() ;
+				for(int i = 0; i < frames; i++)
+					futures[i] = engine.transmit(xbee, destination, payload, null) ;
+				int failures = 0 ;
+				for(TransmitFuture future : futures) {
+					future.get(5, TimeUnit.SECONDS) ;
+					if(!future.isSuccess())
+						failures++ ;
+				}
+				report("engine window " + window + " (" + failures + " failed)", frames, System.nanoTime() - start) ;
+			} finally {
+				engine.shutdown() ;
+				xbee.close() ;
+			}
+		}
+	}
+
+	private static void report(String label, int frames, long nanos) {
+		log.info(String.format("%-32s %d frames in %.1f ms = %.1f frames/s", label, frames, nanos / 1e6, frames * 1e9 / nanos)) ;
+	}
+}
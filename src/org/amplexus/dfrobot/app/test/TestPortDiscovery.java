@@ -0,0 +1,138 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.amplexus.dfrobot.app.LinkNegotiator;
+import org.amplexus.dfrobot.app.SerialPortScanner;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Checks serial port discovery and the search for the explorer:
+ * - scans a made up device directory, with a by-id link to an FTDI adapter, an ACM device and a port that
+ *   isn't a USB serial device, and checks what is found and in what order
+ * - watches it, plugs a device in and unplugs another, and checks both are reported within a few polls
+ * - searches simulated ports for the explorer, one after the other and then all at once, where the first two
+ *   ports are dead (each takes DEAD_PORT_HANG_MILLIS to fail to open), the next has a device that never answers
+ *   and the explorer is on the last
+ *
+ * Passes if discovery and hot-plug find what they should, and the parallel search finds the explorer before a
+ * dead port has even failed to open.
+ *
+ * Linux only: the by-id link is made with ln -s.
+ *
+ * Usage: TestPortDiscovery
+ *
+ * @author craig
+ */
+public class TestPortDiscovery {
+
+	public static final long POLL_MILLIS			= 100 ;
+	public static final long DEAD_PORT_HANG_MILLIS	= 3000 ;
+	public static final int EXPLORER_BAUD_RATE		= 57600 ;
+	public static final long AIRTIME_MICROS			= 2000 ;
+	public static final long OPEN_DELAY_MILLIS		= 50 ;
+
+	private final static Logger log = Logger.getLogger(TestPortDiscovery.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		File devices = new File(System.getProperty("java.io.tmpdir"), "TestPortDiscovery-" + System.nanoTime()) ;
+		boolean pass ;
+		try {
+			pass = discovery(devices) ;
+		} finally {
+			delete(devices) ;
+		}
+
+		long sequential = search("one at a time", 1) ;
+		long parallel = search("all at once", LinkNegotiator.MAX_PARALLEL_PROBES) ;
+		boolean searchPass = sequential >= 0 && parallel >= 0 && parallel < DEAD_PORT_HANG_MILLIS ;
+		log.info("Search: " + sequential + " ms one at a time, " + parallel + " ms all at once" + (searchPass ? "" : " FAIL")) ;
+		pass &= searchPass ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Scan and watch a made up device directory.
+	 */
+	private static boolean discovery(File devices) throws Exception {
+		File byId = new File(devices, SerialPortScanner.BY_ID_DIRECTORY) ;
+		byId.mkdirs() ;
+		File explorer = touch(new File(devices, "ttyUSB3")) ;
+		File arduino = touch(new File(devices, "ttyACM0")) ;
+		touch(new File(devices, "ttyS0")) ;
+		Process link = new ProcessBuilder("ln", "-s", explorer.getPath(), new File(byId, "usb-FTDI_FT232R_USB_UART_A6008abc-if00-port0").getPath()).start() ;
+		link.waitFor() ;
+
+		SerialPortScanner scanner = new SerialPortScanner(devices) ;
+		String[] ports = scanner.scan() ;
+		String[] expected = { explorer.getCanonicalPath(), arduino.getCanonicalPath() } ;
+		boolean pass = Arrays.equals(ports, expected) ;
+		log.info("Scan: " + Arrays.toString(ports) + (pass ? "" : " FAIL (expected " + Arrays.toString(expected) + ")")) ;
+
+		final BlockingQueue<String> changes = new LinkedBlockingQueue<String>() ;
+		scanner.watch(new SerialPortScanner.PortListener() {
+			public void portsChanged(String[] ports, String[] added, String[] removed) {
+				for(int i = 0; i < added.length; i++)
+					changes.add("+" + added[i]) ;
+				for(int i = 0; i < removed.length; i++)
+					changes.add("-" + removed[i]) ;
+			}
+		}, POLL_MILLIS) ;
+
+		File pluggedIn = touch(new File(devices, "ttyUSB0")) ;
+		String plugged = changes.poll(POLL_MILLIS * 10, TimeUnit.MILLISECONDS) ;
+		arduino.delete() ;
+		String unplugged = changes.poll(POLL_MILLIS * 10, TimeUnit.MILLISECONDS) ;
+		scanner.stop() ;
+		boolean hotPlug = ("+" + pluggedIn.getCanonicalPath()).equals(plugged) && ("-" + arduino.getCanonicalPath()).equals(unplugged) ;
+		log.info("Hot-plug: " + plugged + ", " + unplugged + (hotPlug ? "" : " FAIL")) ;
+		return pass && hotPlug ;
+	}
+
+	/**
+	 * Search simulated ports for the explorer.
+	 *
+	 * @param parallelism how many ports to probe at once
+	 * @return how long it took to find the explorer, millis - or -1 if it wasn't found
+	 */
+	private static long search(String name, int parallelism) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(OPEN_DELAY_MILLIS, AIRTIME_MICROS) ;
+		link.addDeadPort("/dev/rfcomm0", DEAD_PORT_HANG_MILLIS) ;
+		link.addDeadPort("/dev/rfcomm1", DEAD_PORT_HANG_MILLIS) ;
+		link.addPort("/dev/ttyACM0", 0) ;
+		link.addPort("/dev/ttyUSB1", EXPLORER_BAUD_RATE) ;
+		String[] ports = { "/dev/rfcomm0", "/dev/rfcomm1", "/dev/ttyACM0", "/dev/ttyUSB1" } ;
+
+		LinkNegotiator negotiator = new LinkNegotiator(link, null) ;
+		negotiator.setParallelism(parallelism) ;
+		long start = System.nanoTime() ;
+		LinkNegotiator.Result result = negotiator.negotiate(ports, LinkNegotiator.LIKELY_BAUD_RATES) ;
+		long millis = (System.nanoTime() - start) / 1000000L ;
+		boolean found = result != null && result.getCommPort().equals("/dev/ttyUSB1") && result.getBaudRate() == EXPLORER_BAUD_RATE
+				&& link.isOpen() ;
+		log.info(String.format("%-14s %s%s", name, result == null ? "not found" : "found " + result, found ? "" : " FAIL")) ;
+		link.close() ;
+		return found ? millis : -1 ;
+	}
+
+	private static File touch(File file) throws Exception {
+		file.createNewFile() ;
+		return file ;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles() ;
+		if(children != null) {
+			for(int i = 0; i < children.length; i++)
+				delete(children[i]) ;
+		}
+		file.delete() ;
+	}
+}
@@ -0,0 +1,142 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.LatencyProbe;
+import org.amplexus.dfrobot.app.ReceivePipeline;
+import org.amplexus.dfrobot.app.SwingBatcher;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Floods the receive pipeline from the simulated robot - infrared samples at the fastest rate the sketch supports,
+ * plus a fast latency probe - in two runs:
+ * - a listener that keeps up, feeding a SwingBatcher with a slow EventDispatch thread: passes if nothing is
+ *   dropped, every sample reaches the EventDispatch thread, and they arrive in fewer batches than samples
+ * - a listener that can't keep up, behind a tiny ring: passes if frames are dropped rather than stalling the XBee
+ *   api's input thread, ie the TX statuses keep flowing and the robot still receives nearly every ping
+ *
+ * Usage: TestReceivePipeline [seconds] [baud rate]
+ *
+ * @author craig
+ */
+public class TestReceivePipeline {
+
+	public static final int INFRARED_INTERVAL		= 10 ;		// x 10 ms, the fastest the sketch supports
+	public static final long EDT_WORK_MILLIS		= 20 ;		// Simulated repaint cost per batch
+	public static final long SLOW_LISTENER_MILLIS	= 50 ;		// Per sample, far slower than they arrive
+	public static final int SLOW_CAPACITY			= 4 ;
+	public static final double MIN_PINGS_SENT		= 0.9 ;		// Fraction of pings that must reach the robot while the listener lags
+
+	private final static Logger log = Logger.getLogger(TestReceivePipeline.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 57600 ;
+
+		boolean pass = keepingUp(seconds, baudRate) ;
+		pass &= fallingBehind(seconds, baudRate) ;
+		log.info(pass ? "PASS" : "FAIL") ;
+		System.exit(0) ;		// The EventDispatch thread keeps the JVM alive
+	}
+
+	/**
+	 * A listener that keeps up, batching samples onto a slow EventDispatch thread.
+	 */
+	private static boolean keepingUp(int seconds, int baudRate) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, 500) ;
+		link.open("simulated", baudRate) ;
+		ReceivePipeline pipeline = new ReceivePipeline(link) ;
+
+		final long[] delivered = new long[1] ;		// Only touched on the EventDispatch thread
+		final SwingBatcher<Integer> batcher = new SwingBatcher<Integer>() {
+			protected void batch(List<Integer> batch) {
+				delivered[0] += batch.size() ;
+				try {
+					Thread.sleep(EDT_WORK_MILLIS) ;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt() ;
+				}
+			}
+		} ;
+		final long[] samples = new long[1] ;
+		pipeline.addTelemetryListener(new ReceivePipeline.TelemetryListener() {
+			public void infraredSample(int source, int sensor, int distance, long receivedNanos) {
+				samples[0]++ ;
+				batcher.add(Integer.valueOf(distance)) ;
+			}
+		});
+
+		run(link, pipeline, seconds, baudRate) ;
+		pipeline.shutdown() ;						// Joins the dispatch thread, so samples[0] is safe to read
+		Thread.sleep(EDT_WORK_MILLIS * 10) ;		// Let the last batch land
+
+		final long[] check = new long[1] ;
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				check[0] = delivered[0] ;
+			}
+		});
+		boolean pass = pipeline.getDroppedCount() == 0 && samples[0] > 0 && check[0] == samples[0]
+				&& batcher.getBatchCount() < samples[0] ;
+		log.info("Keeping up: samples=" + samples[0] + " delivered=" + check[0] + " batches=" + batcher.getBatchCount()
+				+ String.format(" (%.1f per batch)", batcher.getAverageBatchSize())
+				+ " dropped=" + pipeline.getDroppedCount() + (pass ? "" : " FAIL")) ;
+		link.close() ;
+		return pass ;
+	}
+
+	/**
+	 * A listener that can't keep up, behind a tiny ring.
+	 */
+	private static boolean fallingBehind(int seconds, int baudRate) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, 500) ;
+		SimulatedXBeeConnection robot = link.open("simulated", baudRate) ;
+		ReceivePipeline pipeline = new ReceivePipeline(link, SLOW_CAPACITY) ;
+		pipeline.addTelemetryListener(new ReceivePipeline.TelemetryListener() {
+			public void infraredSample(int source, int sensor, int distance, long receivedNanos) {
+				try {
+					Thread.sleep(SLOW_LISTENER_MILLIS) ;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt() ;
+				}
+			}
+		});
+
+		LatencyProbe probe = run(link, pipeline, seconds, baudRate) ;
+		pipeline.shutdown() ;
+		long pings = probe.getSentCount() ;
+		long framesReceived = robot.getFramesReceived() ;
+		boolean pass = pipeline.getDroppedCount() > 0 && pings > 0 && framesReceived >= pings * MIN_PINGS_SENT ;
+		log.info("Falling behind: dispatched=" + pipeline.getDispatchedCount() + " dropped=" + pipeline.getDroppedCount()
+				+ " pings=" + pings + " robot received=" + framesReceived + (pass ? "" : " FAIL")) ;
+		link.close() ;
+		return pass ;
+	}
+
+	/**
+	 * Stream infrared samples and ping for the given time.
+	 *
+	 * @return the probe, stopped
+	 */
+	private static LatencyProbe run(SimulatedLinkManager link, ReceivePipeline pipeline, int seconds, int baudRate) throws Exception {
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", baudRate, CommandDispatcher.DEFAULT_CAPACITY, null) ;
+		LatencyProbe probe = new LatencyProbe(dispatcher, pipeline) ;
+
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_START, INFRARED_INTERVAL) ;
+		probe.start(20) ;
+		Thread.sleep(seconds * 1000L) ;
+		probe.stop() ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_STOP, 0) ;
+		Thread.sleep(200) ;
+		pipeline.removePingListener(probe) ;
+		dispatcher.shutdown() ;
+		return probe ;
+	}
+}
@@ -0,0 +1,122 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.CommandListener;
+import org.amplexus.dfrobot.app.LatencyHistogram;
+import org.amplexus.dfrobot.app.RetryPolicy;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Sends pings over a lossy, busy simulated link (see SimulatedXBeeConnection.setLossRate() and setCcaRate()),
+ * first without retries and then with the default RetryPolicy, and counts the commands lost. Then checks a motion
+ * command that keeps failing is dropped, not retried, once a newer motion command supersedes it.
+ *
+ * Passes if retries bring the commands lost down to at most MAX_LOST_PERCENT, both busy channel and no ack
+ * failures were retried, and the superseded command was dropped.
+ *
+ * Usage: TestRetryPolicy [commands] [loss rate] [cca rate]
+ *
+ * @author craig
+ */
+public class TestRetryPolicy {
+
+	public static final int BAUD_RATE			= 9600 ;
+	public static final long AIRTIME_MICROS		= 2000 ;
+	public static final long INTERVAL_MILLIS	= 5 ;
+	public static final double MAX_LOST_PERCENT	= 1.0 ;
+	public static final long SEED				= 42 ;
+
+	private final static Logger log = Logger.getLogger(TestRetryPolicy.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 200 ;
+		double lossRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.2 ;
+		double ccaRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.1 ;
+
+		long without = lost("no retries", RetryPolicy.NO_RETRIES, commands, lossRate, ccaRate) ;
+		RetryPolicy policy = new RetryPolicy() ;
+		policy.setSeed(SEED) ;
+		long with = lost("retries", policy, commands, lossRate, ccaRate) ;
+		boolean pass = with >= 0 && with * 100.0 / commands <= MAX_LOST_PERCENT && (without < 0 || with < without) ;
+		log.info(String.format("Lost: %d of %d without retries, %d with%s", without, commands, with, pass ? "" : " FAIL")) ;
+		pass &= superseded() ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	/**
+	 * Send pings one every INTERVAL_MILLIS and wait for them all to complete.
+	 *
+	 * @return how many failed, or -1 if they didn't all complete, or the retries weren't as expected
+	 */
+	private static long lost(String name, RetryPolicy policy, int commands, double lossRate, double ccaRate) throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		SimulatedXBeeConnection robot = link.open("simulated", BAUD_RATE) ;
+		robot.setSeed(SEED) ;
+		robot.setLossRate(lossRate) ;
+		robot.setCcaRate(ccaRate) ;
+		final AtomicLong completed = new AtomicLong() ;
+		final AtomicLong failed = new AtomicLong() ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", BAUD_RATE, CommandDispatcher.DEFAULT_CAPACITY, new CommandListener() {
+			public void commandCompleted(RobotCommand command, String error) {
+				if(error != null)
+					failed.incrementAndGet() ;
+				completed.incrementAndGet() ;
+			}
+		});
+		dispatcher.setRetryPolicy(policy) ;
+
+		for(int i = 0; i < commands; i++) {
+			dispatcher.submit(XBeeCommunicatorTask.CMD_PING, i % 256) ;
+			Thread.sleep(INTERVAL_MILLIS) ;
+		}
+		long deadline = System.currentTimeMillis() + policy.getDeadlineMillis() + 5000 ;
+		while(completed.get() < commands && System.currentTimeMillis() < deadline)
+			Thread.sleep(10) ;
+
+		LatencyHistogram timeToSuccess = dispatcher.getTimeToSuccess() ;
+		log.info(String.format("%-10s %d of %d completed, %d failed, %d frames lost on the air - retries: %d busy channel, %d no ack, %d no status, "
+				+ "%d link error; %d abandoned - time to success p50 %.1f ms, p99 %.1f ms, max %.1f ms", name, completed.get(), commands,
+				failed.get(), robot.getFramesLost(), dispatcher.getRetryCount(RetryPolicy.CHANNEL_BUSY), dispatcher.getRetryCount(RetryPolicy.NO_ACK),
+				dispatcher.getRetryCount(RetryPolicy.NO_STATUS), dispatcher.getRetryCount(RetryPolicy.LINK_ERROR), dispatcher.getAbandonedCount(),
+				timeToSuccess.getPercentileMicros(50) / 1000.0, timeToSuccess.getPercentileMicros(99) / 1000.0, timeToSuccess.getMaxMicros() / 1000.0)) ;
+		boolean retried = policy.getMaxRetries() == 0 || (dispatcher.getRetryCount(RetryPolicy.CHANNEL_BUSY) > 0 && dispatcher.getRetryCount(RetryPolicy.NO_ACK) > 0) ;
+		boolean done = completed.get() == commands ;
+		if(!done || !retried)
+			log.info(name + ": " + (done ? "busy channel and no ack failures weren't both retried" : "not every command completed") + " FAIL") ;
+		dispatcher.shutdown() ;
+		link.close() ;
+		return done && retried ? failed.get() : -1 ;
+	}
+
+	/**
+	 * On a link that loses every frame, drive forward, then turn left while forward is still being retried.
+	 *
+	 * @return true if forward was dropped rather than retried after left
+	 */
+	private static boolean superseded() throws Exception {
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		SimulatedXBeeConnection robot = link.open("simulated", BAUD_RATE) ;
+		robot.setLossRate(1.0) ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", BAUD_RATE, CommandDispatcher.DEFAULT_CAPACITY, null) ;
+
+		dispatcher.submit(XBeeCommunicatorTask.CMD_MOTOR_FORWARD, 200) ;
+		Thread.sleep(100) ;
+		long forwardRetries = dispatcher.getRetryCount() ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_MOTOR_LEFT, 200) ;
+		Thread.sleep(300) ;
+
+		boolean pass = forwardRetries > 0 && dispatcher.getStaleRetryCount() == 1 ;
+		log.info("Forward retried " + forwardRetries + " times, then dropped " + dispatcher.getStaleRetryCount() + " superseded retries"
+				+ (pass ? "" : " FAIL")) ;
+		dispatcher.shutdown() ;
+		link.close() ;
+		return pass ;
+	}
+}
@@ -0,0 +1,71 @@
+package org.amplexus.dfrobot.app.test;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.LatencyProbe;
+import org.amplexus.dfrobot.app.ReceivePipeline;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+
+/**
+ * Exercises the simulated robot end to end through the production command path: runs the latency probe
+ * against it with jitter and packet loss, and counts the infrared samples it streams.
+ *
+ * Usage: TestSimulatedRobot [seconds] [baud rate] [loss rate] [jitter micros]
+ *
+ * @author craig
+ */
+public class TestSimulatedRobot {
+
+	public static final int INFRARED_INTERVAL = 10 ;		// x 10 ms, the fastest the sketch supports
+
+	private final static Logger log = Logger.getLogger(TestSimulatedRobot.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+		double lossRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.02 ;
+		long jitterMicros = args.length > 3 ? Long.parseLong(args[3]) : 3000 ;
+
+		SimulatedLinkManager link = new SimulatedLinkManager(50, 2000) ;
+		SimulatedXBeeConnection robot = link.open("simulated", baudRate) ;
+		robot.setLossRate(lossRate) ;
+		robot.setJitterMicros(jitterMicros) ;
+
+		ReceivePipeline pipeline = new ReceivePipeline(link) ;
+		final long[] samples = new long[3] ;
+		pipeline.addTelemetryListener(new ReceivePipeline.TelemetryListener() {
+			public void infraredSample(int source, int sensor, int distance, long receivedNanos) {
+				synchronized(samples) {
+					samples[sensor]++ ;
+				}
+			}
+		});
+
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", baudRate, CommandDispatcher.DEFAULT_CAPACITY, null) ;
+		LatencyProbe probe = new LatencyProbe(dispatcher, pipeline) ;
+
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_START, INFRARED_INTERVAL) ;
+		probe.start(100) ;
+		Thread.sleep(seconds * 1000L) ;
+		probe.stop() ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_STOP, 0) ;
+		Thread.sleep(500) ;
+
+		log.info("baud=" + baudRate + " loss=" + lossRate + " jitter=" + jitterMicros + " us") ;
+		log.info(probe.getSummary() + " sent=" + probe.getSentCount() + " received=" + probe.getReceivedCount()) ;
+		synchronized(samples) {
+			log.info("Infrared samples: sensor0=" + samples[0] + " sensor1=" + samples[1] + " sensor2=" + samples[2]) ;
+		}
+		log.info("Simulator: frames received=" + robot.getFramesReceived() + " lost=" + robot.getFramesLost()
+				+ " sent=" + robot.getFramesSent()) ;
+		log.info("Receive pipeline: dispatched=" + pipeline.getDispatchedCount() + " dropped=" + pipeline.getDroppedCount()) ;
+
+		dispatcher.shutdown() ;
+		pipeline.shutdown() ;
+		link.close() ;
+	}
+}
@@ -0,0 +1,85 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.CommandListener;
+import org.amplexus.dfrobot.app.LatencyHistogram;
+import org.amplexus.dfrobot.app.RobotCommand;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Measures the worst case stop latency against a lossy simulated endpoint: fills the queue and the transmit
+ * window with pings (which aren't coalesced) and motion commands, submits a stop, and times it from submit to
+ * the robot acknowledging it.
+ *
+ * Passes if every stop is acknowledged within CommandDispatcher.STOP_LATENCY_TARGET_MILLIS, and the robot is
+ * left stopped every time - ie no motion command queued before the stop overtook it.
+ *
+ * Usage: TestStopLatency [trials] [baud rate] [loss rate]
+ *
+ * @author craig
+ */
+public class TestStopLatency {
+
+	public static final int BURST			= 24 ;		// More than the queue and window hold between them
+	public static final long AIRTIME_MICROS	= 2000 ;
+	public static final long JITTER_MICROS	= 2000 ;
+
+	private final static Logger log = Logger.getLogger(TestStopLatency.class);
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int trials = args.length > 0 ? Integer.parseInt(args[0]) : 100 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+		double lossRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.05 ;
+
+		SimulatedLinkManager link = new SimulatedLinkManager(50, AIRTIME_MICROS) ;
+		SimulatedXBeeConnection robot = link.open("simulated", baudRate) ;
+		robot.setLossRate(lossRate) ;
+		robot.setJitterMicros(JITTER_MICROS) ;
+
+		final Semaphore stopped = new Semaphore(0) ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, "simulated", baudRate, CommandDispatcher.DEFAULT_CAPACITY, new CommandListener() {
+			public void commandCompleted(RobotCommand command, String error) {
+				if(command.getCommand() == XBeeCommunicatorTask.CMD_MOTOR_STOP)
+					stopped.release() ;
+			}
+		});
+
+		int moving = 0 ;
+		int unacknowledged = 0 ;
+		for(int i = 0; i < trials; i++) {
+			for(int j = 0; j < BURST; j++) {
+				dispatcher.submit(XBeeCommunicatorTask.CMD_PING, j) ;
+				dispatcher.submit(XBeeCommunicatorTask.CMD_MOTOR_FORWARD + (j % 4), 200) ;
+			}
+			dispatcher.submit(XBeeCommunicatorTask.CMD_MOTOR_STOP, 0) ;
+			if(!stopped.tryAcquire(CommandDispatcher.PRIORITY_DEADLINE_MILLIS * 2, TimeUnit.MILLISECONDS))
+				unacknowledged++ ;
+
+			/*
+			 * Let anything still in flight land, then check the stop was the last thing the robot acted on
+			 */
+			Thread.sleep(100) ;
+			if(robot.getRobotMotion() != XBeeCommunicatorTask.CMD_MOTOR_STOP)
+				moving++ ;
+		}
+
+		LatencyHistogram latency = dispatcher.getPriorityLatency() ;
+		long targetMicros = CommandDispatcher.STOP_LATENCY_TARGET_MILLIS * 1000L ;
+		boolean pass = unacknowledged == 0 && moving == 0 && latency.getCount() == trials && latency.getMaxMicros() <= targetMicros ;
+		log.info("baud=" + baudRate + " loss=" + lossRate + " trials=" + trials + " stop latency " + latency
+				+ " target=" + CommandDispatcher.STOP_LATENCY_TARGET_MILLIS + " ms") ;
+		log.info("retries=" + dispatcher.getPriorityRetryCount() + " unacknowledged=" + unacknowledged
+				+ " left moving=" + moving + " coalesced=" + dispatcher.getCoalescedCount()) ;
+		log.info(pass ? "PASS" : "FAIL") ;
+
+		dispatcher.shutdown() ;
+		link.close() ;
+	}
+}
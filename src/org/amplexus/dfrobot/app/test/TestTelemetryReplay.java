@@ -0,0 +1,144 @@
+package org.amplexus.dfrobot.app.test;
+
+import java.io.File;
+
+import org.amplexus.dfrobot.app.CommandDispatcher;
+import org.amplexus.dfrobot.app.LatencyProbe;
+import org.amplexus.dfrobot.app.ReceivePipeline;
+import org.amplexus.dfrobot.app.TelemetryReader;
+import org.amplexus.dfrobot.app.TelemetryRecorder;
+import org.amplexus.dfrobot.app.TelemetryReplay;
+import org.amplexus.dfrobot.app.XBeeCommunicatorTask;
+import org.amplexus.dfrobot.app.XBeeTransmitEngine;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * Records a session against the simulated robot - infrared samples streaming plus the latency probe - then
+ * replays it through a fresh receive pipeline, at maximum speed and in real time.
+ *
+ * Passes if:
+ * - the recording reads back with the same number of inbound and outbound frames that were recorded
+ * - both replays deliver exactly the infrared samples and ping replies seen live
+ * - the real time replay takes about as long as the recording, and the maximum speed one far less
+ *
+ * Usage: TestTelemetryReplay [seconds] [baud rate] [directory]
+ *
+ * @author craig
+ */
+public class TestTelemetryReplay {
+
+	public static final int INFRARED_INTERVAL		= 10 ;		// x 10 ms, the fastest the sketch supports
+	public static final int SEGMENT_BYTES			= 64 * 1024 ;	// Small, so a short session spans segments
+	public static final double REAL_TIME_TOLERANCE	= 0.1 ;
+	public static final long REAL_TIME_SLACK_MILLIS	= 1000 ;	// The recording's quiet start and end aren't replayed
+
+	private final static Logger log = Logger.getLogger(TestTelemetryReplay.class);
+
+	/**
+	 * Counts what a pipeline delivers.
+	 */
+	private static class Counts implements ReceivePipeline.TelemetryListener, ReceivePipeline.PingListener {
+		volatile long samples = 0 ;
+		volatile long pings = 0 ;
+
+		public void infraredSample(int source, int sensor, int distance, long receivedNanos) {
+			samples++ ;
+		}
+
+		public void pingReply(int source, int sequence, long receivedNanos) {
+			pings++ ;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfigurator.configure("log4j.properties");
+
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10 ;
+		int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600 ;
+		File directory = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir")) ;
+
+		/*
+		 * Record
+		 */
+		SimulatedLinkManager link = new SimulatedLinkManager(50, 2000) ;
+		link.open("simulated", baudRate) ;
+		ReceivePipeline pipeline = new ReceivePipeline(link) ;
+		Counts live = new Counts() ;
+		pipeline.addTelemetryListener(live) ;
+		pipeline.addPingListener(live) ;
+		XBeeTransmitEngine engine = new XBeeTransmitEngine() ;
+		CommandDispatcher dispatcher = new CommandDispatcher(link, engine, "simulated", baudRate, CommandDispatcher.DEFAULT_CAPACITY, null) ;
+		LatencyProbe probe = new LatencyProbe(dispatcher, pipeline) ;
+
+		TelemetryRecorder recorder = new TelemetryRecorder(directory, TelemetryRecorder.newSessionName(), SEGMENT_BYTES) ;
+		engine.setRecorder(recorder) ;
+		pipeline.setRecorder(recorder) ;
+		long recordStart = System.nanoTime() ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_START, INFRARED_INTERVAL) ;
+		probe.start(100) ;
+		Thread.sleep(seconds * 1000L) ;
+		probe.stop() ;
+		dispatcher.submit(XBeeCommunicatorTask.CMD_INFRARED_SAMPLE_STOP, 0) ;
+		Thread.sleep(500) ;
+		engine.setRecorder(null) ;
+		pipeline.setRecorder(null) ;
+		long recordMillis = (System.nanoTime() - recordStart) / 1000000L ;
+		recorder.close() ;
+		dispatcher.shutdown() ;
+		pipeline.shutdown() ;
+		link.close() ;
+		log.info("Recorded " + recorder.getRecordCount() + " frames in " + recorder.getSegmentCount() + " segments over "
+				+ recordMillis + " ms: samples=" + live.samples + " ping replies=" + live.pings) ;
+
+		/*
+		 * Read back
+		 */
+		TelemetryReader reader = new TelemetryReader(directory, recorder.getSession()) ;
+		long inbound = 0 ;
+		long outbound = 0 ;
+		while(reader.next()) {
+			if(reader.isInbound())
+				inbound++ ;
+			else
+				outbound++ ;
+		}
+		boolean pass = inbound + outbound == recorder.getRecordCount() && outbound > 0 && inbound > 0 ;
+		log.info("Read back " + inbound + " inbound and " + outbound + " outbound frames" + (pass ? "" : " FAIL")) ;
+
+		/*
+		 * Replay, flat out and then in real time
+		 */
+		pass &= replay(directory, recorder.getSession(), TelemetryReplay.MAXIMUM_SPEED, live, recordMillis) ;
+		pass &= replay(directory, recorder.getSession(), TelemetryReplay.REAL_TIME, live, recordMillis) ;
+
+		for(int i = 0; i < recorder.getSegmentCount(); i++)
+			TelemetryRecorder.segmentFile(directory, recorder.getSession(), i).delete() ;
+		log.info(pass ? "PASS" : "FAIL") ;
+	}
+
+	private static boolean replay(File directory, String session, double speed, Counts live, long recordMillis) throws Exception {
+		TelemetryReplay replay = new TelemetryReplay(directory, session) ;
+		ReceivePipeline pipeline = new ReceivePipeline(replay.getLink(), 4096) ;
+		Counts replayed = new Counts() ;
+		pipeline.addTelemetryListener(replayed) ;
+		pipeline.addPingListener(replayed) ;
+
+		long start = System.nanoTime() ;
+		long frames = replay.replay(speed) ;
+		long millis = (System.nanoTime() - start) / 1000000L ;
+		Thread.sleep(200) ;			// Let the dispatch thread finish
+		pipeline.shutdown() ;
+		replay.close() ;
+
+		boolean pass = replayed.samples == live.samples && replayed.pings == live.pings && pipeline.getDroppedCount() == 0 ;
+		if(speed == TelemetryReplay.REAL_TIME)
+			pass &= Math.abs(millis - recordMillis) <= recordMillis * REAL_TIME_TOLERANCE + REAL_TIME_SLACK_MILLIS ;
+		else
+			pass &= millis < recordMillis / 10 ;
+		log.info((speed == TelemetryReplay.REAL_TIME ? "Real time" : "Maximum speed") + " replay: " + frames + " frames in "
+				+ millis + " ms, samples=" + replayed.samples + " ping replies=" + replayed.pings + " dropped="
+				+ pipeline.getDroppedCount() + (pass ? "" : " FAIL")) ;
+		return pass ;
+	}
+}